@@ -0,0 +1,113 @@
+// BroadcastWorkload.java
+// Broadcasts one message from an IMReactor to many loopback clients.
+// Devon Bautista
+
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Starts an IMReactor on an ephemeral port, connects a number of
+ * client sockets that read and discard everything, and measures one
+ * broadcast until every session has written it. In "perSession" mode
+ * the message is encoded separately for each session, as before
+ * SharedFrame; in "shared" mode it goes through IMReactor.broadcast.
+ *
+ * The argument is the mode and the client count, e.g. "shared:32".
+ **/
+public class BroadcastWorkload implements Callable<Object>, AutoCloseable
+{
+	// Attributes
+	private final boolean shared;
+	private final String text;
+	private final IMReactor reactor;
+	private final List<Socket> sockets = new ArrayList<Socket>();
+
+	public BroadcastWorkload(String argument) throws Exception
+	{
+		String[] parts = argument.split(":");
+		this.shared = parts[0].equals("shared");
+		int clients = Integer.parseInt(parts[1]);
+		char[] chars = new char[256];
+		Arrays.fill(chars, 'a');
+		this.text = new String(chars);
+
+		final CountDownLatch opened = new CountDownLatch(clients);
+		this.reactor = new IMReactor(0, Runtime.getRuntime().availableProcessors(), new ReactorHandler()
+		{
+			public void sessionOpened(ChannelSession session)
+			{
+				opened.countDown();
+			}	// End of method sessionOpened
+
+			public void frameReceived(ChannelSession session, Frame frame) {}
+			public void sessionClosed(ChannelSession session) {}
+		});
+		this.reactor.bind();
+		Thread acceptor = new Thread(new Runnable()
+		{
+			public void run()
+			{
+				try
+				{
+					BroadcastWorkload.this.reactor.acceptLoop();
+				}	// End of try
+				catch (IOException e)
+				{
+					// Reactor closed
+				}	// End of catch
+			}	// End of method run
+		});
+		acceptor.setDaemon(true);
+		acceptor.start();
+
+		for (int i = 0; i < clients; i++)
+		{
+			final Socket socket = new Socket(InetAddress.getLoopbackAddress(), this.reactor.getServerSocket().getLocalPort());
+			DataOutputStream output = new DataOutputStream(socket.getOutputStream());
+			FrameCodec.write(output, FrameCodec.TYPE_HELLO, FrameCodec.helloPayload());
+			output.flush();
+			this.sockets.add(socket);
+
+			// Drain everything the reactor sends
+			Thread reader = new Thread(new Runnable()
+			{
+				public void run()
+				{
+					byte[] discard = new byte[65536];
+					try
+					{
+						InputStream input = socket.getInputStream();
+						while (input.read(discard) >= 0);
+					}	// End of try
+					catch (IOException e)
+					{
+						// Socket closed
+					}	// End of catch
+				}	// End of method run
+			});
+			reader.setDaemon(true);
+			reader.start();
+		}	// End of for
+		opened.await(10, TimeUnit.SECONDS);
+	}	// End of constructor
+
+	public Object call() throws Exception
+	{
+		if (this.shared)
+			return this.reactor.broadcast(FrameCodec.TYPE_MESSAGE, this.text).get();
+
+		List<CompletableFuture<Void>> writes = new ArrayList<CompletableFuture<Void>>();
+		for (ChannelSession session : this.reactor.getSessions())
+			writes.add(session.send(FrameCodec.TYPE_MESSAGE, this.text));
+		return CompletableFuture.allOf(writes.toArray(new CompletableFuture<?>[writes.size()])).get();
+	}	// End of method call
+
+	public void close() throws IOException
+	{
+		for (Socket socket : this.sockets)
+			socket.close();
+		this.reactor.close();
+	}	// End of method close
+}	// End of class BroadcastWorkload
\ No newline at end of file
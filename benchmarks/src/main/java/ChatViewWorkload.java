@@ -0,0 +1,97 @@
+// ChatViewWorkload.java
+// Renders one frame of a chat area holding many lines.
+// Devon Bautista
+
+import javax.swing.*;
+import java.awt.*;
+import java.awt.image.*;
+import java.util.concurrent.*;
+
+/**
+ * Fills a chat area with a number of lines, then measures one frame of
+ * a busy chat: a batch of new lines rendered, the area laid out again,
+ * scrolled to its end and painted into an image the size of a chat
+ * window. Subclasses create the chat area.
+ **/
+public abstract class ChatViewWorkload implements Callable<Object>
+{
+	// Constants
+	private static final int FRAME_LINES = 10;
+	private static final int LOAD_BATCH = 10000;
+	private static final Dimension VIEWPORT_SIZE = new Dimension(560, 400);
+
+	// Attributes
+	private final int loaded;
+	private final JScrollPane scroll = new JScrollPane();
+	private final BufferedImage image = new BufferedImage(VIEWPORT_SIZE.width, VIEWPORT_SIZE.height,
+		BufferedImage.TYPE_INT_RGB);
+	private MessageRenderer renderer;
+	private final Runnable frame;
+
+	public ChatViewWorkload(String loaded) throws Exception
+	{
+		this.loaded = Integer.parseInt(loaded);
+		this.frame = new Runnable()
+		{
+			public void run()
+			{
+				ChatViewWorkload.this.frame();
+			}	// End of method run
+		};
+		SwingUtilities.invokeAndWait(new Runnable()
+		{
+			public void run()
+			{
+				ChatViewWorkload.this.load();
+			}	// End of method run
+		});
+	}	// End of constructor
+
+	/**
+	 * Creates the chat area and shows it in a scroll pane.
+	 * @param scroll The scroll pane.
+	 * @return The renderer of the chat area.
+	 **/
+	protected abstract MessageRenderer createView(JScrollPane scroll);
+
+	public Object call() throws Exception
+	{
+		SwingUtilities.invokeAndWait(this.frame);
+		return this.image;
+	}	// End of method call
+
+	private void load()
+	{
+		this.renderer = this.createView(this.scroll);
+		this.renderer.setScrollbackLimit(this.loaded);
+		this.scroll.setSize(VIEWPORT_SIZE);
+		for (int i = 0; i < this.loaded; i++)
+		{
+			this.renderer.append(i % 2, "The quick brown fox jumps over the lazy dog " + i);
+			if (i % LOAD_BATCH == LOAD_BATCH - 1)
+				this.renderer.actionPerformed(null);
+		}	// End of for
+		this.renderer.actionPerformed(null);
+		this.frame();
+	}	// End of method load
+
+	private void frame()
+	{
+		for (int i = 0; i < FRAME_LINES; i++)
+			this.renderer.append(MessageRenderer.INCOMING, "The quick brown fox jumps over the lazy dog");
+		this.renderer.actionPerformed(null);	// Render now rather than waiting for the frame timer
+		this.scroll.doLayout();		// What validate() would do, were the scroll pane in a window
+		this.scroll.getViewport().doLayout();
+		JScrollBar bar = this.scroll.getVerticalScrollBar();
+		bar.setValue(bar.getMaximum());
+		Graphics g = this.image.getGraphics();
+		try
+		{
+			this.scroll.paint(g);
+		}	// End of try
+		finally
+		{
+			g.dispose();
+		}	// End of finally
+	}	// End of method frame
+}	// End of class ChatViewWorkload
\ No newline at end of file
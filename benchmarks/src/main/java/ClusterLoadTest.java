@@ -0,0 +1,338 @@
+// ClusterLoadTest.java
+// Compares the room throughput of one server with a cluster, without Swing.
+// Devon Bautista
+
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * Headless cluster test. Runs the same room workload twice on
+ * localhost: once against a single IMServer and once against a cluster
+ * of N IMServers linked by ClusterNodes, then prints the aggregate
+ * delivery rate of each and how much the cluster scaled it.
+ *
+ * Client i joins room i % rooms and, in the cluster run, connects to
+ * node i % N, so every room has members on every node and every
+ * message crosses the cluster. Each client sends room messages at a
+ * fixed rate; a message carries its send time and the sender's node,
+ * so receivers, being in the same JVM, measure its delivery latency
+ * and count the messages relayed to them from other nodes. The test
+ * fails, exiting with status 1, if any client misses a room message,
+ * if a node receives fewer relayed messages than its members were
+ * sent, or if anything reports an error. Every server gets the
+ * same number of reactor threads, one by default, so one server is the
+ * bottleneck the cluster spreads out; on a machine with fewer cores
+ * than nodes the cluster has nothing to spread it to.
+ *
+ * Usage: java -cp benchmarks.jar ClusterLoadTest [-nodes N] [-clients N] [-rooms N]
+ *   [-rate msgsPerSecPerClient] [-size bytes] [-duration seconds]
+ *   [-port firstPort] [-workers threadsPerServer]
+ **/
+public class ClusterLoadTest
+{
+	// Constants
+	private static final int CLUSTER_PORT_OFFSET = 100;
+	private static final long SETTLE_MILLIS = 5000;
+
+	// Attributes
+	private static final AtomicLong errors = new AtomicLong(0);
+	private static final List<String> failures = new ArrayList<String>();
+
+	public static void main(String[] args) throws Exception
+	{
+		Map<String, String> options = parseOptions(args);
+		int nodes = Integer.parseInt(options.getOrDefault("nodes", "3"));
+		int clients = Integer.parseInt(options.getOrDefault("clients", "120"));
+		int rooms = Integer.parseInt(options.getOrDefault("rooms", "20"));
+		int rate = Integer.parseInt(options.getOrDefault("rate", "50"));
+		int size = Integer.parseInt(options.getOrDefault("size", "64"));
+		int duration = Integer.parseInt(options.getOrDefault("duration", "10"));
+		int port = Integer.parseInt(options.getOrDefault("port", "6100"));
+		int workers = Integer.parseInt(options.getOrDefault("workers", "1"));
+
+		System.out.println(clients + " clients in " + rooms + " rooms, sending " + rate + " msg/s each, "
+			+ size + " bytes, for " + duration + " s per run; " + workers + " reactor thread(s) per server");
+		double single = run(1, clients, rooms, rate, size, duration, port, workers);
+		double cluster = run(nodes, clients, rooms, rate, size, duration, port + 1, workers);
+		System.out.printf("Scaling:    %d nodes delivered %.2fx the messages per second of 1%n", nodes, cluster / single);
+		System.out.printf("Errors:     %d%n", errors.get());
+		if (nodes < 2)
+			failures.add("A cluster needs at least 2 nodes, not " + nodes);
+		if (errors.get() > 0)
+			failures.add(errors.get() + " errors");
+		for (String failure : failures)
+			System.out.println("FAILED:     " + failure);
+		System.out.println(failures.isEmpty() ? "PASSED" : "FAILED");
+		System.exit(failures.isEmpty() ? 0 : 1);
+	}	// End of method main
+
+	/**
+	 * Starts the servers, connects and runs the clients, and reports.
+	 * @return The aggregate number of room messages delivered per second.
+	 **/
+	private static double run(int nodes, int clients, int rooms, int rate, final int size, int duration,
+		int port, int workers) throws Exception
+	{
+		// Start the servers and wait for them to listen and link up
+		System.clearProperty(MessageStore.DIRECTORY_PROPERTY);	// Nobody is offline, so nothing is stored
+		Map<Integer, InetSocketAddress> members = new TreeMap<Integer, InetSocketAddress>();
+		for (int i = 1; i <= nodes; i++)
+			members.put(i, new InetSocketAddress("127.0.0.1", port + CLUSTER_PORT_OFFSET + i - 1));
+		List<IMServer> servers = new ArrayList<IMServer>();
+		List<ClusterNode> cluster = new ArrayList<ClusterNode>();
+		for (int i = 1; i <= nodes; i++)
+		{
+			ClusterNode node = (nodes > 1) ? new ClusterNode(i, members) : null;
+			if (node != null)
+				cluster.add(node);
+			servers.add(new IMServer(port + i - 1, workers, new QuietListener(), SessionExecutor.getDefault(), node));
+		}	// End of for
+		long deadline = System.currentTimeMillis() + 10000;
+		for (IMServer server : servers)
+			while (server.getServer() == null || !server.getServer().isBound())
+				waitUntil(deadline, "Server did not start");
+		for (ClusterNode node : cluster)
+			while (node.getLinkCount() < nodes - 1)
+				waitUntil(deadline, "Node " + node.getNodeId() + " did not link to the others");
+
+		// Connect the clients, each to its node, and join their rooms
+		List<ClientProbe> probes = new ArrayList<ClientProbe>();
+		int[] roomSizes = new int[rooms];
+		for (int i = 0; i < clients; i++)
+		{
+			ClientProbe probe = new ClientProbe(i, i % rooms, i % nodes);
+			probe.client = new IMClient("127.0.0.1", port + i % nodes, probe);
+			probes.add(probe);
+			roomSizes[probe.room]++;
+		}	// End of for
+		for (ClientProbe probe : probes)
+		{
+			if (!probe.connected.await(10, TimeUnit.SECONDS))
+				errors.incrementAndGet();
+			while (probe.client.getProtocolVersion() == 0)
+				waitUntil(deadline, "Client did not finish its handshake");
+			probe.client.sendMessage("/join room-" + probe.room);
+		}	// End of for
+		for (ClientProbe probe : probes)
+			if (!probe.joined.await(10, TimeUnit.SECONDS))
+				errors.incrementAndGet();
+		Thread.sleep(1000);		// Let the joins reach every node
+
+		// Send at a fixed rate from a small scheduler pool
+		ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(Math.min(clients, 4));
+		long period = TimeUnit.SECONDS.toNanos(1) / Math.max(1, rate);
+		long start = System.nanoTime();
+		for (final ClientProbe probe : probes)
+			scheduler.scheduleAtFixedRate(new Runnable()
+			{
+				public void run()
+				{
+					probe.sendOne(size);
+				}	// End of method run
+			}, period * probe.id / clients, period, TimeUnit.NANOSECONDS);
+
+		Thread.sleep(TimeUnit.SECONDS.toMillis(duration));
+		scheduler.shutdownNow();
+		scheduler.awaitTermination(1, TimeUnit.SECONDS);
+		long elapsed = System.nanoTime() - start;
+
+		// Work out what every client and node should receive
+		long sent = 0, expected = 0;
+		long[] sentTo = new long[rooms];
+		long[][] sentFrom = new long[nodes][rooms];
+		for (ClientProbe probe : probes)
+		{
+			sent += probe.sent.get();
+			expected += probe.sent.get() * (roomSizes[probe.room] - 1);
+			sentTo[probe.room] += probe.sent.get();
+			sentFrom[probe.node][probe.room] += probe.sent.get();
+		}	// End of for
+		long[] relayedExpected = new long[nodes];
+		for (ClientProbe probe : probes)
+			relayedExpected[probe.node] += sentTo[probe.room] - sentFrom[probe.node][probe.room];
+
+		// Let in-flight messages arrive
+		long settle = System.currentTimeMillis() + SETTLE_MILLIS;
+		while (ClientProbe.latency.getCount() < expected && System.currentTimeMillis() < settle)
+			Thread.sleep(50);
+
+		// Check
+		String label = (nodes == 1) ? "1 server" : nodes + " nodes";
+		long[] relayed = new long[nodes];
+		int missing = 0;
+		for (ClientProbe probe : probes)
+		{
+			relayed[probe.node] += probe.relayed.get();
+			if (probe.received.get() < sentTo[probe.room] - probe.sent.get())
+				missing++;
+		}	// End of for
+		if (missing > 0)
+			failures.add(label + ": " + missing + " clients missed room messages");
+		for (int i = 0; i < nodes; i++)
+			if (relayed[i] < relayedExpected[i])
+				failures.add(label + ": node " + (i + 1) + " received " + relayed[i] + " of "
+					+ relayedExpected[i] + " relayed room messages");
+
+		// Report
+		long relays = 0;
+		for (ClusterNode node : cluster)
+			relays += node.getRelaysSent();
+		double seconds = elapsed / 1e9;
+		double delivered = ClientProbe.latency.getCount() / seconds;
+		System.out.println((nodes == 1) ? "1 server:" : nodes + " nodes:");
+		System.out.printf("Sent:       %d msgs (%.0f msg/s)%n", sent, sent / seconds);
+		System.out.printf("Delivered:  %d of %d msgs (%.0f msg/s)%n", ClientProbe.latency.getCount(), expected, delivered);
+		System.out.printf("Latency:    p50 %.3f ms, p99 %.3f ms, max %.3f ms%n",
+			ClientProbe.latency.getValueAtPercentile(50) / 1e6, ClientProbe.latency.getValueAtPercentile(99) / 1e6,
+			ClientProbe.latency.getMax() / 1e6);
+		if (nodes > 1)
+		{
+			System.out.printf("Relays:     %d frames between nodes, one per remote node per message%n", relays);
+			for (int i = 0; i < nodes; i++)
+				System.out.printf("Node %d:     received %d of %d relayed msgs%n", i + 1, relayed[i], relayedExpected[i]);
+		}	// End of if
+
+		for (ClientProbe probe : probes)
+			probe.client.stop();
+		for (IMServer server : servers)
+			server.stop();
+		ClientProbe.latency.reset();
+		Thread.sleep(500);		// Let the servers close
+		return delivered;
+	}	// End of method run
+
+	/**
+	 * Sleeps briefly, failing once the deadline has passed.
+	 **/
+	private static void waitUntil(long deadline, String failure) throws InterruptedException
+	{
+		if (System.currentTimeMillis() > deadline)
+			throw new IllegalStateException(failure);
+		Thread.sleep(10);
+	}	// End of method waitUntil
+
+	/**
+	 * Parses "-name value" pairs.
+	 **/
+	private static Map<String, String> parseOptions(String[] args)
+	{
+		Map<String, String> options = new HashMap<String, String>();
+		for (int i = 0; i + 1 < args.length; i += 2)
+		{
+			if (!args[i].startsWith("-"))
+				throw new IllegalArgumentException("Expected an option, found " + args[i]);
+			options.put(args[i].substring(1), args[i + 1]);
+		}	// End of for
+		return options;
+	}	// End of method parseOptions
+
+	/**
+	 * Server-side listener that only counts errors.
+	 **/
+	private static class QuietListener implements SessionListener
+	{
+		public void printInformationMessage(String msg)
+		{
+			if (msg.startsWith("Unable"))
+				errors.incrementAndGet();
+		}	// End of method printInformationMessage
+
+		public void printIncomingMessage(String msg) {}
+		public void printOutgoingMessage(String msg) {}
+		public void setConnected(boolean connected) {}
+		public void ableToSend(boolean canSend) {}
+		public void setSession(IMConnectable session) {}
+	}	// End of class QuietListener
+
+	/**
+	 * Client-side listener that sends timestamped room messages and
+	 * records the latency of those it receives, and how many of them
+	 * came from another node.
+	 **/
+	private static class ClientProbe implements SessionListener
+	{
+		static final LatencyHistogram latency = new LatencyHistogram();
+		final int id;
+		final int room;
+		final int node;
+		final CountDownLatch connected = new CountDownLatch(1);
+		final CountDownLatch joined = new CountDownLatch(1);
+		final AtomicLong sent = new AtomicLong(0);
+		final AtomicLong received = new AtomicLong(0);
+		final AtomicLong relayed = new AtomicLong(0);
+		volatile IMClient client;
+		String padding;
+
+		ClientProbe(int id, int room, int node)
+		{
+			this.id = id;
+			this.room = room;
+			this.node = node;
+		}	// End of constructor
+
+		/**
+		 * Sends one message of roughly the given size to the client's room.
+		 **/
+		void sendOne(int size)
+		{
+			if (this.padding == null)
+			{
+				char[] pad = new char[Math.max(1, size - 22)];
+				Arrays.fill(pad, 'x');
+				this.padding = new String(pad);
+			}	// End of if
+
+			try
+			{
+				this.client.sendMessage("room-" + this.room, System.nanoTime() + " " + this.node + " " + this.padding);
+			}	// End of try
+			catch (Exception e)
+			{
+				errors.incrementAndGet();
+			}	// End of catch
+		}	// End of method sendOne
+
+		public void printIncomingMessage(String msg)
+		{
+			// Room messages arrive as "[#room] time node padding"
+			int start = msg.indexOf("] ");
+			if (!msg.startsWith("[#") || start < 0)
+				return;
+			int end = msg.indexOf(' ', start + 2);
+			int nodeEnd = msg.indexOf(' ', end + 1);
+			latency.record(System.nanoTime() - Long.parseLong(msg.substring(start + 2, end)));
+			this.received.incrementAndGet();
+			if (Integer.parseInt(msg.substring(end + 1, nodeEnd)) != this.node)
+				this.relayed.incrementAndGet();
+		}	// End of method printIncomingMessage
+
+		public void printOutgoingMessage(String msg)
+		{
+			if (msg.startsWith("[#"))
+				this.sent.incrementAndGet();
+		}	// End of method printOutgoingMessage
+
+		public void printInformationMessage(String msg)
+		{
+			if (msg.startsWith("Unable") || msg.startsWith("No such server"))
+				errors.incrementAndGet();
+		}	// End of method printInformationMessage
+
+		public void setConnected(boolean connected)
+		{
+			if (connected)
+				this.connected.countDown();
+		}	// End of method setConnected
+
+		public void conversationOpened(String conversation)
+		{
+			this.joined.countDown();
+		}	// End of method conversationOpened
+
+		public void ableToSend(boolean canSend) {}
+		public void setSession(IMConnectable session) {}
+	}	// End of class ClientProbe
+}	// End of class ClusterLoadTest
\ No newline at end of file
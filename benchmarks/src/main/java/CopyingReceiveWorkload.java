@@ -0,0 +1,58 @@
+// CopyingReceiveWorkload.java
+// Baseline: one received chat frame, copied out of a heap read buffer.
+// Devon Bautista
+
+import java.nio.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Decodes the next traced STREAM_DATA frame from a heap buffer as the
+ * reactor did before frames were views: the payload is copied out of
+ * the buffer, copied again without its trace header, and then read.
+ * With "text" the message is decoded to a String, as a consumer that
+ * shows it does; with "streamId" only the stream ID is read, as when a
+ * frame is routed.
+ **/
+public class CopyingReceiveWorkload implements Callable<Object>
+{
+	// Constants
+	static final int BUFFER_SIZE = 64 * 1024;
+	private static final String TEXT = "The quick brown fox jumps over the lazy dog, again and again and again";
+
+	// Attributes
+	private final ByteBuffer buf = fill(ByteBuffer.allocate(BUFFER_SIZE));
+	private final boolean text;
+	private int sink = 0;
+
+	public CopyingReceiveWorkload(String consumer)
+	{
+		this.text = consumer.equals("text");
+	}	// End of constructor
+
+	public Object call() throws Exception
+	{
+		if (!this.buf.hasRemaining())
+			this.buf.rewind();
+		Frame frame = FrameCodec.readTrace(FrameCodec.decode(this.buf));
+		if (this.text)
+			return frame.getStreamText();
+		this.sink += frame.getStreamId();
+		return frame;
+	}	// End of method call
+
+	/**
+	 * Fills a buffer with as many traced STREAM_DATA frames as fit.
+	 * @param buf An empty buffer in write mode.
+	 * @return The buffer in read mode.
+	 **/
+	static ByteBuffer fill(ByteBuffer buf)
+	{
+		ByteBuffer frame = FrameCodec.encode(FrameCodec.TYPE_STREAM_DATA,
+			FrameCodec.tracedPayload(1, FrameCodec.streamPayload(7, TEXT)));
+		while (buf.remaining() >= frame.remaining())
+			buf.put(frame.duplicate());
+		buf.flip();
+		return buf;
+	}	// End of method fill
+}	// End of class CopyingReceiveWorkload
\ No newline at end of file
@@ -0,0 +1,43 @@
+// DocumentAppendWorkload.java
+// Appends a batch of chat lines through MessageRenderer.
+// Devon Bautista
+
+import javax.swing.*;
+import javax.swing.text.*;
+import java.util.concurrent.*;
+
+/**
+ * Queues a batch of incoming lines and renders them on the EDT, the
+ * same path IMWindow.printIncomingMessage() takes.
+ **/
+public class DocumentAppendWorkload implements Callable<Object>
+{
+	// Attributes
+	private final int batch;
+	private final DefaultStyledDocument doc = new DefaultStyledDocument();
+	private final MessageRenderer renderer;
+	private final Runnable render;
+
+	public DocumentAppendWorkload(String batch)
+	{
+		this.batch = Integer.parseInt(batch);
+		SimpleAttributeSet style = new SimpleAttributeSet();
+		this.renderer = new MessageRenderer(this.doc, style, style, style, style);
+		this.render = new Runnable()
+		{
+			public void run()
+			{
+				// Render now rather than waiting for the frame timer
+				DocumentAppendWorkload.this.renderer.actionPerformed(null);
+			}	// End of method run
+		};
+	}	// End of constructor
+
+	public Object call() throws Exception
+	{
+		for (int i = 0; i < this.batch; i++)
+			this.renderer.append(MessageRenderer.INCOMING, "The quick brown fox jumps over the lazy dog");
+		SwingUtilities.invokeAndWait(this.render);
+		return this.doc.getLength();
+	}	// End of method call
+}	// End of class DocumentAppendWorkload
\ No newline at end of file
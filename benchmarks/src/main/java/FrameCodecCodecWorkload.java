@@ -0,0 +1,29 @@
+// FrameCodecCodecWorkload.java
+// One message encoded and decoded by FrameCodec.
+// Devon Bautista
+
+import java.nio.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Encodes a new String as a MESSAGE frame and decodes it from the
+ * buffer, as the reactor does.
+ **/
+public class FrameCodecCodecWorkload implements Callable<Object>
+{
+	// Attributes
+	private final char[] text;
+
+	public FrameCodecCodecWorkload(String size)
+	{
+		this.text = new char[Integer.parseInt(size)];
+		Arrays.fill(this.text, 'a');
+	}	// End of constructor
+
+	public Object call() throws Exception
+	{
+		ByteBuffer buf = FrameCodec.encode(FrameCodec.TYPE_MESSAGE, new String(this.text));
+		return FrameCodec.decode(buf).getText();
+	}	// End of method call
+}	// End of class FrameCodecCodecWorkload
\ No newline at end of file
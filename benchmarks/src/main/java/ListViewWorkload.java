@@ -0,0 +1,26 @@
+// ListViewWorkload.java
+// A frame of the MessageListView chat area.
+// Devon Bautista
+
+import javax.swing.*;
+import javax.swing.text.*;
+
+/**
+ * Renders frames of a MessageListView, the chat area IMWindow shows
+ * with simpleim.messageView=list.
+ **/
+public class ListViewWorkload extends ChatViewWorkload
+{
+	public ListViewWorkload(String loaded) throws Exception
+	{
+		super(loaded);
+	}	// End of constructor
+
+	protected MessageRenderer createView(JScrollPane scroll)
+	{
+		MessageList messages = new MessageList();
+		SimpleAttributeSet style = new SimpleAttributeSet();
+		scroll.setViewportView(new MessageListView(messages, style, style, style, style));
+		return new MessageRenderer(messages);
+	}	// End of method createView
+}	// End of class ListViewWorkload
\ No newline at end of file
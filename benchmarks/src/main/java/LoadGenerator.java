@@ -0,0 +1,264 @@
+// LoadGenerator.java
+// Drives an IMServer with many simulated IMClients, without Swing.
+// Devon Bautista
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * Headless load test. Starts an IMServer on localhost that relays
+ * every message it receives to all clients, connects N IMClients to
+ * it, and has each client send messages at a fixed rate. Each message
+ * carries its sender and send time, so a client seeing its own message
+ * come back measures one round trip.
+ *
+ * Usage: java -cp benchmarks.jar LoadGenerator [-clients N] [-rate msgsPerSecPerClient]
+ *   [-size bytes] [-duration seconds] [-port port] [-workers threads]
+ **/
+public class LoadGenerator
+{
+	// Attributes
+	private static final AtomicLong errors = new AtomicLong(0);
+
+	public static void main(String[] args) throws Exception
+	{
+		Map<String, String> options = parseOptions(args);
+		int clients = Integer.parseInt(options.getOrDefault("clients", "50"));
+		int rate = Integer.parseInt(options.getOrDefault("rate", "10"));
+		int size = Integer.parseInt(options.getOrDefault("size", "64"));
+		int duration = Integer.parseInt(options.getOrDefault("duration", "10"));
+		int port = Integer.parseInt(options.getOrDefault("port", "5999"));
+		int workers = Integer.parseInt(options.getOrDefault("workers",
+			String.valueOf(Runtime.getRuntime().availableProcessors())));
+
+		// Start a relaying server and wait for it to listen
+		RelayListener relay = new RelayListener();
+		IMServer server = new IMServer(port, workers, relay, SessionExecutor.getDefault());
+		relay.server = server;
+		long deadline = System.currentTimeMillis() + 5000;
+		while (server.getServer() == null || !server.getServer().isBound())
+		{
+			if (System.currentTimeMillis() > deadline)
+				throw new IllegalStateException("Server did not start on port " + port);
+			Thread.sleep(10);
+		}	// End of while
+
+		// Connect the clients
+		List<ClientProbe> probes = new ArrayList<ClientProbe>();
+		for (int i = 0; i < clients; i++)
+		{
+			ClientProbe probe = new ClientProbe(i);
+			probe.client = new IMClient("127.0.0.1", port, probe);
+			probes.add(probe);
+		}	// End of for
+		for (ClientProbe probe : probes)
+			if (!probe.connected.await(10, TimeUnit.SECONDS))
+				errors.incrementAndGet();
+		System.out.println("Connected " + clients + " clients; sending " + rate + " msg/s each, "
+			+ size + " bytes, for " + duration + " s");
+
+		// Send at a fixed rate from a small scheduler pool
+		ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(Math.min(clients, 4));
+		long period = TimeUnit.SECONDS.toNanos(1) / Math.max(1, rate);
+		long start = System.nanoTime();
+		for (final ClientProbe probe : probes)
+			scheduler.scheduleAtFixedRate(new Runnable()
+			{
+				public void run()
+				{
+					probe.sendOne(size);
+				}	// End of method run
+			}, period * probe.id / clients, period, TimeUnit.NANOSECONDS);
+
+		Thread.sleep(TimeUnit.SECONDS.toMillis(duration));
+		scheduler.shutdownNow();
+		long elapsed = System.nanoTime() - start;
+		Thread.sleep(1000);		// Let in-flight messages arrive
+
+		report(probes, elapsed);
+
+		for (ClientProbe probe : probes)
+			probe.client.stop();
+		server.stop();
+		System.exit(0);
+	}	// End of method main
+
+	/**
+	 * Prints throughput, latency percentiles and error counts.
+	 **/
+	private static void report(List<ClientProbe> probes, long elapsedNanos)
+	{
+		long sent = 0, received = 0;
+		int samples = 0;
+		List<long[]> snapshots = new ArrayList<long[]>();
+		for (ClientProbe probe : probes)
+		{
+			sent += probe.sent.get();
+			received += probe.received.get();
+			long[] snapshot = probe.latencySnapshot();	// Late replies may still be arriving
+			snapshots.add(snapshot);
+			samples += snapshot.length;
+		}	// End of for
+
+		long[] latencies = new long[samples];
+		int offset = 0;
+		for (long[] snapshot : snapshots)
+		{
+			System.arraycopy(snapshot, 0, latencies, offset, snapshot.length);
+			offset += snapshot.length;
+		}	// End of for
+		Arrays.sort(latencies);
+
+		double seconds = elapsedNanos / 1e9;
+		System.out.printf("Sent:       %d msgs (%.0f msg/s)%n", sent, sent / seconds);
+		System.out.printf("Delivered:  %d msgs (%.0f msg/s)%n", received, received / seconds);
+		System.out.printf("Round trip: p50 %.3f ms, p99 %.3f ms, p999 %.3f ms (%d samples)%n",
+			percentile(latencies, 0.50), percentile(latencies, 0.99), percentile(latencies, 0.999), samples);
+		LatencyHistogram connects = Connector.getConnectTimes();
+		System.out.printf("Connect:    p50 %.3f ms, p99 %.3f ms, max %.3f ms (%d clients)%n",
+			connects.getValueAtPercentile(50) / 1e6, connects.getValueAtPercentile(99) / 1e6, connects.getMax() / 1e6,
+			connects.getCount());
+		System.out.printf("Errors:     %d%n", errors.get());
+	}	// End of method report
+
+	/**
+	 * Returns a percentile of sorted nanosecond values, in milliseconds.
+	 **/
+	private static double percentile(long[] sorted, double p)
+	{
+		if (sorted.length == 0)
+			return Double.NaN;
+		int index = (int) Math.min(sorted.length - 1, Math.ceil(p * sorted.length) - 1);
+		return sorted[Math.max(0, index)] / 1e6;
+	}	// End of method percentile
+
+	/**
+	 * Parses "-name value" pairs.
+	 **/
+	private static Map<String, String> parseOptions(String[] args)
+	{
+		Map<String, String> options = new HashMap<String, String>();
+		for (int i = 0; i + 1 < args.length; i += 2)
+		{
+			if (!args[i].startsWith("-"))
+				throw new IllegalArgumentException("Expected an option, found " + args[i]);
+			options.put(args[i].substring(1), args[i + 1]);
+		}	// End of for
+		return options;
+	}	// End of method parseOptions
+
+	/**
+	 * Server-side listener that relays every incoming message to all clients.
+	 **/
+	private static class RelayListener implements SessionListener
+	{
+		volatile IMServer server;
+
+		public void printIncomingMessage(String msg)
+		{
+			this.server.sendMessage(msg);
+		}	// End of method printIncomingMessage
+
+		public void printInformationMessage(String msg)
+		{
+			if (msg.startsWith("Unable"))
+				errors.incrementAndGet();
+		}	// End of method printInformationMessage
+
+		public void printOutgoingMessage(String msg) {}
+		public void setConnected(boolean connected) {}
+		public void ableToSend(boolean canSend) {}
+		public void setSession(IMConnectable session) {}
+	}	// End of class RelayListener
+
+	/**
+	 * Client-side listener that sends timestamped messages and records
+	 * the round trip of its own messages.
+	 **/
+	private static class ClientProbe implements SessionListener
+	{
+		final int id;
+		final String prefix;
+		final CountDownLatch connected = new CountDownLatch(1);
+		final AtomicLong sent = new AtomicLong(0);
+		final AtomicLong received = new AtomicLong(0);
+		volatile IMClient client;
+		long[] latencies = new long[1024];
+		int latencyCount = 0;
+		String padding;
+
+		ClientProbe(int id)
+		{
+			this.id = id;
+			this.prefix = id + " ";
+		}	// End of constructor
+
+		/**
+		 * Sends one message of roughly the given size.
+		 **/
+		void sendOne(int size)
+		{
+			String header = this.prefix + System.nanoTime() + " ";
+			if (this.padding == null)
+			{
+				char[] pad = new char[Math.max(0, size - 24)];
+				Arrays.fill(pad, 'x');
+				this.padding = new String(pad);
+			}	// End of if
+
+			try
+			{
+				this.client.sendMessage(header + this.padding);
+			}	// End of try
+			catch (Exception e)
+			{
+				errors.incrementAndGet();
+			}	// End of catch
+		}	// End of method sendOne
+
+		public void printIncomingMessage(String msg)
+		{
+			this.received.incrementAndGet();
+			if (!msg.startsWith(this.prefix))
+				return;
+
+			int end = msg.indexOf(' ', this.prefix.length());
+			long latency = System.nanoTime() - Long.parseLong(msg.substring(this.prefix.length(), end));
+			synchronized (this)
+			{
+				if (this.latencyCount == this.latencies.length)
+					this.latencies = Arrays.copyOf(this.latencies, this.latencies.length * 2);
+				this.latencies[this.latencyCount++] = latency;
+			}	// End of synchronized
+		}	// End of method printIncomingMessage
+
+		/**
+		 * Copies the round trips recorded so far.
+		 **/
+		synchronized long[] latencySnapshot()
+		{
+			return Arrays.copyOf(this.latencies, this.latencyCount);
+		}	// End of method latencySnapshot
+
+		public void printOutgoingMessage(String msg)
+		{
+			this.sent.incrementAndGet();
+		}	// End of method printOutgoingMessage
+
+		public void printInformationMessage(String msg)
+		{
+			if (msg.startsWith("Unable") || msg.startsWith("No such server"))
+				errors.incrementAndGet();
+		}	// End of method printInformationMessage
+
+		public void setConnected(boolean connected)
+		{
+			if (connected)
+				this.connected.countDown();
+		}	// End of method setConnected
+
+		public void ableToSend(boolean canSend) {}
+		public void setSession(IMConnectable session) {}
+	}	// End of class ClientProbe
+}	// End of class LoadGenerator
\ No newline at end of file
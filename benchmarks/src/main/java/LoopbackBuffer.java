@@ -0,0 +1,86 @@
+// LoopbackBuffer.java
+// An in-memory byte pipe for single-threaded stream benchmarks.
+// Devon Bautista
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * Bytes written to getOutputStream() can be read back from
+ * getInputStream() on the same thread. Lets a long-lived
+ * ObjectOutputStream/ObjectInputStream pair be measured per message.
+ **/
+public class LoopbackBuffer
+{
+	// Attributes
+	private byte[] data = new byte[8192];
+	private int readPos = 0;
+	private int writePos = 0;
+
+	private final OutputStream output = new OutputStream()
+	{
+		public void write(int b)
+		{
+			ensureCapacity(1);
+			data[writePos++] = (byte) b;
+		}	// End of method write
+
+		public void write(byte[] b, int off, int len)
+		{
+			ensureCapacity(len);
+			System.arraycopy(b, off, data, writePos, len);
+			writePos += len;
+		}	// End of method write
+	};
+
+	private final InputStream input = new InputStream()
+	{
+		public int read()
+		{
+			return (readPos < writePos) ? (data[readPos++] & 0xFF) : -1;
+		}	// End of method read
+
+		public int read(byte[] b, int off, int len)
+		{
+			if (readPos == writePos)
+				return -1;
+			int count = Math.min(len, writePos - readPos);
+			System.arraycopy(data, readPos, b, off, count);
+			readPos += count;
+			return count;
+		}	// End of method read
+
+		public int available()
+		{
+			return writePos - readPos;
+		}	// End of method available
+	};
+
+	public OutputStream getOutputStream()
+	{
+		return this.output;
+	}	// End of method getOutputStream
+
+	public InputStream getInputStream()
+	{
+		return this.input;
+	}	// End of method getInputStream
+
+	/**
+	 * Makes room for count more bytes, reclaiming bytes already read.
+	 **/
+	private void ensureCapacity(int count)
+	{
+		if (this.readPos == this.writePos)
+			this.readPos = this.writePos = 0;
+		if (this.writePos + count <= this.data.length)
+			return;
+		int unread = this.writePos - this.readPos;
+		byte[] target = (unread + count <= this.data.length) ? this.data
+			: new byte[Math.max(this.data.length * 2, unread + count)];
+		System.arraycopy(this.data, this.readPos, target, 0, unread);
+		this.data = target;
+		this.readPos = 0;
+		this.writePos = unread;
+	}	// End of method ensureCapacity
+}	// End of class LoopbackBuffer
\ No newline at end of file
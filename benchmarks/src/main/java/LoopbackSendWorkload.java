@@ -0,0 +1,94 @@
+// LoopbackSendWorkload.java
+// Sends one message over loopback to an echoing IMReactor.
+// Devon Bautista
+
+import java.io.*;
+import java.net.*;
+import java.nio.charset.*;
+import java.util.concurrent.*;
+
+/**
+ * Starts an IMReactor on an ephemeral port that echoes every MESSAGE
+ * frame, connects a client socket to it, and measures one send plus
+ * the echo. In "direct" mode the frame is written and flushed on the
+ * calling thread; in "queued" mode it goes through an OutboundQueue.
+ **/
+public class LoopbackSendWorkload implements Callable<Object>, AutoCloseable
+{
+	// Attributes
+	private final boolean queued;
+	private final byte[] payload = "The quick brown fox jumps over the lazy dog".getBytes(StandardCharsets.UTF_8);
+	private final IMReactor reactor;
+	private final Socket socket;
+	private final DataOutputStream output;
+	private final DataInputStream input;
+	private final OutboundQueue outbound;
+
+	public LoopbackSendWorkload(String mode) throws IOException
+	{
+		this.queued = mode.equals("queued");
+
+		this.reactor = new IMReactor(0, 1, new ReactorHandler()
+		{
+			public void sessionOpened(ChannelSession session) {}
+			public void sessionClosed(ChannelSession session) {}
+
+			public void frameReceived(ChannelSession session, Frame frame)
+			{
+				session.send(frame.getType(), frame.getPayload());
+			}	// End of method frameReceived
+		});
+		this.reactor.bind();
+		Thread acceptor = new Thread(new Runnable()
+		{
+			public void run()
+			{
+				try
+				{
+					LoopbackSendWorkload.this.reactor.acceptLoop();
+				}	// End of try
+				catch (IOException e)
+				{
+					// Reactor closed
+				}	// End of catch
+			}	// End of method run
+		});
+		acceptor.setDaemon(true);
+		acceptor.start();
+
+		this.socket = new Socket(InetAddress.getLoopbackAddress(), this.reactor.getServerSocket().getLocalPort());
+		this.socket.setTcpNoDelay(true);
+		this.output = new DataOutputStream(new BufferedOutputStream(this.socket.getOutputStream()));
+		this.input = new DataInputStream(new BufferedInputStream(this.socket.getInputStream()));
+		FrameCodec.write(this.output, FrameCodec.TYPE_HELLO, FrameCodec.helloPayload());
+		this.output.flush();
+		FrameCodec.negotiate(FrameCodec.read(this.input));
+
+		this.outbound = new OutboundQueue(this.output);
+		if (this.queued)
+		{
+			Thread writer = new Thread(this.outbound);
+			writer.setDaemon(true);
+			writer.start();
+		}	// End of if
+	}	// End of constructor
+
+	public Object call() throws Exception
+	{
+		if (this.queued)
+			this.outbound.send(FrameCodec.TYPE_MESSAGE, this.payload);
+		else
+		{
+			FrameCodec.write(this.output, FrameCodec.TYPE_MESSAGE, this.payload);
+			this.output.flush();
+		}	// End of else
+		return FrameCodec.read(this.input);
+	}	// End of method call
+
+	public void close() throws IOException
+	{
+		this.outbound.close();
+		this.socket.close();
+		this.reactor.close();
+	}	// End of method close
+}	// End of class LoopbackSendWorkload
\ No newline at end of file
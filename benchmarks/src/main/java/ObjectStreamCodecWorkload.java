@@ -0,0 +1,37 @@
+// ObjectStreamCodecWorkload.java
+// Baseline: one message through a long-lived object stream pair.
+// Devon Bautista
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Writes a new String through ObjectOutputStream and reads it back
+ * through ObjectInputStream, as SimpleIM did before FrameCodec.
+ **/
+public class ObjectStreamCodecWorkload implements Callable<Object>
+{
+	// Attributes
+	private final char[] text;
+	private final ObjectOutputStream output;
+	private final ObjectInputStream input;
+
+	public ObjectStreamCodecWorkload(String size) throws IOException
+	{
+		this.text = new char[Integer.parseInt(size)];
+		Arrays.fill(this.text, 'a');
+		LoopbackBuffer pipe = new LoopbackBuffer();
+		this.output = new ObjectOutputStream(pipe.getOutputStream());
+		this.output.flush();
+		this.input = new ObjectInputStream(pipe.getInputStream());
+	}	// End of constructor
+
+	public Object call() throws Exception
+	{
+		// A new String per message, as IMWindow sends getText()
+		this.output.writeObject(new String(this.text));
+		this.output.flush();
+		return this.input.readObject();
+	}	// End of method call
+}	// End of class ObjectStreamCodecWorkload
\ No newline at end of file
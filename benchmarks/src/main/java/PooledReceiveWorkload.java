@@ -0,0 +1,38 @@
+// PooledReceiveWorkload.java
+// One received chat frame, read in place from a pooled direct buffer.
+// Devon Bautista
+
+import java.nio.*;
+import java.util.concurrent.*;
+
+/**
+ * Decodes the next traced STREAM_DATA frame as the reactor does now:
+ * from a direct buffer lent by a BufferPool, into the one reused Frame,
+ * with the trace header read in place. The consumers are those of
+ * CopyingReceiveWorkload.
+ **/
+public class PooledReceiveWorkload implements Callable<Object>
+{
+	// Attributes
+	private final BufferPool pool = new BufferPool(CopyingReceiveWorkload.BUFFER_SIZE);
+	private final ByteBuffer buf = CopyingReceiveWorkload.fill(this.pool.acquire());
+	private final Frame frame = new Frame();
+	private final boolean text;
+	private int sink = 0;
+
+	public PooledReceiveWorkload(String consumer)
+	{
+		this.text = consumer.equals("text");
+	}	// End of constructor
+
+	public Object call() throws Exception
+	{
+		if (!this.buf.hasRemaining())
+			this.buf.rewind();
+		Frame frame = FrameCodec.readTrace(FrameCodec.decode(this.buf, this.frame));
+		if (this.text)
+			return frame.getStreamText();
+		this.sink += frame.getStreamId();
+		return frame;
+	}	// End of method call
+}	// End of class PooledReceiveWorkload
\ No newline at end of file
@@ -0,0 +1,26 @@
+// TextViewWorkload.java
+// A frame of the text pane chat area.
+// Devon Bautista
+
+import javax.swing.*;
+import javax.swing.text.*;
+
+/**
+ * Renders frames of a JTextPane, the chat area IMWindow shows by default.
+ **/
+public class TextViewWorkload extends ChatViewWorkload
+{
+	public TextViewWorkload(String loaded) throws Exception
+	{
+		super(loaded);
+	}	// End of constructor
+
+	protected MessageRenderer createView(JScrollPane scroll)
+	{
+		JTextPane txtMessages = new JTextPane();
+		txtMessages.setEditable(false);
+		scroll.setViewportView(txtMessages);
+		SimpleAttributeSet style = new SimpleAttributeSet();
+		return new MessageRenderer(txtMessages.getStyledDocument(), style, style, style, style);
+	}	// End of method createView
+}	// End of class TextViewWorkload
\ No newline at end of file
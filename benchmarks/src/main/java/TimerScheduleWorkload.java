@@ -0,0 +1,68 @@
+// TimerScheduleWorkload.java
+// Schedules and cancels idle timeouts with many already pending.
+// Devon Bautista
+
+import java.util.concurrent.*;
+
+/**
+ * Keeps a fixed number of far-off timeouts pending, as a server with
+ * that many idle connections would, and measures scheduling one more
+ * and cancelling the oldest. "wheel" uses the reactor's TimerWheel;
+ * "scheduler" uses a ScheduledThreadPoolExecutor, i.e. one scheduled
+ * task per connection.
+ *
+ * The argument is the scheduler and the pending count, e.g. "wheel:100000".
+ **/
+public class TimerScheduleWorkload implements Callable<Object>, AutoCloseable
+{
+	// Constants
+	private static final long DELAY_MILLIS = 60000;
+
+	// Attributes
+	private final boolean wheel;
+	private final TimerWheel timers;
+	private final ScheduledThreadPoolExecutor scheduler;
+	private final Object[] pending;
+	private final Runnable task = new Runnable()
+	{
+		public void run() {}
+	};
+	private int oldest = 0;
+
+	public TimerScheduleWorkload(String argument)
+	{
+		String[] parts = argument.split(":");
+		this.wheel = parts[0].equals("wheel");
+		this.pending = new Object[Integer.parseInt(parts[1])];
+		this.timers = new TimerWheel("TimerScheduleWorkload", 100, 1024);
+		this.scheduler = new ScheduledThreadPoolExecutor(1);
+		this.scheduler.setRemoveOnCancelPolicy(true);
+		for (int i = 0; i < this.pending.length; i++)
+			this.pending[i] = this.schedule();
+	}	// End of constructor
+
+	public Object call()
+	{
+		Object timeout = this.pending[this.oldest];
+		if (this.wheel)
+			((TimerWheel.Timeout) timeout).cancel();
+		else
+			((ScheduledFuture<?>) timeout).cancel(false);
+		this.pending[this.oldest] = this.schedule();
+		this.oldest = (this.oldest + 1) % this.pending.length;
+		return timeout;
+	}	// End of method call
+
+	public void close()
+	{
+		this.timers.stop();
+		this.scheduler.shutdownNow();
+	}	// End of method close
+
+	private Object schedule()
+	{
+		if (this.wheel)
+			return this.timers.schedule(this.task, DELAY_MILLIS);
+		return this.scheduler.schedule(this.task, DELAY_MILLIS, TimeUnit.MILLISECONDS);
+	}	// End of method schedule
+}	// End of class TimerScheduleWorkload
\ No newline at end of file
@@ -0,0 +1,48 @@
+// BroadcastBenchmark.java
+// Measures fanning one message out to many sessions.
+// Devon Bautista
+
+package simpleim.benchmarks;
+
+import java.util.concurrent.*;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Broadcasts one message from an IMReactor to loopback clients and
+ * waits until every session has written it. "perSession" encodes the
+ * message once per session; "shared" encodes it once for all of them.
+ **/
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BroadcastBenchmark
+{
+	@Param({"perSession", "shared"})
+	public String mode;
+
+	@Param({"8", "64"})
+	public String clients;
+
+	private Callable<Object> workload;
+
+	@Setup
+	public void setup() throws Exception
+	{
+		this.workload = Workloads.load("BroadcastWorkload", this.mode + ":" + this.clients);
+	}	// End of method setup
+
+	@TearDown
+	public void tearDown() throws Exception
+	{
+		Workloads.close(this.workload);
+	}	// End of method tearDown
+
+	@Benchmark
+	public Object broadcast() throws Exception
+	{
+		return this.workload.call();
+	}	// End of method broadcast
+}	// End of class BroadcastBenchmark
\ No newline at end of file
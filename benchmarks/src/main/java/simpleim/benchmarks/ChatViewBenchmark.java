@@ -0,0 +1,50 @@
+// ChatViewBenchmark.java
+// Measures a frame of the chat area with a long scrollback.
+// Devon Bautista
+
+package simpleim.benchmarks;
+
+import java.util.concurrent.*;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Renders a frame of new lines into a chat area already holding many
+ * lines, lays it out, scrolls to the end and paints it, on the EDT.
+ * Text is the JTextPane, List the MessageListView. Score is per frame;
+ * 60 frames a second leaves 16.7 ms. A million lines is only worth
+ * loading into the list: -p view=List -p loaded=1000000.
+ **/
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"-Djava.awt.headless=true", "-Xmx2g"})
+public class ChatViewBenchmark
+{
+	@Param({"Text", "List"})
+	public String view;
+
+	@Param({"10000", "100000"})
+	public String loaded;
+
+	private Callable<Object> workload;
+
+	@Setup
+	public void setup() throws Exception
+	{
+		this.workload = Workloads.load(this.view + "ViewWorkload", this.loaded);
+	}	// End of method setup
+
+	@TearDown
+	public void tearDown() throws Exception
+	{
+		Workloads.close(this.workload);
+	}	// End of method tearDown
+
+	@Benchmark
+	public Object frame() throws Exception
+	{
+		return this.workload.call();
+	}	// End of method frame
+}	// End of class ChatViewBenchmark
\ No newline at end of file
@@ -0,0 +1,45 @@
+// DocumentAppendBenchmark.java
+// Measures appending chat lines to the IMWindow document.
+// Devon Bautista
+
+package simpleim.benchmarks;
+
+import java.util.concurrent.*;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Queues a batch of lines on a MessageRenderer and waits for the EDT
+ * to apply them to a StyledDocument, as IMWindow does for incoming
+ * messages. Score is per batch.
+ **/
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Djava.awt.headless=true")
+public class DocumentAppendBenchmark
+{
+	@Param({"1", "100"})
+	public String batch;
+
+	private Callable<Object> workload;
+
+	@Setup
+	public void setup() throws Exception
+	{
+		this.workload = Workloads.load("DocumentAppendWorkload", this.batch);
+	}	// End of method setup
+
+	@TearDown
+	public void tearDown() throws Exception
+	{
+		Workloads.close(this.workload);
+	}	// End of method tearDown
+
+	@Benchmark
+	public Object appendBatch() throws Exception
+	{
+		return this.workload.call();
+	}	// End of method appendBatch
+}	// End of class DocumentAppendBenchmark
\ No newline at end of file
@@ -0,0 +1,45 @@
+// LoopbackSendBenchmark.java
+// Measures the send path over a loopback socket.
+// Devon Bautista
+
+package simpleim.benchmarks;
+
+import java.util.concurrent.*;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Sends one message from a client socket to an IMReactor that echoes
+ * it back, and waits for the echo. "direct" writes and flushes on the
+ * calling thread; "queued" goes through IMClient's OutboundQueue.
+ **/
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LoopbackSendBenchmark
+{
+	@Param({"direct", "queued"})
+	public String mode;
+
+	private Callable<Object> workload;
+
+	@Setup
+	public void setup() throws Exception
+	{
+		this.workload = Workloads.load("LoopbackSendWorkload", this.mode);
+	}	// End of method setup
+
+	@TearDown
+	public void tearDown() throws Exception
+	{
+		Workloads.close(this.workload);
+	}	// End of method tearDown
+
+	@Benchmark
+	public Object sendAndEcho() throws Exception
+	{
+		return this.workload.call();
+	}	// End of method sendAndEcho
+}	// End of class LoopbackSendBenchmark
\ No newline at end of file
@@ -0,0 +1,47 @@
+// MessageCodecBenchmark.java
+// Measures encoding and decoding one chat message.
+// Devon Bautista
+
+package simpleim.benchmarks;
+
+import java.util.concurrent.*;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Encodes and decodes one message with the original ObjectOutputStream
+ * String encoding (the baseline) and with FrameCodec.
+ **/
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MessageCodecBenchmark
+{
+	@Param({"ObjectStream", "FrameCodec"})
+	public String codec;
+
+	@Param({"16", "256", "4096"})
+	public String size;
+
+	private Callable<Object> workload;
+
+	@Setup
+	public void setup() throws Exception
+	{
+		this.workload = Workloads.load(this.codec + "CodecWorkload", this.size);
+	}	// End of method setup
+
+	@TearDown
+	public void tearDown() throws Exception
+	{
+		Workloads.close(this.workload);
+	}	// End of method tearDown
+
+	@Benchmark
+	public Object encodeDecode() throws Exception
+	{
+		return this.workload.call();
+	}	// End of method encodeDecode
+}	// End of class MessageCodecBenchmark
\ No newline at end of file
@@ -0,0 +1,48 @@
+// ReceivePathBenchmark.java
+// Measures the cost and allocation of handling one received frame.
+// Devon Bautista
+
+package simpleim.benchmarks;
+
+import java.util.concurrent.*;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Decodes one received chat frame by copying its payload out of a heap
+ * buffer (the baseline) and as a view of a pooled direct buffer. Run
+ * with -prof gc: gc.alloc.rate.norm is the bytes allocated per frame.
+ **/
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ReceivePathBenchmark
+{
+	@Param({"Copying", "Pooled"})
+	public String path;
+
+	@Param({"text", "streamId"})
+	public String consumer;
+
+	private Callable<Object> workload;
+
+	@Setup
+	public void setup() throws Exception
+	{
+		this.workload = Workloads.load(this.path + "ReceiveWorkload", this.consumer);
+	}	// End of method setup
+
+	@TearDown
+	public void tearDown() throws Exception
+	{
+		Workloads.close(this.workload);
+	}	// End of method tearDown
+
+	@Benchmark
+	public Object receive() throws Exception
+	{
+		return this.workload.call();
+	}	// End of method receive
+}	// End of class ReceivePathBenchmark
\ No newline at end of file
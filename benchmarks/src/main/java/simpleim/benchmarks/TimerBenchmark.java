@@ -0,0 +1,48 @@
+// TimerBenchmark.java
+// Measures idle timeout bookkeeping with many connections.
+// Devon Bautista
+
+package simpleim.benchmarks;
+
+import java.util.concurrent.*;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Schedules one idle timeout and cancels another while a fixed number
+ * are pending. "scheduler" is a ScheduledThreadPoolExecutor; "wheel"
+ * is the reactor's TimerWheel.
+ **/
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TimerBenchmark
+{
+	@Param({"scheduler", "wheel"})
+	public String mode;
+
+	@Param({"1000", "100000"})
+	public String pending;
+
+	private Callable<Object> workload;
+
+	@Setup
+	public void setup() throws Exception
+	{
+		this.workload = Workloads.load("TimerScheduleWorkload", this.mode + ":" + this.pending);
+	}	// End of method setup
+
+	@TearDown
+	public void tearDown() throws Exception
+	{
+		Workloads.close(this.workload);
+	}	// End of method tearDown
+
+	@Benchmark
+	public Object scheduleAndCancel() throws Exception
+	{
+		return this.workload.call();
+	}	// End of method scheduleAndCancel
+}	// End of class TimerBenchmark
\ No newline at end of file
@@ -0,0 +1,45 @@
+// Workloads.java
+// Loads the default-package workload classes the benchmarks measure.
+// Devon Bautista
+
+package simpleim.benchmarks;
+
+import java.util.concurrent.*;
+
+/**
+ * JMH will not generate code for benchmarks in the default package,
+ * and classes in a named package cannot refer to SimpleIM's
+ * default-package classes. Each benchmark therefore drives a small
+ * workload class that lives in the default package and implements
+ * Callable. It is loaded once in setup, so the call in the measured
+ * loop is an ordinary monomorphic interface call.
+ **/
+final class Workloads
+{
+	private Workloads() {}
+
+	/**
+	 * Creates a workload by class name.
+	 * @param className The default-package workload class.
+	 * @param argument The single String its constructor takes.
+	 * @return The workload instance.
+	 * @throws Exception if the class cannot be created.
+	 **/
+	@SuppressWarnings("unchecked")
+	static Callable<Object> load(String className, String argument) throws Exception
+	{
+		return (Callable<Object>) Class.forName(className)
+			.getConstructor(String.class).newInstance(argument);
+	}	// End of method load
+
+	/**
+	 * Releases a workload's resources, if it holds any.
+	 * @param workload The workload to close.
+	 * @throws Exception if closing fails.
+	 **/
+	static void close(Callable<Object> workload) throws Exception
+	{
+		if (workload instanceof AutoCloseable)
+			((AutoCloseable) workload).close();
+	}	// End of method close
+}	// End of class Workloads
\ No newline at end of file
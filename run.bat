@@ -4,12 +4,54 @@ cd .
 
 REM Compile all source files
 echo Compiling source files...
+javac -d ./bin -sourcepath ./src ./src/BufferPool.java
+javac -d ./bin -sourcepath ./src ./src/ChannelSession.java
+javac -d ./bin -sourcepath ./src ./src/ChatHistory.java
+javac -d ./bin -sourcepath ./src ./src/ClusterNode.java
 javac -d ./bin -sourcepath ./src ./src/ConnectionWindow.java
+javac -d ./bin -sourcepath ./src ./src/Connector.java
+javac -d ./bin -sourcepath ./src ./src/DeliveryTracer.java
+javac -d ./bin -sourcepath ./src ./src/DeliveryTracerMBean.java
+javac -d ./bin -sourcepath ./src ./src/DiagnosticsWindow.java
+javac -d ./bin -sourcepath ./src ./src/FileChunk.java
+javac -d ./bin -sourcepath ./src ./src/FileTransfers.java
+javac -d ./bin -sourcepath ./src ./src/Frame.java
+javac -d ./bin -sourcepath ./src ./src/FrameCodec.java
+javac -d ./bin -sourcepath ./src ./src/FrameCompressor.java
+javac -d ./bin -sourcepath ./src ./src/HistoryRecord.java
 javac -d ./bin -sourcepath ./src ./src/IMClient.java
 javac -d ./bin -sourcepath ./src ./src/IMConnectable.java
+javac -d ./bin -sourcepath ./src ./src/IMReactor.java
 javac -d ./bin -sourcepath ./src ./src/IMServer.java
 javac -d ./bin -sourcepath ./src ./src/IMWindow.java
+javac -d ./bin -sourcepath ./src ./src/LatencyHistogram.java
+javac -d ./bin -sourcepath ./src ./src/MessageList.java
+javac -d ./bin -sourcepath ./src ./src/MessageListView.java
+javac -d ./bin -sourcepath ./src ./src/MessageRenderer.java
+javac -d ./bin -sourcepath ./src ./src/MessageRendererMBean.java
+javac -d ./bin -sourcepath ./src ./src/MessageStore.java
+javac -d ./bin -sourcepath ./src ./src/Metrics.java
+javac -d ./bin -sourcepath ./src ./src/OutboundBudget.java
+javac -d ./bin -sourcepath ./src ./src/OutboundQueue.java
+javac -d ./bin -sourcepath ./src ./src/PendingWrite.java
+javac -d ./bin -sourcepath ./src ./src/PlatformThreadExecutor.java
+javac -d ./bin -sourcepath ./src ./src/RateLimiter.java
+javac -d ./bin -sourcepath ./src ./src/ReactorHandler.java
+javac -d ./bin -sourcepath ./src ./src/ReplayBuffer.java
+javac -d ./bin -sourcepath ./src ./src/RoomRegistry.java
+javac -d ./bin -sourcepath ./src ./src/SearchIndex.java
+javac -d ./bin -sourcepath ./src ./src/SearchWindow.java
+javac -d ./bin -sourcepath ./src ./src/SegmentedLog.java
+javac -d ./bin -sourcepath ./src ./src/ServerMetrics.java
+javac -d ./bin -sourcepath ./src ./src/ServerMetricsMBean.java
+javac -d ./bin -sourcepath ./src ./src/SessionExecutor.java
+javac -d ./bin -sourcepath ./src ./src/SessionListener.java
+javac -d ./bin -sourcepath ./src ./src/SharedFrame.java
 javac -d ./bin -sourcepath ./src ./src/SimpleIM.java
+javac -d ./bin -sourcepath ./src ./src/StreamTable.java
+javac -d ./bin -sourcepath ./src ./src/TimerWheel.java
+javac -d ./bin -sourcepath ./src ./src/TokenBucket.java
+javac -d ./bin -sourcepath ./src ./src/VirtualThreadExecutor.java
 echo Done.
 
 REM Run program.
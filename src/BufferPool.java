@@ -0,0 +1,104 @@
+// BufferPool.java
+// Direct buffers lent to socket reads and taken back once drained.
+// Devon Bautista
+
+import java.nio.*;
+import java.util.*;
+
+/**
+ * Lends direct ByteBuffers of one size to the reads of a single reactor
+ * thread. A connection borrows a buffer when data arrives and gives it
+ * back once every frame in it has been handled, so only connections
+ * holding part of a frame keep one, and the thread's reads reuse the
+ * same few buffers instead of each connection owning its own. Reads
+ * into a direct buffer also spare the copy the JDK makes from a heap
+ * buffer.
+ *
+ * A pool is not thread-safe: it belongs to the thread that reads with
+ * it. Buffers of another size, such as one grown to hold a large frame,
+ * are not taken back.
+ **/
+public class BufferPool
+{
+	// Constants
+	public static final String BUFFER_SIZE_PROPERTY = "simpleim.readBufferSize";
+	public static final int DEFAULT_BUFFER_SIZE = 8192;
+	private static final int MAX_FREE = 64;
+
+	// Attributes
+	private final int bufferSize;
+	private final Deque<ByteBuffer> free = new ArrayDeque<ByteBuffer>();
+	private long allocated = 0;
+	private long lent = 0;
+
+	/**
+	 * Creates a pool of buffers of the size in simpleim.readBufferSize.
+	 **/
+	public BufferPool()
+	{
+		this(Integer.getInteger(BUFFER_SIZE_PROPERTY, DEFAULT_BUFFER_SIZE));
+	}	// End of constructor
+
+	/**
+	 * Creates a pool.
+	 * @param bufferSize The capacity of each buffer.
+	 **/
+	public BufferPool(int bufferSize)
+	{
+		this.bufferSize = Math.max(FrameCodec.HEADER_SIZE + FrameCodec.TRACE_HEADER_SIZE, bufferSize);
+	}	// End of constructor
+
+	/**
+	 * Lends a cleared buffer, allocating one if none is free.
+	 * @return A direct buffer in write mode.
+	 **/
+	public ByteBuffer acquire()
+	{
+		this.lent++;
+		ByteBuffer buf = this.free.pollLast();
+		if (buf != null)
+			return buf;
+		this.allocated++;
+		return ByteBuffer.allocateDirect(this.bufferSize);
+	}	// End of method acquire
+
+	/**
+	 * Takes a buffer back. Buffers not from this pool, and any beyond
+	 * MAX_FREE, are left to the garbage collector.
+	 * @param buf The buffer, which must no longer be used.
+	 **/
+	public void release(ByteBuffer buf)
+	{
+		if (!buf.isDirect() || buf.capacity() != this.bufferSize || this.free.size() >= MAX_FREE)
+			return;
+		buf.clear();
+		this.free.addLast(buf);
+	}	// End of method release
+
+	/**
+	 * Returns the capacity of the pool's buffers.
+	 * @return The size in bytes.
+	 **/
+	public int getBufferSize()
+	{
+		return this.bufferSize;
+	}	// End of method getBufferSize
+
+	/**
+	 * Returns the number of buffers the pool has had to allocate.
+	 * @return The allocation count.
+	 **/
+	public long getAllocated()
+	{
+		return this.allocated;
+	}	// End of method getAllocated
+
+	/**
+	 * Returns the number of times a buffer has been lent.
+	 * @return The loan count.
+	 **/
+	public long getLent()
+	{
+		return this.lent;
+	}	// End of method getLent
+}	// End of class BufferPool
\ No newline at end of file
@@ -0,0 +1,837 @@
+// ChannelSession.java
+// A single client connection served by IMReactor.
+// Devon Bautista
+
+import java.io.*;
+import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.function.*;
+
+/**
+ * Represents one non-blocking client connection. Reads and writes
+ * happen on the owning reactor thread; send() and close() may be
+ * called from any thread.
+ **/
+public class ChannelSession
+{
+	// Constants
+	private static final int MAX_GATHER = 64;
+	private static final AtomicLong NEXT_ID = new AtomicLong(1);
+
+	// Attributes
+	private final long id = NEXT_ID.getAndIncrement();
+	private final SocketChannel channel;
+	private final IMReactor.Worker worker;
+	private final ReactorHandler handler;
+	private final ServerMetrics metrics;
+	private final DeliveryTracer.Peer deliveries;
+	private final Queue<PendingWrite> outbound = new ConcurrentLinkedQueue<PendingWrite>();
+	private final ByteBuffer[] gather = new ByteBuffer[MAX_GATHER];
+	private final AtomicBoolean writeScheduled = new AtomicBoolean(false);
+	private final AtomicBoolean closed = new AtomicBoolean(false);
+	private final OutboundBudget budget;
+	private volatile boolean closing = false;
+	private volatile byte protocolVersion = 0;
+	private volatile FrameCompressor compressor = null;
+	private volatile long lastReadTime = System.nanoTime();
+	private volatile boolean timedOut = false;
+	private volatile boolean slowConsumer = false;
+	private volatile FileTransfers fileTransfers = null;
+	private volatile String userName = null;
+	private volatile StreamTable streams = null;
+	private volatile ReplayBuffer replay = null;
+	private volatile long resumeToken = 0;
+	private volatile long lastReceivedSequence = 0;
+	private volatile RateLimiter.Meter rateMeter = null;
+	private volatile boolean readsPaused = false;
+	private boolean rejecting = false;
+	private FileTransfers.Incoming incomingFile = null;
+	private long incomingFileRemaining = 0;
+	private final Frame frame = new Frame();
+	private ByteBuffer readBuffer = null;
+	private SelectionKey key;
+
+	/**
+	 * Wraps an accepted channel.
+	 * @param channel The accepted SocketChannel.
+	 * @param worker The reactor thread that owns the channel.
+	 * @param handler The handler to report events to.
+	 * @param metrics The reactor's metrics.
+	 * @param deliveries Traces the chat messages sent to the client.
+	 * @param budget The connection's own outbound budget.
+	 **/
+	ChannelSession(SocketChannel channel, IMReactor.Worker worker, ReactorHandler handler, ServerMetrics metrics,
+		DeliveryTracer.Peer deliveries, OutboundBudget budget)
+	{
+		this.channel = channel;
+		this.worker = worker;
+		this.handler = handler;
+		this.metrics = metrics;
+		this.deliveries = deliveries;
+		this.budget = budget;
+	}	// End of constructor
+
+	/**
+	 * Queues a chat message to be sent to the client.
+	 * @param msg The String to send.
+	 * @return A future completed once the message is written.
+	 **/
+	public CompletableFuture<Void> send(String msg)
+	{
+		return this.send(FrameCodec.TYPE_MESSAGE, msg);
+	}	// End of method send
+
+	/**
+	 * Queues a text frame to be sent to the client.
+	 * @param type The frame type.
+	 * @param text The text payload.
+	 * @return A future completed once the frame is written.
+	 **/
+	public CompletableFuture<Void> send(byte type, String text)
+	{
+		PendingWrite write = new PendingWrite(FrameCodec.encode(type, text));
+		this.enqueue(write);
+		return write.getCompletion();
+	}	// End of method send
+
+	/**
+	 * Queues a frame to be sent to the client.
+	 * @param type The frame type.
+	 * @param payload The payload bytes.
+	 * @return A future completed once the frame is written.
+	 **/
+	public CompletableFuture<Void> send(byte type, byte[] payload)
+	{
+		PendingWrite write = new PendingWrite(FrameCodec.encode(type, payload));
+		this.enqueue(write);
+		return write.getCompletion();
+	}	// End of method send
+
+	/**
+	 * Closes the session once all queued messages have been written.
+	 **/
+	public void close()
+	{
+		this.closing = true;
+		this.scheduleWrite();
+	}	// End of method close
+
+	/**
+	 * Returns whether the session has been closed.
+	 * @return True if closed.
+	 **/
+	public boolean isClosed()
+	{
+		return this.closed.get();
+	}	// End of method isClosed
+
+	/**
+	 * Returns the protocol version negotiated with the client.
+	 * @return The version, or 0 if the handshake has not completed.
+	 **/
+	public byte getProtocolVersion()
+	{
+		return this.protocolVersion;
+	}	// End of method getProtocolVersion
+
+	/**
+	 * Returns the compressor negotiated with the client.
+	 * @return The compressor, or null if frames are sent uncompressed.
+	 **/
+	public FrameCompressor getCompressor()
+	{
+		return this.compressor;
+	}	// End of method getCompressor
+
+	/**
+	 * Enables file transfers on this session.
+	 * @param fileTransfers The transfer table for the connection.
+	 **/
+	public void setFileTransfers(FileTransfers fileTransfers)
+	{
+		this.fileTransfers = fileTransfers;
+	}	// End of method setFileTransfers
+
+	/**
+	 * Returns the file transfers of this session.
+	 * @return The transfer table, or null if file transfers are not enabled.
+	 **/
+	public FileTransfers getFileTransfers()
+	{
+		return this.fileTransfers;
+	}	// End of method getFileTransfers
+
+	/**
+	 * Records the user name the client identified itself with.
+	 * @param userName The name from its IDENTIFY frame.
+	 **/
+	public void setUserName(String userName)
+	{
+		this.userName = userName;
+	}	// End of method setUserName
+
+	/**
+	 * Returns the user name the client identified itself with.
+	 * @return The name, or null if it has not identified itself.
+	 **/
+	public String getUserName()
+	{
+		return this.userName;
+	}	// End of method getUserName
+
+	/**
+	 * Enables multiplexed conversations on this session.
+	 * @param streams The stream table for the connection.
+	 **/
+	public void setStreams(StreamTable streams)
+	{
+		this.streams = streams;
+	}	// End of method setStreams
+
+	/**
+	 * Returns the conversations multiplexed on this session.
+	 * @return The stream table, or null before STREAM_PROTOCOL_VERSION.
+	 **/
+	public StreamTable getStreams()
+	{
+		return this.streams;
+	}	// End of method getStreams
+
+	/**
+	 * Enables session resumption, keeping recent chat frames to send again.
+	 * @param replay The buffer of recent frames.
+	 **/
+	public void setReplay(ReplayBuffer replay)
+	{
+		this.replay = replay;
+	}	// End of method setReplay
+
+	/**
+	 * Returns the chat frames recently sent on this session.
+	 * @return The buffer, or null before RESUME_PROTOCOL_VERSION.
+	 **/
+	public ReplayBuffer getReplay()
+	{
+		return this.replay;
+	}	// End of method getReplay
+
+	/**
+	 * Sets the token the client may resume this session with.
+	 * @param resumeToken The token sent in SESSION.
+	 **/
+	public void setResumeToken(long resumeToken)
+	{
+		this.resumeToken = resumeToken;
+	}	// End of method setResumeToken
+
+	/**
+	 * Returns the token the client may resume this session with.
+	 * @return The token, or 0 if the client has not asked for one.
+	 **/
+	public long getResumeToken()
+	{
+		return this.resumeToken;
+	}	// End of method getResumeToken
+
+	/**
+	 * Records the sequence number of a traced frame from the client.
+	 * @param sequence The frame's sequence number.
+	 **/
+	public void setLastReceivedSequence(long sequence)
+	{
+		this.lastReceivedSequence = sequence;
+	}	// End of method setLastReceivedSequence
+
+	/**
+	 * Returns the sequence number of the last traced frame from the client.
+	 * @return The sequence number, or 0 if none has arrived.
+	 **/
+	public long getLastReceivedSequence()
+	{
+		return this.lastReceivedSequence;
+	}	// End of method getLastReceivedSequence
+
+	/**
+	 * Holds the client to the reactor's rate limits.
+	 * @param rateMeter The meter of this connection.
+	 **/
+	public void setRateMeter(RateLimiter.Meter rateMeter)
+	{
+		this.rateMeter = rateMeter;
+	}	// End of method setRateMeter
+
+	/**
+	 * Returns the meter holding the client to the reactor's rate limits.
+	 * @return The meter, or null if the reactor has no limits.
+	 **/
+	public RateLimiter.Meter getRateMeter()
+	{
+		return this.rateMeter;
+	}	// End of method getRateMeter
+
+	/**
+	 * Returns whether reading has stopped until the client is back
+	 * within its rate limits.
+	 * @return True if reads are paused.
+	 **/
+	public boolean isReadsPaused()
+	{
+		return this.readsPaused;
+	}	// End of method isReadsPaused
+
+	/**
+	 * Returns whether the session was closed for being idle too long.
+	 * @return True if the session timed out.
+	 **/
+	public boolean isTimedOut()
+	{
+		return this.timedOut;
+	}	// End of method isTimedOut
+
+	/**
+	 * Returns whether the session was closed because the client stopped
+	 * reading and its queue hit the outbound limits.
+	 * @return True if the session was disconnected as a slow consumer.
+	 **/
+	public boolean isSlowConsumer()
+	{
+		return this.slowConsumer;
+	}	// End of method isSlowConsumer
+
+	/**
+	 * Returns the limits and counters of the outbound queue.
+	 * @return The outbound budget of this session.
+	 **/
+	public OutboundBudget getOutboundBudget()
+	{
+		return this.budget;
+	}	// End of method getOutboundBudget
+
+	/**
+	 * Returns the chat messages sent to the client that are waiting
+	 * for an ACK.
+	 * @return The session's delivery tracing table.
+	 **/
+	public DeliveryTracer.Peer getDeliveries()
+	{
+		return this.deliveries;
+	}	// End of method getDeliveries
+
+	/**
+	 * Builds the ACK for a chat frame from the client, to be run once
+	 * the message has been shown.
+	 * @param frame The received frame.
+	 * @return The task queuing the ACK; does nothing for untraced frames.
+	 **/
+	public Runnable acknowledgement(Frame frame)
+	{
+		return this.deliveries.acknowledgement(frame, new Consumer<byte[]>()
+		{
+			public void accept(byte[] payload)
+			{
+				ChannelSession.this.send(FrameCodec.TYPE_ACK, payload);
+			}	// End of method accept
+		});
+	}	// End of method acknowledgement
+
+	/**
+	 * Returns when data was last received from the client.
+	 * @return A System.nanoTime() value.
+	 **/
+	public long getLastReadTime()
+	{
+		return this.lastReadTime;
+	}	// End of method getLastReadTime
+
+	/**
+	 * Returns the unique ID of this session.
+	 * @return The session ID.
+	 **/
+	public long getId()
+	{
+		return this.id;
+	}	// End of method getId
+
+	/**
+	 * Returns the address of the client.
+	 * @return The client's address, or null if unavailable.
+	 **/
+	public InetAddress getInetAddress()
+	{
+		return this.channel.socket().getInetAddress();
+	}	// End of method getInetAddress
+
+	/**
+	 * Registers the channel with the worker's selector. Called on the
+	 * reactor thread.
+	 * @param selector The selector of the owning worker.
+	 * @throws IOException if the channel cannot be registered.
+	 **/
+	void register(Selector selector) throws IOException
+	{
+		this.channel.configureBlocking(false);
+		this.channel.socket().setTcpNoDelay(true);
+		this.key = this.channel.register(selector, SelectionKey.OP_READ, this);
+		PendingWrite hello = new PendingWrite(FrameCodec.encode(FrameCodec.TYPE_HELLO, FrameCodec.helloPayload()));
+		hello.markQueued();
+		this.budget.added(hello);
+		this.outbound.add(hello);
+		this.flush();
+	}	// End of method register
+
+	/**
+	 * Reads available bytes and dispatches every complete frame. The
+	 * first frame must be the client's HELLO; the handler is told the
+	 * session is open once the protocol version has been agreed.
+	 * The read buffer is borrowed from the worker's BufferPool and given
+	 * back once drained, and each frame is handed to the handler as a
+	 * view of it, so nothing is copied or allocated on the way unless
+	 * the handler asks for a String. The bytes of a FILE_DATA frame are
+	 * not decoded: once the read buffer is drained they go straight from
+	 * the socket to the file.
+	 * Frames are metered against the reactor's rate limits; once the
+	 * client is over them, reading pauses with the rest of the buffer
+	 * left for resumeReads(). Called on the reactor thread.
+	 * @throws IOException if the channel cannot be read.
+	 **/
+	void read() throws IOException
+	{
+		if (this.incomingFile != null && this.readBuffer == null)
+		{
+			long transferred = this.incomingFile.transferFrom(this.channel, this.incomingFileRemaining);
+			if (transferred > 0)
+			{
+				this.lastReadTime = System.nanoTime();
+				this.metrics.received(transferred);
+				this.incomingFileRemaining -= transferred;
+				if (this.incomingFileRemaining == 0)
+					this.endFileChunk();
+				return;
+			}	// End of if
+			// Nothing arrived; the read below tells an idle socket from a closed one
+		}	// End of if
+
+		if (this.readBuffer == null)
+			this.readBuffer = this.worker.getBufferPool().acquire();
+		int count = this.channel.read(this.readBuffer);
+		if (count < 0)
+		{
+			this.closeNow();
+			this.releaseReadBuffer();
+			return;
+		}	// End of if
+		long readTime = System.nanoTime();
+		this.lastReadTime = readTime;
+		this.metrics.received(count);
+
+		this.readBuffer.flip();
+		Frame frame;
+		while (!this.closed.get())
+		{
+			if (this.incomingFile == null && this.isFileData())
+			{
+				if (this.readBuffer.remaining() < FrameCodec.HEADER_SIZE + FileChunk.DATA_HEADER_SIZE)
+					break;
+				this.startFileChunk();
+				if (this.pauseIfLimited())
+					break;
+			}	// End of if
+			if (this.incomingFile != null)
+			{
+				if (!this.readBuffer.hasRemaining())
+					break;
+				this.writeFileData();
+				continue;
+			}	// End of if
+
+			int start = this.readBuffer.position();
+			if ((frame = FrameCodec.decode(this.readBuffer, this.frame)) == null)
+				break;
+			if (this.protocolVersion == 0)
+			{
+				this.compressor = FrameCompressor.negotiate(frame);
+				this.protocolVersion = FrameCodec.negotiate(frame);
+				this.handler.sessionOpened(this);
+			}	// End of if
+			else
+			{
+				if (this.compressor != null)
+					frame = this.compressor.decompress(frame);
+				if (this.protocolVersion >= FrameCodec.TRACE_PROTOCOL_VERSION)
+					frame = FrameCodec.readTrace(frame);
+				frame.setReceivedTime(readTime);
+				RateLimiter.Meter meter = this.rateMeter;
+				if (meter == null || meter.admit(frame.getType(), this.readBuffer.position() - start))
+				{
+					if (RateLimiter.isLimited(frame.getType()))
+						this.rejecting = false;
+					this.handler.frameReceived(this, frame);
+				}	// End of if
+				else
+					this.reject(frame);
+			}	// End of else
+			this.metrics.frameReceived(readTime);
+			if (this.pauseIfLimited())
+				break;
+		}	// End of while
+
+		// Give a drained buffer back, or grow it if a single frame does not fit; file data never needs to.
+		// A chunk already started leaves file bytes, not a header, at the buffer's position
+		if (!this.readBuffer.hasRemaining() || this.closed.get())
+		{
+			this.releaseReadBuffer();
+			return;
+		}	// End of if
+		int needed = (this.incomingFile != null || this.isFileData()) ? 0 : FrameCodec.pendingFrameSize(this.readBuffer);
+		if (needed > this.readBuffer.capacity())
+		{
+			ByteBuffer larger = ByteBuffer.allocate(needed);
+			larger.put(this.readBuffer);
+			this.releaseReadBuffer();
+			this.readBuffer = larger;
+		}	// End of if
+		else
+			this.readBuffer.compact();
+	}	// End of method read
+
+	/**
+	 * Starts reading again after a pause for the rate limits, and
+	 * handles the frames left in the read buffer. Called on the reactor
+	 * thread.
+	 * @throws IOException if the channel cannot be read.
+	 **/
+	void resumeReads() throws IOException
+	{
+		this.readsPaused = false;
+		this.lastReadTime = System.nanoTime();	// The quiet was ours, not the client's
+		this.key.interestOps(this.key.interestOps() | SelectionKey.OP_READ);
+		this.read();
+	}	// End of method resumeReads
+
+	/**
+	 * Writes as much queued data as the socket accepts, gathering up
+	 * to MAX_GATHER frames into each write call. A queue left over its
+	 * limits under the drop-oldest policy is trimmed first. Called on
+	 * the reactor thread.
+	 * @throws IOException if the channel cannot be written.
+	 **/
+	void flush() throws IOException
+	{
+		this.writeScheduled.set(false);
+		if (this.timedOut || this.slowConsumer)
+		{
+			this.closeNow();
+			return;
+		}	// End of if
+		if (this.budget.getPolicy() == OutboundBudget.Policy.DROP_OLDEST && this.budget.isOver())
+			this.dropOldest();
+		try
+		{
+			while (true)
+			{
+				PendingWrite head = this.outbound.peek();
+				if (head instanceof FileChunk)
+				{
+					// File chunks go out on their own, straight from the page cache
+					if (!((FileChunk) head).writeTo(this.channel))
+					{
+						this.key.interestOps(this.key.interestOps() | SelectionKey.OP_WRITE);
+						return;
+					}	// End of if
+					this.outbound.poll();
+					this.budget.removed(head);
+					this.metrics.sent(head.getSize() + ((FileChunk) head).getCount());
+					this.metrics.frameSent(head);
+					head.complete();
+					continue;
+				}	// End of if
+
+				int count = 0;
+				for (PendingWrite write : this.outbound)
+				{
+					if (count == MAX_GATHER || write instanceof FileChunk)
+						break;
+					write.prepare(this.compressor);
+					this.gather[count++] = write.getBuffer();
+				}	// End of for
+				if (count == 0)
+					break;
+
+				this.metrics.sent(this.channel.write(this.gather, 0, count));
+				long written = System.nanoTime();
+
+				// Complete every frame that went out in full
+				PendingWrite write;
+				while ((write = this.outbound.peek()) != null && !(write instanceof FileChunk)
+					&& !write.getBuffer().hasRemaining())
+				{
+					this.outbound.poll();
+					this.budget.removed(write);
+					this.metrics.frameSent(write);
+					write.markWritten(written);
+					write.complete();
+				}	// End of while
+
+				if (this.gather[count - 1].hasRemaining())
+				{
+					// Socket buffer full; wait until writable
+					this.key.interestOps(this.key.interestOps() | SelectionKey.OP_WRITE);
+					return;
+				}	// End of if
+			}	// End of while
+		}	// End of try
+		finally
+		{
+			Arrays.fill(this.gather, null);
+		}	// End of finally
+
+		this.key.interestOps(this.key.interestOps() & ~SelectionKey.OP_WRITE);
+		if (this.closing)
+			this.closeNow();
+	}	// End of method flush
+
+	/**
+	 * Closes the session without flushing, on the owning reactor
+	 * thread, because the client has been idle too long. May be called
+	 * from any thread.
+	 **/
+	void timeOut()
+	{
+		this.timedOut = true;
+		this.scheduleWrite();
+	}	// End of method timeOut
+
+	/**
+	 * Closes the channel immediately and notifies the handler once.
+	 **/
+	void closeNow()
+	{
+		if (this.closed.compareAndSet(false, true))
+		{
+			if (this.key != null)
+				this.key.cancel();
+			try
+			{
+				this.channel.close();
+			}	// End of try
+			catch (IOException e)
+			{
+				// Channel already closed
+			}	// End of catch
+			PendingWrite write;
+			while ((write = this.outbound.poll()) != null)
+			{
+				this.budget.removed(write);
+				write.fail(new ClosedChannelException());
+			}	// End of while
+			this.handler.sessionClosed(this);
+		}	// End of if
+	}	// End of method closeNow
+
+	/**
+	 * Adds a write to the outbound queue, or fails it if the session
+	 * is closing. A chat message that does not fit within the outbound
+	 * limits is handled by the budget's policy: under drop-oldest it is
+	 * queued and the next flush drops older messages to make room, while
+	 * drop-newest fails it at once and disconnect fails it and closes
+	 * the session. May be called from any thread.
+	 * @param write The encoded frame to send.
+	 **/
+	void enqueue(PendingWrite write)
+	{
+		if (this.closing || this.closed.get())
+		{
+			write.fail(new ClosedChannelException());
+			return;
+		}	// End of if
+
+		if (write.isDroppable() && !this.budget.fits(write))
+		{
+			if (this.budget.overflowed())
+				this.metrics.connectionThrottled();
+			if (this.budget.getPolicy() == OutboundBudget.Policy.DROP_NEWEST)
+			{
+				this.budget.dropped(write);
+				this.metrics.messageDropped();
+				write.fail(new IOException("Outbound limit reached"));
+				return;
+			}	// End of if
+			else if (this.budget.getPolicy() == OutboundBudget.Policy.DISCONNECT)
+			{
+				this.budget.dropped(write);
+				this.metrics.messageDropped();
+				write.fail(new IOException("Outbound limit reached"));
+				this.slowConsumer = true;
+				this.scheduleWrite();		// The flush closes the session
+				return;
+			}	// End of else if
+		}	// End of if
+
+		write.markQueued();
+		this.budget.added(write);
+		this.outbound.add(write);
+		if (this.closed.get() && this.outbound.remove(write))	// Closed while adding
+		{
+			this.budget.removed(write);
+			write.fail(new ClosedChannelException());
+		}	// End of if
+		else
+			this.scheduleWrite();
+	}	// End of method enqueue
+
+	/**
+	 * Drops queued chat messages, oldest first, until the queue is
+	 * back within its limits. The head of the queue may be partly
+	 * written and is never dropped. Called on the reactor thread, the
+	 * only thread that removes from the queue.
+	 **/
+	private void dropOldest()
+	{
+		Iterator<PendingWrite> it = this.outbound.iterator();
+		if (it.hasNext())
+			it.next();		// Skip the head
+		while (it.hasNext() && this.budget.isOver())
+		{
+			PendingWrite write = it.next();
+			if (write.isDroppable())
+			{
+				it.remove();
+				this.budget.removed(write);
+				this.budget.dropped(write);
+				this.metrics.messageDropped();
+				write.fail(new IOException("Outbound limit reached"));
+			}	// End of if
+		}	// End of while
+	}	// End of method dropOldest
+
+	/**
+	 * Returns whether the frame at the read buffer's position is
+	 * FILE_DATA. The buffer is in read mode.
+	 **/
+	private boolean isFileData()
+	{
+		return this.readBuffer.remaining() >= FrameCodec.HEADER_SIZE
+			&& this.readBuffer.get(this.readBuffer.position() + 4) == FrameCodec.TYPE_FILE_DATA;
+	}	// End of method isFileData
+
+	/**
+	 * Gives the read buffer back to the worker's pool.
+	 **/
+	private void releaseReadBuffer()
+	{
+		if (this.readBuffer != null)
+			this.worker.getBufferPool().release(this.readBuffer);
+		this.readBuffer = null;
+	}	// End of method releaseReadBuffer
+
+	/**
+	 * Consumes the headers of a FILE_DATA frame and finds its transfer.
+	 * @throws IOException if the frame does not belong to a transfer, or
+	 * is an empty last chunk whose file cannot be moved into place.
+	 **/
+	private void startFileChunk() throws IOException
+	{
+		int size = FrameCodec.pendingFrameSize(this.readBuffer);
+		FileTransfers transfers = this.fileTransfers;
+		if (transfers == null)
+			throw new ProtocolException("FILE_DATA without a transfer");
+
+		this.readBuffer.getInt();
+		this.readBuffer.get();
+		long transferId = this.readBuffer.getLong();
+		long offset = this.readBuffer.getLong();
+		long length = size - FrameCodec.HEADER_SIZE - FileChunk.DATA_HEADER_SIZE;
+		if (this.rateMeter != null)
+			this.rateMeter.charge(size);	// File data cannot be refused halfway
+		this.incomingFile = transfers.startChunk(transferId, offset, length);
+		this.incomingFileRemaining = length;
+		if (length == 0)
+			this.endFileChunk();
+	}	// End of method startFileChunk
+
+	/**
+	 * Writes the file bytes already in the read buffer.
+	 * @throws IOException if the file cannot be written.
+	 **/
+	private void writeFileData() throws IOException
+	{
+		int count = (int) Math.min(this.readBuffer.remaining(), this.incomingFileRemaining);
+		ByteBuffer data = this.readBuffer.duplicate();
+		data.limit(data.position() + count);
+		this.incomingFile.write(data);
+		this.readBuffer.position(this.readBuffer.position() + count);
+		this.incomingFileRemaining -= count;
+		if (this.incomingFileRemaining == 0)
+			this.endFileChunk();
+	}	// End of method writeFileData
+
+	/**
+	 * Finishes the FILE_DATA frame being received.
+	 * @throws IOException if the finished file cannot be moved into place.
+	 **/
+	private void endFileChunk() throws IOException
+	{
+		FileTransfers.Incoming transfer = this.incomingFile;
+		this.incomingFile = null;
+		this.fileTransfers.endChunk(transfer);
+	}	// End of method endFileChunk
+
+	/**
+	 * Stops reading if the client is over its rate limits, until the
+	 * worker resumes it once the buckets have refilled. TCP then holds
+	 * the client back.
+	 * @return True if reading was paused.
+	 **/
+	private boolean pauseIfLimited()
+	{
+		RateLimiter.Meter meter = this.rateMeter;
+		long delay = (meter == null) ? 0 : meter.getDelay();
+		if (delay == 0 || this.closed.get())
+			return false;
+		meter.paused();
+		this.readsPaused = true;
+		this.key.interestOps(this.key.interestOps() & ~SelectionKey.OP_READ);
+		this.worker.resumeReads(this, TimeUnit.NANOSECONDS.toMillis(delay) + 1);
+		return true;
+	}	// End of method pauseIfLimited
+
+	/**
+	 * Refuses a frame the client sent over its rate limits. A message on
+	 * a stream still returns its credit, or the stream would stall, and
+	 * the client is sent ERROR once for each run of refused frames.
+	 * @throws ProtocolException if the frame overran its stream's window.
+	 **/
+	private void reject(Frame frame) throws ProtocolException
+	{
+		if (frame.isTraced())
+			this.lastReceivedSequence = frame.getSequence();
+		StreamTable streams = this.streams;
+		if (frame.getType() == FrameCodec.TYPE_STREAM_DATA && streams != null)
+		{
+			StreamTable.Stream stream = streams.get(frame.getStreamId());
+			if (stream != null)
+			{
+				stream.received();
+				stream.consumed();
+			}	// End of if
+		}	// End of if
+		this.metrics.frameRejected();
+		if (!this.rejecting && this.protocolVersion >= FrameCodec.ERROR_PROTOCOL_VERSION)
+			this.send(FrameCodec.TYPE_ERROR, "Sending too fast: messages are being refused.");
+		this.rejecting = true;
+	}	// End of method reject
+
+	/**
+	 * Asks the owning worker to flush this session, at most once until
+	 * the flush runs.
+	 **/
+	private void scheduleWrite()
+	{
+		if (this.writeScheduled.compareAndSet(false, true))
+			this.worker.scheduleWrite(this);
+	}	// End of method scheduleWrite
+}	// End of class ChannelSession
\ No newline at end of file
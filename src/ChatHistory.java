@@ -0,0 +1,209 @@
+// ChatHistory.java
+// Persists chat messages to a SegmentedLog and indexes them for search.
+// Devon Bautista
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.*;
+import java.util.*;
+
+/**
+ * Records every incoming and outgoing chat message in an append-only,
+ * memory-mapped log, and reads recent messages back so a new window
+ * can show the conversation so far. Each log record is laid out as:
+ *
+ *   byte  kind   MessageRenderer.INCOMING or OUTGOING
+ *   long  time   epoch milliseconds
+ *   byte[] text  UTF-8
+ *
+ * Every appended message is also added to a SearchIndex. The index is
+ * saved beside the log on close; on open, any messages logged after
+ * the saved snapshot are indexed before the history is used. A history
+ * locks its directory while open, so a second window on the same
+ * directory cannot append over the first one's records.
+ **/
+public class ChatHistory implements Closeable
+{
+	// Constants
+	public static final String DIRECTORY_PROPERTY = "simpleim.historyDir";
+	private static final int HEADER_SIZE = 9;
+	private static final String INDEX_FILE = "search.index";
+
+	// Attributes
+	private final SegmentedLog log;
+	private final SearchIndex index;
+	private final File indexFile;
+	private final FileLock lock;
+
+	/**
+	 * Opens the history stored in a directory.
+	 * @param directory The directory holding the log segments.
+	 * @throws IOException if the log cannot be opened, or another
+	 * history has the directory open.
+	 **/
+	public ChatHistory(File directory) throws IOException
+	{
+		if (!directory.isDirectory() && !directory.mkdirs())
+			throw new IOException("Unable to create " + directory);
+		this.lock = SegmentedLog.lockDirectory(directory);
+		if (this.lock == null)
+			throw new IOException(directory + " is in use by another window");
+		try
+		{
+			this.log = new SegmentedLog(directory);
+		}	// End of try
+		catch (IOException e)
+		{
+			this.lock.channel().close();
+			throw e;
+		}	// End of catch
+		this.indexFile = new File(directory, INDEX_FILE);
+		SearchIndex snapshot = SearchIndex.load(this.indexFile);
+
+		// A snapshot newer than the log belongs to a history that is gone
+		if (snapshot.getNextSequence() > this.log.getNextSequence())
+			snapshot = new SearchIndex();
+		this.index = snapshot;
+
+		// Catch up with messages logged after the snapshot was saved
+		long next = this.log.getNextSequence();
+		for (long seq = Math.max(this.index.getNextSequence(), this.log.getFirstSequence()); seq < next; seq++)
+		{
+			HistoryRecord record = this.read(seq);
+			if (record != null)
+				this.index.add(seq, record.getText());
+		}	// End of for
+	}	// End of constructor
+
+	/**
+	 * Returns the directory set by the simpleim.historyDir system
+	 * property, or .simpleim/history in the user's home directory.
+	 * @return The default history directory.
+	 **/
+	public static File getDefaultDirectory()
+	{
+		String dir = System.getProperty(DIRECTORY_PROPERTY);
+		if (dir != null)
+			return new File(dir);
+		return new File(new File(System.getProperty("user.home"), ".simpleim"), "history");
+	}	// End of method getDefaultDirectory
+
+	/**
+	 * Appends a message to the history.
+	 * @param kind MessageRenderer.INCOMING or MessageRenderer.OUTGOING.
+	 * @param time When the message was sent or received.
+	 * @param text The message text.
+	 * @return The message's sequence number.
+	 * @throws IOException if the log cannot grow.
+	 **/
+	public synchronized long append(int kind, long time, String text) throws IOException
+	{
+		byte[] body = text.getBytes(StandardCharsets.UTF_8);
+		ByteBuffer buf = ByteBuffer.allocate(HEADER_SIZE + body.length);
+		buf.put((byte) kind);
+		buf.putLong(time);
+		buf.put(body);
+		long sequence = this.log.append(buf.array());
+		this.index.add(sequence, text);
+		return sequence;
+	}	// End of method append
+
+	/**
+	 * Reads one message.
+	 * @param sequence The message's sequence number.
+	 * @return The message, or null if it is not held.
+	 **/
+	public HistoryRecord read(long sequence)
+	{
+		byte[] data = this.log.read(sequence);
+		if (data == null)
+			return null;
+		ByteBuffer buf = ByteBuffer.wrap(data);
+		int kind = buf.get();
+		long time = buf.getLong();
+		return new HistoryRecord(sequence, kind, time,
+			new String(data, HEADER_SIZE, data.length - HEADER_SIZE, StandardCharsets.UTF_8));
+	}	// End of method read
+
+	/**
+	 * Reads the most recent messages, oldest first.
+	 * @param count The maximum number of messages to read.
+	 * @return The messages.
+	 **/
+	public List<HistoryRecord> readLast(int count)
+	{
+		long next = this.log.getNextSequence();
+		long first = Math.max(this.log.getFirstSequence(), next - count);
+		List<HistoryRecord> records = new ArrayList<HistoryRecord>((int) (next - first));
+		for (long seq = first; seq < next; seq++)
+		{
+			HistoryRecord record = this.read(seq);
+			if (record != null)
+				records.add(record);
+		}	// End of for
+		return records;
+	}	// End of method readLast
+
+	/**
+	 * Finds the most recent messages containing every word of a query.
+	 * @param query The words to search for.
+	 * @param limit The maximum number of results.
+	 * @return The matching messages, newest first.
+	 **/
+	public List<HistoryRecord> search(String query, int limit)
+	{
+		long[] matches = this.index.search(query, limit);
+		List<HistoryRecord> records = new ArrayList<HistoryRecord>(matches.length);
+		for (long seq : matches)
+		{
+			HistoryRecord record = this.read(seq);
+			if (record != null)
+				records.add(record);
+		}	// End of for
+		return records;
+	}	// End of method search
+
+	/**
+	 * Returns the sequence number the next message will get.
+	 * @return One past the newest sequence number.
+	 **/
+	public long getNextSequence()
+	{
+		return this.log.getNextSequence();
+	}	// End of method getNextSequence
+
+	/**
+	 * Returns the sequence number of the oldest message held.
+	 * @return The first sequence number.
+	 **/
+	public long getFirstSequence()
+	{
+		return this.log.getFirstSequence();
+	}	// End of method getFirstSequence
+
+	/**
+	 * Forces the history to disk, saves the search index, closes it and
+	 * unlocks the directory.
+	 **/
+	public synchronized void close()
+	{
+		this.log.close();
+		try
+		{
+			this.index.save(this.indexFile);
+		}	// End of try
+		catch (IOException e)
+		{
+			// The index is caught up from the log on the next open
+		}	// End of catch
+		try
+		{
+			this.lock.channel().close();	// Releases the lock
+		}	// End of try
+		catch (IOException e)
+		{
+			// The lock goes with the process anyway
+		}	// End of catch
+	}	// End of method close
+}	// End of class ChatHistory
\ No newline at end of file
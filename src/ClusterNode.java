@@ -0,0 +1,571 @@
+// ClusterNode.java
+// Links an IMServer to the other servers of a cluster.
+// Devon Bautista
+
+import java.io.*;
+import java.net.*;
+import java.nio.*;
+import java.nio.charset.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.function.*;
+
+/**
+ * Joins an IMServer to a cluster of servers, each of which serves its
+ * own clients. Membership is static: every node is given the same list
+ * of node IDs and cluster addresses, and knows its own ID. Each pair of
+ * nodes shares one persistent link, opened by the node with the lower
+ * ID and reopened every RECONNECT_MILLIS while it is down. Links are
+ * served by an IMReactor of their own on the node's cluster port, so
+ * they get the same heartbeats, outbound limits and metrics as clients.
+ *
+ * Every node tells the others which rooms and users it holds, that is
+ * which rooms have a member connected to it and which user names have
+ * identified themselves to it, when a link comes up and whenever that
+ * changes. A message is then forwarded in one RELAY frame per remote
+ * node that needs it, however many of its recipients are there, and
+ * that node hands it to its own clients:
+ *
+ *   everyone  every other node
+ *   room      the nodes holding the room
+ *   user      the nodes holding the user
+ *
+ * Nodes never forward what they receive from another node, so a
+ * message crosses at most one link.
+ **/
+public class ClusterNode implements ReactorHandler, Closeable
+{
+	// Constants
+	public static final String NODES_PROPERTY = "simpleim.clusterNodes";
+	public static final String NODE_ID_PROPERTY = "simpleim.nodeId";
+	public static final byte SCOPE_ALL = 0;
+	public static final byte SCOPE_ROOM = 1;
+	public static final byte SCOPE_USER = 2;
+	private static final byte ROUTE_ROOM = 1;
+	private static final byte ROUTE_USER = 2;
+	private static final long RECONNECT_MILLIS = 1000;
+	private static final int CONNECT_TIMEOUT_MILLIS = 3000;
+	private static final int LINK_WORKERS = 1;
+
+	// Attributes
+	private final int nodeId;
+	private final Map<Integer, InetSocketAddress> members;
+	private final Map<Integer, ChannelSession> links = new ConcurrentHashMap<Integer, ChannelSession>();
+	private final Map<Integer, ChannelSession> outgoing = new ConcurrentHashMap<Integer, ChannelSession>();
+	private final Map<ChannelSession, Integer> peers = new ConcurrentHashMap<ChannelSession, Integer>();
+	private final ConcurrentHashMap<String, Set<Integer>> roomNodes = new ConcurrentHashMap<String, Set<Integer>>();
+	private final ConcurrentHashMap<String, Set<Integer>> userNodes = new ConcurrentHashMap<String, Set<Integer>>();
+	private final Set<String> localRooms = new HashSet<String>();
+	private final Map<String, Integer> localUsers = new HashMap<String, Integer>();
+	private final LongAdder relaysSent = new LongAdder();
+	private final LongAdder relaysReceived = new LongAdder();
+	private volatile IMServer server;
+	private volatile SessionListener listener;
+	private volatile boolean running = false;
+	private IMReactor reactor;
+	private Thread linker;
+
+	/**
+	 * Describes a node of a cluster.
+	 * @param nodeId This node's ID, which must be one of the members.
+	 * @param members The cluster address of every node, by node ID.
+	 **/
+	public ClusterNode(int nodeId, Map<Integer, InetSocketAddress> members)
+	{
+		if (!members.containsKey(nodeId))
+			throw new IllegalArgumentException("Node " + nodeId + " is not a member of the cluster");
+		this.nodeId = nodeId;
+		this.members = Collections.unmodifiableMap(new TreeMap<Integer, InetSocketAddress>(members));
+	}	// End of constructor
+
+	/**
+	 * Describes this node from the simpleim.clusterNodes and
+	 * simpleim.nodeId system properties. The first lists every node as
+	 * "id@host:port", separated by commas, where port is the node's
+	 * cluster port rather than the one its clients connect to.
+	 * @return The node, or null if simpleim.clusterNodes is not set.
+	 * @throws IllegalArgumentException if either property is malformed.
+	 **/
+	public static ClusterNode fromProperties()
+	{
+		String nodes = System.getProperty(NODES_PROPERTY);
+		if (nodes == null || nodes.trim().isEmpty())
+			return null;
+		Integer nodeId = Integer.getInteger(NODE_ID_PROPERTY);
+		if (nodeId == null)
+			throw new IllegalArgumentException(NODE_ID_PROPERTY + " must be set when " + NODES_PROPERTY + " is");
+		return new ClusterNode(nodeId, parseMembers(nodes));
+	}	// End of method fromProperties
+
+	/**
+	 * Parses a list of "id@host:port" entries separated by commas.
+	 * @param nodes The list.
+	 * @return The address of every node, by node ID.
+	 * @throws IllegalArgumentException if an entry is malformed.
+	 **/
+	public static Map<Integer, InetSocketAddress> parseMembers(String nodes)
+	{
+		Map<Integer, InetSocketAddress> members = new TreeMap<Integer, InetSocketAddress>();
+		for (String entry : nodes.split(","))
+		{
+			entry = entry.trim();
+			int at = entry.indexOf('@');
+			int colon = entry.lastIndexOf(':');
+			if (at <= 0 || colon < at)
+				throw new IllegalArgumentException("Expected id@host:port, found " + entry);
+			try
+			{
+				int id = Integer.parseInt(entry.substring(0, at));
+				int port = Integer.parseInt(entry.substring(colon + 1));
+				if (id <= 0 || members.put(id, new InetSocketAddress(entry.substring(at + 1, colon), port)) != null)
+					throw new IllegalArgumentException("Node IDs must be positive and unique: " + entry);
+			}	// End of try
+			catch (NumberFormatException e)
+			{
+				throw new IllegalArgumentException("Expected id@host:port, found " + entry);
+			}	// End of catch
+		}	// End of for
+		return members;
+	}	// End of method parseMembers
+
+	/**
+	 * Opens the cluster port and starts linking to the other nodes.
+	 * @param server The server whose clients this node serves.
+	 * @param listener The object to report link changes to.
+	 * @throws IOException if the cluster port cannot be bound.
+	 **/
+	public void start(IMServer server, SessionListener listener) throws IOException
+	{
+		this.server = server;
+		this.listener = listener;
+		this.reactor = new IMReactor(this.members.get(this.nodeId).getPort(), LINK_WORKERS, this);
+		this.reactor.setOutboundLimits(server.getOutboundLimits());		// Links are held to the same limits as clients
+		this.reactor.bind();
+		this.running = true;
+
+		Thread acceptor = new Thread(new Runnable()
+		{
+			public void run()
+			{
+				try
+				{
+					ClusterNode.this.reactor.acceptLoop();
+				}	// End of try
+				catch (IOException e)
+				{
+					ClusterNode.this.listener.printInformationMessage("The cluster port has closed.");
+				}	// End of catch
+			}	// End of method run
+		}, "ClusterNode-" + this.nodeId);
+		acceptor.setDaemon(true);
+		acceptor.start();
+
+		this.linker = new Thread(new Runnable()
+		{
+			public void run()
+			{
+				while (ClusterNode.this.running)
+				{
+					ClusterNode.this.connectMissing();
+					try
+					{
+						Thread.sleep(RECONNECT_MILLIS);
+					}	// End of try
+					catch (InterruptedException e)
+					{
+						return;
+					}	// End of catch
+				}	// End of while
+			}	// End of method run
+		}, "ClusterNode-" + this.nodeId + "-linker");
+		this.linker.setDaemon(true);
+		this.linker.start();
+	}	// End of method start
+
+	/**
+	 * Closes every link and the cluster port.
+	 **/
+	public void close()
+	{
+		if (!this.running)
+			return;
+		this.running = false;
+		this.linker.interrupt();
+		this.reactor.close();
+	}	// End of method close
+
+	/**
+	 * Returns this node's ID.
+	 * @return The node ID.
+	 **/
+	public int getNodeId()
+	{
+		return this.nodeId;
+	}	// End of method getNodeId
+
+	/**
+	 * Returns the number of other nodes this node is linked to.
+	 * @return The number of open links.
+	 **/
+	public int getLinkCount()
+	{
+		return this.links.size();
+	}	// End of method getLinkCount
+
+	/**
+	 * Returns the number of RELAY frames sent to other nodes.
+	 * @return The count since the node started.
+	 **/
+	public long getRelaysSent()
+	{
+		return this.relaysSent.sum();
+	}	// End of method getRelaysSent
+
+	/**
+	 * Returns the number of RELAY frames received from other nodes.
+	 * @return The count since the node started.
+	 **/
+	public long getRelaysReceived()
+	{
+		return this.relaysReceived.sum();
+	}	// End of method getRelaysReceived
+
+	/**
+	 * Returns the users connected to other nodes.
+	 * @return A live, unmodifiable view of their names.
+	 **/
+	public Set<String> getRemoteUsers()
+	{
+		return Collections.unmodifiableSet(this.userNodes.keySet());
+	}	// End of method getRemoteUsers
+
+	/**
+	 * Returns whether a user is connected to another node.
+	 * @param name The user name.
+	 * @return True if some other node holds the user.
+	 **/
+	public boolean isRemoteUser(String name)
+	{
+		return this.userNodes.containsKey(name);
+	}	// End of method isRemoteUser
+
+	/**
+	 * Forwards a message to the other nodes that have recipients for it,
+	 * encoding it once and sending it once per node.
+	 * @param scope SCOPE_ALL, SCOPE_ROOM or SCOPE_USER.
+	 * @param target The room or user name; ignored for SCOPE_ALL.
+	 * @param text The message text, without a room prefix.
+	 * @return A future completed once every node's copy is written.
+	 **/
+	public CompletableFuture<Void> forward(byte scope, String target, String text)
+	{
+		List<ChannelSession> recipients = new ArrayList<ChannelSession>();
+		if (scope == SCOPE_ALL)
+			recipients.addAll(this.links.values());
+		else
+		{
+			Set<Integer> nodes = ((scope == SCOPE_ROOM) ? this.roomNodes : this.userNodes).get(target);
+			if (nodes != null)
+				for (Integer node : nodes)
+				{
+					ChannelSession link = this.links.get(node);
+					if (link != null)
+						recipients.add(link);
+				}	// End of for
+		}	// End of else
+		if (recipients.isEmpty())
+			return CompletableFuture.completedFuture(null);
+
+		SharedFrame frame = new SharedFrame(FrameCodec.TYPE_RELAY,
+			relayPayload(scope, (scope == SCOPE_ALL) ? "" : target, text));
+		for (ChannelSession link : recipients)
+			link.enqueue(frame.newWrite());
+		frame.release();
+		this.relaysSent.add(recipients.size());
+		return frame.getCompletion();
+	}	// End of method forward
+
+	/**
+	 * Tells the other nodes whether this node still holds a room. Call
+	 * after a client joins or leaves it; the answer is read back from
+	 * the registry, so calls may race.
+	 * @param room The room name.
+	 * @param rooms The server's room registry.
+	 **/
+	public synchronized void roomChanged(String room, RoomRegistry rooms)
+	{
+		boolean held = !rooms.getMembers(room).isEmpty();
+		if (held ? this.localRooms.add(room) : this.localRooms.remove(room))
+			this.announce(ROUTE_ROOM, held, room);
+	}	// End of method roomChanged
+
+	/**
+	 * Counts a session identified as a user connecting or going away,
+	 * and tells the other nodes when the first arrives or the last goes.
+	 * @param name The user name.
+	 * @param connected True for a new session, false for a closed one.
+	 **/
+	public synchronized void userChanged(String name, boolean connected)
+	{
+		Integer count = this.localUsers.get(name);
+		int sessions = ((count == null) ? 0 : count) + (connected ? 1 : -1);
+		if (sessions > 0)
+			this.localUsers.put(name, sessions);
+		else
+			this.localUsers.remove(name);
+		if (count == null && connected || sessions == 0 && !connected)
+			this.announce(ROUTE_USER, connected, name);
+	}	// End of method userChanged
+
+	/**
+	 * Describes every node and its link.
+	 * @return One line per node.
+	 **/
+	public String describe()
+	{
+		StringBuilder sb = new StringBuilder();
+		for (Map.Entry<Integer, InetSocketAddress> member : this.members.entrySet())
+		{
+			int id = member.getKey();
+			if (sb.length() > 0)
+				sb.append('\n');
+			sb.append("Node ").append(id).append(" at ").append(member.getValue().getHostString())
+				.append(':').append(member.getValue().getPort()).append(": ");
+			if (id == this.nodeId)
+				sb.append("this node, ").append(this.relaysSent.sum()).append(" relays sent and ")
+					.append(this.relaysReceived.sum()).append(" received.");
+			else if (this.links.containsKey(id))
+				sb.append("linked, holding ").append(count(this.roomNodes, id)).append(" rooms and ")
+					.append(count(this.userNodes, id)).append(" users.");
+			else
+				sb.append("not linked.");
+		}	// End of for
+		return sb.toString();
+	}	// End of method describe
+
+	/**
+	 * Called by the link reactor once a link's handshake completes.
+	 * The first frame on every link names the node that sent it.
+	 * @param session The link.
+	 **/
+	public void sessionOpened(ChannelSession session)
+	{
+		if (session.getProtocolVersion() < FrameCodec.CLUSTER_PROTOCOL_VERSION)
+		{
+			session.close();	// Not a node, or one too old to cluster
+			return;
+		}	// End of if
+		session.send(FrameCodec.TYPE_NODE, ByteBuffer.allocate(4).putInt(this.nodeId).array());
+	}	// End of method sessionOpened
+
+	/**
+	 * Called by the link reactor for every frame another node sends.
+	 * @param session The link the frame arrived on.
+	 * @param frame The received frame.
+	 **/
+	public void frameReceived(ChannelSession session, Frame frame)
+	{
+		try
+		{
+			switch (frame.getType())
+			{
+				case FrameCodec.TYPE_NODE:
+					this.linked(session, frame);
+					break;
+				case FrameCodec.TYPE_ROUTE:
+					this.routed(session, frame);
+					break;
+				case FrameCodec.TYPE_RELAY:
+					this.relayed(session, frame);
+					break;
+				case FrameCodec.TYPE_CLOSE:
+					session.close();
+					break;
+				default:
+					// Ignore frame types this version does not understand
+					break;
+			}	// End of switch
+		}	// End of try
+		catch (ProtocolException e)
+		{
+			session.close();
+		}	// End of catch
+	}	// End of method frameReceived
+
+	/**
+	 * Called by the link reactor when a link closes. Whatever the node
+	 * at the other end held is forgotten until the link is back up.
+	 * @param session The closed link.
+	 **/
+	public void sessionClosed(ChannelSession session)
+	{
+		Integer id = this.peers.remove(session);
+		if (id == null || !this.links.remove(id, session))
+			return;
+		this.forget(id);
+		if (this.running)
+			this.listener.printInformationMessage("Lost the link to node " + id + ".");
+	}	// End of method sessionClosed
+
+	/**
+	 * Records which node is at the other end of a link and sends it
+	 * everything this node holds. A newer link from the same node
+	 * replaces the old one, which may not have noticed the node restart.
+	 **/
+	private void linked(ChannelSession session, Frame frame) throws ProtocolException
+	{
+		ByteBuffer buf = ByteBuffer.wrap(frame.getPayload());
+		if (buf.remaining() < 4)
+			throw new ProtocolException("Truncated NODE");
+		int id = buf.getInt();
+		if (id == this.nodeId || !this.members.containsKey(id) || this.peers.containsKey(session))
+			throw new ProtocolException("Unexpected NODE " + id);
+
+		this.peers.put(session, id);
+		ChannelSession old = this.links.put(id, session);
+		this.forget(id);
+		if (old != null)
+			old.close();
+		synchronized (this)
+		{
+			for (String room : this.localRooms)
+				session.send(FrameCodec.TYPE_ROUTE, routePayload(ROUTE_ROOM, true, room));
+			for (String user : this.localUsers.keySet())
+				session.send(FrameCodec.TYPE_ROUTE, routePayload(ROUTE_USER, true, user));
+		}	// End of synchronized
+		this.listener.printInformationMessage("Linked to node " + id + " at " + session.getInetAddress() + ".");
+	}	// End of method linked
+
+	/**
+	 * Updates where a room or user is held.
+	 **/
+	private void routed(ChannelSession session, Frame frame) throws ProtocolException
+	{
+		final Integer id = this.peers.get(session);
+		byte[] payload = frame.getPayload();
+		if (id == null || payload.length < 3)
+			throw new ProtocolException("ROUTE before NODE, or truncated");
+		ConcurrentHashMap<String, Set<Integer>> table = (payload[0] == ROUTE_ROOM) ? this.roomNodes : this.userNodes;
+		String name = new String(payload, 2, payload.length - 2, StandardCharsets.UTF_8);
+		if (payload[1] != 0)
+			table.computeIfAbsent(name, new Function<String, Set<Integer>>()
+			{
+				public Set<Integer> apply(String key)
+				{
+					return ConcurrentHashMap.newKeySet();
+				}	// End of method apply
+			}).add(id);
+		else
+			removeNode(table, name, id);
+	}	// End of method routed
+
+	/**
+	 * Hands a message forwarded by another node to this node's clients.
+	 **/
+	private void relayed(ChannelSession session, Frame frame) throws ProtocolException
+	{
+		ByteBuffer buf = ByteBuffer.wrap(frame.getPayload());
+		if (!this.peers.containsKey(session) || buf.remaining() < 3)
+			throw new ProtocolException("RELAY before NODE, or truncated");
+		byte scope = buf.get();
+		int length = buf.getShort() & 0xFFFF;
+		if (buf.remaining() < length)
+			throw new ProtocolException("Truncated RELAY");
+		byte[] payload = frame.getPayload();
+		String target = new String(payload, 3, length, StandardCharsets.UTF_8);
+		String text = new String(payload, 3 + length, payload.length - 3 - length, StandardCharsets.UTF_8);
+		this.relaysReceived.increment();
+		this.server.deliverRelayed(scope, target, text);
+	}	// End of method relayed
+
+	/**
+	 * Opens the links this node is responsible for that are down.
+	 * Runs on the linker thread.
+	 **/
+	private void connectMissing()
+	{
+		for (Map.Entry<Integer, InetSocketAddress> member : this.members.entrySet())
+		{
+			int id = member.getKey();
+			if (id <= this.nodeId)
+				continue;		// The other node opens this link
+			ChannelSession session = this.outgoing.get(id);
+			if (session != null && !session.isClosed())
+				continue;
+			try
+			{
+				this.outgoing.put(id, this.reactor.connect(member.getValue(), CONNECT_TIMEOUT_MILLIS));
+			}	// End of try
+			catch (IOException e)
+			{
+				// Not up yet; try again next time round
+			}	// End of catch
+		}	// End of for
+	}	// End of method connectMissing
+
+	/**
+	 * Tells every linked node that this node now holds, or no longer
+	 * holds, a room or user. Called holding this object's lock.
+	 **/
+	private void announce(byte kind, boolean held, String name)
+	{
+		byte[] payload = routePayload(kind, held, name);
+		for (ChannelSession link : this.links.values())
+			link.send(FrameCodec.TYPE_ROUTE, payload);
+	}	// End of method announce
+
+	/**
+	 * Forgets every room and user a node held.
+	 **/
+	private void forget(Integer id)
+	{
+		for (String room : this.roomNodes.keySet())
+			removeNode(this.roomNodes, room, id);
+		for (String user : this.userNodes.keySet())
+			removeNode(this.userNodes, user, id);
+	}	// End of method forget
+
+	private static void removeNode(ConcurrentHashMap<String, Set<Integer>> table, String name, final Integer id)
+	{
+		table.computeIfPresent(name, new BiFunction<String, Set<Integer>, Set<Integer>>()
+		{
+			public Set<Integer> apply(String key, Set<Integer> nodes)
+			{
+				nodes.remove(id);
+				return nodes.isEmpty() ? null : nodes;
+			}	// End of method apply
+		});
+	}	// End of method removeNode
+
+	private static int count(Map<String, Set<Integer>> table, Integer id)
+	{
+		int count = 0;
+		for (Set<Integer> nodes : table.values())
+			if (nodes.contains(id))
+				count++;
+		return count;
+	}	// End of method count
+
+	private static byte[] routePayload(byte kind, boolean held, String name)
+	{
+		byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+		ByteBuffer buf = ByteBuffer.allocate(2 + bytes.length);
+		buf.put(kind);
+		buf.put((byte) (held ? 1 : 0));
+		buf.put(bytes);
+		return buf.array();
+	}	// End of method routePayload
+
+	private static byte[] relayPayload(byte scope, String target, String text)
+	{
+		byte[] name = target.getBytes(StandardCharsets.UTF_8);
+		byte[] body = text.getBytes(StandardCharsets.UTF_8);
+		ByteBuffer buf = ByteBuffer.allocate(3 + name.length + body.length);
+		buf.put(scope);
+		buf.putShort((short) name.length);
+		buf.put(name);
+		buf.put(body);
+		return buf.array();
+	}	// End of method relayPayload
+}	// End of class ClusterNode
\ No newline at end of file
@@ -0,0 +1,264 @@
+// Connector.java
+// Opens a client connection without blocking on any one address.
+// Devon Bautista
+
+import java.io.*;
+import java.net.*;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Connects to a host by racing its addresses, in the manner of Happy
+ * Eyeballs (RFC 8305). The host is resolved on a separate thread, and
+ * its addresses are tried in turn, alternating between IPv6 and IPv4
+ * from whichever family came first. Each attempt is a non-blocking
+ * connect on one Selector; the next starts after ATTEMPT_DELAY_MILLIS,
+ * or at once if the last failed, and the first to succeed wins while
+ * the rest are closed. The whole of it, lookup included, is bounded by
+ * a timeout, and close() cancels it from any thread.
+ *
+ * The time each successful connect took is recorded in a histogram
+ * shared by every Connector in the JVM.
+ **/
+public class Connector implements Closeable
+{
+	// Constants
+	public static final String CONNECT_TIMEOUT_PROPERTY = "simpleim.connectTimeoutMillis";
+	public static final long DEFAULT_CONNECT_TIMEOUT_MILLIS = 10000;
+	public static final long ATTEMPT_DELAY_MILLIS = 250;
+	private static final LatencyHistogram CONNECT_TIMES = new LatencyHistogram();
+
+	// Attributes
+	private final long timeoutMillis;
+	private final CompletableFuture<InetAddress[]> resolved = new CompletableFuture<InetAddress[]>();
+	private volatile Selector selector = null;
+	private volatile boolean cancelled = false;
+	private volatile long connectNanos = 0;
+	private volatile int attempts = 0;
+
+	/**
+	 * Creates a connector with the timeout in simpleim.connectTimeoutMillis.
+	 **/
+	public Connector()
+	{
+		this(Long.getLong(CONNECT_TIMEOUT_PROPERTY, DEFAULT_CONNECT_TIMEOUT_MILLIS));
+	}	// End of constructor
+
+	/**
+	 * Creates a connector.
+	 * @param timeoutMillis How long lookup and connect may take in all.
+	 **/
+	public Connector(long timeoutMillis)
+	{
+		this.timeoutMillis = timeoutMillis;
+	}	// End of constructor
+
+	/**
+	 * Connects to a host. Only one connect may be made with each Connector.
+	 * @param host The host name or address.
+	 * @param port The port.
+	 * @return The connected channel, in blocking mode, with TCP_NODELAY set.
+	 * @throws UnknownHostException if the host does not resolve.
+	 * @throws SocketTimeoutException if the timeout passes first.
+	 * @throws AsynchronousCloseException if close() is called first.
+	 * @throws IOException if every address refuses the connection.
+	 **/
+	public SocketChannel connect(final String host, int port) throws IOException
+	{
+		long start = System.nanoTime();
+		long deadline = start + TimeUnit.MILLISECONDS.toNanos(this.timeoutMillis);
+		List<InetAddress> addresses = interleave(this.resolve(host, deadline));
+
+		Selector selector = Selector.open();
+		this.selector = selector;
+		List<SocketChannel> pending = new ArrayList<SocketChannel>();
+		SocketChannel winner = null;
+		IOException failure = null;
+		try
+		{
+			int next = 0;
+			long nextStart = System.nanoTime();
+			while (winner == null)
+			{
+				if (this.cancelled)
+					throw new AsynchronousCloseException();
+				long now = System.nanoTime();
+				if (now >= deadline)
+					throw new SocketTimeoutException("Connect to " + host + " timed out");
+
+				// Start the next attempt when its turn comes or nothing else is in flight
+				if (next < addresses.size() && (now >= nextStart || pending.isEmpty()))
+				{
+					SocketChannel channel = SocketChannel.open();
+					this.attempts++;
+					try
+					{
+						channel.configureBlocking(false);
+						channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+						if (channel.connect(new InetSocketAddress(addresses.get(next), port)))
+							winner = channel;
+						else
+						{
+							channel.register(selector, SelectionKey.OP_CONNECT);
+							pending.add(channel);
+						}	// End of else
+					}	// End of try
+					catch (IOException e)
+					{
+						channel.close();
+						failure = e;
+					}	// End of catch
+					next++;
+					nextStart = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(ATTEMPT_DELAY_MILLIS);
+					continue;
+				}	// End of if
+				if (pending.isEmpty())
+					throw (failure != null) ? failure : new ConnectException("No address of " + host + " accepted");
+
+				long wait = ((next < addresses.size()) ? Math.min(nextStart, deadline) : deadline) - now;
+				selector.select(Math.max(1, TimeUnit.NANOSECONDS.toMillis(wait)));
+				for (SelectionKey key : selector.selectedKeys())
+				{
+					SocketChannel channel = (SocketChannel) key.channel();
+					try
+					{
+						if (channel.finishConnect() && winner == null)
+						{
+							winner = channel;
+							pending.remove(channel);
+						}	// End of if
+					}	// End of try
+					catch (IOException e)
+					{
+						// This address failed; the next is started at once
+						key.cancel();
+						pending.remove(channel);
+						channel.close();
+						failure = e;
+						nextStart = System.nanoTime();
+					}	// End of catch
+				}	// End of for
+				selector.selectedKeys().clear();
+			}	// End of while
+		}	// End of try
+		finally
+		{
+			for (SocketChannel channel : pending)
+				channel.close();	// The losers of the race
+			this.selector = null;
+			selector.close();
+		}	// End of finally
+
+		winner.configureBlocking(true);
+		this.connectNanos = System.nanoTime() - start;
+		CONNECT_TIMES.record(this.connectNanos);
+		return winner;
+	}	// End of method connect
+
+	/**
+	 * Cancels a connect in progress. The thread in connect() throws
+	 * AsynchronousCloseException at once.
+	 **/
+	public void close()
+	{
+		this.cancelled = true;
+		this.resolved.completeExceptionally(new AsynchronousCloseException());
+		Selector selector = this.selector;
+		if (selector != null)
+			selector.wakeup();
+	}	// End of method close
+
+	/**
+	 * Returns how long the last successful connect took, lookup included.
+	 * @return The time in milliseconds.
+	 **/
+	public long getConnectMillis()
+	{
+		return TimeUnit.NANOSECONDS.toMillis(this.connectNanos);
+	}	// End of method getConnectMillis
+
+	/**
+	 * Returns the number of addresses tried.
+	 * @return The attempt count.
+	 **/
+	public int getAttempts()
+	{
+		return this.attempts;
+	}	// End of method getAttempts
+
+	/**
+	 * Returns the times successful connects in this JVM have taken.
+	 * @return The histogram, in nanoseconds.
+	 **/
+	public static LatencyHistogram getConnectTimes()
+	{
+		return CONNECT_TIMES;
+	}	// End of method getConnectTimes
+
+	/**
+	 * Looks a host up on a daemon thread, since InetAddress has no
+	 * timeout of its own. A lookup that is given up on finishes in the
+	 * background.
+	 **/
+	private InetAddress[] resolve(final String host, long deadline) throws IOException
+	{
+		Thread thread = new Thread(new Runnable()
+		{
+			public void run()
+			{
+				try
+				{
+					Connector.this.resolved.complete(InetAddress.getAllByName(host));
+				}	// End of try
+				catch (UnknownHostException e)
+				{
+					Connector.this.resolved.completeExceptionally(e);
+				}	// End of catch
+			}	// End of method run
+		}, "Connector-resolve-" + host);
+		thread.setDaemon(true);
+		thread.start();
+
+		try
+		{
+			return this.resolved.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+		}	// End of try
+		catch (TimeoutException e)
+		{
+			throw new SocketTimeoutException("Looking up " + host + " timed out");
+		}	// End of catch
+		catch (ExecutionException e)
+		{
+			if (e.getCause() instanceof IOException)
+				throw (IOException) e.getCause();
+			throw new IOException(e.getCause());
+		}	// End of catch
+		catch (InterruptedException e)
+		{
+			throw new ClosedByInterruptException();
+		}	// End of catch
+	}	// End of method resolve
+
+	/**
+	 * Orders addresses for racing: the family of the first address the
+	 * resolver gave, then the other, alternately.
+	 **/
+	private static List<InetAddress> interleave(InetAddress[] addresses)
+	{
+		List<InetAddress> first = new ArrayList<InetAddress>();
+		List<InetAddress> second = new ArrayList<InetAddress>();
+		for (InetAddress address : addresses)
+			((address.getClass() == addresses[0].getClass()) ? first : second).add(address);
+
+		List<InetAddress> ordered = new ArrayList<InetAddress>(addresses.length);
+		for (int i = 0; i < Math.max(first.size(), second.size()); i++)
+		{
+			if (i < first.size())
+				ordered.add(first.get(i));
+			if (i < second.size())
+				ordered.add(second.get(i));
+		}	// End of for
+		return ordered;
+	}	// End of method interleave
+}	// End of class Connector
\ No newline at end of file
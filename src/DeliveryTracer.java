@@ -0,0 +1,394 @@
+// DeliveryTracer.java
+// Works out how long chat messages take to reach the other side.
+// Devon Bautista
+
+import java.io.*;
+import java.net.*;
+import java.nio.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.function.*;
+
+/**
+ * Traces the chat messages one end of a connection sends. From version
+ * 5 every MESSAGE and ROOM_MESSAGE frame starts with a sequence number
+ * and the sender's clock, and the receiver answers each once it has
+ * been shown with an ACK carrying the sequence number and two
+ * durations measured on its own clock: from reading the frame to
+ * handing it over (decode) and from then until it was on screen
+ * (render). On the ACK the sender knows:
+ *
+ *   queue       from being queued to being written to the socket
+ *   round trip  from being queued to the ACK arriving
+ *   wire        half of what is left of the round trip once queue,
+ *               decode and render are taken out, assuming the network
+ *               is as fast both ways
+ *   one way     queue + wire + decode + render
+ *
+ * None of this needs the two clocks to agree. The sender's clock in the
+ * frame is only used for the receiver's own estimate of one way
+ * latency, SenderClockOneWayP50Millis, which is only meaningful when
+ * both clocks are synchronised.
+ *
+ * One tracer serves every connection of an IMServer, or every IMClient
+ * in the JVM, and is registered as the MBean simpleim:type=Delivery.
+ * Each connection has a Peer holding the messages still waiting for
+ * their ACK.
+ **/
+public class DeliveryTracer implements DeliveryTracerMBean
+{
+	// Constants
+	public static final int MAX_UNACKNOWLEDGED = 1024;
+	public static final int RECENT_COUNT = 100;
+	private static final double NANOS_PER_MILLI = 1e6;
+	private static final Runnable NO_ACK = new Runnable()
+	{
+		public void run()
+		{
+			// Untraced frames are not acknowledged
+		}	// End of method run
+	};
+	private static DeliveryTracer clientTracer = null;
+
+	// Attributes
+	private final AtomicLong nextSequence = new AtomicLong(1);
+	private final Set<Peer> peers = ConcurrentHashMap.newKeySet();
+	private final LongAdder acknowledged = new LongAdder();
+	private final LatencyHistogram queue = new LatencyHistogram();
+	private final LatencyHistogram wire = new LatencyHistogram();
+	private final LatencyHistogram decode = new LatencyHistogram();
+	private final LatencyHistogram render = new LatencyHistogram();
+	private final LatencyHistogram oneWay = new LatencyHistogram();
+	private final LatencyHistogram roundTrip = new LatencyHistogram();
+	private final LatencyHistogram senderClockOneWay = new LatencyHistogram();
+	private final Deque<Trace> recent = new ArrayDeque<Trace>(RECENT_COUNT);
+
+	/**
+	 * Returns the tracer shared by every IMClient in the JVM, registering
+	 * it as simpleim:type=Delivery,side=client when first asked for.
+	 * @return The client tracer.
+	 **/
+	public static synchronized DeliveryTracer getClientTracer()
+	{
+		if (clientTracer == null)
+		{
+			clientTracer = new DeliveryTracer();
+			Metrics.register("type=Delivery,side=client", clientTracer);
+		}	// End of if
+		return clientTracer;
+	}	// End of method getClientTracer
+
+	/**
+	 * Returns the next sequence number for a traced message.
+	 * @return A number unique within this tracer, starting at 1.
+	 **/
+	public long nextSequence()
+	{
+		return this.nextSequence.getAndIncrement();
+	}	// End of method nextSequence
+
+	/**
+	 * Starts tracing a connection.
+	 * @return The connection's table of unacknowledged messages.
+	 **/
+	public Peer newPeer()
+	{
+		Peer peer = new Peer();
+		this.peers.add(peer);
+		return peer;
+	}	// End of method newPeer
+
+	/**
+	 * Returns the most recently acknowledged messages.
+	 * @return Up to RECENT_COUNT traces, newest first.
+	 **/
+	public List<Trace> getRecent()
+	{
+		synchronized (this.recent)
+		{
+			return new ArrayList<Trace>(this.recent);
+		}	// End of synchronized
+	}	// End of method getRecent
+
+	public long getAcknowledged()
+	{
+		return this.acknowledged.sum();
+	}	// End of method getAcknowledged
+
+	public int getUnacknowledged()
+	{
+		int count = 0;
+		for (Peer peer : this.peers)
+			count += peer.size();
+		return count;
+	}	// End of method getUnacknowledged
+
+	public double getQueueP50Millis()
+	{
+		return millis(this.queue, 50);
+	}	// End of method getQueueP50Millis
+
+	public double getQueueP99Millis()
+	{
+		return millis(this.queue, 99);
+	}	// End of method getQueueP99Millis
+
+	public double getWireP50Millis()
+	{
+		return millis(this.wire, 50);
+	}	// End of method getWireP50Millis
+
+	public double getWireP99Millis()
+	{
+		return millis(this.wire, 99);
+	}	// End of method getWireP99Millis
+
+	public double getDecodeP50Millis()
+	{
+		return millis(this.decode, 50);
+	}	// End of method getDecodeP50Millis
+
+	public double getDecodeP99Millis()
+	{
+		return millis(this.decode, 99);
+	}	// End of method getDecodeP99Millis
+
+	public double getRenderP50Millis()
+	{
+		return millis(this.render, 50);
+	}	// End of method getRenderP50Millis
+
+	public double getRenderP99Millis()
+	{
+		return millis(this.render, 99);
+	}	// End of method getRenderP99Millis
+
+	public double getOneWayP50Millis()
+	{
+		return millis(this.oneWay, 50);
+	}	// End of method getOneWayP50Millis
+
+	public double getOneWayP99Millis()
+	{
+		return millis(this.oneWay, 99);
+	}	// End of method getOneWayP99Millis
+
+	public double getRoundTripP50Millis()
+	{
+		return millis(this.roundTrip, 50);
+	}	// End of method getRoundTripP50Millis
+
+	public double getRoundTripP99Millis()
+	{
+		return millis(this.roundTrip, 99);
+	}	// End of method getRoundTripP99Millis
+
+	public double getSenderClockOneWayP50Millis()
+	{
+		return millis(this.senderClockOneWay, 50);
+	}	// End of method getSenderClockOneWayP50Millis
+
+	public void resetLatencies()
+	{
+		this.queue.reset();
+		this.wire.reset();
+		this.decode.reset();
+		this.render.reset();
+		this.oneWay.reset();
+		this.roundTrip.reset();
+		this.senderClockOneWay.reset();
+		synchronized (this.recent)
+		{
+			this.recent.clear();
+		}	// End of synchronized
+	}	// End of method resetLatencies
+
+	/**
+	 * Describes the percentiles of every stage.
+	 * @return One line per stage: name, p50, p99 and max in milliseconds.
+	 **/
+	public String[][] describeStages()
+	{
+		return new String[][] {
+			stage("Queue", this.queue),
+			stage("Wire", this.wire),
+			stage("Decode", this.decode),
+			stage("Render", this.render),
+			stage("One way", this.oneWay),
+			stage("Round trip", this.roundTrip)
+		};
+	}	// End of method describeStages
+
+	/**
+	 * Records an acknowledged message.
+	 **/
+	private void record(Trace trace)
+	{
+		this.acknowledged.increment();
+		this.queue.record(trace.queue);
+		this.wire.record(trace.wire);
+		this.decode.record(trace.decode);
+		this.render.record(trace.render);
+		this.oneWay.record(trace.oneWay);
+		this.roundTrip.record(trace.roundTrip);
+		synchronized (this.recent)
+		{
+			if (this.recent.size() == RECENT_COUNT)
+				this.recent.removeLast();
+			this.recent.addFirst(trace);
+		}	// End of synchronized
+	}	// End of method record
+
+	private static String[] stage(String name, LatencyHistogram histogram)
+	{
+		return new String[] {name, String.format("%.2f", millis(histogram, 50)),
+			String.format("%.2f", millis(histogram, 99)), String.format("%.2f", histogram.getMax() / NANOS_PER_MILLI)};
+	}	// End of method stage
+
+	private static double millis(LatencyHistogram histogram, double percentile)
+	{
+		return histogram.getValueAtPercentile(percentile) / NANOS_PER_MILLI;
+	}	// End of method millis
+
+	/**
+	 * The messages sent on one connection that have not been
+	 * acknowledged. Only the newest MAX_UNACKNOWLEDGED are kept, so
+	 * messages that are never acknowledged, because they were dropped
+	 * for a slow connection or the peer went away, are forgotten.
+	 **/
+	public class Peer implements Closeable
+	{
+		private final Map<Long, Sent> unacknowledged = new LinkedHashMap<Long, Sent>()
+		{
+			protected boolean removeEldestEntry(Map.Entry<Long, Sent> eldest)
+			{
+				return this.size() > MAX_UNACKNOWLEDGED;
+			}	// End of method removeEldestEntry
+		};
+
+		/**
+		 * Remembers a traced message. Call before queuing it, so its ACK
+		 * cannot arrive first.
+		 * @param sequence The sequence number in its frame.
+		 * @param text The message, for display.
+		 * @param write Its queued frame.
+		 **/
+		public synchronized void sent(long sequence, String text, PendingWrite write)
+		{
+			this.unacknowledged.put(sequence, new Sent(text, write));
+		}	// End of method sent
+
+		/**
+		 * Works out the latencies of a message from its ACK.
+		 * @param ack The ACK frame.
+		 * @throws ProtocolException if the ACK is truncated.
+		 **/
+		public void acknowledged(Frame ack) throws ProtocolException
+		{
+			long now = System.nanoTime();
+			if (ack.getLength() < FrameCodec.ACK_SIZE)
+				throw new ProtocolException("Truncated ACK");
+			long sequence = ack.getLong(0);
+			long decode = ack.getInt(8) * 1000L;
+			long render = ack.getInt(12) * 1000L;
+			Sent sent;
+			synchronized (this)
+			{
+				sent = this.unacknowledged.remove(sequence);
+			}	// End of synchronized
+			if (sent == null)
+				return;		// Forgotten, or not ours
+
+			PendingWrite write = sent.write;
+			long queued = write.getQueuedTime();
+			// The ACK can beat the writer to marking a batch written
+			long written = (write.getWrittenTime() == 0) ? now : write.getWrittenTime();
+			long roundTrip = now - queued;
+			long wire = Math.max(0, roundTrip - (written - queued) - decode - render) / 2;
+			DeliveryTracer.this.record(new Trace(sequence, sent.text, written - queued, wire, decode, render,
+				roundTrip));
+		}	// End of method acknowledged
+
+		/**
+		 * Builds the ACK for a received frame, to be run once the frame's
+		 * message has been shown. Also records the receiver's estimate of
+		 * one way latency from the sender's clock.
+		 * @param frame The received frame, as returned by FrameCodec.readTrace().
+		 * @param sink Queues the ACK payload on the connection.
+		 * @return The task sending the ACK; does nothing for untraced frames.
+		 **/
+		public Runnable acknowledgement(Frame frame, final Consumer<byte[]> sink)
+		{
+			if (!frame.isTraced())
+				return NO_ACK;
+			DeliveryTracer.this.senderClockOneWay.record((System.currentTimeMillis() - frame.getSendTime()) * 1000000L);
+			final long dispatched = System.nanoTime();
+			final long sequence = frame.getSequence();		// The frame may be a view that is reused
+			final long received = frame.getReceivedTime();
+			return new Runnable()
+			{
+				public void run()
+				{
+					sink.accept(FrameCodec.ackPayload(sequence, dispatched - received, System.nanoTime() - dispatched));
+				}	// End of method run
+			};
+		}	// End of method acknowledgement
+
+		/**
+		 * Stops tracing the connection.
+		 **/
+		public void close()
+		{
+			DeliveryTracer.this.peers.remove(this);
+		}	// End of method close
+
+		synchronized int size()
+		{
+			return this.unacknowledged.size();
+		}	// End of method size
+	}	// End of class Peer
+
+	/**
+	 * A message waiting for its ACK.
+	 **/
+	private static class Sent
+	{
+		final String text;
+		final PendingWrite write;
+
+		Sent(String text, PendingWrite write)
+		{
+			this.text = text;
+			this.write = write;
+		}	// End of constructor
+	}	// End of class Sent
+
+	/**
+	 * The latencies of one acknowledged message, in nanoseconds.
+	 **/
+	public static class Trace
+	{
+		final long sequence;
+		final String text;
+		final long queue;
+		final long wire;
+		final long decode;
+		final long render;
+		final long oneWay;
+		final long roundTrip;
+		final long time = System.currentTimeMillis();
+
+		Trace(long sequence, String text, long queue, long wire, long decode, long render, long roundTrip)
+		{
+			this.sequence = sequence;
+			this.text = text;
+			this.queue = queue;
+			this.wire = wire;
+			this.decode = decode;
+			this.render = render;
+			this.oneWay = queue + wire + decode + render;
+			this.roundTrip = roundTrip;
+		}	// End of constructor
+	}	// End of class Trace
+}	// End of class DeliveryTracer
\ No newline at end of file
@@ -0,0 +1,28 @@
+// DeliveryTracerMBean.java
+// The JMX management interface of DeliveryTracer.
+// Devon Bautista
+
+/**
+ * Delivery latencies of the chat messages one end has sent, broken
+ * down by stage, as seen through JMX. Latencies are in milliseconds
+ * since the last resetLatencies().
+ **/
+public interface DeliveryTracerMBean
+{
+	public long getAcknowledged();
+	public int getUnacknowledged();
+	public double getQueueP50Millis();
+	public double getQueueP99Millis();
+	public double getWireP50Millis();
+	public double getWireP99Millis();
+	public double getDecodeP50Millis();
+	public double getDecodeP99Millis();
+	public double getRenderP50Millis();
+	public double getRenderP99Millis();
+	public double getOneWayP50Millis();
+	public double getOneWayP99Millis();
+	public double getRoundTripP50Millis();
+	public double getRoundTripP99Millis();
+	public double getSenderClockOneWayP50Millis();
+	public void resetLatencies();
+}	// End of interface DeliveryTracerMBean
\ No newline at end of file
@@ -0,0 +1,159 @@
+// DiagnosticsWindow.java
+// GUI showing how long sent messages took to be delivered.
+// Devon Bautista
+
+import javax.swing.*;
+import javax.swing.table.*;
+import java.awt.*;
+import java.awt.event.*;
+import java.text.*;
+import java.util.*;
+import java.util.List;
+
+/**
+ * Represents an instance of the delivery diagnostics window. It shows
+ * the percentiles of each stage of delivery for the messages this side
+ * has sent, and the breakdown of the most recent ones, newest first.
+ * The figures are refreshed every second while the window is open.
+ **/
+public class DiagnosticsWindow extends JFrame
+{
+	// Global widgets
+	JLabel lblSummary;
+	DefaultTableModel stages;
+	DefaultTableModel recent;
+	javax.swing.Timer refresh;
+
+	// Constants
+	private int FRAME_HEIGHT = 650;
+	private int FRAME_WIDTH = 450;
+	private int REFRESH_MILLIS = 1000;
+	private int TEXT_LENGTH = 40;
+	private SimpleDateFormat fmt = new SimpleDateFormat("HH:mm:ss");
+
+	// Attributes
+	private final DeliveryTracer tracer;
+
+	/**
+	 * Sets up JFrame and constructs widgets.
+	 * @param parent The IMWindow this window is bound to.
+	 * @param tracer The tracer of the parent's session.
+	 **/
+	public DiagnosticsWindow(IMWindow parent, DeliveryTracer tracer)
+	{
+		this.tracer = tracer;
+
+		// Window specifics
+		this.setTitle("Delivery Diagnostics");
+		this.setDefaultCloseOperation(DISPOSE_ON_CLOSE);
+		this.setSize(FRAME_HEIGHT, FRAME_WIDTH);
+		this.setLocationRelativeTo(parent);
+
+		// Create widgets
+		this.lblSummary = new JLabel(" ");												// Create summary label
+		this.lblSummary.setBorder(BorderFactory.createEmptyBorder(5, 10, 5, 10));		// Add padding around label
+		this.stages = new ReadOnlyModel(new String[] {"Stage", "p50 ms", "p99 ms", "Max ms"});
+		this.recent = new ReadOnlyModel(new String[] {"Time", "#", "Message", "Queue", "Wire", "Decode",
+			"Render", "One way", "Round trip"});
+		JTable tblStages = new JTable(this.stages);										// Create stage table
+		tblStages.setPreferredScrollableViewportSize(new Dimension(0, tblStages.getRowHeight() * 6));
+		JTable tblRecent = new JTable(this.recent);										// Create recent message table
+		tblRecent.getColumnModel().getColumn(2).setPreferredWidth(200);				// Leave room for the message
+		JButton btnReset = new JButton("Reset");										// Create "Reset" button
+		btnReset.addActionListener(new ResetListener());								// Add event handler to "Reset" button
+
+		JPanel panTop = new JPanel(new BorderLayout());									// Create panel for summary and stages
+		panTop.add(this.lblSummary, BorderLayout.NORTH);								// Add summary to top
+		panTop.add(new JScrollPane(tblStages), BorderLayout.CENTER);					// Add stage table below it
+		this.add(panTop, BorderLayout.NORTH);											// Add panel to top
+		this.add(new JScrollPane(tblRecent), BorderLayout.CENTER);						// Add recent messages to body
+		this.add(btnReset, BorderLayout.SOUTH);											// Add "Reset" button to bottom
+
+		// Refresh while open
+		this.refresh = new javax.swing.Timer(REFRESH_MILLIS, new RefreshListener());
+		this.addWindowListener(new WindowAdapter()
+		{
+			public void windowClosed(WindowEvent event)
+			{
+				DiagnosticsWindow.this.refresh.stop();
+			}	// End of method windowClosed
+		});
+		this.update();
+		this.refresh.start();
+
+		this.setVisible(true);
+	}	// End of constructor
+
+	/**
+	 * Replaces the figures shown with the tracer's current ones.
+	 **/
+	public void update()
+	{
+		this.lblSummary.setText(String.format("%d messages acknowledged, %d waiting. "
+			+ "Wire time is half the round trip left once the other stages are taken out.",
+			this.tracer.getAcknowledged(), this.tracer.getUnacknowledged()));
+
+		this.stages.setRowCount(0);
+		for (String[] stage : this.tracer.describeStages())
+			this.stages.addRow(stage);
+
+		this.recent.setRowCount(0);
+		List<DeliveryTracer.Trace> traces = this.tracer.getRecent();
+		for (DeliveryTracer.Trace trace : traces)
+		{
+			String text = trace.text.replace('\n', ' ');
+			if (text.length() > TEXT_LENGTH)
+				text = text.substring(0, TEXT_LENGTH) + "...";
+			this.recent.addRow(new Object[] {this.fmt.format(new Date(trace.time)), trace.sequence, text,
+				millis(trace.queue), millis(trace.wire), millis(trace.decode), millis(trace.render),
+				millis(trace.oneWay), millis(trace.roundTrip)});
+		}	// End of for
+	}	// End of method update
+
+	private static String millis(long nanos)
+	{
+		return String.format("%.2f", nanos / 1e6);
+	}	// End of method millis
+
+	/**
+	 * A table model whose cells cannot be edited.
+	 **/
+	private static class ReadOnlyModel extends DefaultTableModel
+	{
+		ReadOnlyModel(String[] columns)
+		{
+			super(columns, 0);
+		}	// End of constructor
+
+		public boolean isCellEditable(int row, int column)
+		{
+			return false;
+		}	// End of method isCellEditable
+	}	// End of class ReadOnlyModel
+
+	//*******************************************************
+	//* Event Handlers
+	//*******************************************************
+	/**
+	 * Refreshes the figures once a second.
+	 **/
+	private class RefreshListener implements ActionListener
+	{
+		public void actionPerformed(ActionEvent event)
+		{
+			update();
+		}	// End of method actionPerformed
+	}	// End of class RefreshListener
+
+	/**
+	 * Listens for when the "Reset" button is clicked.
+	 **/
+	private class ResetListener implements ActionListener
+	{
+		public void actionPerformed(ActionEvent event)
+		{
+			tracer.resetLatencies();
+			update();
+		}	// End of method actionPerformed
+	}	// End of class ResetListener
+}	// End of class DiagnosticsWindow
\ No newline at end of file
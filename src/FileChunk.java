@@ -0,0 +1,99 @@
+// FileChunk.java
+// A FILE_DATA frame whose body is read straight from a file.
+// Devon Bautista
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+
+/**
+ * A pending write holding a FILE_DATA frame header and a region of a
+ * file. The header is written from a buffer and the region with
+ * FileChannel.transferTo, so file bytes go from the page cache to the
+ * socket without being copied into the Java heap.
+ **/
+public class FileChunk extends PendingWrite
+{
+	// Constants
+	public static final int DATA_HEADER_SIZE = 16;	// long transferId + long offset
+
+	// Attributes
+	private final FileChannel file;
+	private final long position;
+	private final long count;
+	private long written = 0;
+
+	/**
+	 * Creates a chunk.
+	 * @param file The file being sent.
+	 * @param transferId The ID of the transfer.
+	 * @param position The offset of the chunk in the file.
+	 * @param count The number of bytes in the chunk.
+	 **/
+	public FileChunk(FileChannel file, long transferId, long position, long count)
+	{
+		super(header(transferId, position, count));
+		this.file = file;
+		this.position = position;
+		this.count = count;
+	}	// End of constructor
+
+	/**
+	 * Writes as much of the chunk as the channel accepts.
+	 * @param channel The socket channel.
+	 * @return True once the whole chunk has been written; false if a
+	 * non-blocking channel is full.
+	 * @throws IOException if the file or channel fails.
+	 **/
+	public boolean writeTo(WritableByteChannel channel) throws IOException
+	{
+		ByteBuffer header = this.getBuffer();
+		while (header.hasRemaining())
+			if (channel.write(header) == 0)
+				return false;
+
+		while (this.written < this.count)
+		{
+			long sent = this.file.transferTo(this.position + this.written, this.count - this.written, channel);
+			if (sent == 0)
+			{
+				if (this.position + this.written >= this.file.size())
+					throw new EOFException("File was truncated while being sent");
+				return false;
+			}	// End of if
+			this.written += sent;
+		}	// End of while
+		return true;
+	}	// End of method writeTo
+
+	/**
+	 * Returns the number of file bytes in the chunk.
+	 * @return The length of the file region.
+	 **/
+	public long getCount()
+	{
+		return this.count;
+	}	// End of method getCount
+
+	/**
+	 * File chunks are never compressed.
+	 **/
+	protected ByteBuffer compress(FrameCompressor compressor)
+	{
+		return this.getBuffer();
+	}	// End of method compress
+
+	/**
+	 * Encodes the frame header and the FILE_DATA header.
+	 **/
+	private static ByteBuffer header(long transferId, long position, long count)
+	{
+		ByteBuffer buf = ByteBuffer.allocate(FrameCodec.HEADER_SIZE + DATA_HEADER_SIZE);
+		buf.putInt((int) (1 + DATA_HEADER_SIZE + count));
+		buf.put(FrameCodec.TYPE_FILE_DATA);
+		buf.putLong(transferId);
+		buf.putLong(position);
+		buf.flip();
+		return buf;
+	}	// End of method header
+}	// End of class FileChunk
\ No newline at end of file
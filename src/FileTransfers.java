@@ -0,0 +1,401 @@
+// FileTransfers.java
+// Tracks the file transfers of one connection.
+// Devon Bautista
+
+import java.io.*;
+import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.*;
+
+/**
+ * Holds the outgoing and incoming file transfers of one connection.
+ * A transfer is three kinds of frame:
+ *
+ *   FILE_OFFER   long id, long size, UTF-8 file name    sender to receiver
+ *   FILE_ACCEPT  long id, long offset                   receiver to sender
+ *   FILE_DATA    long id, long offset, file bytes       sender to receiver
+ *
+ * A transfer's ID is derived from the sender's path, size and
+ * modification time of the file, so offering the same file again gives
+ * the same ID. The receiver writes into "name.key.part" in the download
+ * directory, the key being a hash of the sender's address, the ID and
+ * the size, and answers an offer with the length of that file, so
+ * offering the same file again after a disconnect resumes where it
+ * stopped, while a different file of the same name and size never
+ * resumes onto its bytes.
+ *
+ * Offers are declined unless simpleim.acceptFiles is true, and files
+ * larger than simpleim.maxFileBytes are always declined. The
+ * sender sends one CHUNK_SIZE chunk at a time and queues the next only
+ * once the last has been written, so chat frames queued meanwhile go
+ * out between chunks rather than behind the whole file.
+ **/
+public class FileTransfers implements Closeable
+{
+	// Constants
+	public static final String DIRECTORY_PROPERTY = "simpleim.downloadDir";
+	public static final String ACCEPT_PROPERTY = "simpleim.acceptFiles";
+	public static final String MAX_SIZE_PROPERTY = "simpleim.maxFileBytes";
+	public static final long DEFAULT_MAX_SIZE = 1024L * 1024 * 1024;
+	public static final int CHUNK_SIZE = 256 * 1024;
+	private static final String PART_SUFFIX = ".part";
+
+	// Attributes
+	private final SessionListener listener;
+	private final File directory;
+	private final String peer;
+	private final Map<Long, Outgoing> outgoing = new ConcurrentHashMap<Long, Outgoing>();
+	private final Map<Long, Incoming> incoming = new ConcurrentHashMap<Long, Incoming>();
+
+	/**
+	 * Creates the transfer table of a connection.
+	 * @param listener The object to report progress to.
+	 * @param directory Where received files are saved.
+	 * @param peer The address of the other side, which keys its
+	 * partial files.
+	 **/
+	public FileTransfers(SessionListener listener, File directory, String peer)
+	{
+		this.listener = listener;
+		this.directory = directory;
+		this.peer = peer;
+	}	// End of constructor
+
+	/**
+	 * Returns the directory set by the simpleim.downloadDir system
+	 * property, or .simpleim/downloads in the user's home directory.
+	 * @return The default download directory.
+	 **/
+	public static File getDefaultDirectory()
+	{
+		String dir = System.getProperty(DIRECTORY_PROPERTY);
+		if (dir != null)
+			return new File(dir);
+		return new File(new File(System.getProperty("user.home"), ".simpleim"), "downloads");
+	}	// End of method getDefaultDirectory
+
+	/**
+	 * Opens a file for sending and builds the offer for it.
+	 * @param file The file to send.
+	 * @return The FILE_OFFER payload.
+	 * @throws IOException if the file cannot be opened.
+	 **/
+	public byte[] offer(File file) throws IOException
+	{
+		Outgoing transfer = new Outgoing(file);
+		Outgoing previous = this.outgoing.put(transfer.id, transfer);
+		if (previous != null)
+			previous.close();		// Offered again; the peer resumes from its partial file
+
+		byte[] name = file.getName().getBytes(StandardCharsets.UTF_8);
+		ByteBuffer buf = ByteBuffer.allocate(16 + name.length);
+		buf.putLong(transfer.id);
+		buf.putLong(transfer.size);
+		buf.put(name);
+		return buf.array();
+	}	// End of method offer
+
+	/**
+	 * Starts sending a file the peer accepted.
+	 * @param payload The FILE_ACCEPT payload.
+	 * @param sink Queues each chunk on the connection.
+	 * @throws ProtocolException if the acceptance is invalid.
+	 **/
+	public void accepted(byte[] payload, Consumer<PendingWrite> sink) throws ProtocolException
+	{
+		ByteBuffer buf = ByteBuffer.wrap(payload);
+		if (buf.remaining() < 16)
+			throw new ProtocolException("Truncated FILE_ACCEPT");
+		Outgoing transfer = this.outgoing.get(buf.getLong());
+		long offset = buf.getLong();
+		if (transfer == null)
+			return;		// Cancelled or already finished
+		if (offset < 0 || offset > transfer.size)
+			throw new ProtocolException("Invalid resume offset " + offset);
+
+		transfer.position = offset;
+		if (offset > 0)
+			this.listener.printInformationMessage("Resuming " + transfer.name + " at "
+				+ percent(offset, transfer.size) + ".");
+		else
+			this.listener.printInformationMessage("Sending " + transfer.name + " (" + size(transfer.size) + ")...");
+		this.sendChunk(transfer, sink);
+	}	// End of method accepted
+
+	/**
+	 * Opens or resumes the partial file for an offer, if files are
+	 * accepted and this one is within the size limit.
+	 * @param payload The FILE_OFFER payload.
+	 * @return The FILE_ACCEPT payload, or null if the offer is declined.
+	 * @throws IOException if the offer is invalid or the file cannot be opened.
+	 **/
+	public byte[] offered(byte[] payload) throws IOException
+	{
+		ByteBuffer buf = ByteBuffer.wrap(payload);
+		if (buf.remaining() < 16)
+			throw new ProtocolException("Truncated FILE_OFFER");
+		long id = buf.getLong();
+		long size = buf.getLong();
+		String name = new File(new String(payload, 16, payload.length - 16, StandardCharsets.UTF_8)).getName();
+		if (size < 0 || name.isEmpty() || name.equals("..") || name.equals("."))
+			throw new ProtocolException("Invalid FILE_OFFER");
+		if (!Boolean.getBoolean(ACCEPT_PROPERTY))
+		{
+			this.listener.printInformationMessage("Declined " + name + " (" + size(size) + ") from " + this.peer
+				+ "; set " + ACCEPT_PROPERTY + "=true to receive files.");
+			return null;
+		}	// End of if
+		if (size > Long.getLong(MAX_SIZE_PROPERTY, DEFAULT_MAX_SIZE))
+		{
+			this.listener.printInformationMessage("Declined " + name + " (" + size(size) + ") from " + this.peer
+				+ "; it is larger than " + MAX_SIZE_PROPERTY + ".");
+			return null;
+		}	// End of if
+
+		Incoming transfer = new Incoming(id, name, size, this.directory, this.peer);
+		Incoming previous = this.incoming.put(id, transfer);
+		if (previous != null)
+			previous.close();		// Offered again before it finished
+		if (transfer.position > 0)
+			this.listener.printInformationMessage("Resuming " + name + " at " + percent(transfer.position, size) + ".");
+		else
+			this.listener.printInformationMessage("Receiving " + name + " (" + size(size) + ")...");
+		if (transfer.isComplete())
+			this.finish(transfer);
+
+		ByteBuffer accept = ByteBuffer.allocate(16);
+		accept.putLong(id);
+		accept.putLong(transfer.position);
+		return accept.array();
+	}	// End of method offered
+
+	/**
+	 * Finds the incoming transfer a FILE_DATA frame belongs to and
+	 * checks that the data continues where the file ends.
+	 * @param id The transfer ID from the frame.
+	 * @param offset The file offset from the frame.
+	 * @param length The number of file bytes in the frame.
+	 * @return The transfer.
+	 * @throws ProtocolException if the data does not fit the transfer.
+	 **/
+	public Incoming startChunk(long id, long offset, long length) throws ProtocolException
+	{
+		Incoming transfer = this.incoming.get(id);
+		if (transfer == null || offset != transfer.position || length < 0 || offset + length > transfer.size)
+			throw new ProtocolException("Unexpected FILE_DATA for transfer " + id);
+		return transfer;
+	}	// End of method startChunk
+
+	/**
+	 * Called once all the bytes of a chunk have been written; completes
+	 * the transfer if it was the last chunk.
+	 * @param transfer The transfer.
+	 * @throws IOException if the finished file cannot be moved into place.
+	 **/
+	public void endChunk(Incoming transfer) throws IOException
+	{
+		if (transfer.isComplete())
+			this.finish(transfer);
+	}	// End of method endChunk
+
+	/**
+	 * Closes every open file. Partial files stay on disk for resuming.
+	 **/
+	public void close()
+	{
+		for (Outgoing transfer : this.outgoing.values())
+			transfer.close();
+		this.outgoing.clear();
+		for (Incoming transfer : this.incoming.values())
+			transfer.close();
+		this.incoming.clear();
+	}	// End of method close
+
+	/**
+	 * Queues the next chunk of a file, or finishes the transfer. Each
+	 * chunk is queued from the completion of the one before it.
+	 **/
+	private void sendChunk(final Outgoing transfer, final Consumer<PendingWrite> sink)
+	{
+		if (transfer.position >= transfer.size)
+		{
+			this.outgoing.remove(transfer.id);
+			transfer.close();
+			this.listener.printInformationMessage("Sent " + transfer.name + ".");
+			return;
+		}	// End of if
+
+		long count = Math.min(CHUNK_SIZE, transfer.size - transfer.position);
+		FileChunk chunk = new FileChunk(transfer.channel, transfer.id, transfer.position, count);
+		transfer.position += count;
+		chunk.getCompletion().whenComplete(new BiConsumer<Void, Throwable>()
+		{
+			public void accept(Void result, Throwable failure)
+			{
+				if (failure == null)
+					FileTransfers.this.sendChunk(transfer, sink);
+				else if (FileTransfers.this.outgoing.remove(transfer.id) != null)
+				{
+					transfer.close();
+					FileTransfers.this.listener.printInformationMessage("Unable to send " + transfer.name
+						+ ". Send it again to resume.");
+				}	// End of else if
+			}	// End of method accept
+		});
+		sink.accept(chunk);
+	}	// End of method sendChunk
+
+	/**
+	 * Moves a received file from its partial name to a free final name.
+	 **/
+	private void finish(Incoming transfer) throws IOException
+	{
+		this.incoming.remove(transfer.id);
+		transfer.close();
+
+		String name = transfer.name;
+		int dot = name.lastIndexOf('.');
+		String base = (dot > 0) ? name.substring(0, dot) : name;
+		String extension = (dot > 0) ? name.substring(dot) : "";
+		File target = new File(this.directory, name);
+		for (int i = 1; target.exists(); i++)
+			target = new File(this.directory, base + " (" + i + ")" + extension);
+		Files.move(transfer.partFile.toPath(), target.toPath());
+		this.listener.printInformationMessage("Received " + name + ", saved to " + target.getPath() + ".");
+	}	// End of method finish
+
+	private static String size(long bytes)
+	{
+		if (bytes < 1024 * 1024)
+			return String.format("%.1f KB", bytes / 1024.0);
+		return String.format("%.1f MB", bytes / (1024.0 * 1024.0));
+	}	// End of method size
+
+	private static String percent(long part, long whole)
+	{
+		return (whole == 0) ? "100%" : (100 * part / whole) + "%";
+	}	// End of method percent
+
+	/**
+	 * Hashes text to 64 bits.
+	 **/
+	private static long hash(String text)
+	{
+		return UUID.nameUUIDFromBytes(text.getBytes(StandardCharsets.UTF_8)).getMostSignificantBits();
+	}	// End of method hash
+
+	/**
+	 * A file being sent.
+	 **/
+	private static class Outgoing
+	{
+		final long id;
+		final String name;
+		final long size;
+		final FileChannel channel;
+		long position = 0;
+
+		Outgoing(File file) throws IOException
+		{
+			this.name = file.getName();
+			this.channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+			this.size = this.channel.size();
+			this.id = hash(file.getCanonicalPath() + '\0' + this.size + '\0' + file.lastModified());
+		}	// End of constructor
+
+		void close()
+		{
+			try
+			{
+				this.channel.close();
+			}	// End of try
+			catch (IOException e)
+			{
+				// Nothing more to release
+			}	// End of catch
+		}	// End of method close
+	}	// End of class Outgoing
+
+	/**
+	 * A file being received into its partial file.
+	 **/
+	public static class Incoming
+	{
+		final long id;
+		final String name;
+		final long size;
+		final File partFile;
+		final FileChannel channel;
+		long position;
+
+		Incoming(long id, String name, long size, File directory, String peer) throws IOException
+		{
+			this.id = id;
+			this.name = name;
+			this.size = size;
+			if (!directory.isDirectory() && !directory.mkdirs())
+				throw new IOException("Unable to create " + directory);
+			String key = Long.toHexString(hash(peer + '\0' + id + '\0' + size));
+			this.partFile = new File(directory, name + "." + key + PART_SUFFIX);
+			this.channel = FileChannel.open(this.partFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+			this.position = this.channel.size();
+			if (this.position > size)
+			{
+				// Not a prefix of this file; start over
+				this.channel.truncate(0);
+				this.position = 0;
+			}	// End of if
+		}	// End of constructor
+
+		/**
+		 * Appends bytes already read from the socket.
+		 * @param buf The bytes to write; its position is advanced.
+		 * @return The number of bytes written.
+		 * @throws IOException if the file cannot be written.
+		 **/
+		public int write(ByteBuffer buf) throws IOException
+		{
+			int count = 0;
+			while (buf.hasRemaining())
+				count += this.channel.write(buf, this.position + count);
+			this.position += count;
+			return count;
+		}	// End of method write
+
+		/**
+		 * Streams bytes from the socket straight into the file.
+		 * @param source The socket channel.
+		 * @param max The most bytes to take.
+		 * @return The number of bytes transferred; 0 if none were available.
+		 * @throws IOException if the file or socket fails.
+		 **/
+		public long transferFrom(ReadableByteChannel source, long max) throws IOException
+		{
+			long count = this.channel.transferFrom(source, this.position, max);
+			this.position += count;
+			return count;
+		}	// End of method transferFrom
+
+		boolean isComplete()
+		{
+			return this.position == this.size;
+		}	// End of method isComplete
+
+		void close()
+		{
+			try
+			{
+				this.channel.close();
+			}	// End of try
+			catch (IOException e)
+			{
+				// Nothing more to release
+			}	// End of catch
+		}	// End of method close
+	}	// End of class Incoming
+}	// End of class FileTransfers
\ No newline at end of file
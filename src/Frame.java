@@ -0,0 +1,345 @@
+// Frame.java
+// A single unit of data on the SimpleIM wire protocol.
+// Devon Bautista
+
+import java.net.*;
+import java.nio.*;
+import java.nio.charset.*;
+
+/**
+ * Represents one decoded frame: a type byte and its payload.
+ *
+ * A frame either owns its payload as an array or is a view of bytes
+ * still in a read buffer. A view is filled in place by wrap(), and the
+ * reader reuses the one Frame and the one buffer for every frame it
+ * reads, so a view is only valid until the handler it was given to
+ * returns; copy() makes a frame that may be kept. Nothing is copied
+ * out of a view until it is asked for: getText() and its relatives
+ * read straight from the buffer, and only getPayload() copies.
+ **/
+public class Frame
+{
+	// Constants
+	private static final int MAX_SCRATCH = 64 * 1024;
+	private static final ThreadLocal<byte[][]> SCRATCH = new ThreadLocal<byte[][]>()
+	{
+		protected byte[][] initialValue()
+		{
+			return new byte[][] {new byte[256]};
+		}	// End of method initialValue
+	};
+
+	// Attributes
+	private byte type;
+	private byte[] payload;
+	private ByteBuffer view = null;
+	private int offset = 0;
+	private int length;
+	private long sequence;
+	private long sendTime;
+	private long receivedTime = 0;
+
+	/**
+	 * Creates an empty frame to be filled by wrap().
+	 **/
+	public Frame()
+	{
+		this((byte) 0, FrameCodec.emptyPayload());
+	}	// End of constructor
+
+	/**
+	 * Creates a frame.
+	 * @param type One of the FrameCodec frame types.
+	 * @param payload The payload bytes. Not copied.
+	 **/
+	public Frame(byte type, byte[] payload)
+	{
+		this(type, payload, 0, 0);
+	}	// End of constructor
+
+	/**
+	 * Creates a traced chat frame.
+	 * @param type One of the FrameCodec frame types.
+	 * @param payload The payload bytes, without the trace header. Not copied.
+	 * @param sequence The sender's sequence number, or 0 if untraced.
+	 * @param sendTime The sender's clock when it was sent, in epoch milliseconds.
+	 **/
+	public Frame(byte type, byte[] payload, long sequence, long sendTime)
+	{
+		this.type = type;
+		this.payload = payload;
+		this.length = payload.length;
+		this.sequence = sequence;
+		this.sendTime = sendTime;
+	}	// End of constructor
+
+	/**
+	 * Makes this frame a view of a payload in a buffer, forgetting what
+	 * it held before.
+	 * @param type One of the FrameCodec frame types.
+	 * @param buf The buffer holding the payload. Its position and limit
+	 * are left as they are.
+	 * @param offset The index of the payload in the buffer.
+	 * @param length The payload size.
+	 * @return This frame.
+	 **/
+	public Frame wrap(byte type, ByteBuffer buf, int offset, int length)
+	{
+		this.type = type;
+		this.payload = null;
+		this.view = buf;
+		this.offset = offset;
+		this.length = length;
+		this.sequence = 0;
+		this.sendTime = 0;
+		this.receivedTime = 0;
+		return this;
+	}	// End of method wrap
+
+	/**
+	 * Takes a trace header off the front of a view's payload.
+	 * @param sequence The sender's sequence number.
+	 * @param sendTime The sender's clock when it was sent, in epoch milliseconds.
+	 * @return This frame.
+	 **/
+	Frame skipTrace(long sequence, long sendTime)
+	{
+		this.offset += FrameCodec.TRACE_HEADER_SIZE;
+		this.length -= FrameCodec.TRACE_HEADER_SIZE;
+		this.sequence = sequence;
+		this.sendTime = sendTime;
+		return this;
+	}	// End of method skipTrace
+
+	/**
+	 * Returns whether the frame is a view of a buffer that will be reused.
+	 * @return True if the frame must be copied to be kept.
+	 **/
+	public boolean isView()
+	{
+		return this.view != null;
+	}	// End of method isView
+
+	/**
+	 * Returns a frame that may be kept after the handler returns.
+	 * @return This frame if it owns its payload, or else a copy.
+	 **/
+	public Frame copy()
+	{
+		if (this.view == null)
+			return this;
+		Frame copy = new Frame(this.type, this.getPayload(), this.sequence, this.sendTime);
+		copy.setReceivedTime(this.receivedTime);
+		return copy;
+	}	// End of method copy
+
+	/**
+	 * Returns the frame type.
+	 * @return One of the FrameCodec frame types.
+	 **/
+	public byte getType()
+	{
+		return this.type;
+	}	// End of method getType
+
+	/**
+	 * Returns the payload bytes. A view copies them out of its buffer.
+	 * @return The payload. Not copied if the frame owns it.
+	 **/
+	public byte[] getPayload()
+	{
+		if (this.payload == null)
+			this.payload = this.copy(0, this.length);
+		return this.payload;
+	}	// End of method getPayload
+
+	/**
+	 * Returns the payload size.
+	 * @return The number of bytes, without any trace header.
+	 **/
+	public int getLength()
+	{
+		return this.length;
+	}	// End of method getLength
+
+	/**
+	 * Reads a big-endian int from the payload without copying it.
+	 * @param index The index in the payload.
+	 * @return The int.
+	 **/
+	public int getInt(int index)
+	{
+		return (this.view != null) ? this.view.getInt(this.offset + index) : ByteBuffer.wrap(this.payload).getInt(index);
+	}	// End of method getInt
+
+	/**
+	 * Reads a big-endian long from the payload without copying it.
+	 * @param index The index in the payload.
+	 * @return The long.
+	 **/
+	public long getLong(int index)
+	{
+		return (this.view != null) ? this.view.getLong(this.offset + index) : ByteBuffer.wrap(this.payload).getLong(index);
+	}	// End of method getLong
+
+	/**
+	 * Returns whether the frame carried a trace header.
+	 * @return True if the sender expects an ACK.
+	 **/
+	public boolean isTraced()
+	{
+		return this.sequence != 0;
+	}	// End of method isTraced
+
+	/**
+	 * Returns the sender's sequence number of a traced frame.
+	 * @return The sequence number, or 0 if untraced.
+	 **/
+	public long getSequence()
+	{
+		return this.sequence;
+	}	// End of method getSequence
+
+	/**
+	 * Returns the sender's clock when a traced frame was sent.
+	 * @return Epoch milliseconds, or 0 if untraced.
+	 **/
+	public long getSendTime()
+	{
+		return this.sendTime;
+	}	// End of method getSendTime
+
+	/**
+	 * Records when the frame's bytes were read from the socket.
+	 * @param receivedTime The System.nanoTime() of the read.
+	 **/
+	public void setReceivedTime(long receivedTime)
+	{
+		this.receivedTime = receivedTime;
+	}	// End of method setReceivedTime
+
+	/**
+	 * Returns when the frame's bytes were read from the socket.
+	 * @return The System.nanoTime() of the read, or 0 if not recorded.
+	 **/
+	public long getReceivedTime()
+	{
+		return this.receivedTime;
+	}	// End of method getReceivedTime
+
+	/**
+	 * Decodes the payload as UTF-8 text.
+	 * @return The payload as a String.
+	 **/
+	public String getText()
+	{
+		return this.decode(0, this.length);
+	}	// End of method getText
+
+	/**
+	 * Returns the room name of a ROOM_MESSAGE frame.
+	 * @return The text before the first newline.
+	 **/
+	public String getRoom()
+	{
+		int split = this.indexOf('\n');
+		return this.decode(0, (split < 0) ? this.length : split);
+	}	// End of method getRoom
+
+	/**
+	 * Returns the message text of a ROOM_MESSAGE frame.
+	 * @return The text after the first newline.
+	 **/
+	public String getRoomText()
+	{
+		int split = this.indexOf('\n');
+		return (split < 0) ? "" : this.decode(split + 1, this.length - split - 1);
+	}	// End of method getRoomText
+
+	/**
+	 * Returns the stream ID of a STREAM_OPEN or STREAM_DATA frame.
+	 * @return The int at the start of the payload.
+	 * @throws ProtocolException if the payload is too short to hold one.
+	 **/
+	public int getStreamId() throws ProtocolException
+	{
+		if (this.length < FrameCodec.STREAM_HEADER_SIZE)
+			throw new ProtocolException("Truncated stream header");
+		return this.getInt(0);
+	}	// End of method getStreamId
+
+	/**
+	 * Returns the text of a STREAM_OPEN or STREAM_DATA frame.
+	 * @return The UTF-8 text after the stream ID.
+	 **/
+	public String getStreamText()
+	{
+		int start = Math.min(this.length, FrameCodec.STREAM_HEADER_SIZE);
+		return this.decode(start, this.length - start);
+	}	// End of method getStreamText
+
+	/**
+	 * Finds a byte in the payload. A newline or other ASCII byte never
+	 * occurs inside a multi-byte UTF-8 character, so the text can be
+	 * split there before it is decoded.
+	 **/
+	private int indexOf(char c)
+	{
+		for (int i = 0; i < this.length; i++)
+			if (((this.view != null) ? this.view.get(this.offset + i) : this.payload[i]) == c)
+				return i;
+		return -1;
+	}	// End of method indexOf
+
+	/**
+	 * Decodes part of the payload as UTF-8.
+	 **/
+	private String decode(int start, int count)
+	{
+		if (count == 0)
+			return "";
+		if (this.view == null)
+			return new String(this.payload, start, count, StandardCharsets.UTF_8);
+		if (this.view.hasArray())
+			return new String(this.view.array(), this.view.arrayOffset() + this.offset + start, count, StandardCharsets.UTF_8);
+		if (count > MAX_SCRATCH)
+			return new String(this.copy(start, count), StandardCharsets.UTF_8);
+
+		// Bytes in a direct buffer are copied to a scratch array kept by the thread, which
+		// String decodes faster than a CharsetDecoder can decode the buffer itself
+		byte[][] scratch = SCRATCH.get();
+		if (scratch[0].length < count)
+			scratch[0] = new byte[Integer.highestOneBit(count) << 1];
+		this.copyTo(scratch[0], start, count);
+		return new String(scratch[0], 0, count, StandardCharsets.UTF_8);
+	}	// End of method decode
+
+	/**
+	 * Copies part of a view's payload into a new array.
+	 **/
+	private byte[] copy(int start, int count)
+	{
+		byte[] bytes = new byte[count];
+		this.copyTo(bytes, start, count);
+		return bytes;
+	}	// End of method copy
+
+	/**
+	 * Copies part of a view's payload with one bulk get, leaving the
+	 * buffer's position and limit as they were.
+	 **/
+	private void copyTo(byte[] bytes, int start, int count)
+	{
+		int position = this.view.position();
+		int limit = this.view.limit();
+		try
+		{
+			this.view.limit(this.offset + start + count).position(this.offset + start);
+			this.view.get(bytes, 0, count);
+		}	// End of try
+		finally
+		{
+			this.view.limit(limit).position(position);
+		}	// End of finally
+	}	// End of method copyTo
+}	// End of class Frame
\ No newline at end of file
@@ -0,0 +1,499 @@
+// FrameCodec.java
+// Encodes and decodes SimpleIM wire protocol frames.
+// Devon Bautista
+
+import java.io.*;
+import java.net.*;
+import java.nio.*;
+import java.nio.charset.*;
+import java.util.*;
+
+/**
+ * Length-prefixed binary frame codec shared by IMServer and IMClient.
+ * Every frame is laid out as:
+ *
+ *   int32 length   number of bytes that follow (type + payload)
+ *   byte  type     one of the TYPE_ constants
+ *   byte[] payload UTF-8 text for text frames
+ *
+ * All integers are big-endian. The first frame each side sends is a
+ * HELLO carrying a magic number, the range of protocol versions it
+ * supports and a byte of optional features; both sides then use the
+ * highest version they share and the features they both offer. Peers
+ * that predate the features byte do not send it and ignore it.
+ *
+ * Version 2 adds chat rooms. JOIN and LEAVE carry a room name, LIST
+ * asks for (and its reply carries) one "name<TAB>members" line per
+ * room, and ROOM_MESSAGE carries the room name, a newline and the text.
+ *
+ * Version 3 adds heartbeats. A server sends an empty PING to a client
+ * it has not heard from for a while, and the client answers with an
+ * empty PONG, so a peer that vanishes is noticed without waiting for a
+ * write to fail.
+ *
+ * Version 4 adds file transfers. FILE_OFFER carries a transfer ID, the
+ * file size and its name, FILE_ACCEPT the transfer ID and the offset to
+ * start from, and FILE_DATA the transfer ID, the offset of its bytes in
+ * the file and then the bytes themselves, which are streamed straight
+ * between the socket and the file rather than decoded as a payload.
+ * See FileTransfers.
+ *
+ * Version 5 adds delivery tracing. MESSAGE and ROOM_MESSAGE payloads
+ * start with a sequence number and the sender's clock in epoch
+ * milliseconds, and the receiver answers each once it has been shown
+ * with an ACK carrying the sequence number, the microseconds it spent
+ * decoding the frame and the microseconds until it was on screen.
+ * See DeliveryTracer.
+ *
+ * Version 6 adds store-and-forward. A client sends IDENTIFY with its
+ * user name once the handshake is done, and the server answers with
+ * any messages it kept while that user was away, in STORED frames of
+ * one or more messages each: a long epoch milliseconds time, an int
+ * length and the UTF-8 text. See MessageStore.
+ *
+ * Version 7 adds clustering. The nodes of a cluster link to each other
+ * on a separate port, and clients never see these frames. NODE carries
+ * the sender's int node ID and is the first frame after HELLO; ROUTE
+ * carries a kind byte (room or user), a byte that is 1 when the sender
+ * now holds that room or user and 0 when it no longer does, and the
+ * name; RELAY carries a scope byte (everyone, a room or a user), a
+ * short length and the UTF-8 room or user name, and then the message
+ * text. See ClusterNode.
+ *
+ * Version 8 multiplexes conversations over one connection. Every room
+ * a client joins becomes a stream: the server answers JOIN with
+ * STREAM_OPEN, carrying the room's int stream ID and its name, and from
+ * then on messages in the room travel both ways as STREAM_DATA, the
+ * stream ID followed by the text, traced like MESSAGE. Each stream has
+ * its own flow control, counted in messages: either side may send
+ * STREAM_INITIAL_WINDOW messages on a stream, and the receiver returns
+ * credit with STREAM_WINDOW, the stream ID and the number of messages
+ * it has dealt with. LEAVE closes the stream. See StreamTable.
+ *
+ * Version 9 lets a client resume its session after the connection
+ * drops. A client's first frame is RESUME: the token of the session it
+ * had, or 0 for a new one, and the sequence number of the last traced
+ * frame it received. The server answers SESSION: a new token, the
+ * sequence number of the last traced frame it received on the old
+ * session, or 0, and a byte that is 1 if the old session was resumed.
+ * Each side keeps its recent traced chat frames in a ReplayBuffer and
+ * sends again those after the sequence number the other gave it.
+ *
+ * Version 10 adds ERROR, which a server sends with a line of text when
+ * it refuses a frame, such as one sent faster than its rate limit
+ * allows. See RateLimiter.
+ **/
+public class FrameCodec
+{
+	// Protocol versions
+	public static final byte PROTOCOL_VERSION = 10;
+	public static final byte MIN_PROTOCOL_VERSION = 1;
+	public static final byte ROOMS_PROTOCOL_VERSION = 2;
+	public static final byte HEARTBEAT_PROTOCOL_VERSION = 3;
+	public static final byte FILE_PROTOCOL_VERSION = 4;
+	public static final byte TRACE_PROTOCOL_VERSION = 5;
+	public static final byte STORE_PROTOCOL_VERSION = 6;
+	public static final byte CLUSTER_PROTOCOL_VERSION = 7;
+	public static final byte STREAM_PROTOCOL_VERSION = 8;
+	public static final byte RESUME_PROTOCOL_VERSION = 9;
+	public static final byte ERROR_PROTOCOL_VERSION = 10;
+
+	// Frame types
+	public static final byte TYPE_HELLO = 0x01;
+	public static final byte TYPE_MESSAGE = 0x02;
+	public static final byte TYPE_CLOSE = 0x03;
+	public static final byte TYPE_JOIN = 0x04;
+	public static final byte TYPE_LEAVE = 0x05;
+	public static final byte TYPE_LIST = 0x06;
+	public static final byte TYPE_ROOM_MESSAGE = 0x07;
+	public static final byte TYPE_PING = 0x08;
+	public static final byte TYPE_PONG = 0x09;
+	public static final byte TYPE_FILE_OFFER = 0x0A;
+	public static final byte TYPE_FILE_ACCEPT = 0x0B;
+	public static final byte TYPE_FILE_DATA = 0x0C;
+	public static final byte TYPE_ACK = 0x0D;
+	public static final byte TYPE_IDENTIFY = 0x0E;
+	public static final byte TYPE_STORED = 0x0F;
+	public static final byte TYPE_NODE = 0x10;
+	public static final byte TYPE_ROUTE = 0x11;
+	public static final byte TYPE_RELAY = 0x12;
+	public static final byte TYPE_STREAM_OPEN = 0x13;
+	public static final byte TYPE_STREAM_DATA = 0x14;
+	public static final byte TYPE_STREAM_WINDOW = 0x15;
+	public static final byte TYPE_RESUME = 0x16;
+	public static final byte TYPE_SESSION = 0x17;
+	public static final byte TYPE_ERROR = 0x18;
+
+	// Constants
+	public static final int HEADER_SIZE = 5;
+	public static final int MAX_FRAME_SIZE = 16 * 1024 * 1024;
+	public static final int MAX_ROOM_NAME_LENGTH = 64;
+	public static final int MAX_USER_NAME_LENGTH = 64;
+	public static final int TRACE_HEADER_SIZE = 16;
+	public static final int ACK_SIZE = 16;
+	public static final int STREAM_HEADER_SIZE = 4;
+	public static final int STREAM_WINDOW_SIZE = 8;
+	public static final int STREAM_INITIAL_WINDOW = 64;
+	public static final int RESUME_SIZE = 16;
+	public static final int SESSION_SIZE = 17;
+	private static final int HELLO_MAGIC = 0x53494D00;	// "SIM\0"
+	private static final byte[] EMPTY = new byte[0];
+
+	/**
+	 * Encodes a frame into a new buffer.
+	 * @param type The frame type.
+	 * @param payload The payload bytes.
+	 * @return A buffer ready to be written to a channel.
+	 **/
+	public static ByteBuffer encode(byte type, byte[] payload)
+	{
+		ByteBuffer buf = ByteBuffer.allocate(HEADER_SIZE + payload.length);
+		buf.putInt(1 + payload.length);
+		buf.put(type);
+		buf.put(payload);
+		buf.flip();
+		return buf;
+	}	// End of method encode
+
+	/**
+	 * Encodes a text frame into a new buffer.
+	 * @param type The frame type.
+	 * @param text The text to send as UTF-8.
+	 * @return A buffer ready to be written to a channel.
+	 **/
+	public static ByteBuffer encode(byte type, String text)
+	{
+		return encode(type, text.getBytes(StandardCharsets.UTF_8));
+	}	// End of method encode
+
+	/**
+	 * Decodes the next complete frame from a buffer in read mode. The
+	 * buffer position is only advanced past complete frames.
+	 * @param buf The buffer holding received bytes.
+	 * @return The decoded frame, or null if more bytes are needed.
+	 * @throws ProtocolException if the length prefix is invalid.
+	 **/
+	public static Frame decode(ByteBuffer buf) throws ProtocolException
+	{
+		int size = pendingFrameSize(buf);
+		if (size < 0 || buf.remaining() < size)
+			return null;
+
+		buf.getInt();
+		byte type = buf.get();
+		byte[] payload = new byte[size - HEADER_SIZE];
+		buf.get(payload);
+		return new Frame(type, payload);
+	}	// End of method decode
+
+	/**
+	 * Decodes the next complete frame from a buffer in read mode without
+	 * copying it: the frame is made a view of its payload in the buffer.
+	 * The buffer position is only advanced past complete frames.
+	 * @param buf The buffer holding received bytes.
+	 * @param frame The frame to fill, which is reused for each frame read.
+	 * @return The frame, or null if more bytes are needed.
+	 * @throws ProtocolException if the length prefix is invalid.
+	 **/
+	public static Frame decode(ByteBuffer buf, Frame frame) throws ProtocolException
+	{
+		int size = pendingFrameSize(buf);
+		if (size < 0 || buf.remaining() < size)
+			return null;
+
+		int start = buf.position();
+		buf.position(start + size);
+		return frame.wrap(buf.get(start + 4), buf, start + HEADER_SIZE, size - HEADER_SIZE);
+	}	// End of method decode
+
+	/**
+	 * Returns the total size of the frame at the buffer's position.
+	 * @param buf The buffer holding received bytes.
+	 * @return The frame size including the header, or -1 if the
+	 * length prefix has not been received yet.
+	 * @throws ProtocolException if the length prefix is invalid.
+	 **/
+	public static int pendingFrameSize(ByteBuffer buf) throws ProtocolException
+	{
+		if (buf.remaining() < 4)
+			return -1;
+		int length = buf.getInt(buf.position());
+		if (length < 1 || length > MAX_FRAME_SIZE)
+			throw new ProtocolException("Invalid frame length " + length);
+		return 4 + length;
+	}	// End of method pendingFrameSize
+
+	/**
+	 * Writes a frame to a stream. Does not flush.
+	 * @param out The stream to write to.
+	 * @param type The frame type.
+	 * @param payload The payload bytes.
+	 * @throws IOException if the stream cannot be written.
+	 **/
+	public static void write(DataOutputStream out, byte type, byte[] payload) throws IOException
+	{
+		out.writeInt(1 + payload.length);
+		out.writeByte(type);
+		out.write(payload);
+	}	// End of method write
+
+	/**
+	 * Reads the next frame from a stream, blocking until it is complete.
+	 * @param in The stream to read from.
+	 * @return The frame read.
+	 * @throws EOFException if the stream ends.
+	 * @throws IOException if the stream cannot be read or the frame is invalid.
+	 **/
+	public static Frame read(DataInputStream in) throws IOException
+	{
+		int length = readLength(in);
+		byte type = in.readByte();
+		return new Frame(type, readPayload(in, length - 1));
+	}	// End of method read
+
+	/**
+	 * Reads the length prefix of the next frame from a stream.
+	 * @param in The stream to read from.
+	 * @return The number of bytes that follow, type included.
+	 * @throws EOFException if the stream ends.
+	 * @throws IOException if the stream cannot be read or the length is invalid.
+	 **/
+	public static int readLength(DataInputStream in) throws IOException
+	{
+		int length = in.readInt();
+		if (length < 1 || length > MAX_FRAME_SIZE)
+			throw new ProtocolException("Invalid frame length " + length);
+		return length;
+	}	// End of method readLength
+
+	/**
+	 * Reads a frame payload from a stream.
+	 * @param in The stream to read from.
+	 * @param size The payload size, from the length prefix.
+	 * @return The payload bytes.
+	 * @throws EOFException if the stream ends.
+	 * @throws IOException if the stream cannot be read.
+	 **/
+	public static byte[] readPayload(DataInputStream in, int size) throws IOException
+	{
+		byte[] payload = new byte[size];
+		in.readFully(payload);
+		return payload;
+	}	// End of method readPayload
+
+	/**
+	 * Returns the payload of the HELLO frame this side sends.
+	 * @return The HELLO payload.
+	 **/
+	public static byte[] helloPayload()
+	{
+		ByteBuffer buf = ByteBuffer.allocate(7);
+		buf.putInt(HELLO_MAGIC);
+		buf.put(MIN_PROTOCOL_VERSION);
+		buf.put(PROTOCOL_VERSION);
+		buf.put(FrameCompressor.localFeatures());
+		return buf.array();
+	}	// End of method helloPayload
+
+	/**
+	 * Picks the protocol version to use from the peer's HELLO frame.
+	 * @param hello The first frame received from the peer.
+	 * @return The highest version both sides support.
+	 * @throws ProtocolException if the frame is not a valid HELLO or
+	 * the peers share no version.
+	 **/
+	public static byte negotiate(Frame hello) throws ProtocolException
+	{
+		ByteBuffer buf = ByteBuffer.wrap(hello.getPayload());
+		if (hello.getType() != TYPE_HELLO || buf.remaining() < 6 || buf.getInt() != HELLO_MAGIC)
+			throw new ProtocolException("Peer is not speaking the SimpleIM protocol");
+
+		byte peerMin = buf.get();
+		byte peerMax = buf.get();
+		byte version = (byte) Math.min(PROTOCOL_VERSION, peerMax);
+		if (version < Math.max(MIN_PROTOCOL_VERSION, peerMin))
+			throw new ProtocolException("No common protocol version");
+		return version;
+	}	// End of method negotiate
+
+	/**
+	 * Returns the optional features offered in a peer's HELLO frame.
+	 * @param hello The first frame received from the peer.
+	 * @return FrameCompressor FEATURE_ bits, or 0 if none were sent.
+	 * @throws ProtocolException if the frame is not a valid HELLO.
+	 **/
+	public static byte features(Frame hello) throws ProtocolException
+	{
+		negotiate(hello);
+		byte[] payload = hello.getPayload();
+		return (payload.length > 6) ? payload[6] : 0;
+	}	// End of method features
+
+	/**
+	 * Builds the text of a ROOM_MESSAGE frame.
+	 * @param room The room name.
+	 * @param text The message text.
+	 * @return The payload text.
+	 **/
+	public static String roomMessage(String room, String text)
+	{
+		return room + "\n" + text;
+	}	// End of method roomMessage
+
+	/**
+	 * Returns whether frames of a type carry a trace header from
+	 * TRACE_PROTOCOL_VERSION on.
+	 * @param type The frame type.
+	 * @return True for MESSAGE, ROOM_MESSAGE and STREAM_DATA.
+	 **/
+	public static boolean isTraced(byte type)
+	{
+		return type == TYPE_MESSAGE || type == TYPE_ROOM_MESSAGE || type == TYPE_STREAM_DATA;
+	}	// End of method isTraced
+
+	/**
+	 * Puts a trace header in front of a chat payload.
+	 * @param sequence The message's sequence number.
+	 * @param payload The chat payload.
+	 * @return The traced payload.
+	 **/
+	public static byte[] tracedPayload(long sequence, byte[] payload)
+	{
+		ByteBuffer buf = ByteBuffer.allocate(TRACE_HEADER_SIZE + payload.length);
+		buf.putLong(sequence);
+		buf.putLong(System.currentTimeMillis());
+		buf.put(payload);
+		return buf.array();
+	}	// End of method tracedPayload
+
+	/**
+	 * Takes the trace header off a received chat frame. A view is
+	 * changed in place rather than copied.
+	 * @param frame A frame received at TRACE_PROTOCOL_VERSION or later.
+	 * @return The frame with its plain payload and trace, or the frame
+	 * itself if its type is not traced.
+	 * @throws ProtocolException if the header is truncated.
+	 **/
+	public static Frame readTrace(Frame frame) throws ProtocolException
+	{
+		if (!isTraced(frame.getType()))
+			return frame;
+		if (frame.getLength() < TRACE_HEADER_SIZE)
+			throw new ProtocolException("Truncated trace header");
+		if (frame.isView())
+			return frame.skipTrace(frame.getLong(0), frame.getLong(8));
+		byte[] payload = frame.getPayload();
+		ByteBuffer buf = ByteBuffer.wrap(payload);
+		return new Frame(frame.getType(), Arrays.copyOfRange(payload, TRACE_HEADER_SIZE, payload.length),
+			buf.getLong(), buf.getLong());
+	}	// End of method readTrace
+
+	/**
+	 * Builds the payload of an ACK frame.
+	 * @param sequence The acknowledged message's sequence number.
+	 * @param decodeNanos Time from reading the frame to handing it over.
+	 * @param renderNanos Time from handing it over to showing it.
+	 * @return The ACK payload.
+	 **/
+	public static byte[] ackPayload(long sequence, long decodeNanos, long renderNanos)
+	{
+		ByteBuffer buf = ByteBuffer.allocate(ACK_SIZE);
+		buf.putLong(sequence);
+		buf.putInt((int) Math.min(Integer.MAX_VALUE, Math.max(0, decodeNanos / 1000)));
+		buf.putInt((int) Math.min(Integer.MAX_VALUE, Math.max(0, renderNanos / 1000)));
+		return buf.array();
+	}	// End of method ackPayload
+
+	/**
+	 * Builds the payload of a RESUME frame.
+	 * @param token The session to resume, or 0 for a new one.
+	 * @param lastSequence The sequence number of the last traced frame received.
+	 * @return The payload.
+	 **/
+	public static byte[] resumePayload(long token, long lastSequence)
+	{
+		ByteBuffer buf = ByteBuffer.allocate(RESUME_SIZE);
+		buf.putLong(token);
+		buf.putLong(lastSequence);
+		return buf.array();
+	}	// End of method resumePayload
+
+	/**
+	 * Builds the payload of a SESSION frame.
+	 * @param token The token with which to resume this session.
+	 * @param lastSequence The sequence number of the last traced frame received.
+	 * @param resumed Whether the session the client asked for was resumed.
+	 * @return The payload.
+	 **/
+	public static byte[] sessionPayload(long token, long lastSequence, boolean resumed)
+	{
+		ByteBuffer buf = ByteBuffer.allocate(SESSION_SIZE);
+		buf.putLong(token);
+		buf.putLong(lastSequence);
+		buf.put((byte) (resumed ? 1 : 0));
+		return buf.array();
+	}	// End of method sessionPayload
+
+	/**
+	 * Builds the payload of a STREAM_OPEN or STREAM_DATA frame.
+	 * @param streamId The stream ID.
+	 * @param text The room name or message text.
+	 * @return The payload.
+	 **/
+	public static byte[] streamPayload(int streamId, String text)
+	{
+		byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+		ByteBuffer buf = ByteBuffer.allocate(STREAM_HEADER_SIZE + bytes.length);
+		buf.putInt(streamId);
+		buf.put(bytes);
+		return buf.array();
+	}	// End of method streamPayload
+
+	/**
+	 * Builds the payload of a STREAM_WINDOW frame.
+	 * @param streamId The stream ID.
+	 * @param credit The number of further messages the peer may send.
+	 * @return The payload.
+	 **/
+	public static byte[] windowPayload(int streamId, int credit)
+	{
+		ByteBuffer buf = ByteBuffer.allocate(STREAM_WINDOW_SIZE);
+		buf.putInt(streamId);
+		buf.putInt(credit);
+		return buf.array();
+	}	// End of method windowPayload
+
+	/**
+	 * Checks that a room name can be carried in JOIN, LEAVE and
+	 * ROOM_MESSAGE frames.
+	 * @param room The room name.
+	 * @return True if the name is 1 to MAX_ROOM_NAME_LENGTH characters
+	 * with no line breaks or tabs.
+	 **/
+	public static boolean isValidRoomName(String room)
+	{
+		return room.length() > 0 && room.length() <= MAX_ROOM_NAME_LENGTH
+			&& room.indexOf('\n') < 0 && room.indexOf('\r') < 0 && room.indexOf('\t') < 0;
+	}	// End of method isValidRoomName
+
+	/**
+	 * Checks that a user name can be carried in an IDENTIFY frame.
+	 * @param name The user name.
+	 * @return True if the name is 1 to MAX_USER_NAME_LENGTH characters
+	 * with no line breaks or tabs.
+	 **/
+	public static boolean isValidUserName(String name)
+	{
+		return name.length() > 0 && name.length() <= MAX_USER_NAME_LENGTH
+			&& name.indexOf('\n') < 0 && name.indexOf('\r') < 0 && name.indexOf('\t') < 0;
+	}	// End of method isValidUserName
+
+	/**
+	 * Returns an empty payload for frames that carry no data.
+	 * @return A zero-length array.
+	 **/
+	public static byte[] emptyPayload()
+	{
+		return EMPTY;
+	}	// End of method emptyPayload
+}	// End of class FrameCodec
\ No newline at end of file
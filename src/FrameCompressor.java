@@ -0,0 +1,287 @@
+// FrameCompressor.java
+// Compresses large frames for one connection.
+// Devon Bautista
+
+import java.net.*;
+import java.nio.*;
+import java.nio.charset.*;
+import java.util.concurrent.*;
+import java.util.zip.*;
+
+/**
+ * Deflates frames whose payload is above a threshold and inflates
+ * compressed frames, reusing one Deflater and one Inflater for the
+ * life of the connection. Each frame is compressed on its own, so
+ * frames can be dropped or reordered without corrupting the stream;
+ * short chat messages still compress well because both sides can
+ * prime the compressor with a preset dictionary of common chat text.
+ *
+ * A compressed frame has the COMPRESSED bit set in its type and a
+ * payload of:
+ *
+ *   int32 length   size of the original payload
+ *   byte[] data    the payload, raw deflate
+ *
+ * A connection's compressor is only used by one thread at a time: the
+ * reactor thread or the client's reader and writer threads.
+ **/
+public class FrameCompressor
+{
+	// Constants
+	public static final String COMPRESSION_PROPERTY = "simpleim.compression";
+	public static final String THRESHOLD_PROPERTY = "simpleim.compressionThreshold";
+	public static final byte COMPRESSED = (byte) 0x80;
+	public static final byte FEATURE_DEFLATE = 0x01;
+	public static final byte FEATURE_DICTIONARY = 0x02;
+	private static final int DEFAULT_THRESHOLD = 256;
+
+	// Preset dictionary; zlib favours matches near the end, so the most common text comes last
+	private static final byte[] DICTIONARY = ("http://https://www..com/.org/.net/ "
+		+ "because thought should really something anything everything nothing tomorrow today tonight "
+		+ "meeting message window server client connect problem working people there their where which "
+		+ "would could about after again before being other right still think going thanks please sorry "
+		+ "okay yeah what when that this with have from your just like know will were they them then "
+		+ "than some time good here also only well very want need make does did don't can't i'm it's "
+		+ "you're that's the and for you not are but was all any can had her him his how its our out "
+		+ "who why yes lol ok hi is it in on at to of a I ").getBytes(StandardCharsets.UTF_8);
+
+	// Attributes
+	private final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+	private final Inflater inflater = new Inflater(true);
+	private final boolean dictionary;
+	private final int threshold;
+	private long framesCompressed = 0;
+	private long bytesBeforeCompression = 0;
+	private long bytesAfterCompression = 0;
+	private long compressNanos = 0;
+	private long framesInflated = 0;
+	private long bytesReceived = 0;
+	private long bytesInflated = 0;
+	private long inflateNanos = 0;
+
+	/**
+	 * Creates a compressor.
+	 * @param dictionary True to prime both directions with the preset dictionary.
+	 * @param threshold The smallest payload, in bytes, worth compressing.
+	 **/
+	public FrameCompressor(boolean dictionary, int threshold)
+	{
+		this.dictionary = dictionary;
+		this.threshold = threshold;
+	}	// End of constructor
+
+	/**
+	 * Returns whether this connection primes deflate with the preset
+	 * dictionary. Frames compressed with it can only be inflated by a
+	 * peer that negotiated it too.
+	 * @return True if the dictionary is in use.
+	 **/
+	public boolean usesDictionary()
+	{
+		return this.dictionary;
+	}	// End of method usesDictionary
+
+	/**
+	 * Returns the feature bits this side offers in its HELLO frame.
+	 * @return FEATURE_ bits, or 0 if compression is switched off by the
+	 * simpleim.compression system property.
+	 **/
+	public static byte localFeatures()
+	{
+		if (!Boolean.parseBoolean(System.getProperty(COMPRESSION_PROPERTY, "true")))
+			return 0;
+		return FEATURE_DEFLATE | FEATURE_DICTIONARY;
+	}	// End of method localFeatures
+
+	/**
+	 * Creates a compressor for a connection if both sides offered
+	 * compression in their HELLO frames.
+	 * @param peerHello The HELLO frame received from the peer.
+	 * @return A compressor, or null if frames are sent uncompressed.
+	 * @throws ProtocolException if the frame is not a valid HELLO.
+	 **/
+	public static FrameCompressor negotiate(Frame peerHello) throws ProtocolException
+	{
+		int shared = localFeatures() & FrameCodec.features(peerHello);
+		if ((shared & FEATURE_DEFLATE) == 0)
+			return null;
+		return new FrameCompressor((shared & FEATURE_DICTIONARY) != 0,
+			Integer.getInteger(THRESHOLD_PROPERTY, DEFAULT_THRESHOLD));
+	}	// End of method negotiate
+
+	/**
+	 * Compresses an encoded frame if its payload is above the threshold
+	 * and deflating makes it smaller.
+	 * @param frame An encoded frame in read mode. Not modified.
+	 * @return A new buffer holding the compressed frame, or frame itself.
+	 **/
+	public ByteBuffer compress(ByteBuffer frame)
+	{
+		int start = frame.position();
+		int rawLength = frame.remaining() - FrameCodec.HEADER_SIZE;
+		byte type = frame.get(start + 4);
+		if (rawLength < this.threshold || type == FrameCodec.TYPE_HELLO || (type & COMPRESSED) != 0)
+			return frame;
+
+		long began = System.nanoTime();
+		ByteBuffer payload = frame.duplicate();
+		payload.position(start + FrameCodec.HEADER_SIZE);
+
+		// Only worth sending if the result is smaller than the original frame
+		ByteBuffer out = ByteBuffer.allocate(FrameCodec.HEADER_SIZE + rawLength);
+		out.position(FrameCodec.HEADER_SIZE + 4);
+		this.deflater.reset();
+		if (this.dictionary)
+			this.deflater.setDictionary(DICTIONARY);
+		this.deflater.setInput(payload);
+		this.deflater.finish();
+		while (!this.deflater.finished() && out.hasRemaining())
+			this.deflater.deflate(out);
+		this.compressNanos += System.nanoTime() - began;
+		if (!this.deflater.finished())
+			return frame;
+
+		out.putInt(0, out.position() - 4);
+		out.put(4, (byte) (type | COMPRESSED));
+		out.putInt(FrameCodec.HEADER_SIZE, rawLength);
+		out.flip();
+
+		this.framesCompressed++;
+		this.bytesBeforeCompression += rawLength;
+		this.bytesAfterCompression += out.remaining() - FrameCodec.HEADER_SIZE;
+		return out;
+	}	// End of method compress
+
+	/**
+	 * Restores a compressed frame.
+	 * @param frame A received frame.
+	 * @return The original frame, or frame itself if it was not compressed.
+	 * @throws ProtocolException if the compressed data is invalid.
+	 **/
+	public Frame decompress(Frame frame) throws ProtocolException
+	{
+		if ((frame.getType() & COMPRESSED) == 0)
+			return frame;
+
+		long began = System.nanoTime();
+		ByteBuffer payload = ByteBuffer.wrap(frame.getPayload());
+		if (payload.remaining() < 4)
+			throw new ProtocolException("Truncated compressed frame");
+		int rawLength = payload.getInt();
+		if (rawLength < 0 || rawLength > FrameCodec.MAX_FRAME_SIZE)
+			throw new ProtocolException("Invalid compressed length " + rawLength);
+
+		byte[] raw = new byte[rawLength];
+		this.inflater.reset();
+		if (this.dictionary)
+			this.inflater.setDictionary(DICTIONARY);
+		this.inflater.setInput(payload);
+		try
+		{
+			int count = 0;
+			while (count < rawLength)
+			{
+				int inflated = this.inflater.inflate(raw, count, rawLength - count);
+				if (inflated == 0 && (this.inflater.finished() || this.inflater.needsInput()))
+					break;
+				count += inflated;
+			}	// End of while
+			if (count != rawLength)
+				throw new ProtocolException("Compressed frame is shorter than its length");
+		}	// End of try
+		catch (DataFormatException e)
+		{
+			throw new ProtocolException("Invalid compressed frame: " + e.getMessage());
+		}	// End of catch
+
+		this.inflateNanos += System.nanoTime() - began;
+		this.framesInflated++;
+		this.bytesReceived += frame.getPayload().length;
+		this.bytesInflated += rawLength;
+		return new Frame((byte) (frame.getType() & ~COMPRESSED), raw);
+	}	// End of method decompress
+
+	/**
+	 * Returns the number of frames sent compressed.
+	 * @return The frame count.
+	 **/
+	public long getFramesCompressed()
+	{
+		return this.framesCompressed;
+	}	// End of method getFramesCompressed
+
+	/**
+	 * Returns the payload bytes of sent frames before compression.
+	 * @return The byte count.
+	 **/
+	public long getBytesBeforeCompression()
+	{
+		return this.bytesBeforeCompression;
+	}	// End of method getBytesBeforeCompression
+
+	/**
+	 * Returns the payload bytes of sent frames after compression.
+	 * @return The byte count.
+	 **/
+	public long getBytesAfterCompression()
+	{
+		return this.bytesAfterCompression;
+	}	// End of method getBytesAfterCompression
+
+	/**
+	 * Returns the CPU time spent compressing.
+	 * @return Nanoseconds.
+	 **/
+	public long getCompressNanos()
+	{
+		return this.compressNanos;
+	}	// End of method getCompressNanos
+
+	/**
+	 * Returns the number of compressed frames received.
+	 * @return The frame count.
+	 **/
+	public long getFramesInflated()
+	{
+		return this.framesInflated;
+	}	// End of method getFramesInflated
+
+	/**
+	 * Returns the payload bytes of compressed frames as received.
+	 * @return The byte count.
+	 **/
+	public long getBytesReceived()
+	{
+		return this.bytesReceived;
+	}	// End of method getBytesReceived
+
+	/**
+	 * Returns the payload bytes of compressed frames once inflated.
+	 * @return The byte count.
+	 **/
+	public long getBytesInflated()
+	{
+		return this.bytesInflated;
+	}	// End of method getBytesInflated
+
+	/**
+	 * Returns the CPU time spent inflating.
+	 * @return Nanoseconds.
+	 **/
+	public long getInflateNanos()
+	{
+		return this.inflateNanos;
+	}	// End of method getInflateNanos
+
+	/**
+	 * Describes the bandwidth saved on received frames and the time
+	 * spent inflating them.
+	 * @return A line for the chat window.
+	 **/
+	public String describeReceived()
+	{
+		return String.format("Compression saved %.1f KB of %.1f KB received in %d frames (%.2f ms inflating).",
+			(this.bytesInflated - this.bytesReceived) / 1024.0, this.bytesInflated / 1024.0,
+			this.framesInflated, TimeUnit.NANOSECONDS.toMicros(this.inflateNanos) / 1000.0);
+	}	// End of method describeReceived
+}	// End of class FrameCompressor
\ No newline at end of file
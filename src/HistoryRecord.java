@@ -0,0 +1,50 @@
+// HistoryRecord.java
+// A chat message read back from ChatHistory.
+// Devon Bautista
+
+/**
+ * Represents one logged chat message.
+ **/
+public class HistoryRecord
+{
+	// Attributes
+	private final long sequence;
+	private final int kind;
+	private final long time;
+	private final String text;
+
+	/**
+	 * Creates a record.
+	 * @param sequence The message's sequence number in the log.
+	 * @param kind MessageRenderer.INCOMING or MessageRenderer.OUTGOING.
+	 * @param time When the message was logged, in epoch milliseconds.
+	 * @param text The message text.
+	 **/
+	public HistoryRecord(long sequence, int kind, long time, String text)
+	{
+		this.sequence = sequence;
+		this.kind = kind;
+		this.time = time;
+		this.text = text;
+	}	// End of constructor
+
+	public long getSequence()
+	{
+		return this.sequence;
+	}	// End of method getSequence
+
+	public int getKind()
+	{
+		return this.kind;
+	}	// End of method getKind
+
+	public long getTime()
+	{
+		return this.time;
+	}	// End of method getTime
+
+	public String getText()
+	{
+		return this.text;
+	}	// End of method getText
+}	// End of class HistoryRecord
\ No newline at end of file
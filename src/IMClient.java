@@ -4,124 +4,283 @@
 
 import java.io.*;
 import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.*;
+import java.text.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.*;
 
 /**
- * Represents an IM client object.
+ * Represents an IM client object. From STREAM_PROTOCOL_VERSION on,
+ * every joined room is its own conversation on the one connection:
+ * any number may be open at once, each with its own flow control, and
+ * messages are sent to one with sendMessage(conversation, msg). Against
+ * older servers the client talks in one room at a time.
+ *
+ * From RESUME_PROTOCOL_VERSION on, a connection that drops is opened
+ * again after a backoff with full jitter: a random wait of up to
+ * RECONNECT_BASE_MILLIS, doubling with each failed attempt up to
+ * RECONNECT_MAX_MILLIS, so clients cut off together do not all return
+ * at once. The server resumes the session, and each side sends again
+ * the chat frames the other had not received, from a ReplayBuffer.
  **/
 public class IMClient implements IMConnectable, Runnable
 {
 	// Attributes
-	private ObjectOutputStream output;
-	private ObjectInputStream input;
+	private DataOutputStream output;
+	private DataInputStream input;
+	private volatile OutboundQueue outbound;		// Published last on each (re)connect
+	private volatile byte protocolVersion = 0;
+	private FrameCompressor compressor = null;
+	private volatile FileTransfers fileTransfers = null;
+	private volatile DeliveryTracer.Peer deliveries = null;
+	private volatile StreamTable streams = null;
+	private ReadableByteChannel inputChannel;
+	private final ByteBuffer readBuffer = ByteBuffer.allocate(BufferPool.DEFAULT_BUFFER_SIZE);
+	private final Frame frame = new Frame();
+	private volatile String currentRoom = null;
+	private final ReplayBuffer replay = new ReplayBuffer();
+	private volatile long resumeToken = 0;
+	private volatile long lastReceivedSequence = 0;
+	private Set<String> lastConversations = Collections.<String>emptySet();
+	private boolean finished = false;
+	private boolean everConnected = false;
 	private volatile Socket connection;
-	private IMWindow win;
+	private volatile Connector connector = null;
+	private SessionListener listener;
 	private String IPAddress;
 	private int port;
+	private SessionExecutor executor;
 	private Thread thread = null;
+	private volatile boolean stopped = false;
 
-	public IMClient(String IPAddress, int port, IMWindow win)
+	// Constants
+	public static final String USER_NAME_PROPERTY = "simpleim.userName";
+	public static final String RECONNECT_ATTEMPTS_PROPERTY = "simpleim.reconnectAttempts";
+	private static final int RECONNECT_ATTEMPTS = Integer.getInteger(RECONNECT_ATTEMPTS_PROPERTY, 8);
+	private static final long RECONNECT_BASE_MILLIS = 250;
+	private static final long RECONNECT_MAX_MILLIS = 15000;
+	private static final long IDLE_TIMEOUT_MILLIS = Long.getLong(IMReactor.IDLE_TIMEOUT_PROPERTY,
+		IMReactor.DEFAULT_IDLE_TIMEOUT_MILLIS);
+
+	/**
+	 * Sets up client and starts connecting to the server on the
+	 * default SessionExecutor.
+	 * @param IPAddress The address of the server.
+	 * @param port The port the server is hosted on.
+	 * @param listener The object to report messages and status to.
+	 **/
+	public IMClient(String IPAddress, int port, SessionListener listener)
 	{
-		this.win = win;					// Store IMWindow object
+		this(IPAddress, port, listener, SessionExecutor.getDefault());
+	}	// End of constructor
+
+	/**
+	 * Sets up client and starts connecting to the server.
+	 * @param IPAddress The address of the server.
+	 * @param port The port the server is hosted on.
+	 * @param listener The object to report messages and status to.
+	 * @param executor Starts the thread that runs the session.
+	 **/
+	public IMClient(String IPAddress, int port, SessionListener listener, SessionExecutor executor)
+	{
+		this.listener = listener;		// Store object to report to
 		this.port = port;				// Store port server is hosted on
 		this.IPAddress = IPAddress;		// Store IP address of server to connect to
+		this.executor = executor;		// Store thread source for the session
 
 		this.start();
 	}	// End of constructor
 
 	public void run()
 	{
+		int failures = 0;
+		try
+		{
+			while (true)
+			{
+				if (this.chat())
+					failures = 0;
+				else
+					failures++;
+
+				// Reconnect unless stopped, ended or unable to resume
+				if (this.stopped || this.finished || this.resumeToken == 0
+					|| failures > RECONNECT_ATTEMPTS)
+					break;
+				long delay = ThreadLocalRandom.current().nextLong(
+					Math.min(RECONNECT_MAX_MILLIS, RECONNECT_BASE_MILLIS << Math.min(failures, 16)) + 1);
+				this.listener.ableToSend(false);
+				this.listener.printInformationMessage("Reconnecting in " + delay + " ms...");
+				Thread.sleep(delay);
+			}	// End of while
+		}	// End of try
+		catch (InterruptedException e)
+		{
+			// Stopped while waiting to reconnect
+		}	// End of catch
+		finally
+		{
+			this.listener.setConnected(false);	// Set connected to false
+			this.listener.setSession(null);
+			this.listener.ableToSend(false);
+			this.listener.printInformationMessage("Connection closed.");
+		}	// End of finally
+	}	// End of method run
+
+	/**
+	 * Connects to the server and chats until the connection ends.
+	 * @return Whether the connection was set up.
+	 **/
+	private boolean chat()
+	{
+		boolean established = false;
 		try
 		{
 			this.connectToServer();			// Connect with a client
 			this.initializeStreams();		// Set up IO streams for server and client
-			this.win.setConnected(true);	// Set connection to true
-			this.win.ableToSend(true);		// Enable "Send" button
-			this.win.printInformationMessage("Connection set. Start chatting!");
+			established = true;
+			this.listener.ableToSend(true);		// Enable "Send" button
+			if (!this.everConnected)
+			{
+				this.everConnected = true;
+				this.listener.setConnected(true);	// Set connection to true
+				this.listener.printInformationMessage("Connection set. Start chatting!");
+			}	// End of if
 			this.doWhileChatting();			// Do while connection is established
 		}	// End of try
 		catch (EOFException e)
 		{
 			// When connection has terminated, let user know.
-			this.win.printInformationMessage("Connection terminated.");
+			this.listener.printInformationMessage("Connection terminated.");
+		}	// End of catch
+		catch (AsynchronousCloseException e)
+		{
+			this.listener.printInformationMessage("Connection cancelled.");
 		}	// End of catch
 		catch (IOException e)
 		{
-			try
-			{
-				this.win.printInformationMessage("No such server found.");
-				this.connection.close();
-			}	// End of try
-			catch (IOException ex)
-			{
-				this.win.printInformationMessage("Unable to close connection.");
-			}	// End of catch
-			catch (NullPointerException ex)
-			{
-				// Socket has been closed
-			}	// End of catch
+			if (this.resumeToken == 0)
+				this.listener.printInformationMessage("No such server found.");
+			else
+				this.listener.printInformationMessage("Unable to reconnect: " + e.getMessage());
 		}	// End of catch
 		finally
 		{
 			try
 			{
-				this.closeConnection();
-				this.win.setSession(null);
-				this.win.ableToSend(false);
-				this.win.printInformationMessage("Connection closed.");
+				this.closeStreams();
 			}	// End of try
 			catch (IOException e)
 			{
-				this.win.printInformationMessage("Unable to close connection.");
-			}	// End of catch
-			catch (NullPointerException e)
-			{
-				this.win.printInformationMessage("Connection cancelled.");
+				this.listener.printInformationMessage("Unable to close connection.");
 			}	// End of catch
 		}	// End of finally
-	}	// End of method run
+		return established;
+	}	// End of method chat
 
 	public void start()
 	{
 		if (thread == null)
 		{
-			thread = new Thread(this);
-			thread.setDaemon(false);
-			thread.start();
+			thread = this.executor.start(this, "IMClient-" + this.IPAddress + ":" + this.port);
 		}	// End of if
 	}	// End of method start
 
+	/**
+	 * Stops the session. Closing the socket unblocks a pending read,
+	 * which interrupting the thread alone does not do, and closing the
+	 * connector cancels a connect in progress at once.
+	 **/
 	public void stop()
 	{
 		if (thread != null)
 		{
+			this.stopped = true;
+			Connector connector = this.connector;
+			if (connector != null)
+				connector.close();				// Connect fails and run() cleans up
+			try
+			{
+				if (this.connection != null)
+					this.connection.close();	// Read loop fails and run() cleans up
+			}	// End of try
+			catch (IOException e)
+			{
+				// Socket already closed
+			}	// End of catch
 			thread.interrupt();
 			thread = null;
 		}	// End of if
 	}	// End of method stop
 
 	/**
-	 * Connects to server, then displays connection information.
-	 * @throws IOException if there is a problem creating a new Socket.
+	 * Connects to server, then displays connection information. Every
+	 * address of the server is raced by a Connector, and the whole
+	 * connect is bounded by simpleim.connectTimeoutMillis.
+	 * @throws IOException if no address of the server can be reached in time.
 	 **/
 	public void connectToServer() throws IOException
 	{
-		this.win.printInformationMessage("Waiting for connection...");							// Print status to IMWindow object
-		this.connection = new Socket(InetAddress.getByName(this.IPAddress), this.port);			// Connect to server, then proceed
-		this.win.printInformationMessage("Now connected to " + this.connection.getInetAddress()
-			+ " on port " + this.port + ".");
+		this.listener.printInformationMessage("Waiting for connection...");							// Report status to listener
+		Connector connector = new Connector();
+		this.connector = connector;
+		if (this.stopped)
+			throw new AsynchronousCloseException();												// Stopped before connecting
+		try
+		{
+			this.connection = connector.connect(this.IPAddress, this.port).socket();				// Connect to server, then proceed
+		}	// End of try
+		finally
+		{
+			this.connector = null;
+		}	// End of finally
+		this.listener.printInformationMessage("Now connected to " + this.connection.getInetAddress()
+			+ " on port " + this.port + " in " + connector.getConnectMillis() + " ms.");
 	}	// End of method connectToServer
 
 	/**
-	 * Gets stream to send and receive messages.
+	 * Gets stream to send and receive messages, then performs the
+	 * protocol handshake with the server.
 	 * @throws IOException if unable to get Socket's
-	 * IO streams.
+	 * IO streams or the server shares no protocol version.
 	 **/
 	public void initializeStreams() throws IOException
 	{
-		this.output = new ObjectOutputStream(this.connection.getOutputStream());	// Get output stream of socket
-		this.output.flush();														// Send any residual data to server
-		this.input = new ObjectInputStream(this.connection.getInputStream());		// Get input stream of socket
-		this.win.printInformationMessage("IO streams initialized.");				// Print status to IMWindow object
+		this.output = new DataOutputStream(new BufferedOutputStream(this.connection.getOutputStream()));	// Get output stream of socket
+		this.input = new DataInputStream(new BufferedInputStream(this.connection.getInputStream()));		// Get input stream of socket
+		FrameCodec.write(this.output, FrameCodec.TYPE_HELLO, FrameCodec.helloPayload());				// Offer supported versions
+		this.output.flush();																			// Send HELLO to server
+		Frame hello = FrameCodec.read(this.input);														// Read server's HELLO
+		this.protocolVersion = FrameCodec.negotiate(hello);												// Agree on a version
+		this.compressor = FrameCompressor.negotiate(hello);												// Agree on compression
+		if (this.protocolVersion >= FrameCodec.HEARTBEAT_PROTOCOL_VERSION)
+			this.connection.setSoTimeout((int) IDLE_TIMEOUT_MILLIS);										// Server pings when quiet; silence means it is gone
+		this.deliveries = DeliveryTracer.getClientTracer().newPeer();										// Messages waiting for an ACK
+		if (this.protocolVersion >= FrameCodec.STREAM_PROTOCOL_VERSION)
+			this.streams = new StreamTable(new Consumer<PendingWrite>()
+			{
+				public void accept(PendingWrite write)
+				{
+					IMClient.this.outbound.enqueue(write);
+				}	// End of method accept
+			});																							// Conversations on this connection
+		if (this.protocolVersion >= FrameCodec.FILE_PROTOCOL_VERSION)
+		{
+			this.inputChannel = Channels.newChannel(this.input);											// File data is streamed from the socket
+			this.fileTransfers = new FileTransfers(this.listener, FileTransfers.getDefaultDirectory(),
+				this.IPAddress + ":" + this.port);
+		}	// End of if
+		this.outbound = new OutboundQueue(this.output, this.compressor);									// Queue for outgoing frames, published last
+		this.executor.start(this.outbound, "IMClient-writer-" + this.IPAddress + ":" + this.port);		// Start writer thread
+		if (this.protocolVersion >= FrameCodec.RESUME_PROTOCOL_VERSION)
+			this.outbound.send(FrameCodec.TYPE_RESUME, FrameCodec.resumePayload(this.resumeToken,
+				this.lastReceivedSequence));																// Pick up where a dropped connection left off
+		if (this.protocolVersion >= FrameCodec.STORE_PROTOCOL_VERSION && FrameCodec.isValidUserName(getUserName()))
+			this.outbound.send(FrameCodec.TYPE_IDENTIFY, getUserName().getBytes(StandardCharsets.UTF_8));	// Collect messages kept while away
+		this.listener.printInformationMessage("IO streams initialized.");									// Report status to listener
 	}	// End of method initializeStreams
 
 	/**
@@ -129,24 +288,74 @@ public class IMClient implements IMConnectable, Runnable
 	 **/
 	public void doWhileChatting()
 	{
-		String message = "";
-
 		do
 		{
 			try
 			{
-				// Read incoming message from socket
-				message = (String) this.input.readObject();
+				// Read incoming frame from socket
+				int length = FrameCodec.readLength(this.input);
+				long readTime = System.nanoTime();
+				byte type = this.input.readByte();
+				if (type == FrameCodec.TYPE_FILE_DATA)
+				{
+					this.receiveFileData(length - 1);
+					continue;
+				}	// End of if
+				Frame frame = this.readFrame(type, length - 1);
+				if (this.compressor != null)
+					frame = this.compressor.decompress(frame);
+				if (this.protocolVersion >= FrameCodec.TRACE_PROTOCOL_VERSION)
+					frame = FrameCodec.readTrace(frame);
+				frame.setReceivedTime(readTime);
+				if (frame.isTraced())
+					this.lastReceivedSequence = frame.getSequence();
 
-				if (!message.equals("-=CLOSE=-"))
-					// Print incoming message in IMWindow object
-					this.win.printIncomingMessage(message);
-				else
+				if (frame.getType() == FrameCodec.TYPE_MESSAGE)
+					// Report incoming message to listener, acknowledging it once shown
+					this.listener.printIncomingMessage(frame.getText(), this.acknowledgement(frame));
+				else if (frame.getType() == FrameCodec.TYPE_ROOM_MESSAGE)
+					this.listener.printIncomingMessage("[#" + frame.getRoom() + "] " + frame.getRoomText(),
+						this.acknowledgement(frame));
+				else if (frame.getType() == FrameCodec.TYPE_STREAM_OPEN || frame.getType() == FrameCodec.TYPE_STREAM_DATA
+					|| frame.getType() == FrameCodec.TYPE_STREAM_WINDOW)
+					this.receiveStream(frame);
+				else if (frame.getType() == FrameCodec.TYPE_SESSION)
+					this.receiveSession(frame);
+				else if (frame.getType() == FrameCodec.TYPE_STORED)
+					this.receiveStored(frame);
+				else if (frame.getType() == FrameCodec.TYPE_ACK)
+					this.deliveries.acknowledged(frame);
+				else if (frame.getType() == FrameCodec.TYPE_LIST)
+					this.listener.printInformationMessage(describeRooms(frame.getText()));
+				else if (frame.getType() == FrameCodec.TYPE_ERROR)
+					this.listener.printInformationMessage(frame.getText());
+				else if (frame.getType() == FrameCodec.TYPE_FILE_OFFER)
+					this.receiveOffer(frame);
+				else if (frame.getType() == FrameCodec.TYPE_FILE_ACCEPT && this.fileTransfers != null)
+					this.fileTransfers.accepted(frame.getPayload(), new Consumer<PendingWrite>()
+					{
+						public void accept(PendingWrite chunk)
+						{
+							IMClient.this.outbound.enqueue(chunk);
+						}	// End of method accept
+					});
+				else if (frame.getType() == FrameCodec.TYPE_PING)
+					this.outbound.send(FrameCodec.TYPE_PONG, FrameCodec.emptyPayload());
+				else if (frame.getType() == FrameCodec.TYPE_CLOSE)
+				{
+					this.finished = true;		// The server ended the session
 					break;
+				}	// End of else if
 			}	// End of try
-			catch (ClassNotFoundException e)
+			catch (ProtocolException e)
+			{
+				this.listener.printInformationMessage("Unable to parse incoming data.");
+				this.finished = true;		// Resuming would only meet the same data
+				break;
+			}	// End of catch
+			catch (SocketTimeoutException e)
 			{
-				this.win.printInformationMessage("Unable to parse incoming data.");
+				this.listener.printInformationMessage("Connection timed out.");
 				break;
 			}	// End of catch
 			catch (IOException e)
@@ -164,32 +373,494 @@ public class IMClient implements IMConnectable, Runnable
 	 **/
 	public void closeConnection() throws IOException
 	{
-		this.win.printInformationMessage("Closing connection...");		// Print status to IMWindow object
-		
-		this.connection.close();		// Close socket connection
-		this.output.close();			// Close output stream
-		this.input.close();				// Close input stream
-		this.win.setConnected(false);	// Set connected to false
+		this.closeStreams();
+		this.listener.setConnected(false);	// Set connected to false
 	} // End of method closeConnection
 
 	/**
-	 * Sends a message to the server.
+	 * Closes the current connection, keeping what is needed to resume it.
+	 * @throws IOException if there is a problem closing the
+	 * IO streams.
+	 **/
+	private void closeStreams() throws IOException
+	{
+		if (this.connection == null)
+			return;
+		this.listener.printInformationMessage("Closing connection...");		// Report status to listener
+		if (this.compressor != null && this.compressor.getFramesInflated() > 0)
+			this.listener.printInformationMessage(this.compressor.describeReceived());
+
+		this.connection.close();		// Close socket connection
+		if (this.outbound != null)
+			this.outbound.close();		// Stop writer thread
+		if (this.fileTransfers != null)
+			this.fileTransfers.close();	// Keep partial files for resuming
+		if (this.deliveries != null)
+			this.deliveries.close();	// Stop waiting for ACKs
+		if (this.streams != null)
+		{
+			Set<String> names = new HashSet<String>();
+			for (StreamTable.Stream stream : this.streams.getStreams())
+				names.add(stream.getName());
+			this.lastConversations = names;	// Rooms to rejoin if the session cannot be resumed
+			this.streams.close();		// Drop messages still waiting for credit; they are kept for replay
+		}	// End of if
+		if (this.output != null)
+			this.output.close();		// Close output stream
+		if (this.input != null)
+			this.input.close();			// Close input stream
+		this.connection = null;
+	} // End of method closeStreams
+
+	/**
+	 * Queues a message for the server's writer thread and returns at once.
+	 * While a room is joined on a server that does not multiplex
+	 * conversations, messages go to that room; otherwise they go to the
+	 * main chat. The commands "/join name", "/leave" and "/rooms" manage
+	 * rooms instead.
 	 * @param msg The String to send to the server.
-	 * @throws IOException if there is a problem writing
-	 * to the Socket's output stream.
+	 * @return A future completed once the message has been flushed
+	 * to the socket.
+	 * @throws IOException if the connection has not been set up.
 	 **/
-	public void sendMessage(String msg) throws IOException
+	public CompletableFuture<Void> sendMessage(String msg) throws IOException
 	{
-		this.output.writeObject(msg);				// Send msg to socket for output
-		this.output.flush();						// Clear any residual data from output stream
-		if (!msg.equals("-=CLOSE=-"))
-			this.win.printOutgoingMessage(msg);	// Print incoming message in IMWindow object
+		if (this.outbound == null)
+			throw new IOException("Not connected");
+
+		CompletableFuture<Void> sent;
+		if (msg.equals("-=CLOSE=-"))
+		{
+			sent = this.outbound.send(FrameCodec.TYPE_CLOSE, FrameCodec.emptyPayload());
+			sent.whenComplete(new BiConsumer<Void, Throwable>()
+			{
+				public void accept(Void result, Throwable failure)
+				{
+					IMClient.this.stop();		// Stop connection once CLOSE is out
+				}	// End of method accept
+			});
+		}	// End of if
+		else if (msg.equals("/rooms") || msg.equals("/leave") || msg.startsWith("/join "))
+			sent = this.sendRoomCommand(msg.trim());
 		else
 		{
-			this.stop();						// Stop connection thread
+			String room = this.currentRoom;
+			if (room == null)
+			{
+				sent = this.sendChat(FrameCodec.TYPE_MESSAGE, msg);
+				this.listener.printOutgoingMessage(msg);	// Report outgoing message to listener
+			}	// End of if
+			else
+			{
+				sent = this.sendChat(FrameCodec.TYPE_ROOM_MESSAGE, FrameCodec.roomMessage(room, msg));
+				this.listener.printOutgoingMessage("[#" + room + "] " + msg);
+			}	// End of else
+			sent.whenComplete(new BiConsumer<Void, Throwable>()
+			{
+				public void accept(Void result, Throwable failure)
+				{
+					if (failure != null && IMClient.this.resumeToken == 0)	// Otherwise it is sent again on reconnect
+						IMClient.this.listener.printInformationMessage("Unable to send message.");
+				}	// End of method accept
+			});
 		}	// End of else
+		return sent;
 	}	// End of method sendMessage
 
+	/**
+	 * Queues a message in one conversation and returns at once. It is
+	 * held back on the conversation's stream while the server has not
+	 * returned credit for it. Typing "/leave" leaves the conversation,
+	 * and other commands are handled as by sendMessage(msg).
+	 * @param conversation The room to send to.
+	 * @param msg The String to send.
+	 * @return A future completed once the message has been flushed.
+	 * @throws IOException if the connection has not been set up.
+	 **/
+	public CompletableFuture<Void> sendMessage(final String conversation, String msg) throws IOException
+	{
+		StreamTable streams = this.streams;
+		if (streams == null || msg.equals("-=CLOSE=-") || msg.equals("/rooms") || msg.startsWith("/join "))
+			return this.sendMessage(msg);
+
+		StreamTable.Stream stream = streams.find(conversation);
+		if (stream == null)
+		{
+			this.listener.printInformationMessage("You are not in #" + conversation + ".");
+			return CompletableFuture.completedFuture(null);
+		}	// End of if
+		if (msg.equals("/leave"))
+		{
+			CompletableFuture<Void> sent = this.outbound.send(FrameCodec.TYPE_LEAVE,
+				conversation.getBytes(StandardCharsets.UTF_8));
+			streams.close(stream.getId());
+			this.listener.conversationClosed(conversation);
+			return sent;
+		}	// End of if
+
+		long sequence = DeliveryTracer.getClientTracer().nextSequence();
+		PendingWrite write = new PendingWrite(FrameCodec.encode(FrameCodec.TYPE_STREAM_DATA,
+			FrameCodec.tracedPayload(sequence, FrameCodec.streamPayload(stream.getId(), msg))));
+		this.deliveries.sent(sequence, msg, write);
+		if (this.protocolVersion >= FrameCodec.RESUME_PROTOCOL_VERSION)
+			this.replay.add(sequence, FrameCodec.TYPE_STREAM_DATA, conversation, msg);
+		stream.send(write);
+		this.listener.printOutgoingMessage(conversation, msg);
+		write.getCompletion().whenComplete(new BiConsumer<Void, Throwable>()
+		{
+			public void accept(Void result, Throwable failure)
+			{
+				if (failure != null && IMClient.this.resumeToken == 0)	// Otherwise it is sent again on reconnect
+					IMClient.this.listener.printInformationMessage("Unable to send message to #" + conversation + ".");
+			}	// End of method accept
+		});
+		return write.getCompletion();
+	}	// End of method sendMessage
+
+	/**
+	 * Queues a chat frame, tracing it if the server supports tracing.
+	 * @param type MESSAGE or ROOM_MESSAGE.
+	 * @param text The payload text.
+	 * @return A future completed once the frame has been flushed.
+	 **/
+	private CompletableFuture<Void> sendChat(byte type, String text)
+	{
+		OutboundQueue outbound = this.outbound;		// Read first, so the fields below are from the same session or a newer one
+		byte[] payload = text.getBytes(StandardCharsets.UTF_8);
+		if (this.protocolVersion < FrameCodec.TRACE_PROTOCOL_VERSION)
+			return outbound.send(type, payload);
+
+		long sequence = DeliveryTracer.getClientTracer().nextSequence();
+		PendingWrite write = new PendingWrite(FrameCodec.encode(type, FrameCodec.tracedPayload(sequence, payload)));
+		this.deliveries.sent(sequence, text, write);
+		if (this.protocolVersion >= FrameCodec.RESUME_PROTOCOL_VERSION)
+			this.replay.add(sequence, type, null, text);
+		outbound.enqueue(write);
+		return write.getCompletion();
+	}	// End of method sendChat
+
+	/**
+	 * Builds the ACK for a chat frame from the server, to be run once
+	 * the message has been shown.
+	 **/
+	private Runnable acknowledgement(Frame frame)
+	{
+		return this.deliveries.acknowledgement(frame, new Consumer<byte[]>()
+		{
+			public void accept(byte[] payload)
+			{
+				IMClient.this.outbound.send(FrameCodec.TYPE_ACK, payload);
+			}	// End of method accept
+		});
+	}	// End of method acknowledgement
+
+	/**
+	 * Reads the payload of a frame from the socket. A payload that fits
+	 * is read into the same buffer every time and returned as a view of
+	 * it, which is only valid until the next frame is read; a larger one
+	 * gets an array of its own.
+	 **/
+	private Frame readFrame(byte type, int size) throws IOException
+	{
+		if (size > this.readBuffer.capacity())
+			return new Frame(type, FrameCodec.readPayload(this.input, size));
+		this.input.readFully(this.readBuffer.array(), 0, size);
+		return this.frame.wrap(type, this.readBuffer, 0, size);
+	}	// End of method readFrame
+
+	/**
+	 * Offers a file to the server. It is sent once the server accepts.
+	 * @param file The file to send.
+	 * @throws IOException if the connection has not been set up or the
+	 * file cannot be opened.
+	 **/
+	public void sendFile(File file) throws IOException
+	{
+		if (this.outbound == null)
+			throw new IOException("Not connected");
+		if (this.fileTransfers == null)
+		{
+			this.listener.printInformationMessage("This server does not support file transfers.");
+			return;
+		}	// End of if
+		this.outbound.send(FrameCodec.TYPE_FILE_OFFER, this.fileTransfers.offer(file));
+	}	// End of method sendFile
+
+	/**
+	 * Accepts a file offered by the server, resuming any partial copy,
+	 * unless it is declined.
+	 **/
+	private void receiveOffer(Frame frame) throws ProtocolException
+	{
+		if (this.fileTransfers == null)
+			throw new ProtocolException("FILE_OFFER before version " + FrameCodec.FILE_PROTOCOL_VERSION);
+		try
+		{
+			byte[] accept = this.fileTransfers.offered(frame.getPayload());
+			if (accept != null)
+				this.outbound.send(FrameCodec.TYPE_FILE_ACCEPT, accept);
+		}	// End of try
+		catch (ProtocolException e)
+		{
+			throw e;
+		}	// End of catch
+		catch (IOException e)
+		{
+			this.listener.printInformationMessage("Unable to receive file: " + e.getMessage());
+		}	// End of catch
+	}	// End of method receiveOffer
+
+	/**
+	 * Handles STREAM_OPEN, STREAM_DATA and STREAM_WINDOW. A message is
+	 * acknowledged, and its credit returned, once it has been shown.
+	 **/
+	private void receiveStream(Frame frame) throws ProtocolException
+	{
+		if (this.streams == null)
+			throw new ProtocolException("Stream frame before version " + FrameCodec.STREAM_PROTOCOL_VERSION);
+		if (frame.getType() == FrameCodec.TYPE_STREAM_WINDOW)
+		{
+			this.streams.granted(frame);
+			return;
+		}	// End of if
+		if (frame.getType() == FrameCodec.TYPE_STREAM_OPEN)
+		{
+			String name = frame.getStreamText();
+			if (this.streams.find(name) == null)
+			{
+				this.streams.open(frame.getStreamId(), name);
+				this.listener.conversationOpened(name);
+			}	// End of if
+			return;
+		}	// End of if
+
+		final StreamTable.Stream stream = this.streams.get(frame.getStreamId());
+		if (stream == null)
+			return;		// Sent before the server saw our LEAVE
+		stream.received();
+		final Runnable acknowledgement = this.acknowledgement(frame);
+		this.listener.printConversationMessage(stream.getName(), frame.getStreamText(), new Runnable()
+		{
+			public void run()
+			{
+				acknowledgement.run();
+				stream.consumed();
+			}	// End of method run
+		});
+	}	// End of method receiveStream
+
+	/**
+	 * Handles the server's answer to RESUME. If the session was resumed,
+	 * sends again the chat frames the server had not received; if the
+	 * server had forgotten it, rejoins the rooms the client was in.
+	 **/
+	private void receiveSession(Frame frame) throws ProtocolException
+	{
+		byte[] payload = frame.getPayload();
+		if (payload.length < FrameCodec.SESSION_SIZE)
+			throw new ProtocolException("Truncated SESSION");
+		ByteBuffer buf = ByteBuffer.wrap(payload);
+		long token = buf.getLong();
+		long lastSequence = buf.getLong();
+		boolean resumed = buf.get() != 0;
+		long previous = this.resumeToken;
+		this.resumeToken = token;
+		if (previous == 0)
+			return;		// A new session
+
+		if (!resumed)
+		{
+			this.replay.clear();
+			for (String room : this.lastConversations)
+				this.outbound.send(FrameCodec.TYPE_JOIN, room.getBytes(StandardCharsets.UTF_8));
+			this.listener.printInformationMessage("Reconnected, but the server had ended the session; "
+				+ "messages sent just before the connection dropped may be lost.");
+			return;
+		}	// End of if
+
+		int replayed = 0;
+		for (ReplayBuffer.Entry entry : this.replay.after(lastSequence))
+		{
+			StreamTable.Stream stream = null;
+			if (entry.getType() == FrameCodec.TYPE_STREAM_DATA)
+			{
+				stream = (this.streams == null) ? null : this.streams.find(entry.getConversation());
+				if (stream == null)
+					continue;		// Left while disconnected
+			}	// End of if
+			PendingWrite write = entry.encode((stream == null) ? 0 : stream.getId());
+			this.deliveries.sent(entry.getSequence(), entry.getText(), write);
+			if (stream == null)
+				this.outbound.enqueue(write);
+			else
+				stream.send(write);
+			replayed++;
+		}	// End of for
+		this.listener.printInformationMessage("Reconnected." + ((replayed == 0) ? ""
+			: " Sent " + replayed + " messages again that the server had not received."));
+	}	// End of method receiveSession
+
+	/**
+	 * Shows messages the server kept while this client was away, with
+	 * the time each was sent.
+	 **/
+	private void receiveStored(Frame frame) throws ProtocolException
+	{
+		List<HistoryRecord> records = MessageStore.readBatch(frame.getPayload());
+		SimpleDateFormat fmt = new SimpleDateFormat("MMM d HH:mm");
+		for (HistoryRecord record : records)
+			this.listener.printIncomingMessage("(sent " + fmt.format(new Date(record.getTime())) + ") " + record.getText());
+		this.listener.printInformationMessage("Received " + records.size() + " messages sent while you were away.");
+	}	// End of method receiveStored
+
+	/**
+	 * Returns the name this client identifies itself with: the
+	 * simpleim.userName system property. A client without one never
+	 * identifies itself, so nothing is kept for it while it is away.
+	 * @return The user name, or an empty string if none is set.
+	 **/
+	public static String getUserName()
+	{
+		return System.getProperty(USER_NAME_PROPERTY, "").trim();
+	}	// End of method getUserName
+
+	/**
+	 * Streams the body of a FILE_DATA frame from the socket into its file.
+	 * @param size The frame size after the type byte.
+	 * @throws IOException if the frame is invalid or the file cannot be written.
+	 **/
+	private void receiveFileData(int size) throws IOException
+	{
+		if (this.fileTransfers == null || size < FileChunk.DATA_HEADER_SIZE)
+			throw new ProtocolException("Unexpected FILE_DATA");
+		long transferId = this.input.readLong();
+		long offset = this.input.readLong();
+		long remaining = size - FileChunk.DATA_HEADER_SIZE;
+
+		FileTransfers.Incoming transfer = this.fileTransfers.startChunk(transferId, offset, remaining);
+		while (remaining > 0)
+		{
+			long count = transfer.transferFrom(this.inputChannel, remaining);
+			if (count == 0)
+				throw new EOFException();
+			remaining -= count;
+		}	// End of while
+		this.fileTransfers.endChunk(transfer);
+	}	// End of method receiveFileData
+
+	/**
+	 * Formats the payload of a LIST frame for display.
+	 **/
+	private static String describeRooms(String list)
+	{
+		if (list.isEmpty())
+			return "There are no rooms. Type /join name to create one.";
+		StringBuilder sb = new StringBuilder("Rooms:");
+		for (String line : list.split("\n"))
+		{
+			int tab = line.indexOf('\t');
+			sb.append(" #").append(line, 0, tab).append(" (").append(line.substring(tab + 1)).append(')');
+		}	// End of for
+		return sb.toString();
+	}	// End of method describeRooms
+
+	/**
+	 * Sends a JOIN, LEAVE or LIST frame for a room command.
+	 * @param command "/join name", "/leave" or "/rooms".
+	 * @return A future completed once the frame has been flushed.
+	 **/
+	private CompletableFuture<Void> sendRoomCommand(String command)
+	{
+		if (this.protocolVersion < FrameCodec.ROOMS_PROTOCOL_VERSION)
+		{
+			this.listener.printInformationMessage("This server does not support rooms.");
+			return CompletableFuture.completedFuture(null);
+		}	// End of if
+
+		if (command.equals("/rooms"))
+			return this.outbound.send(FrameCodec.TYPE_LIST, FrameCodec.emptyPayload());
+		if (this.streams != null)
+			return this.sendStreamCommand(command);
+
+		String room = this.currentRoom;
+		CompletableFuture<Void> sent = CompletableFuture.completedFuture(null);
+		if (room != null)
+		{
+			// A client talks in one room at a time
+			sent = this.outbound.send(FrameCodec.TYPE_LEAVE, room.getBytes(StandardCharsets.UTF_8));
+			this.currentRoom = null;
+			this.listener.printInformationMessage("Left #" + room + ".");
+		}	// End of if
+		else if (command.equals("/leave"))
+			this.listener.printInformationMessage("You are not in a room.");
+
+		if (command.startsWith("/join "))
+		{
+			room = command.substring(6).trim();
+			if (!FrameCodec.isValidRoomName(room))
+			{
+				this.listener.printInformationMessage("Room names are 1 to "
+					+ FrameCodec.MAX_ROOM_NAME_LENGTH + " characters on one line.");
+				return sent;
+			}	// End of if
+			sent = this.outbound.send(FrameCodec.TYPE_JOIN, room.getBytes(StandardCharsets.UTF_8));
+			this.currentRoom = room;
+			this.listener.printInformationMessage("Joined #" + room + ". Type /leave to return to the main chat.");
+		}	// End of if
+		return sent;
+	}	// End of method sendRoomCommand
+
+	/**
+	 * Sends a JOIN for a room command on a connection that multiplexes
+	 * conversations. Joining leaves no other room; the conversation
+	 * opens when the server answers with STREAM_OPEN.
+	 * @param command "/join name" or "/leave".
+	 * @return A future completed once the frame has been flushed.
+	 **/
+	private CompletableFuture<Void> sendStreamCommand(String command)
+	{
+		if (command.equals("/leave"))
+		{
+			this.listener.printInformationMessage("Type /leave in a room's conversation to leave it.");
+			return CompletableFuture.completedFuture(null);
+		}	// End of if
+		String room = command.substring(6).trim();
+		if (!FrameCodec.isValidRoomName(room))
+		{
+			this.listener.printInformationMessage("Room names are 1 to "
+				+ FrameCodec.MAX_ROOM_NAME_LENGTH + " characters on one line.");
+			return CompletableFuture.completedFuture(null);
+		}	// End of if
+		return this.outbound.send(FrameCodec.TYPE_JOIN, room.getBytes(StandardCharsets.UTF_8));
+	}	// End of method sendStreamCommand
+
+	/**
+	 * Returns the protocol version agreed with the server.
+	 * @return The version, or 0 before the handshake completes.
+	 **/
+	public byte getProtocolVersion()
+	{
+		return this.protocolVersion;
+	}	// End of method getProtocolVersion
+
+	/**
+	 * Returns the compressor negotiated with the server.
+	 * @return The compressor, or null if frames are sent uncompressed.
+	 **/
+	public FrameCompressor getCompressor()
+	{
+		return this.compressor;
+	}	// End of method getCompressor
+
+	/**
+	 * Returns the delivery latencies of the messages this JVM's clients sent.
+	 * @return The client tracer.
+	 **/
+	public DeliveryTracer getDeliveryTracer()
+	{
+		return DeliveryTracer.getClientTracer();
+	}	// End of method getDeliveryTracer
+
 	/**
 	 * Requires no implementation
 	 * since this class represents a client.
@@ -4,18 +4,32 @@
 
 import java.io.*;
 import java.net.*;
+import java.util.concurrent.*;
 
 public interface IMConnectable
 {
-	ObjectOutputStream output = null;
-	ObjectInputStream input = null;
 	Socket connection = null;
-	IMWindow win = null;
 
 	public void initializeStreams() throws IOException;
 	public void doWhileChatting() throws IOException;
 	public void closeConnection() throws IOException;
-	public void sendMessage(String msg) throws IOException;
+	public CompletableFuture<Void> sendMessage(String msg) throws IOException;
+
+	/**
+	 * Sends a message in one conversation. Sessions that do not
+	 * multiplex conversations send it as they would any other.
+	 * @param conversation The conversation's name.
+	 * @param msg The message.
+	 * @return A future completed once the message has been written.
+	 * @throws IOException if the session is not connected.
+	 **/
+	public default CompletableFuture<Void> sendMessage(String conversation, String msg) throws IOException
+	{
+		return this.sendMessage(msg);
+	}	// End of method sendMessage
+
+	public void sendFile(File file) throws IOException;
+	public DeliveryTracer getDeliveryTracer();
 	public void run();
 	public void start();
 	public void stop();
@@ -0,0 +1,788 @@
+// IMReactor.java
+// Non-blocking, multi-client connection engine used by IMServer.
+// Devon Bautista
+
+import java.io.*;
+import java.net.*;
+import java.nio.channels.*;
+import java.nio.charset.*;
+import java.util.*;
+import javax.management.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.function.*;
+
+/**
+ * Accepts and serves many client connections from a small, fixed
+ * set of threads. One acceptor loop hands new channels to worker
+ * threads round-robin; each worker owns a Selector and performs all
+ * reads and writes for its channels.
+ *
+ * Sessions that support heartbeats get one idle check on a shared
+ * TimerWheel. The check sends a PING once a client has been quiet for
+ * the heartbeat interval and closes the session once it has been quiet
+ * for the idle timeout, so dead peers are reaped within the idle
+ * timeout plus one tick.
+ *
+ * Traffic, queue and latency metrics are kept in a ServerMetrics that
+ * is registered as the MBean simpleim:type=Server,port=N while bound.
+ * Chat messages broadcast to clients that support delivery tracing are
+ * traced by a DeliveryTracer, registered as simpleim:type=Delivery,
+ * side=server,port=N; the ACKs are handled here and never reach the
+ * handler.
+ *
+ * A reactor may be given a RateLimiter, which every client session is
+ * metered against as its frames are read. A worker pauses reading a
+ * session that goes over its limits and resumes it from the timer
+ * wheel once the session is back within them.
+ **/
+public class IMReactor
+{
+	// Constants
+	public static final String HEARTBEAT_PROPERTY = "simpleim.heartbeatMillis";
+	public static final String IDLE_TIMEOUT_PROPERTY = "simpleim.idleTimeoutMillis";
+	public static final long DEFAULT_HEARTBEAT_MILLIS = 15000;
+	public static final long DEFAULT_IDLE_TIMEOUT_MILLIS = 45000;
+	private static final long SHUTDOWN_TIMEOUT_MILLIS = 2000;
+	private static final long TIMER_TICK_MILLIS = 100;
+	private static final int TIMER_WHEEL_SIZE = 1024;
+
+	// Attributes
+	private final int port;
+	private final ReactorHandler handler;
+	private final Worker[] workers;
+	private final Set<ChannelSession> sessions = ConcurrentHashMap.newKeySet();
+	private final AtomicInteger nextWorker = new AtomicInteger(0);
+	private final ServerMetrics metrics = new ServerMetrics(Collections.unmodifiableSet(this.sessions));
+	private final DeliveryTracer tracer = new DeliveryTracer();
+	private ObjectName metricsName = null;
+	private ObjectName tracerName = null;
+	private volatile boolean running = false;
+	private ServerSocketChannel serverChannel;
+	private Selector acceptSelector;
+	private TimerWheel timers;
+	private long heartbeatMillis = Long.getLong(HEARTBEAT_PROPERTY, DEFAULT_HEARTBEAT_MILLIS);
+	private long idleTimeoutMillis = Long.getLong(IDLE_TIMEOUT_PROPERTY, DEFAULT_IDLE_TIMEOUT_MILLIS);
+	private RateLimiter rateLimiter = null;
+	private OutboundBudget outboundLimits = new OutboundBudget(OutboundBudget.DEFAULT_MAX_BYTES,
+		OutboundBudget.DEFAULT_MAX_MESSAGES, OutboundBudget.Policy.DISCONNECT);
+
+	/**
+	 * Creates a reactor. Call bind() and then acceptLoop() to run it.
+	 * @param port The port number to listen on.
+	 * @param workerCount The number of worker threads to serve connections.
+	 * @param handler The handler to report session events to.
+	 **/
+	public IMReactor(int port, int workerCount, ReactorHandler handler)
+	{
+		this.port = port;
+		this.handler = new TrackingHandler(handler);
+		this.workers = new Worker[Math.max(1, workerCount)];
+	}	// End of constructor
+
+	/**
+	 * Sets how often idle clients are pinged and when they are closed.
+	 * Call before bind().
+	 * @param heartbeatMillis Quiet time before a PING is sent.
+	 * @param idleTimeoutMillis Quiet time before the session is closed.
+	 **/
+	public void setHeartbeat(long heartbeatMillis, long idleTimeoutMillis)
+	{
+		this.heartbeatMillis = heartbeatMillis;
+		this.idleTimeoutMillis = Math.max(heartbeatMillis, idleTimeoutMillis);
+	}	// End of method setHeartbeat
+
+	/**
+	 * Sets the limits on how fast clients may send. Call before bind().
+	 * @param rateLimiter The limits, or null for none.
+	 **/
+	public void setRateLimiter(RateLimiter rateLimiter)
+	{
+		this.rateLimiter = (rateLimiter != null && rateLimiter.isEnabled()) ? rateLimiter : null;
+	}	// End of method setRateLimiter
+
+	/**
+	 * Sets the outbound queue limits and slow consumer policy every
+	 * session gets a copy of. Call before bind().
+	 * @param outboundLimits The limits, as from OutboundBudget.fromProperties().
+	 **/
+	public void setOutboundLimits(OutboundBudget outboundLimits)
+	{
+		this.outboundLimits = outboundLimits;
+	}	// End of method setOutboundLimits
+
+	/**
+	 * Returns the outbound queue limits every session gets a copy of.
+	 * @return The limits.
+	 **/
+	public OutboundBudget getOutboundLimits()
+	{
+		return this.outboundLimits;
+	}	// End of method getOutboundLimits
+
+	/**
+	 * Returns the limits on how fast clients may send.
+	 * @return The limits, or null if there are none.
+	 **/
+	public RateLimiter getRateLimiter()
+	{
+		return this.rateLimiter;
+	}	// End of method getRateLimiter
+
+	/**
+	 * Opens the listening socket and starts the worker threads.
+	 * @throws IOException if the port cannot be bound.
+	 **/
+	public void bind() throws IOException
+	{
+		this.acceptSelector = Selector.open();
+		this.serverChannel = ServerSocketChannel.open();
+		try
+		{
+			this.serverChannel.bind(new InetSocketAddress(this.port));
+		}	// End of try
+		catch (IOException e)
+		{
+			this.serverChannel.close();
+			this.acceptSelector.close();
+			throw e;
+		}	// End of catch
+		this.serverChannel.configureBlocking(false);
+		this.serverChannel.register(this.acceptSelector, SelectionKey.OP_ACCEPT);
+		this.running = true;
+		this.timers = new TimerWheel("IMReactor-timer-" + this.port, TIMER_TICK_MILLIS, TIMER_WHEEL_SIZE);
+		this.metrics.start(this.timers);
+		this.metricsName = Metrics.register("type=Server,port=" + this.serverChannel.socket().getLocalPort(), this.metrics);
+		this.tracerName = Metrics.register("type=Delivery,side=server,port=" + this.serverChannel.socket().getLocalPort(),
+			this.tracer);
+
+		for (int i = 0; i < this.workers.length; i++)
+		{
+			this.workers[i] = new Worker(Selector.open());
+			Thread thread = new Thread(this.workers[i], "IMReactor-worker-" + i);
+			thread.setDaemon(true);
+			thread.start();
+		}	// End of for
+	}	// End of method bind
+
+	/**
+	 * Accepts connections until close() is called. Runs on the caller's thread.
+	 * @throws IOException if the acceptor selector fails.
+	 **/
+	public void acceptLoop() throws IOException
+	{
+		try
+		{
+			while (this.running)
+			{
+				this.acceptSelector.select();
+				this.acceptSelector.selectedKeys().clear();
+
+				SocketChannel channel;
+				while (this.running && (channel = this.serverChannel.accept()) != null)
+				{
+					Worker worker = this.workers[Math.floorMod(this.nextWorker.getAndIncrement(), this.workers.length)];
+					this.metrics.accepted();
+					worker.register(new ChannelSession(channel, worker, this.handler, this.metrics,
+						this.tracer.newPeer(), this.outboundLimits.forConnection()));
+				}	// End of while
+			}	// End of while
+		}	// End of try
+		finally
+		{
+			this.serverChannel.close();
+			this.acceptSelector.close();
+		}	// End of finally
+	}	// End of method acceptLoop
+
+	/**
+	 * Opens a connection to another reactor and serves it like an
+	 * accepted one: both ends send HELLO, and the handler is told the
+	 * session is open once the peer's HELLO arrives. Blocks the caller
+	 * until connected. Call after bind().
+	 * @param address The address of the other reactor.
+	 * @param timeoutMillis How long to wait for the connection.
+	 * @return The new session.
+	 * @throws IOException if the connection cannot be made.
+	 **/
+	public ChannelSession connect(InetSocketAddress address, int timeoutMillis) throws IOException
+	{
+		SocketChannel channel = SocketChannel.open();
+		try
+		{
+			channel.socket().connect(address, timeoutMillis);
+		}	// End of try
+		catch (IOException e)
+		{
+			channel.close();
+			throw e;
+		}	// End of catch
+		if (!this.running)
+		{
+			channel.close();
+			throw new IOException("The reactor is closed");
+		}	// End of if
+
+		Worker worker = this.workers[Math.floorMod(this.nextWorker.getAndIncrement(), this.workers.length)];
+		ChannelSession session = new ChannelSession(channel, worker, this.handler, this.metrics, this.tracer.newPeer(),
+			this.outboundLimits.forConnection());
+		worker.register(session);
+		return session;
+	}	// End of method connect
+
+	/**
+	 * Stops accepting connections and closes every session after its
+	 * queued messages have been written.
+	 **/
+	public void close()
+	{
+		if (!this.running)
+			return;
+		this.running = false;
+		if (this.acceptSelector != null)
+			this.acceptSelector.wakeup();
+		if (this.timers != null)
+			this.timers.stop();
+		Metrics.unregister(this.metricsName);
+		Metrics.unregister(this.tracerName);
+		for (ChannelSession session : this.sessions)
+			session.close();
+		for (Worker worker : this.workers)
+			if (worker != null)
+				worker.selector.wakeup();
+	}	// End of method close
+
+	/**
+	 * Sends a text frame to every connected session. The frame is
+	 * encoded once and every session writes the same bytes.
+	 * @param type The frame type.
+	 * @param text The text payload.
+	 * @return A future completed once every session has written the frame.
+	 **/
+	public CompletableFuture<Void> broadcast(byte type, String text)
+	{
+		return this.broadcast(type, text, this.sessions, null);
+	}	// End of method broadcast
+
+	/**
+	 * Sends a text frame to a group of sessions, encoding it once.
+	 * Chat messages are encoded a second time, with a trace header, for
+	 * the sessions that support delivery tracing; they all share one
+	 * sequence number.
+	 * @param type The frame type.
+	 * @param text The text payload.
+	 * @param recipients The sessions to send to.
+	 * @param except A session to leave out, or null.
+	 * @return A future completed once every recipient has written the frame.
+	 **/
+	public CompletableFuture<Void> broadcast(byte type, String text, Iterable<ChannelSession> recipients,
+		ChannelSession except)
+	{
+		SharedFrame frame = new SharedFrame(type, text);
+		SharedFrame traced = null;
+		long sequence = 0;
+		for (ChannelSession session : recipients)
+		{
+			if (session == except)
+				continue;
+			if (FrameCodec.isTraced(type) && session.getProtocolVersion() >= FrameCodec.TRACE_PROTOCOL_VERSION)
+			{
+				if (traced == null)
+				{
+					sequence = this.tracer.nextSequence();
+					traced = new SharedFrame(type, FrameCodec.tracedPayload(sequence, text.getBytes(StandardCharsets.UTF_8)));
+				}	// End of if
+				PendingWrite write = traced.newWrite();
+				session.getDeliveries().sent(sequence, text, write);
+				if (session.getReplay() != null)
+					session.getReplay().add(sequence, type, null, text);
+				session.enqueue(write);
+			}	// End of if
+			else
+				session.enqueue(frame.newWrite());
+		}	// End of for
+		frame.release();
+		if (traced == null)
+			return frame.getCompletion();
+		traced.release();
+		return CompletableFuture.allOf(frame.getCompletion(), traced.getCompletion());
+	}	// End of method broadcast
+
+	/**
+	 * Sends a room message to the room's members. Members that
+	 * multiplex conversations get it as STREAM_DATA on the room's
+	 * stream, encoded once with a trace header and subject to each
+	 * stream's flow control; the rest get ROOM_MESSAGE from broadcast().
+	 * @param room The room name.
+	 * @param streamId The room's stream ID.
+	 * @param text The message.
+	 * @param members The room's members.
+	 * @param except A session to leave out, or null.
+	 * @return A future completed once every member has written the frame.
+	 **/
+	public CompletableFuture<Void> broadcastRoom(String room, int streamId, String text,
+		Iterable<ChannelSession> members, ChannelSession except)
+	{
+		List<ChannelSession> older = new ArrayList<ChannelSession>();
+		SharedFrame frame = null;
+		long sequence = 0;
+		for (ChannelSession session : members)
+		{
+			if (session == except)
+				continue;
+			StreamTable streams = session.getStreams();
+			if (streams == null)
+			{
+				older.add(session);
+				continue;
+			}	// End of if
+			StreamTable.Stream stream = streams.get(streamId);
+			if (stream == null)
+				continue;		// Joined, but its STREAM_OPEN is not yet queued
+			if (frame == null)
+			{
+				sequence = this.tracer.nextSequence();
+				frame = new SharedFrame(FrameCodec.TYPE_STREAM_DATA,
+					FrameCodec.tracedPayload(sequence, FrameCodec.streamPayload(streamId, text)));
+			}	// End of if
+			PendingWrite write = frame.newWrite();
+			session.getDeliveries().sent(sequence, text, write);
+			if (session.getReplay() != null)
+				session.getReplay().add(sequence, FrameCodec.TYPE_STREAM_DATA, room, text);
+			stream.send(write);
+		}	// End of for
+
+		CompletableFuture<Void> sent = older.isEmpty() ? CompletableFuture.<Void>completedFuture(null)
+			: this.broadcast(FrameCodec.TYPE_ROOM_MESSAGE, FrameCodec.roomMessage(room, text), older, null);
+		if (frame == null)
+			return sent;
+		frame.release();
+		return CompletableFuture.allOf(sent, frame.getCompletion());
+	}	// End of method broadcastRoom
+
+	/**
+	 * Sends chat frames kept from an earlier connection of a resumed
+	 * session again, with their original sequence numbers, and keeps
+	 * them for another reconnect. Frames for rooms the session is no
+	 * longer in are skipped.
+	 * @param session The resumed session.
+	 * @param entries The frames the client did not receive.
+	 * @return The number of frames sent.
+	 **/
+	public int replay(ChannelSession session, List<ReplayBuffer.Entry> entries)
+	{
+		int sent = 0;
+		for (ReplayBuffer.Entry entry : entries)
+		{
+			StreamTable.Stream stream = null;
+			if (entry.getType() == FrameCodec.TYPE_STREAM_DATA)
+			{
+				stream = (session.getStreams() == null) ? null : session.getStreams().find(entry.getConversation());
+				if (stream == null)
+					continue;
+			}	// End of if
+			PendingWrite write = entry.encode((stream == null) ? 0 : stream.getId());
+			session.getDeliveries().sent(entry.getSequence(), entry.getText(), write);
+			if (session.getReplay() != null)
+				session.getReplay().add(entry.getSequence(), entry.getType(), entry.getConversation(), entry.getText());
+			if (stream == null)
+				session.enqueue(write);
+			else
+				stream.send(write);
+			sent++;
+		}	// End of for
+		return sent;
+	}	// End of method replay
+
+	/**
+	 * Returns the currently open sessions.
+	 * @return A live, unmodifiable view of the open sessions.
+	 **/
+	public Set<ChannelSession> getSessions()
+	{
+		return Collections.unmodifiableSet(this.sessions);
+	}	// End of method getSessions
+
+	/**
+	 * Describes every open session that has hit its outbound limits or
+	 * been held to its rate limits.
+	 * @return One line per throttled session, or a line saying there are none.
+	 **/
+	public String describeThrottled()
+	{
+		StringBuilder sb = new StringBuilder();
+		for (ChannelSession session : this.sessions)
+		{
+			OutboundBudget budget = session.getOutboundBudget();
+			if (budget.isThrottled())
+			{
+				if (sb.length() > 0)
+					sb.append('\n');
+				sb.append(session.getInetAddress()).append(" #").append(session.getId())
+					.append(": ").append(budget.describe());
+			}	// End of if
+			RateLimiter.Meter meter = session.getRateMeter();
+			if (meter != null && (meter.getPauses() > 0 || meter.getRejected() > 0))
+			{
+				if (sb.length() > 0)
+					sb.append('\n');
+				sb.append(session.getInetAddress()).append(" #").append(session.getId())
+					.append(": over its rate limits, reads paused ").append(meter.getPauses())
+					.append(" times, ").append(meter.getRejected()).append(" frames refused")
+					.append(session.isReadsPaused() ? " (paused now)" : "");
+			}	// End of if
+		}	// End of for
+		return (sb.length() == 0) ? "No connection has hit its outbound or rate limits." : sb.toString();
+	}	// End of method describeThrottled
+
+	/**
+	 * Returns the traffic and latency metrics of this reactor.
+	 * @return The metrics, also registered as a JMX MBean while bound.
+	 **/
+	public ServerMetrics getMetrics()
+	{
+		return this.metrics;
+	}	// End of method getMetrics
+
+	/**
+	 * Returns the delivery latencies of the chat messages sent to clients.
+	 * @return The tracer, also registered as a JMX MBean while bound.
+	 **/
+	public DeliveryTracer getTracer()
+	{
+		return this.tracer;
+	}	// End of method getTracer
+
+	/**
+	 * Returns whether the reactor is accepting connections.
+	 * @return True if running.
+	 **/
+	public boolean isRunning()
+	{
+		return this.running;
+	}	// End of method isRunning
+
+	/**
+	 * Returns the listening socket.
+	 * @return The ServerSocket of the listening channel, or null if unbound.
+	 **/
+	public ServerSocket getServerSocket()
+	{
+		return (this.serverChannel == null) ? null : this.serverChannel.socket();
+	}	// End of method getServerSocket
+
+	/**
+	 * Keeps the set of open sessions up to date before forwarding
+	 * events to the user's handler.
+	 **/
+	private class TrackingHandler implements ReactorHandler
+	{
+		private final ReactorHandler delegate;
+
+		TrackingHandler(ReactorHandler delegate)
+		{
+			this.delegate = delegate;
+		}	// End of constructor
+
+		public void sessionOpened(final ChannelSession session)
+		{
+			IMReactor.this.sessions.add(session);
+			if (IMReactor.this.rateLimiter != null)
+				session.setRateMeter(IMReactor.this.rateLimiter.open(session.getInetAddress()));
+			if (session.getProtocolVersion() >= FrameCodec.HEARTBEAT_PROTOCOL_VERSION)
+				IMReactor.this.timers.schedule(new IdleCheck(session), IMReactor.this.heartbeatMillis);
+			if (session.getProtocolVersion() >= FrameCodec.STREAM_PROTOCOL_VERSION)
+				session.setStreams(new StreamTable(new Consumer<PendingWrite>()
+				{
+					public void accept(PendingWrite write)
+					{
+						session.enqueue(write);
+					}	// End of method accept
+				}));
+			if (session.getProtocolVersion() >= FrameCodec.RESUME_PROTOCOL_VERSION)
+				session.setReplay(new ReplayBuffer());
+			this.delegate.sessionOpened(session);
+		}	// End of method sessionOpened
+
+		public void frameReceived(ChannelSession session, Frame frame)
+		{
+			// Heartbeats, ACKs and stream credit are handled here and never reach the handler
+			if (frame.isTraced())
+				session.setLastReceivedSequence(frame.getSequence());
+			if (frame.getType() == FrameCodec.TYPE_PING)
+				session.send(FrameCodec.TYPE_PONG, FrameCodec.emptyPayload());
+			else if (frame.getType() == FrameCodec.TYPE_ACK)
+				this.acknowledged(session, frame);
+			else if (frame.getType() == FrameCodec.TYPE_STREAM_WINDOW)
+				this.granted(session, frame);
+			else if (frame.getType() != FrameCodec.TYPE_PONG)
+				this.delegate.frameReceived(session, frame);
+		}	// End of method frameReceived
+
+		public void sessionClosed(ChannelSession session)
+		{
+			IMReactor.this.sessions.remove(session);
+			session.getDeliveries().close();
+			if (session.getRateMeter() != null)
+				session.getRateMeter().close();
+			if (session.getStreams() != null)
+				session.getStreams().close();
+			this.delegate.sessionClosed(session);
+		}	// End of method sessionClosed
+
+		private void acknowledged(ChannelSession session, Frame frame)
+		{
+			try
+			{
+				session.getDeliveries().acknowledged(frame);
+			}	// End of try
+			catch (ProtocolException e)
+			{
+				session.close();
+			}	// End of catch
+		}	// End of method acknowledged
+
+		private void granted(ChannelSession session, Frame frame)
+		{
+			try
+			{
+				if (session.getStreams() != null)
+					session.getStreams().granted(frame);
+			}	// End of try
+			catch (ProtocolException e)
+			{
+				session.close();
+			}	// End of catch
+		}	// End of method granted
+	}	// End of class TrackingHandler
+
+	/**
+	 * Runs on the timer wheel for one session: pings a quiet client,
+	 * closes one that has been quiet too long, and otherwise schedules
+	 * itself for the moment the client would next become idle.
+	 **/
+	private class IdleCheck implements Runnable
+	{
+		private final ChannelSession session;
+
+		IdleCheck(ChannelSession session)
+		{
+			this.session = session;
+		}	// End of constructor
+
+		public void run()
+		{
+			if (this.session.isClosed() || !IMReactor.this.running)
+				return;
+
+			long idle = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - this.session.getLastReadTime());
+			long heartbeat = IMReactor.this.heartbeatMillis;
+			long timeout = IMReactor.this.idleTimeoutMillis;
+			if (idle >= timeout)
+			{
+				this.session.timeOut();
+				return;
+			}	// End of if
+
+			long delay;
+			if (idle >= heartbeat)
+			{
+				this.session.send(FrameCodec.TYPE_PING, FrameCodec.emptyPayload());
+				delay = Math.min(heartbeat, timeout - idle);
+			}	// End of if
+			else
+				delay = heartbeat - idle;
+			IMReactor.this.timers.schedule(this, delay);
+		}	// End of method run
+	}	// End of class IdleCheck
+
+	/**
+	 * A reactor thread that owns a Selector and all I/O on the
+	 * channels registered with it.
+	 **/
+	class Worker implements Runnable
+	{
+		private final Selector selector;
+		private final Queue<ChannelSession> registrations = new ConcurrentLinkedQueue<ChannelSession>();
+		private final Queue<ChannelSession> writeRequests = new ConcurrentLinkedQueue<ChannelSession>();
+		private final Queue<ChannelSession> readRequests = new ConcurrentLinkedQueue<ChannelSession>();
+		private final BufferPool buffers = new BufferPool();
+
+		Worker(Selector selector)
+		{
+			this.selector = selector;
+		}	// End of constructor
+
+		/**
+		 * Hands a newly accepted session to this worker.
+		 **/
+		void register(ChannelSession session)
+		{
+			this.registrations.add(session);
+			this.selector.wakeup();
+		}	// End of method register
+
+		/**
+		 * Returns the read buffers lent to this worker's sessions. Only
+		 * used on this worker's thread.
+		 **/
+		BufferPool getBufferPool()
+		{
+			return this.buffers;
+		}	// End of method getBufferPool
+
+		/**
+		 * Asks this worker to flush a session's outbound queue.
+		 **/
+		void scheduleWrite(ChannelSession session)
+		{
+			this.writeRequests.add(session);
+			this.selector.wakeup();
+		}	// End of method scheduleWrite
+
+		/**
+		 * Asks this worker to resume reading a paused session after a delay.
+		 **/
+		void resumeReads(final ChannelSession session, long delayMillis)
+		{
+			IMReactor.this.timers.schedule(new Runnable()
+			{
+				public void run()
+				{
+					Worker.this.readRequests.add(session);
+					Worker.this.selector.wakeup();
+				}	// End of method run
+			}, delayMillis);
+		}	// End of method resumeReads
+
+		public void run()
+		{
+			long deadline = Long.MAX_VALUE;
+
+			try
+			{
+				while (true)
+				{
+					if (!IMReactor.this.running)
+					{
+						if (deadline == Long.MAX_VALUE)
+							deadline = System.currentTimeMillis() + SHUTDOWN_TIMEOUT_MILLIS;
+						if (this.selector.keys().isEmpty() && this.registrations.isEmpty()
+							|| System.currentTimeMillis() > deadline)
+							break;
+					}	// End of if
+
+					this.selector.select(IMReactor.this.running ? 0 : 100);
+					this.processRegistrations();
+					this.processWriteRequests();
+					this.processReadRequests();
+
+					Iterator<SelectionKey> it = this.selector.selectedKeys().iterator();
+					while (it.hasNext())
+					{
+						SelectionKey key = it.next();
+						it.remove();
+						ChannelSession session = (ChannelSession) key.attachment();
+						try
+						{
+							if (key.isValid() && key.isReadable())
+								session.read();
+							if (key.isValid() && key.isWritable())
+								session.flush();
+						}	// End of try
+						catch (IOException e)
+						{
+							session.closeNow();
+						}	// End of catch
+						catch (CancelledKeyException e)
+						{
+							session.closeNow();
+						}	// End of catch
+					}	// End of while
+				}	// End of while
+			}	// End of try
+			catch (IOException e)
+			{
+				// Selector failed; fall through and close everything
+			}	// End of catch
+			finally
+			{
+				for (SelectionKey key : this.selector.keys())
+					((ChannelSession) key.attachment()).closeNow();
+				ChannelSession session;
+				while ((session = this.registrations.poll()) != null)
+					session.closeNow();
+				try
+				{
+					this.selector.close();
+				}	// End of try
+				catch (IOException e)
+				{
+					// Nothing left to release
+				}	// End of catch
+			}	// End of finally
+		}	// End of method run
+
+		private void processRegistrations()
+		{
+			ChannelSession session;
+			while ((session = this.registrations.poll()) != null)
+			{
+				try
+				{
+					session.register(this.selector);
+					if (!IMReactor.this.running)
+						session.close();
+				}	// End of try
+				catch (IOException e)
+				{
+					session.closeNow();
+				}	// End of catch
+			}	// End of while
+		}	// End of method processRegistrations
+
+		private void processWriteRequests()
+		{
+			ChannelSession session;
+			while ((session = this.writeRequests.poll()) != null)
+			{
+				if (session.isClosed())
+					continue;
+				try
+				{
+					session.flush();
+				}	// End of try
+				catch (IOException e)
+				{
+					session.closeNow();
+				}	// End of catch
+				catch (CancelledKeyException e)
+				{
+					session.closeNow();
+				}	// End of catch
+			}	// End of while
+		}	// End of method processWriteRequests
+
+		private void processReadRequests()
+		{
+			ChannelSession session;
+			while ((session = this.readRequests.poll()) != null)
+			{
+				if (session.isClosed())
+					continue;
+				try
+				{
+					session.resumeReads();
+				}	// End of try
+				catch (IOException e)
+				{
+					session.closeNow();
+				}	// End of catch
+				catch (CancelledKeyException e)
+				{
+					session.closeNow();
+				}	// End of catch
+			}	// End of while
+		}	// End of method processReadRequests
+	}	// End of class Worker
+}	// End of class IMReactor
\ No newline at end of file
@@ -4,91 +4,204 @@
 
 import java.io.*;
 import java.net.*;
+import java.nio.*;
+import java.security.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.function.*;
 
 /**
- * Represents an IM server object.
+ * Represents an IM server object. Connections are served by an
+ * IMReactor, so any number of clients may be connected at once.
+ * Clients may also join named rooms; the server relays each room
+ * message to the room's other members. Clients that multiplex
+ * conversations get each room as its own stream on their connection.
+ * Clients that stop reading are throttled by their outbound limits
+ * rather than holding up the rest, and clients that send too fast are
+ * held to the RateLimiter's limits; typing /throttled lists both.
+ * Files are offered to every client that supports them, and clients
+ * may send files to the server.
+ *
+ * Clients that identify themselves by name get a durable queue in a
+ * MessageStore. Messages sent while such a client is away are kept
+ * there and delivered when it next connects, so the server may send
+ * even when no client is connected. Typing "/msg name text" sends to
+ * one client, and /queued lists what is waiting.
+ *
+ * When a client's connection drops, its session is kept for
+ * simpleim.resumeGraceMillis. A client that reconnects in time gets
+ * its rooms and name back, and the chat frames it had not received are
+ * sent again, along with the room messages sent while it was away.
+ *
+ * A server may be one node of a cluster, described by a ClusterNode.
+ * Messages to everyone, to a room or to one client then also reach the
+ * clients of the other nodes, and typing /cluster lists the nodes.
  **/
-public class IMServer implements IMConnectable, Runnable
+public class IMServer implements IMConnectable, Runnable, ReactorHandler
 {
+	// Constants
+	public static final String RESUME_GRACE_PROPERTY = "simpleim.resumeGraceMillis";
+	private static final long RESUME_GRACE_MILLIS = Long.getLong(RESUME_GRACE_PROPERTY, 60000);
+
 	// Attributes
-	private ObjectOutputStream output;
-	private ObjectInputStream input;
-	private volatile ServerSocket server;
-	private Socket connection;
+	private volatile IMReactor reactor;
+	private volatile boolean stopped = false;
 	private int port;
-	private IMWindow win;
+	private int workerCount;
+	private SessionListener listener;
+	private SessionExecutor executor;
 	private Thread thread = null;
+	private AtomicInteger connectedCount = new AtomicInteger(0);
+	private RoomRegistry rooms = new RoomRegistry();
+	private MessageStore store = null;
+	private ClusterNode cluster;
+	private Map<Long, Detached> detached = new ConcurrentHashMap<Long, Detached>();
+	private SecureRandom tokens = new SecureRandom();
 
 	/**
 	 * Sets up server and starts running it.
 	 * @param port The port number to run the server off of.
-	 * @param win The IMWindow object to run the server off of.
-	 * @throws IOException if
+	 * @param listener The object to report messages and status to.
+	 **/
+	public IMServer(int port, SessionListener listener)
+	{
+		this(port, Runtime.getRuntime().availableProcessors(), listener, SessionExecutor.getDefault());
+	}	// End of constructor
+
+	/**
+	 * Sets up server with a given number of reactor threads and starts running it.
+	 * @param port The port number to run the server off of.
+	 * @param workerCount The number of reactor threads serving connections.
+	 * @param listener The object to report messages and status to.
+	 * @param executor Starts the thread that runs the accept loop.
+	 **/
+	public IMServer(int port, int workerCount, SessionListener listener, SessionExecutor executor)
+	{
+		this(port, workerCount, listener, executor, ClusterNode.fromProperties());
+	}	// End of constructor
+
+	/**
+	 * Sets up server as a node of a cluster and starts running it.
+	 * @param port The port number to run the server off of.
+	 * @param workerCount The number of reactor threads serving connections.
+	 * @param listener The object to report messages and status to.
+	 * @param executor Starts the thread that runs the accept loop.
+	 * @param cluster The node this server is, or null to run on its own.
 	 **/
-	public IMServer(int port, IMWindow win)
+	public IMServer(int port, int workerCount, SessionListener listener, SessionExecutor executor, ClusterNode cluster)
 	{
-		this.win = win;		// Store IMWindow object
-		this.port = port;	// Store port
+		this.listener = listener;		// Store object to report to
+		this.port = port;				// Store port
+		this.workerCount = workerCount;	// Store number of reactor threads
+		this.executor = executor;		// Store thread source for the server
+		this.cluster = cluster;			// Store cluster membership
 		this.start();
 	}	// End of constructor
 
 	public void run()
 	{
+		this.reactor = new IMReactor(this.port, this.workerCount, this);
+		this.reactor.setRateLimiter(RateLimiter.fromProperties());
 		try
 		{
-			// Initialize server
-			this.server = new ServerSocket(this.port);
+			this.reactor.setOutboundLimits(OutboundBudget.fromProperties());
+		}	// End of try
+		catch (IllegalArgumentException e)
+		{
+			this.listener.printInformationMessage(e.getMessage() + ". Using the default outbound limits.");
+		}	// End of catch
 
+		try
+		{
+			// Initialize server
+			this.reactor.bind();
+		}	// End of try
+		catch (IOException e)
+		{
+			this.listener.printInformationMessage("This server is already running.");
+			this.listener.printInformationMessage("Waiting for connection...");
+			return;
+		}	// End of catch
+		if (this.stopped)
+		{
+			this.reactor.close();	// stop() ran before the reactor was listening
 			try
 			{
-				this.waitForConnection();		// Connect with a client
-				this.initializeStreams();		// Set up IO streams for server and client
-				this.win.setConnected(true);	// Set connection to true
-				this.win.ableToSend(true);		// Enable "Send" button
-				this.win.printInformationMessage("Connection set. Start chatting!");
-				this.doWhileChatting();			// Do while connection is established
+				this.reactor.acceptLoop();	// Returns at once, closing the listening socket
 			}	// End of try
-			catch (EOFException e)
+			catch (IOException e)
 			{
-				// When connection has terminated, let user know.
-				win.printInformationMessage("Connection terminated.");
+				// Closing anyway
 			}	// End of catch
-			catch (NullPointerException e)
+			return;
+		}	// End of if
+
+		try
+		{
+			this.store = MessageStore.fromProperties((this.cluster == null) ? 0 : this.cluster.getNodeId());
+			if (this.store != null && this.store.hasRecipients())
 			{
-				this.win.printInformationMessage("Connection cancelled.");
-			}	// End of catch
-			finally
+				this.listener.ableToSend(true);		// Messages are kept for offline clients
+				this.listener.printInformationMessage("Messages sent now are kept for clients who are away.");
+			}	// End of if
+		}	// End of try
+		catch (IOException e)
+		{
+			this.listener.printInformationMessage("Unable to open the message store (" + e.getMessage()
+				+ "); messages will not be kept for offline clients.");
+		}	// End of catch
+
+		if (this.cluster != null)
+		{
+			try
 			{
-				if (this.connection != null)
-				{
-					try
-					{
-						this.closeConnection();
-						this.win.setSession(null);
-						this.win.ableToSend(false);
-						this.win.printInformationMessage("Connection closed.");
-					}	// End of try
-					catch (IOException e)
-					{
-						this.win.printInformationMessage("Unable to close connection.");
-					}	// End of catch
-				}	// End of if
-			}	// End of finally
+				this.cluster.start(this, this.listener);
+				this.listener.ableToSend(true);		// Messages reach the other nodes' clients
+				this.listener.printInformationMessage("Running as node " + this.cluster.getNodeId()
+					+ " of a cluster. Type /cluster to list the nodes.");
+			}	// End of try
+			catch (IOException e)
+			{
+				this.listener.printInformationMessage("Unable to open the cluster port; running on our own.");
+				this.cluster = null;
+			}	// End of catch
+		}	// End of if
+
+		try
+		{
+			this.waitForConnection();		// Serve clients until stopped
 		}	// End of try
 		catch (IOException e)
 		{
-			this.win.printInformationMessage("This server is already running.");
-			this.win.printInformationMessage("Waiting for connection...");
+			this.listener.printInformationMessage("Connection terminated.");
 		}	// End of catch
+		finally
+		{
+			try
+			{
+				this.closeConnection();
+				if (this.cluster != null)
+					this.cluster.close();
+				if (this.store != null)
+					this.store.close();
+				this.listener.setSession(null);
+				this.listener.ableToSend(false);
+				this.listener.printInformationMessage("Connection closed.");
+			}	// End of try
+			catch (IOException e)
+			{
+				this.listener.printInformationMessage("Unable to close connection.");
+			}	// End of catch
+		}	// End of finally
 	}	// End of method run
 
 	public void start()
 	{
 		if (thread == null)
 		{
-			thread = new Thread(this);
-			thread.setDaemon(false);
-			thread.start();
+			this.stopped = false;
+			thread = this.executor.start(this, "IMServer-" + this.port);
 		}	// End of if
 	}	// End of method start
 
@@ -96,124 +209,643 @@ public class IMServer implements IMConnectable, Runnable
 	{
 		if (thread != null)
 		{
-			thread.interrupt();
+			this.stopped = true;	// Checked by run() once bound, in case the reactor is not set yet
+			if (this.reactor != null)
+				this.reactor.close();	// Wakes the accept loop and closes sessions
 			thread = null;
 		}	// End of if
 	}	// End of method stop
 
 	/**
-	 * Waits for connection to a client, then displays connection information.
-	 * @throws IOException if server ServerSocket's accept() is interrupted.
+	 * Accepts and serves client connections until the server is stopped.
+	 * @throws IOException if the reactor's selector fails.
 	 **/
 	public void waitForConnection() throws IOException
 	{
-		try
-		{
-			this.win.printInformationMessage("Waiting for connection...");	// Print status to IMWindow object
-			this.connection = server.accept();								// Wait for a client connection, then proceed
-			this.win.printInformationMessage("Now connected to " + this.connection.getInetAddress()
-				+ " on port " + this.port + ".");							// Print status to IMWindow object
-		}
-		catch (SocketException e)
-		{
-			// Socket has been closed. Do nothing.
-		}	// End of catch
+		this.listener.printInformationMessage("Waiting for connection...");	// Report status to listener
+		this.reactor.acceptLoop();										// Accept clients until closed
 	}	// End of method waitForConnection
 
 	/**
-	 * Gets stream to send and receive messages.
-	 * @throws IOException if there is a problem getting the
-	 * Socket's IO streams.
+	 * Streams are set up per connection by the reactor, which also
+	 * performs the protocol handshake before sessionOpened() is called.
 	 **/
-	public void initializeStreams() throws IOException
+	public void initializeStreams()
 	{
-		this.output = new ObjectOutputStream(this.connection.getOutputStream());	// Get output stream of socket
-		this.output.flush();														// Send any residual data to client
-		this.input = new ObjectInputStream(this.connection.getInputStream());		// Get input stream of socket
-		this.win.printInformationMessage("IO streams initialized.");				// Print status to IMWindow object
+		this.listener.printInformationMessage("IO streams initialized.");	// Report status to listener
 	}	// End of method initializeStreams
 
 	/**
-	 * Executes actions during chat session.
+	 * Messages are dispatched by the reactor threads through
+	 * frameReceived(), so there is no read loop to run.
 	 **/
 	public void doWhileChatting()
 	{
-		String message = "";
-
-		do
-		{
-			try
-			{
-				// Read incoming message from socket
-				message = (String) this.input.readObject();
-				if (!message.equals("-=CLOSE=-"))
-					// Print incoming message in IMWindow object
-					this.win.printIncomingMessage(message);
-				else
-					break;
-			}	// End of try
-			catch (ClassNotFoundException e)
-			{
-				this.win.printInformationMessage("Unable to parse incoming data.");
-				break;
-			}	// End of catch
-			catch (IOException e)
-			{
-				// End of connection
-				break;
-			}	// End of catch
-		} while (true);
 	}	// End of method doWhileChatting
 
 	/**
-	 * Deinitializes streams and closes socket connection.
-	 * @throws IOException if there is a problem closing the IO streams.
-	 * @throws SocketException when Socket is closed.
+	 * Closes all client connections and the listening socket.
+	 * @throws IOException if there is a problem closing the server.
 	 **/
-	public void closeConnection() throws IOException, SocketException
+	public void closeConnection() throws IOException
 	{
-		this.win.printInformationMessage("Closing connection...");		// Print status to IMWindow object
-		this.server.close();			// Close server
-		this.connection.close();		// Close socket connection
-		this.output.close();			// Close output stream
-		this.input.close();				// Close input stream
-		this.win.setConnected(false);	// Set connected to false
+		this.listener.printInformationMessage("Closing connection...");		// Report status to listener
+		this.reactor.close();			// Close server and every session
+		this.listener.setConnected(false);	// Set connected to false
 	}	// End of method closeConnection
 
 	/**
-	 * Sends a message to the client.
-	 * @param msg The String to send to the client.
-	 * @throws IOException if unable to write to output stream.
+	 * Queues a message for every connected client, keeps it for every
+	 * known client that is away, and returns at once. The command
+	 * "/msg name text" sends to one client, "/throttled" lists clients
+	 * that have hit their outbound or rate limits and "/queued" lists messages
+	 * kept for offline clients. In a cluster the message also goes to
+	 * the other nodes, and "/cluster" lists them.
+	 * @param msg The String to send to the clients.
+	 * @return A future completed once every connected client's copy is written.
 	 **/
-	public void sendMessage(String msg) throws IOException
+	public CompletableFuture<Void> sendMessage(String msg)
 	{
-		this.output.writeObject(msg);			// Send msg to socket for output
-		this.output.flush();					// Clear any residual data from output stream
-		if (!msg.equals("-=CLOSE=-"))
-			this.win.printOutgoingMessage(msg);	// Print incoming message in IMWindow object
+		CompletableFuture<Void> sent;
+		if (msg.equals("/throttled") || msg.equals("/queued") || msg.equals("/cluster"))
+		{
+			String report = msg.equals("/throttled") ? this.reactor.describeThrottled()
+				: msg.equals("/cluster") ? ((this.cluster == null) ? "This server is not part of a cluster."
+				: this.cluster.describe())
+				: (this.store == null) ? "The message store is not available." : this.store.describe();
+			for (String line : report.split("\n"))
+				this.listener.printInformationMessage(line);
+			sent = CompletableFuture.completedFuture(null);
+		}	// End of if
+		else if (msg.startsWith("/msg "))
+			sent = this.sendDirectMessage(msg.substring(5).trim());
+		else if (!msg.equals("-=CLOSE=-"))
+		{
+			sent = this.reactor.broadcast(FrameCodec.TYPE_MESSAGE, msg);	// Queue msg on every session
+			sent = this.forward(sent, ClusterNode.SCOPE_ALL, null, msg);		// Send msg to the other nodes
+			this.keepForDetached(null, msg);										// Keep msg for clients reconnecting
+			this.listener.printOutgoingMessage(msg);								// Report outgoing message to listener
+			this.store(null, msg);												// Keep msg for clients who are away
+		}	// End of if
 		else
 		{
-			this.stop();						// Stop connection thread
+			sent = this.reactor.broadcast(FrameCodec.TYPE_CLOSE, "");		// Tell every client the server is closing
+			this.stop();													// Stop server once queued frames are sent
 		}	// End of else
+		return sent;
 	}	// End of method sendMessage
 
+	/**
+	 * Sends a message to the sessions of one client, or keeps it if
+	 * the client is away.
+	 * @param command "name text".
+	 * @return A future completed once every session's copy is written.
+	 **/
+	private CompletableFuture<Void> sendDirectMessage(String command)
+	{
+		int space = command.indexOf(' ');
+		if (space < 0)
+		{
+			this.listener.printInformationMessage("Type /msg name text to send to one client.");
+			return CompletableFuture.completedFuture(null);
+		}	// End of if
+		String name = command.substring(0, space);
+		String text = command.substring(space + 1).trim();
+
+		List<ChannelSession> recipients = new ArrayList<ChannelSession>();
+		for (ChannelSession session : this.reactor.getSessions())
+			if (name.equals(session.getUserName()))
+				recipients.add(session);
+		if (recipients.isEmpty() && (this.store == null || !this.store.isRecipient(name))
+			&& (this.cluster == null || !this.cluster.isRemoteUser(name)))
+		{
+			this.listener.printInformationMessage("No client named " + name + " has connected.");
+			return CompletableFuture.completedFuture(null);
+		}	// End of if
+
+		CompletableFuture<Void> sent = this.reactor.broadcast(FrameCodec.TYPE_MESSAGE, text, recipients, null);
+		sent = this.forward(sent, ClusterNode.SCOPE_USER, name, text);
+		this.listener.printOutgoingMessage("[to " + name + "] " + text);
+		this.store(name, text);
+		return sent;
+	}	// End of method sendDirectMessage
+
+	/**
+	 * Forwards a message to the other nodes of the cluster, if any.
+	 * @param sent The completion of the local copies.
+	 * @return A future completed once the local and forwarded copies are written.
+	 **/
+	private CompletableFuture<Void> forward(CompletableFuture<Void> sent, byte scope, String target, String text)
+	{
+		ClusterNode cluster = this.cluster;
+		if (cluster == null)
+			return sent;
+		return CompletableFuture.allOf(sent, cluster.forward(scope, target, text));
+	}	// End of method forward
+
+	/**
+	 * Hands a message forwarded by another node of the cluster to the
+	 * clients of this one, keeping it for those that are away. Called
+	 * by the ClusterNode.
+	 * @param scope ClusterNode.SCOPE_ALL, SCOPE_ROOM or SCOPE_USER.
+	 * @param target The room or user name.
+	 * @param text The message.
+	 **/
+	void deliverRelayed(byte scope, String target, String text)
+	{
+		if (scope == ClusterNode.SCOPE_ROOM)
+		{
+			this.reactor.broadcastRoom(target, this.rooms.getStreamId(target), text, this.rooms.getMembers(target), null);
+			this.keepForDetached(target, text);
+			return;
+		}	// End of if
+
+		List<ChannelSession> recipients = new ArrayList<ChannelSession>();
+		for (ChannelSession session : this.reactor.getSessions())
+			if (scope == ClusterNode.SCOPE_ALL || target.equals(session.getUserName()))
+				recipients.add(session);
+		this.reactor.broadcast(FrameCodec.TYPE_MESSAGE, text, recipients, null);
+		if (scope == ClusterNode.SCOPE_ALL)
+			this.keepForDetached(null, text);
+		this.store((scope == ClusterNode.SCOPE_ALL) ? null : target, text);
+	}	// End of method deliverRelayed
+
+	/**
+	 * Keeps a message for one or every known client that is away. In a
+	 * cluster, clients connected to another node are not away.
+	 * @param name The client, or null for every client.
+	 * @param text The message.
+	 **/
+	private void store(String name, String text)
+	{
+		if (this.store == null)
+			return;
+		ClusterNode cluster = this.cluster;
+		Set<String> elsewhere = (cluster == null) ? Collections.<String>emptySet() : cluster.getRemoteUsers();
+		try
+		{
+			long now = System.currentTimeMillis();
+			if (name == null)
+				this.store.storeForOffline(now, text, elsewhere);
+			else if (!elsewhere.contains(name))
+				this.store.storeIfOffline(name, now, text);
+		}	// End of try
+		catch (IOException e)
+		{
+			this.listener.printInformationMessage("Unable to keep the message for offline clients: " + e.getMessage());
+		}	// End of catch
+	}	// End of method store
+
+	/**
+	 * Offers a file to every connected client that supports file
+	 * transfers. Each client that accepts is sent its own copy.
+	 * @param file The file to send.
+	 * @throws IOException if the file cannot be opened.
+	 **/
+	public void sendFile(File file) throws IOException
+	{
+		int offered = 0;
+		for (ChannelSession session : this.reactor.getSessions())
+		{
+			FileTransfers transfers = session.getFileTransfers();
+			if (transfers != null)
+			{
+				session.send(FrameCodec.TYPE_FILE_OFFER, transfers.offer(file));
+				offered++;
+			}	// End of if
+		}	// End of for
+		if (offered == 0)
+			this.listener.printInformationMessage("No connected client supports file transfers.");
+		else
+			this.listener.printInformationMessage("Offered " + file.getName() + " to " + offered + " client(s).");
+	}	// End of method sendFile
+
+	/**
+	 * Returns the delivery latencies of the messages sent to clients.
+	 * @return The reactor's tracer, or null before the server starts.
+	 **/
+	public DeliveryTracer getDeliveryTracer()
+	{
+		IMReactor reactor = this.reactor;
+		return (reactor == null) ? null : reactor.getTracer();
+	}	// End of method getDeliveryTracer
+
+	/**
+	 * Returns the outbound queue limits given to each client.
+	 * @return The reactor's limits, or null before the server starts.
+	 **/
+	public OutboundBudget getOutboundLimits()
+	{
+		IMReactor reactor = this.reactor;
+		return (reactor == null) ? null : reactor.getOutboundLimits();
+	}	// End of method getOutboundLimits
+
+	/**
+	 * Called by the reactor when a client connects.
+	 * @param session The new client session.
+	 **/
+	public void sessionOpened(ChannelSession session)
+	{
+		if (session.getProtocolVersion() >= FrameCodec.FILE_PROTOCOL_VERSION)
+			session.setFileTransfers(new FileTransfers(this.listener, FileTransfers.getDefaultDirectory(),
+				session.getInetAddress().getHostAddress()));
+		this.listener.printInformationMessage("Now connected to " + session.getInetAddress()
+			+ " on port " + this.port + ".");							// Report status to listener
+		if (this.connectedCount.incrementAndGet() == 1)
+		{
+			this.listener.setConnected(true);	// Set connection to true
+			this.listener.ableToSend(true);		// Enable "Send" button
+			this.listener.printInformationMessage("Connection set. Start chatting!");
+		}	// End of if
+	}	// End of method sessionOpened
+
+	/**
+	 * Called by the reactor for every frame a client sends.
+	 * @param session The session the frame arrived on.
+	 * @param frame The received frame.
+	 **/
+	public void frameReceived(ChannelSession session, Frame frame)
+	{
+		switch (frame.getType())
+		{
+			case FrameCodec.TYPE_MESSAGE:
+				// Report incoming message to listener, acknowledging it once shown
+				this.listener.printIncomingMessage(frame.getText(), session.acknowledgement(frame));
+				break;
+			case FrameCodec.TYPE_CLOSE:
+				session.close();
+				break;
+			case FrameCodec.TYPE_JOIN:
+				if (FrameCodec.isValidRoomName(frame.getText()))
+					this.join(session, frame.getText());
+				break;
+			case FrameCodec.TYPE_LEAVE:
+				this.leave(session, frame.getText());
+				break;
+			case FrameCodec.TYPE_LIST:
+				session.send(FrameCodec.TYPE_LIST, this.rooms.list());
+				break;
+			case FrameCodec.TYPE_ROOM_MESSAGE:
+				// Relay to the room's other members, then report to listener
+				String room = frame.getRoom();
+				if (this.rooms.isMember(room, session))
+				{
+					this.reactor.broadcastRoom(room, this.rooms.getStreamId(room), frame.getRoomText(),
+						this.rooms.getMembers(room), session);
+					this.keepForDetached(room, frame.getRoomText());
+					if (this.cluster != null)
+						this.cluster.forward(ClusterNode.SCOPE_ROOM, room, frame.getRoomText());
+					this.listener.printIncomingMessage("[#" + room + "] " + frame.getRoomText(),
+						session.acknowledgement(frame));
+				}	// End of if
+				break;
+			case FrameCodec.TYPE_STREAM_DATA:
+				this.receiveStreamData(session, frame);
+				break;
+			case FrameCodec.TYPE_FILE_OFFER:
+				this.receiveOffer(session, frame);
+				break;
+			case FrameCodec.TYPE_FILE_ACCEPT:
+				this.receiveAccept(session, frame);
+				break;
+			case FrameCodec.TYPE_IDENTIFY:
+				this.identify(session, frame.getText());
+				break;
+			case FrameCodec.TYPE_RESUME:
+				this.resume(session, frame);
+				break;
+			default:
+				// Ignore frame types this version does not understand
+				break;
+		}	// End of switch
+	}	// End of method frameReceived
+
+	/**
+	 * Called by the reactor when a client disconnects.
+	 * @param session The closed session.
+	 **/
+	public void sessionClosed(ChannelSession session)
+	{
+		Set<String> joined = this.rooms.leaveAll(session);
+		for (String room : joined)
+			this.roomChanged(room);
+		if (session.getResumeToken() != 0 && this.reactor.isRunning())
+			this.detach(session, joined);
+		if (session.getUserName() != null && this.store != null)
+			this.store.detach(session.getUserName());
+		if (session.getUserName() != null && this.cluster != null)
+			this.cluster.userChanged(session.getUserName(), false);
+		if (session.getFileTransfers() != null)
+			session.getFileTransfers().close();	// Keep partial files for resuming
+		FrameCompressor compressor = session.getCompressor();
+		if (compressor != null && compressor.getFramesInflated() > 0)
+			this.listener.printInformationMessage(compressor.describeReceived());
+		OutboundBudget budget = session.getOutboundBudget();
+		if (budget.getDroppedMessages() > 0)
+			this.listener.printInformationMessage("Dropped " + budget.getDroppedMessages() + " messages to "
+				+ session.getInetAddress() + ", which was not reading fast enough.");
+		RateLimiter.Meter meter = session.getRateMeter();
+		if (meter != null && meter.getRejected() > 0)
+			this.listener.printInformationMessage("Refused " + meter.getRejected() + " frames from "
+				+ session.getInetAddress() + ", which was sending too fast.");
+		if (session.isTimedOut())
+			this.listener.printInformationMessage("Connection to " + session.getInetAddress() + " timed out.");
+		else if (session.isSlowConsumer())
+			this.listener.printInformationMessage("Disconnected " + session.getInetAddress()
+				+ ": it stopped reading and its outbound limit was reached.");
+		else
+			this.listener.printInformationMessage("Connection terminated.");
+		if (this.connectedCount.decrementAndGet() == 0)
+		{
+			this.listener.setConnected(false);	// Set connected to false
+			this.listener.ableToSend(this.cluster != null
+				|| this.store != null && this.store.hasRecipients());	// Keep sending to the store or cluster
+			if (this.reactor.isRunning())
+			{
+				this.listener.printInformationMessage("Waiting for connection...");
+				if (this.store != null && this.store.hasRecipients())
+					this.listener.printInformationMessage("Messages sent now are kept for clients who are away.");
+			}	// End of if
+		}	// End of if
+	}	// End of method sessionClosed
+
+	/**
+	 * Adds a client to a room, opening the room's stream on its
+	 * connection if it multiplexes conversations.
+	 **/
+	private void join(ChannelSession session, String room)
+	{
+		int streamId = this.rooms.join(room, session);
+		StreamTable streams = session.getStreams();
+		if (streams != null)
+		{
+			streams.open(streamId, room);
+			session.send(FrameCodec.TYPE_STREAM_OPEN, FrameCodec.streamPayload(streamId, room));
+		}	// End of if
+		this.roomChanged(room);
+	}	// End of method join
+
+	/**
+	 * Removes a client from a room and closes the room's stream.
+	 **/
+	private void leave(ChannelSession session, String room)
+	{
+		StreamTable streams = session.getStreams();
+		StreamTable.Stream stream = (streams == null) ? null : streams.find(room);
+		if (stream != null)
+			streams.close(stream.getId());
+		this.rooms.leave(room, session);
+		this.roomChanged(room);
+	}	// End of method leave
+
+	/**
+	 * Relays a message a client sent on a room's stream to the room's
+	 * other members, then returns the client's credit.
+	 **/
+	private void receiveStreamData(ChannelSession session, Frame frame)
+	{
+		StreamTable streams = session.getStreams();
+		if (streams == null)
+			return;
+		StreamTable.Stream stream;
+		try
+		{
+			stream = streams.get(frame.getStreamId());
+			if (stream == null)
+				return;		// Sent before the client's LEAVE arrived
+			stream.received();
+		}	// End of try
+		catch (ProtocolException e)
+		{
+			session.close();
+			return;
+		}	// End of catch
+
+		String room = stream.getName();
+		String text = frame.getStreamText();
+		this.reactor.broadcastRoom(room, stream.getId(), text, this.rooms.getMembers(room), session);
+		this.keepForDetached(room, text);
+		if (this.cluster != null)
+			this.cluster.forward(ClusterNode.SCOPE_ROOM, room, text);
+		this.listener.printIncomingMessage("[#" + room + "] " + text, session.acknowledgement(frame));
+		stream.consumed();		// Each member's own stream holds back what it cannot take yet
+	}	// End of method receiveStreamData
+
+	/**
+	 * Tells the other nodes of the cluster whether this one still
+	 * holds a room.
+	 **/
+	private void roomChanged(String room)
+	{
+		if (this.cluster != null)
+			this.cluster.roomChanged(room, this.rooms);
+	}	// End of method roomChanged
+
+	/**
+	 * Keeps what a closed session needs to be resumed, and forgets
+	 * sessions whose grace period has run out.
+	 **/
+	private void detach(ChannelSession session, Set<String> joined)
+	{
+		long now = System.currentTimeMillis();
+		Iterator<Detached> it = this.detached.values().iterator();
+		while (it.hasNext())
+			if (it.next().closedAt + RESUME_GRACE_MILLIS < now)
+				it.remove();
+		this.detached.put(session.getResumeToken(), new Detached(session, joined, now));
+	}	// End of method detach
+
+	/**
+	 * Keeps a message for the sessions waiting to be resumed that would
+	 * have been sent it. Messages to everyone are only kept for clients
+	 * without a name, since the message store keeps them for the rest.
+	 * @param room The room, or null for a message to everyone.
+	 * @param text The message.
+	 **/
+	private void keepForDetached(String room, String text)
+	{
+		long sequence = 0;
+		for (Detached session : this.detached.values())
+		{
+			if ((room == null) ? session.userName != null : !session.rooms.contains(room))
+				continue;
+			if (sequence == 0)
+				sequence = this.reactor.getTracer().nextSequence();
+			session.replay.add(sequence, (room == null) ? FrameCodec.TYPE_MESSAGE : FrameCodec.TYPE_STREAM_DATA,
+				room, text);
+		}	// End of for
+	}	// End of method keepForDetached
+
+	/**
+	 * Answers a client's RESUME. If it names a session kept by detach(),
+	 * the client rejoins that session's rooms, takes back its name, and
+	 * is sent again the chat frames it had not received. Either way it
+	 * is given a new token.
+	 **/
+	private void resume(ChannelSession session, Frame frame)
+	{
+		if (session.getReplay() == null || session.getResumeToken() != 0)
+			return;		// Only once, at the start of a session
+		byte[] payload = frame.getPayload();
+		if (payload.length < FrameCodec.RESUME_SIZE)
+		{
+			session.close();
+			return;
+		}	// End of if
+		ByteBuffer buf = ByteBuffer.wrap(payload);
+		long token = buf.getLong();
+		long lastSequence = buf.getLong();
+
+		long newToken;
+		do
+			newToken = this.tokens.nextLong();
+		while (newToken == 0);
+		session.setResumeToken(newToken);
+		Detached old = (token == 0) ? null : this.detached.remove(token);
+		if (old == null || old.closedAt + RESUME_GRACE_MILLIS < System.currentTimeMillis())
+		{
+			session.send(FrameCodec.TYPE_SESSION, FrameCodec.sessionPayload(newToken, 0, false));
+			return;
+		}	// End of if
+
+		// Streams are opened before SESSION so the client can replay into them
+		for (String room : old.rooms)
+			this.join(session, room);
+		if (old.userName != null)
+			this.identify(session, old.userName);
+		session.send(FrameCodec.TYPE_SESSION, FrameCodec.sessionPayload(newToken, old.lastReceivedSequence, true));
+		int replayed = this.reactor.replay(session, old.replay.after(lastSequence));
+		this.listener.printInformationMessage("Resumed the session of " + session.getInetAddress()
+			+ ((replayed == 0) ? "." : "; sent " + replayed + " messages again."));
+	}	// End of method resume
+
+	/**
+	 * Records who a client is and delivers what was kept for it.
+	 **/
+	private void identify(final ChannelSession session, String name)
+	{
+		if (session.getUserName() != null || !FrameCodec.isValidUserName(name))
+			return;
+		session.setUserName(name);
+		if (this.cluster != null)
+			this.cluster.userChanged(name, true);
+		if (this.store == null)
+			return;
+		try
+		{
+			if (!this.store.attach(name, new Function<byte[], CompletableFuture<Void>>()
+			{
+				public CompletableFuture<Void> apply(byte[] batch)
+				{
+					return session.send(FrameCodec.TYPE_STORED, batch);
+				}	// End of method apply
+			}))
+				this.listener.printInformationMessage("Not keeping messages for " + name
+					+ ", which is not in " + MessageStore.USERS_PROPERTY + " or past the mailbox limit.");
+		}	// End of try
+		catch (IOException e)
+		{
+			this.listener.printInformationMessage("Unable to open the message queue of " + name + ".");
+		}	// End of catch
+	}	// End of method identify
+
+	/**
+	 * Accepts a file offered by a client, resuming any partial copy, or
+	 * tells the client it was declined.
+	 **/
+	private void receiveOffer(ChannelSession session, Frame frame)
+	{
+		FileTransfers transfers = session.getFileTransfers();
+		if (transfers == null)
+			return;
+		try
+		{
+			byte[] accept = transfers.offered(frame.getPayload());
+			if (accept != null)
+				session.send(FrameCodec.TYPE_FILE_ACCEPT, accept);
+			else if (session.getProtocolVersion() >= FrameCodec.ERROR_PROTOCOL_VERSION)
+				session.send(FrameCodec.TYPE_ERROR, "The server declined your file.");
+		}	// End of try
+		catch (ProtocolException e)
+		{
+			session.close();
+		}	// End of catch
+		catch (IOException e)
+		{
+			this.listener.printInformationMessage("Unable to receive file: " + e.getMessage());
+		}	// End of catch
+	}	// End of method receiveOffer
+
+	/**
+	 * Starts sending a file a client accepted.
+	 **/
+	private void receiveAccept(final ChannelSession session, Frame frame)
+	{
+		FileTransfers transfers = session.getFileTransfers();
+		if (transfers == null)
+			return;
+		try
+		{
+			transfers.accepted(frame.getPayload(), new Consumer<PendingWrite>()
+			{
+				public void accept(PendingWrite chunk)
+				{
+					session.enqueue(chunk);
+				}	// End of method accept
+			});
+		}	// End of try
+		catch (ProtocolException e)
+		{
+			session.close();
+		}	// End of catch
+	}	// End of method receiveAccept
+
+	/**
+	 * What is kept of a closed session while it may be resumed.
+	 **/
+	private static class Detached
+	{
+		private final ReplayBuffer replay;
+		private final Set<String> rooms;
+		private final String userName;
+		private final long lastReceivedSequence;
+		private final long closedAt;
+
+		Detached(ChannelSession session, Set<String> rooms, long closedAt)
+		{
+			this.replay = session.getReplay();
+			this.rooms = rooms;
+			this.userName = session.getUserName();
+			this.lastReceivedSequence = session.getLastReceivedSequence();
+			this.closedAt = closedAt;
+		}	// End of constructor
+	}	// End of class Detached
+
+	/**
+	 * Returns the registry of chat rooms and their members.
+	 * @return The room registry.
+	 **/
+	public RoomRegistry getRooms()
+	{
+		return this.rooms;
+	}	// End of method getRooms
+
 	/**
 	 * Getter method for ServerSocket object.
-	 * @return server The ServerSocket object of the IMServer instance.
+	 * @return server The listening ServerSocket of the IMServer instance.
 	 **/
 	public ServerSocket getServer()
 	{
-		return this.server;
+		return (this.reactor == null) ? null : this.reactor.getServerSocket();
 	}	// End of method getServer
 
 	/**
-	 * Returns the Socket object of this IMConnectable
-	 * instance.
-	 * @return connection The Socket object of this IMConnectable
-	 * instance.
+	 * Returns null, since an IMServer may hold many connections.
+	 * Use getServer() for the listening socket.
+	 * @return null
 	 **/
 	public Socket getConnection()
 	{
-		return this.connection;
+		return null;
 	}	// End of method getConnection
 }	// End of class IMServer
\ No newline at end of file
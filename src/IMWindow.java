@@ -7,34 +7,43 @@ import javax.swing.text.*;
 import java.awt.*;
 import java.awt.event.*;
 import java.util.*;
+import java.util.concurrent.*;
 import java.text.*;
 import java.io.*;
+import java.util.List;
 
 /**
  * Represents an instance of the main window. All
  * widgets and event handlers are contained within this class.
+ * The main chat has the first tab; every conversation the session
+ * opens, such as a joined room, gets a tab of its own with its own
+ * renderer, and the "Send" button sends to the selected tab.
  * @author Devon Bautista
  **/
-class IMWindow extends JFrame
+class IMWindow extends JFrame implements SessionListener
 {
 	// Global widgets and objects
-	private StyledDocument doc;
 	private SimpleAttributeSet styIncoming = new SimpleAttributeSet();
 	private SimpleAttributeSet styOutgoing = new SimpleAttributeSet();
 	private SimpleAttributeSet styBody = new SimpleAttributeSet();
 	private SimpleAttributeSet styInfo = new SimpleAttributeSet();
-	private JTextPane txtMessages;
+	private JTabbedPane tabs;
 	private JTextArea txtMessageEntry;
 	private JButton btnSend;
+	private JTextField txtSearch;
+	private SearchWindow searchWindow = null;
+	private DiagnosticsWindow diagnosticsWindow = null;
 	private boolean connected = false;
 	private IMConnectable session = null;
-	private SimpleDateFormat fmt = new SimpleDateFormat("HH:mm:ss");
+	private MessageRenderer renderer;
+	private ChatHistory history = null;
+	private Map<String, Conversation> conversations = new ConcurrentHashMap<String, Conversation>();
 	private ImageIcon ico = new ImageIcon("SimpleIM.png");
 
 	// Menu bar and menu items
 	private JMenuBar menuBar;
 	private JMenu mnuOptions;
-	private JMenuItem itmConnect, itmDisconnect;
+	private JMenuItem itmConnect, itmDisconnect, itmSendFile, itmDiagnostics;
 
 	// Constants
 	private int FRAME_HEIGHT = 575;
@@ -42,6 +51,9 @@ class IMWindow extends JFrame
 	private Dimension MINIMUM_FRAME_SIZE = new Dimension(400, 300);
 	private Dimension PREFERRED_CHAT_SIZE = new Dimension(100, 100);
 	private Dimension PREFERRED_ENTRY_SIZE = new Dimension(500, 50);
+	private int HISTORY_RESTORE_COUNT = Integer.getInteger("simpleim.historyRestore", 200);
+	private int SEARCH_RESULT_LIMIT = 100;
+	private boolean LIST_VIEW = "list".equalsIgnoreCase(System.getProperty("simpleim.messageView", "text"));
 
 	/**
 	 * Sets up JFrame and creates widgets.
@@ -56,15 +68,7 @@ class IMWindow extends JFrame
 		this.setIconImage(ico.getImage());
 		this.setVisible(true);
 
-		// Create menu bar and widgets
-		this.createMenuBar();
-		this.createWidgets();
-
-		// Disable sending until connection is made
-		this.ableToSend(false);
-
 		// Set styles of chat field
-		this.doc = txtMessages.getStyledDocument();
 		StyleConstants.setForeground(styIncoming, Color.GREEN);
 		StyleConstants.setBold(styIncoming, true);
 		StyleConstants.setAlignment(styIncoming, StyleConstants.ALIGN_LEFT);
@@ -76,6 +80,17 @@ class IMWindow extends JFrame
 		StyleConstants.setItalic(styInfo, true);
 		StyleConstants.setAlignment(styInfo, StyleConstants.ALIGN_CENTER);
 
+		// Create menu bar and widgets
+		this.createMenuBar();
+		this.createWidgets();
+		Metrics.register("type=Renderer", this.renderer);
+
+		// Disable sending until connection is made
+		this.ableToSend(false);
+
+		// Restore recent messages from the chat history
+		this.openHistory();
+
 		// Refresh window
 		this.revalidate();		
 	}	// End of constructor
@@ -106,6 +121,16 @@ class IMWindow extends JFrame
 		this.mnuOptions.add(this.itmDisconnect);							// Add menu item to menu bar
 		this.mnuOptions.addSeparator();										// Add horizontal line after menu item
 
+		// "Send File..." menu item
+		this.itmSendFile = new JMenuItem("Send File...", KeyEvent.VK_F);	// Create menu item and set activation key "F"
+		this.itmSendFile.addActionListener(new SendFileMenuListener());		// Add event handler to menu item
+		this.mnuOptions.add(this.itmSendFile);								// Add menu item to menu bar
+
+		// "Delivery Diagnostics..." menu item
+		this.itmDiagnostics = new JMenuItem("Delivery Diagnostics...", KeyEvent.VK_D);	// Create menu item and set activation key "D"
+		this.itmDiagnostics.addActionListener(new DiagnosticsMenuListener());			// Add event handler to menu item
+		this.mnuOptions.add(this.itmDiagnostics);										// Add menu item to menu bar
+
 		// Add menu bar to main window
 		this.setJMenuBar(this.menuBar);
 	}	// End of method createMenuBar
@@ -115,15 +140,15 @@ class IMWindow extends JFrame
 	 **/
 	private void createWidgets()
 	{
-		// Panel for txtMessages
+		// Panel for chat area
 		JPanel panMessages = new JPanel();												// Create new panel
 		panMessages.setBorder(BorderFactory.createEmptyBorder(10, 10, 10, 10));			// Add padding around text area
 		panMessages.setLayout(new BoxLayout(panMessages, BoxLayout.PAGE_AXIS));			// Set panel to vertical BoxLayout
-		this.txtMessages = new JTextPane();												// Create messages text area
-		JScrollPane scrlMessages = new JScrollPane(this.txtMessages);					// Create scrollbar for messages text area
-		this.txtMessages.setEditable(false);											// Make messages text area uneditable
-		this.txtMessages.setPreferredSize(PREFERRED_CHAT_SIZE);							// Set preferred size of text area
-		panMessages.add(scrlMessages);													// Add txtMessages to panel
+		JScrollPane scrlMessages = new JScrollPane();									// Create scrollbar for chat area
+		this.renderer = this.createMessageView(scrlMessages);							// Create chat area and its renderer
+		this.tabs = new JTabbedPane();													// Create tabs for the main chat and conversations
+		this.tabs.addTab("Chat", scrlMessages);											// Main chat is the first tab
+		panMessages.add(this.tabs);														// Add tabs to panel
 
 		// Panel for message entry and send button
 		JPanel panMessageEntry = new JPanel();											// Create new panel
@@ -142,11 +167,48 @@ class IMWindow extends JFrame
 		panMessageEntry.add(Box.createRigidArea(new Dimension(10, 0)));					// Add 10-px space between entry field and "Send" button
 		panMessageEntry.add(this.btnSend);												// Add "Send" button
 
+		// Panel for history search
+		JPanel panSearch = new JPanel();												// Create new panel
+		panSearch.setBorder(BorderFactory.createEmptyBorder(10, 10, 0, 10));			// Add padding above and beside search field
+		panSearch.setLayout(new BoxLayout(panSearch, BoxLayout.LINE_AXIS));				// Set panel to horizontal BoxLayout
+		this.txtSearch = new JTextField();												// Create search field
+		this.txtSearch.addActionListener(new SearchListener());							// Search when Enter is pressed
+		JButton btnSearch = new JButton("Search");										// Create "Search" button
+		btnSearch.addActionListener(new SearchListener());								// Add event handler to "Search" button
+		panSearch.add(this.txtSearch);													// Add search field to panel
+		panSearch.add(Box.createRigidArea(new Dimension(10, 0)));						// Add 10-px space between search field and button
+		panSearch.add(btnSearch);														// Add "Search" button
+
 		// Add panels to main window
+		this.add(panSearch, BorderLayout.NORTH);										// Add search panel to top
 		this.add(panMessages, BorderLayout.CENTER);										// Add messages text area to body
 		this.add(panMessageEntry, BorderLayout.SOUTH);									// Add message entry panel to bottom
 	}	// End of method createWidgets
 
+	/**
+	 * Creates a chat area in a scroll pane and the renderer that fills it.
+	 * The chat area is a text pane, or a MessageListView when the
+	 * simpleim.messageView property is "list": it paints only the lines
+	 * in view, so it keeps up with a scrollback of a million lines.
+	 * @param scroll The scroll pane to show the chat area in.
+	 * @return The renderer of the chat area.
+	 **/
+	private MessageRenderer createMessageView(JScrollPane scroll)
+	{
+		if (LIST_VIEW)
+		{
+			MessageList messages = new MessageList();
+			scroll.setViewportView(new MessageListView(messages, styIncoming, styOutgoing, styInfo, styBody));
+			return new MessageRenderer(messages);
+		}	// End of if
+
+		JTextPane txtMessages = new JTextPane();
+		txtMessages.setEditable(false);
+		txtMessages.setPreferredSize(PREFERRED_CHAT_SIZE);
+		scroll.setViewportView(txtMessages);
+		return new MessageRenderer(txtMessages.getStyledDocument(), styIncoming, styOutgoing, styInfo, styBody);
+	}	// End of method createMessageView
+
 	/**
 	 * Sets whether a user can send messages.
 	 * @param canSend True lets user send message, false
@@ -155,6 +217,7 @@ class IMWindow extends JFrame
 	public void ableToSend(final boolean canSend)
 	{
 		this.btnSend.setEnabled(canSend);
+		this.itmSendFile.setEnabled(canSend);
 	}	// End of method ableToType
 
 	/**
@@ -174,6 +237,8 @@ class IMWindow extends JFrame
 	public void setConnected(final boolean setConnection)
 	{
 		this.connected = setConnection;
+		if (!setConnection)
+			this.closeConversations();	// Conversations end with the connection
 	}	// End of method setConnected
 
 	/**
@@ -193,30 +258,83 @@ class IMWindow extends JFrame
 	}	// End of method setSession
 
 	/**
-	 * Prints incoming message to the chat area with formatting.
-	 * @param msg The String to be printed with formatting.
+	 * Opens the chat history and shows its most recent messages.
 	 **/
-	public void printIncomingMessage(String msg)
+	private void openHistory()
 	{
-		SwingUtilities.invokeLater(
-			new Runnable()
+		try
+		{
+			this.history = new ChatHistory(ChatHistory.getDefaultDirectory());
+			List<HistoryRecord> recent = this.history.readLast(HISTORY_RESTORE_COUNT);
+			for (HistoryRecord record : recent)
+				this.renderer.append(record.getKind(), record.getText(), record.getTime());
+			if (!recent.isEmpty())
+				this.printInformationMessage("Restored " + recent.size() + " messages from history.");
+
+			// Flush the history when the application exits
+			Runtime.getRuntime().addShutdownHook(new Thread()
 			{
 				public void run()
 				{
-					try
-					{
-						Calendar cal = Calendar.getInstance();
-						String INCOMING_PREFIX = "[" + fmt.format(cal.getTime()) + "]<< ";
-						doc.setParagraphAttributes(doc.getLength(), msg.length() + INCOMING_PREFIX.length(), styIncoming, true);
-						doc.insertString(doc.getLength(), INCOMING_PREFIX, styIncoming);
-						doc.insertString(doc.getLength(), msg.trim() + "\n", styBody);	
-					}	// End of try
-					catch (Exception e)
-					{
-						e.printStackTrace();
-					}	// End of catch	
+					IMWindow.this.history.close();
 				}	// End of method run
-			});	
+			});
+		}	// End of try
+		catch (IOException e)
+		{
+			this.history = null;
+			this.printInformationMessage("Unable to open chat history (" + e.getMessage()
+				+ "); this window will not keep one.");
+		}	// End of catch
+	}	// End of method openHistory
+
+	/**
+	 * Renders a chat message and records it in the history.
+	 **/
+	private void printChatMessage(int kind, String msg, Runnable rendered)
+	{
+		this.printChatMessage(this.renderer, kind, msg, msg, rendered);
+	}	// End of method printChatMessage
+
+	/**
+	 * Renders a chat message in one tab and records it in the history.
+	 * @param recorded The text kept in the history, naming the conversation.
+	 **/
+	private void printChatMessage(MessageRenderer renderer, int kind, String msg, String recorded, Runnable rendered)
+	{
+		long now = System.currentTimeMillis();
+		renderer.append(kind, msg, now, rendered);
+		if (this.history != null)
+		{
+			try
+			{
+				this.history.append(kind, now, recorded);
+			}	// End of try
+			catch (IOException e)
+			{
+				// History is best effort; the message is still shown
+			}	// End of catch
+		}	// End of if
+	}	// End of method printChatMessage
+
+	/**
+	 * Prints incoming message to the chat area with formatting.
+	 * @param msg The String to be printed with formatting.
+	 **/
+	public void printIncomingMessage(String msg)
+	{
+		this.printChatMessage(MessageRenderer.INCOMING, msg, null);
+	}	// End of method printIncomingMessage
+
+	/**
+	 * Prints incoming message to the chat area with formatting, and
+	 * acknowledges it once it is on screen.
+	 * @param msg The String to be printed with formatting.
+	 * @param rendered Sends the message's ACK.
+	 **/
+	public void printIncomingMessage(String msg, Runnable rendered)
+	{
+		this.printChatMessage(MessageRenderer.INCOMING, msg, rendered);
 	}	// End of method printIncomingMessage
 
 	/**
@@ -225,25 +343,7 @@ class IMWindow extends JFrame
 	 **/
 	public void printOutgoingMessage(String msg)
 	{
-		SwingUtilities.invokeLater(
-			new Runnable()
-			{
-				public void run()
-				{
-					try
-					{
-						Calendar cal = Calendar.getInstance();
-						String OUTGOING_PREFIX = "[" + fmt.format(cal.getTime()) + "]>> ";
-						doc.setParagraphAttributes(doc.getLength(), msg.length() + OUTGOING_PREFIX.length(), styOutgoing, true);
-						doc.insertString(doc.getLength(), OUTGOING_PREFIX, styOutgoing);
-						doc.insertString(doc.getLength(), msg.trim() + "\n", styBody);
-					}	// End of try
-					catch (Exception e)
-					{
-						e.printStackTrace();
-					}	// End of catch
-				}	// End of method run
-			});
+		this.printChatMessage(MessageRenderer.OUTGOING, msg, null);
 	}	// End of method printOutgoingMessage
 
 	/**
@@ -252,24 +352,137 @@ class IMWindow extends JFrame
 	 **/
 	public void printInformationMessage(String msg)
 	{
-		SwingUtilities.invokeLater(
-			new Runnable()
-			{
-				public void run()
-				{
-					try
-					{
-						doc.setParagraphAttributes(doc.getLength(), msg.length(), styInfo, true);
-						doc.insertString(doc.getLength(), msg.trim() + "\n", styInfo);
-					}	// End of try
-					catch (Exception e)
-					{
-						e.printStackTrace();
-					}	// End of catch
-				}	// End of method run
-			});
+		this.renderer.append(MessageRenderer.INFO, msg);
 	}	// End of method printInformationMessage
 
+	/**
+	 * Opens a tab for a conversation and shows it.
+	 * @param conversation The conversation's name.
+	 **/
+	public void conversationOpened(String conversation)
+	{
+		final Conversation tab = new Conversation(conversation);
+		if (this.conversations.putIfAbsent(conversation, tab) != null)
+			return;
+		SwingUtilities.invokeLater(new Runnable()
+		{
+			public void run()
+			{
+				tabs.addTab("#" + tab.name, tab.scroll);
+				tabs.setSelectedComponent(tab.scroll);
+			}	// End of method run
+		});
+		this.printInformationMessage("Joined #" + conversation + ". Type /leave in its tab to leave it.");
+	}	// End of method conversationOpened
+
+	/**
+	 * Closes the tab of a conversation that has been left.
+	 * @param conversation The conversation's name.
+	 **/
+	public void conversationClosed(String conversation)
+	{
+		final Conversation tab = this.conversations.remove(conversation);
+		if (tab == null)
+			return;
+		SwingUtilities.invokeLater(new Runnable()
+		{
+			public void run()
+			{
+				tabs.remove(tab.scroll);
+			}	// End of method run
+		});
+		this.printInformationMessage("Left #" + conversation + ".");
+	}	// End of method conversationClosed
+
+	/**
+	 * Prints a message received in a conversation to its tab, and
+	 * acknowledges it once it is on screen.
+	 * @param conversation The conversation's name.
+	 * @param msg The String to be printed with formatting.
+	 * @param rendered Sends the message's ACK and returns its credit.
+	 **/
+	public void printConversationMessage(String conversation, String msg, Runnable rendered)
+	{
+		Conversation tab = this.conversations.get(conversation);
+		if (tab == null)
+			this.printIncomingMessage("[#" + conversation + "] " + msg, rendered);
+		else
+			this.printChatMessage(tab.renderer, MessageRenderer.INCOMING, msg, "[#" + conversation + "] " + msg, rendered);
+	}	// End of method printConversationMessage
+
+	/**
+	 * Prints a message sent in a conversation to its tab.
+	 * @param conversation The conversation's name.
+	 * @param msg The String to be printed with formatting.
+	 **/
+	public void printOutgoingMessage(String conversation, String msg)
+	{
+		Conversation tab = this.conversations.get(conversation);
+		if (tab == null)
+			this.printOutgoingMessage("[#" + conversation + "] " + msg);
+		else
+			this.printChatMessage(tab.renderer, MessageRenderer.OUTGOING, msg, "[#" + conversation + "] " + msg, null);
+	}	// End of method printOutgoingMessage
+
+	/**
+	 * Closes every conversation tab, leaving the main chat.
+	 **/
+	private void closeConversations()
+	{
+		final List<Conversation> closed = new ArrayList<Conversation>(this.conversations.values());
+		this.conversations.clear();
+		SwingUtilities.invokeLater(new Runnable()
+		{
+			public void run()
+			{
+				for (Conversation tab : closed)
+					tabs.remove(tab.scroll);
+			}	// End of method run
+		});
+	}	// End of method closeConversations
+
+	/**
+	 * Returns the conversation whose tab is selected. Called on the EDT.
+	 * @return The conversation's name, or null for the main chat.
+	 **/
+	private String getSelectedConversation()
+	{
+		Component selected = this.tabs.getSelectedComponent();
+		for (Conversation tab : this.conversations.values())
+			if (tab.scroll == selected)
+				return tab.name;
+		return null;
+	}	// End of method getSelectedConversation
+
+	/**
+	 * Sets how many lines the chat area keeps before the oldest are removed.
+	 * @param limit The maximum number of lines.
+	 **/
+	public void setScrollbackLimit(int limit)
+	{
+		this.renderer.setScrollbackLimit(limit);
+		for (Conversation tab : this.conversations.values())
+			tab.renderer.setScrollbackLimit(limit);
+	}	// End of method setScrollbackLimit
+
+	/**
+	 * The tab of one conversation: its own chat area and renderer.
+	 **/
+	private class Conversation
+	{
+		private final String name;
+		private final JScrollPane scroll;
+		private final MessageRenderer renderer;
+
+		Conversation(String name)
+		{
+			this.name = name;
+			this.scroll = new JScrollPane();
+			this.renderer = createMessageView(this.scroll);
+			this.renderer.setScrollbackLimit(IMWindow.this.renderer.getScrollbackLimit());
+		}	// End of constructor
+	}	// End of class Conversation
+
 	//*******************************************************
 	//* Event Handlers
 	//*******************************************************
@@ -285,7 +498,11 @@ class IMWindow extends JFrame
 			{
 				try
 				{
-					session.sendMessage(outGoingMessage);
+					String conversation = getSelectedConversation();
+					if (conversation == null)
+						session.sendMessage(outGoingMessage);
+					else
+						session.sendMessage(conversation, outGoingMessage);
 					txtMessageEntry.setText("");
 				}	// End of try
 				catch (IOException e)
@@ -296,6 +513,33 @@ class IMWindow extends JFrame
 		}	// End of method actionPerformed
 	}	// End of class SendButtonListener
 
+	/**
+	 * Listens for when a history search is submitted.
+	 **/
+	private class SearchListener implements ActionListener
+	{
+		public void actionPerformed(ActionEvent event)
+		{
+			String query = txtSearch.getText().trim();
+			if (query.equals(""))
+				return;
+			if (history == null)
+			{
+				printInformationMessage("Chat history is not available.");
+				return;
+			}	// End of if
+
+			long start = System.nanoTime();
+			List<HistoryRecord> matches = history.search(query, SEARCH_RESULT_LIMIT);
+			long elapsed = System.nanoTime() - start;
+
+			// Reuse the results window while it is open
+			if (searchWindow == null || !searchWindow.isDisplayable())
+				searchWindow = new SearchWindow(IMWindow.this);
+			searchWindow.showResults(query, matches, elapsed);
+		}	// End of method actionPerformed
+	}	// End of class SearchListener
+
 	/**
 	 * Listens for when "Connect..." is clicked from the
 	 * menu bar.
@@ -309,6 +553,50 @@ class IMWindow extends JFrame
 		}	// End of method actionPerformed
 	}	// End of class ConnectMenuListener
 
+	/**
+	 * Listens for when "Send File..." is clicked from the
+	 * menu bar.
+	 **/
+	private class SendFileMenuListener implements ActionListener
+	{
+		public void actionPerformed(ActionEvent event)
+		{
+			JFileChooser chooser = new JFileChooser();
+			if (chooser.showOpenDialog(IMWindow.this) != JFileChooser.APPROVE_OPTION || session == null)
+				return;
+			try
+			{
+				session.sendFile(chooser.getSelectedFile());
+			}	// End of try
+			catch (IOException e)
+			{
+				printInformationMessage("Unable to send " + chooser.getSelectedFile().getName() + ": " + e.getMessage());
+			}	// End of catch
+		}	// End of method actionPerformed
+	}	// End of class SendFileMenuListener
+
+	/**
+	 * Listens for when "Delivery Diagnostics..." is clicked
+	 * from the menu bar.
+	 **/
+	private class DiagnosticsMenuListener implements ActionListener
+	{
+		public void actionPerformed(ActionEvent event)
+		{
+			DeliveryTracer tracer = (session == null) ? null : session.getDeliveryTracer();
+			if (tracer == null)
+			{
+				printInformationMessage("Connect to see how long messages take to be delivered.");
+				return;
+			}	// End of if
+
+			// Reuse the diagnostics window while it is open
+			if (diagnosticsWindow == null || !diagnosticsWindow.isDisplayable())
+				diagnosticsWindow = new DiagnosticsWindow(IMWindow.this, tracer);
+			diagnosticsWindow.toFront();
+		}	// End of method actionPerformed
+	}	// End of class DiagnosticsMenuListener
+
 	/**
 	 * Listens for when "Terminate Connection" is clicked
 	 * from the menu bar.
@@ -329,21 +617,10 @@ class IMWindow extends JFrame
 					// closeConnection() handles exception
 				}	// End of catch
 			}	// End of if
-			else
+			else if (IMWindow.this.getSession() != null)
 			{
-				try
-				{
-					// ******************** NEEDS FIXING *********************************
-					// Currently doesn't disconnect immediately; waits for timeout.
-					// *******************************************************************
-					if (IMWindow.this.getSession() instanceof IMServer)
-						IMWindow.this.getSession().getServer().close();
-					else if (IMWindow.this.getSession() instanceof IMClient)
-						IMWindow.this.getSession().stop();
-
-				}	// End of try
-				catch (IOException e) {}
-				catch (NullPointerException e) {}
+				// Cancels a client's connect in progress, or a waiting server, at once
+				IMWindow.this.getSession().stop();
 			}	// End of else
 
 			IMWindow.this.setSession(null);
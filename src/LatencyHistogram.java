@@ -0,0 +1,136 @@
+// LatencyHistogram.java
+// Records latencies into fixed log-linear buckets.
+// Devon Bautista
+
+import java.util.concurrent.atomic.*;
+
+/**
+ * A histogram of durations in nanoseconds, laid out the way
+ * HdrHistogram lays out its counts: values below 2^SUB_BUCKET_BITS get
+ * a bucket each, and every power of two above that is split into
+ * SUB_BUCKETS equal buckets, so any value is reported within about 3%.
+ * The counts live in one preallocated array, so recording a value is a
+ * few shifts and an atomic increment, allocates nothing and may be
+ * done from any number of threads at once. The count and sum are
+ * LongAdders, so threads recording at once do not contend on them.
+ *
+ * Counts accumulate from creation or the last reset(). Reading while
+ * other threads record gives a consistent enough view for monitoring
+ * but not an atomic snapshot.
+ **/
+public class LatencyHistogram
+{
+	// Constants
+	private static final int SUB_BUCKET_BITS = 5;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	private static final int BUCKET_COUNT = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+	// Attributes
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKET_COUNT);
+	private final LongAdder total = new LongAdder();
+	private final LongAdder sum = new LongAdder();
+	private final AtomicLong max = new AtomicLong(0);
+
+	/**
+	 * Records one duration.
+	 * @param nanos The duration in nanoseconds; negative values count as 0.
+	 **/
+	public void record(long nanos)
+	{
+		long value = Math.max(0, nanos);
+		this.counts.incrementAndGet(index(value));
+		this.total.increment();
+		this.sum.add(value);
+		long current;
+		while (value > (current = this.max.get()) && !this.max.compareAndSet(current, value))
+			;	// Lost a race with another thread; retry
+	}	// End of method record
+
+	/**
+	 * Returns the number of values recorded.
+	 * @return The count.
+	 **/
+	public long getCount()
+	{
+		return this.total.sum();
+	}	// End of method getCount
+
+	/**
+	 * Returns the largest value recorded.
+	 * @return Nanoseconds, or 0 if nothing was recorded.
+	 **/
+	public long getMax()
+	{
+		return this.max.get();
+	}	// End of method getMax
+
+	/**
+	 * Returns the mean of the values recorded.
+	 * @return Nanoseconds, or 0 if nothing was recorded.
+	 **/
+	public double getMean()
+	{
+		long count = this.total.sum();
+		return (count == 0) ? 0 : (double) this.sum.sum() / count;
+	}	// End of method getMean
+
+	/**
+	 * Returns the value below which a given share of the values fall.
+	 * @param percentile From 0 to 100.
+	 * @return Nanoseconds, accurate to the bucket the value fell in, or
+	 * 0 if nothing was recorded.
+	 **/
+	public long getValueAtPercentile(double percentile)
+	{
+		long count = this.total.sum();
+		if (count == 0)
+			return 0;
+		long rank = Math.max(1, (long) Math.ceil(count * Math.min(100, percentile) / 100));
+		long seen = 0;
+		for (int i = 0; i < BUCKET_COUNT; i++)
+		{
+			seen += this.counts.get(i);
+			if (seen >= rank)
+				return Math.min(highestValue(i), this.max.get());
+		}	// End of for
+		return this.max.get();
+	}	// End of method getValueAtPercentile
+
+	/**
+	 * Clears every count.
+	 **/
+	public void reset()
+	{
+		for (int i = 0; i < BUCKET_COUNT; i++)
+			this.counts.set(i, 0);
+		this.total.reset();
+		this.sum.reset();
+		this.max.set(0);
+	}	// End of method reset
+
+	/**
+	 * Finds the bucket of a value: linear below SUB_BUCKETS, then
+	 * SUB_BUCKETS buckets per power of two.
+	 **/
+	private static int index(long value)
+	{
+		if (value < SUB_BUCKETS)
+			return (int) value;
+		int exponent = 63 - Long.numberOfLeadingZeros(value);
+		int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+		return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+	}	// End of method index
+
+	/**
+	 * Returns the largest value that falls in a bucket.
+	 **/
+	private static long highestValue(int index)
+	{
+		if (index < SUB_BUCKETS)
+			return index;
+		int exponent = index / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+		long subBucket = index % SUB_BUCKETS;
+		long width = 1L << (exponent - SUB_BUCKET_BITS);
+		return ((SUB_BUCKETS + subBucket) << (exponent - SUB_BUCKET_BITS)) + width - 1;
+	}	// End of method highestValue
+}	// End of class LatencyHistogram
\ No newline at end of file
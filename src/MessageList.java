@@ -0,0 +1,159 @@
+// MessageList.java
+// The chat lines shown by a MessageListView.
+// Devon Bautista
+
+import javax.swing.*;
+
+/**
+ * Holds chat lines for a JList in three arrays used as one ring: the
+ * kind of each line, its "[HH:mm:ss]<< " prefix and its text. There is
+ * no object per line beyond its text, and prefixes are shared by every
+ * line of the same second, so a million lines cost little more than
+ * their text, where a StyledDocument keeps elements and attributes for
+ * every paragraph.
+ *
+ * Lines are added in a batch by add() and the list is told of the whole
+ * batch by publish(), which also drops the oldest lines beyond the
+ * scrollback limit without moving the rest. A message of several lines
+ * takes a row for each, as it takes a paragraph for each in a document;
+ * only the first has a prefix. Used only on the EDT.
+ **/
+public class MessageList extends AbstractListModel<String>
+{
+	// Constants
+	public static final int DEFAULT_SCROLLBACK = 1000000;
+	private static final int INITIAL_CAPACITY = 1024;
+
+	// Attributes
+	private byte[] kinds = new byte[INITIAL_CAPACITY];
+	private String[] prefixes = new String[INITIAL_CAPACITY];
+	private String[] texts = new String[INITIAL_CAPACITY];
+	private int head = 0;		// Slot of the oldest row
+	private int size = 0;		// Rows the list has been told of
+	private int added = 0;		// Rows added since the last publish()
+
+	/**
+	 * Returns the number of rows published.
+	 * @return The row count.
+	 **/
+	public int getSize()
+	{
+		return this.size;
+	}	// End of method getSize
+
+	/**
+	 * Returns the text of a row, without its prefix.
+	 * @param index The row.
+	 * @return The text.
+	 **/
+	public String getElementAt(int index)
+	{
+		return this.texts[this.slot(index)];
+	}	// End of method getElementAt
+
+	/**
+	 * Returns the kind of the message a row belongs to.
+	 * @param index The row.
+	 * @return MessageRenderer.INCOMING, OUTGOING or INFO.
+	 **/
+	public int getKind(int index)
+	{
+		return this.kinds[this.slot(index)];
+	}	// End of method getKind
+
+	/**
+	 * Returns the prefix of a row.
+	 * @param index The row.
+	 * @return The prefix, or null for information messages and the
+	 * later lines of a message.
+	 **/
+	public String getPrefix(int index)
+	{
+		return this.prefixes[this.slot(index)];
+	}	// End of method getPrefix
+
+	/**
+	 * Adds a message after the last row, to be shown by the next publish().
+	 * @param kind MessageRenderer.INCOMING, OUTGOING or INFO.
+	 * @param prefix The prefix of its first line, or null.
+	 * @param msg The text of the message.
+	 **/
+	public void add(int kind, String prefix, String msg)
+	{
+		int start = 0;
+		int end;
+		while ((end = msg.indexOf('\n', start)) >= 0)
+		{
+			this.addRow(kind, prefix, msg.substring(start, end));
+			prefix = null;
+			start = end + 1;
+		}	// End of while
+		this.addRow(kind, prefix, (start == 0) ? msg : msg.substring(start));
+	}	// End of method add
+
+	/**
+	 * Drops the oldest rows until at most limit remain, and tells the
+	 * list of the rows dropped and added since the last call.
+	 * @param limit The scrollback limit.
+	 **/
+	public void publish(int limit)
+	{
+		int published = this.size;
+		int total = this.size + this.added;
+		int removed = Math.max(0, total - limit);
+		for (int i = 0; i < removed; i++)
+		{
+			int slot = this.slot(i);
+			this.prefixes[slot] = null;
+			this.texts[slot] = null;
+		}	// End of for
+		this.head = this.slot(removed);
+		this.size = total - removed;
+		this.added = 0;
+
+		// Rows dropped before they were published were never seen by the list
+		int dropped = Math.min(removed, published);
+		if (dropped > 0)
+			this.fireIntervalRemoved(this, 0, dropped - 1);
+		if (this.size > published - dropped)
+			this.fireIntervalAdded(this, published - dropped, this.size - 1);
+	}	// End of method publish
+
+	private void addRow(int kind, String prefix, String text)
+	{
+		if (this.size + this.added == this.texts.length)
+			this.grow();
+		int slot = this.slot(this.size + this.added);
+		this.kinds[slot] = (byte) kind;
+		this.prefixes[slot] = prefix;
+		this.texts[slot] = text;
+		this.added++;
+	}	// End of method addRow
+
+	/**
+	 * Doubles the ring, moving the oldest row to the first slot.
+	 **/
+	private void grow()
+	{
+		int capacity = this.texts.length;
+		byte[] kinds = new byte[capacity * 2];
+		String[] prefixes = new String[capacity * 2];
+		String[] texts = new String[capacity * 2];
+		int first = capacity - this.head;
+		System.arraycopy(this.kinds, this.head, kinds, 0, first);
+		System.arraycopy(this.kinds, 0, kinds, first, this.head);
+		System.arraycopy(this.prefixes, this.head, prefixes, 0, first);
+		System.arraycopy(this.prefixes, 0, prefixes, first, this.head);
+		System.arraycopy(this.texts, this.head, texts, 0, first);
+		System.arraycopy(this.texts, 0, texts, first, this.head);
+		this.kinds = kinds;
+		this.prefixes = prefixes;
+		this.texts = texts;
+		this.head = 0;
+	}	// End of method grow
+
+	private int slot(int index)
+	{
+		return (this.head + index) & (this.texts.length - 1);	// The capacity is a power of two
+	}	// End of method slot
+}	// End of class MessageList
\ No newline at end of file
@@ -0,0 +1,238 @@
+// MessageListView.java
+// A chat area that paints only the lines in view.
+// Devon Bautista
+
+import javax.swing.*;
+import javax.swing.event.*;
+import javax.swing.text.*;
+import java.awt.*;
+import java.util.Map;
+
+/**
+ * Shows a MessageList as a JList. Every row has the same height and the
+ * list has a fixed cell width, so it never measures its rows: its size
+ * is the row count times the row height, and only the rows inside the
+ * viewport are painted, however many lines are loaded. Scrolling to any
+ * line is as cheap as scrolling to the first.
+ *
+ * Rows are drawn by one MessageCell with the styles of the text view:
+ * the prefix in the style of its kind, the text in the body style, and
+ * information messages on their own in theirs. A row does not wrap; a
+ * line too long for it is cut off, and its tooltip shows all of it.
+ * While the list is scrolled to its last row it keeps to the last row
+ * as lines arrive, as the text view does.
+ **/
+public class MessageListView extends JList<String> implements ListDataListener
+{
+	// Constants
+	private static final int MIN_CELL_WIDTH = 100;	// Rows are as wide as the viewport
+	private static final int ROW_PADDING = 2;
+
+	// Attributes
+	private final MessageList messages;
+	private boolean following = false;
+	private final Runnable scrollToEnd = new Runnable()
+	{
+		public void run()
+		{
+			MessageListView.this.scrollToEnd();
+		}	// End of method run
+	};
+
+	/**
+	 * Creates a view of a list of messages.
+	 * @param messages The lines to show.
+	 * @param styIncoming Style of incoming message prefixes.
+	 * @param styOutgoing Style of outgoing message prefixes.
+	 * @param styInfo Style of information messages.
+	 * @param styBody Style of message text.
+	 **/
+	public MessageListView(MessageList messages, AttributeSet styIncoming, AttributeSet styOutgoing,
+		AttributeSet styInfo, AttributeSet styBody)
+	{
+		super(messages);
+		this.messages = messages;
+		this.setCellRenderer(new MessageCell(styIncoming, styOutgoing, styInfo, styBody));
+		this.setFixedCellWidth(MIN_CELL_WIDTH);
+		this.setFixedCellHeight(this.getFontMetrics(this.getFont()).getHeight() + ROW_PADDING);
+		messages.addListDataListener(this);
+	}	// End of constructor
+
+	/**
+	 * Keeps the row height to the font when the look and feel changes it.
+	 **/
+	public void updateUI()
+	{
+		super.updateUI();
+		if (this.getFont() != null && this.getFixedCellHeight() > 0)
+			this.setFixedCellHeight(this.getFontMetrics(this.getFont()).getHeight() + ROW_PADDING);
+	}	// End of method updateUI
+
+	/**
+	 * Follows new rows if the last row was in view.
+	 **/
+	public void intervalAdded(ListDataEvent event)
+	{
+		if (this.following || !this.isAtEnd())
+			return;
+
+		// Scroll once the list has been resized for the new rows
+		this.following = true;
+		SwingUtilities.invokeLater(this.scrollToEnd);
+	}	// End of method intervalAdded
+
+	public void intervalRemoved(ListDataEvent event)
+	{
+	}	// End of method intervalRemoved
+
+	public void contentsChanged(ListDataEvent event)
+	{
+	}	// End of method contentsChanged
+
+	/**
+	 * Returns whether the last row is in view. The list has not yet been
+	 * resized for rows just published, so this is where it was before.
+	 **/
+	private boolean isAtEnd()
+	{
+		Rectangle visible = this.getVisibleRect();
+		return visible.y + visible.height >= this.getHeight() - this.getFixedCellHeight();
+	}	// End of method isAtEnd
+
+	private void scrollToEnd()
+	{
+		this.following = false;
+		Container scroll = SwingUtilities.getAncestorOfClass(JScrollPane.class, this);
+		if (scroll != null)
+			scroll.validate();
+		int last = this.messages.getSize() - 1;
+		if (last >= 0)
+			this.ensureIndexIsVisible(last);
+	}	// End of method scrollToEnd
+
+	/**
+	 * Paints one row: a prefix and text, or an information message.
+	 **/
+	private static class MessageCell extends JComponent implements ListCellRenderer<String>
+	{
+		// Styles of INCOMING, OUTGOING and INFO
+		private final AttributeSet[] styles;
+		private final AttributeSet styBody;
+		private final Color[] colors = new Color[3];
+		private final Font[] fonts = new Font[3];
+		private final FontMetrics[] metrics = new FontMetrics[3];
+		private final boolean[] centered = new boolean[3];
+		private Color bodyColor;
+		private FontMetrics bodyMetrics;
+		private Font listFont = null;
+
+		// The row being painted
+		private int kind;
+		private String prefix;
+		private String text;
+		private boolean selected;
+		private Color selectionColor;
+
+		MessageCell(AttributeSet styIncoming, AttributeSet styOutgoing, AttributeSet styInfo, AttributeSet styBody)
+		{
+			this.styles = new AttributeSet[] {styIncoming, styOutgoing, styInfo};
+			this.styBody = styBody;
+			for (int kind = 0; kind < this.styles.length; kind++)
+			{
+				this.colors[kind] = StyleConstants.getForeground(this.styles[kind]);
+				this.centered[kind] = StyleConstants.getAlignment(this.styles[kind]) == StyleConstants.ALIGN_CENTER;
+			}	// End of for
+			this.bodyColor = StyleConstants.getForeground(styBody);
+		}	// End of constructor
+
+		public Component getListCellRendererComponent(JList<? extends String> list, String value, int index,
+			boolean isSelected, boolean cellHasFocus)
+		{
+			if (list.getFont() != this.listFont)
+				this.deriveFonts(list.getFont());
+			MessageList messages = (MessageList) list.getModel();
+			this.kind = messages.getKind(index);
+			this.prefix = messages.getPrefix(index);
+			this.text = value;
+			this.selected = isSelected;
+			this.selectionColor = list.getSelectionBackground();
+			return this;
+		}	// End of method getListCellRendererComponent
+
+		/**
+		 * Shows the whole line if it does not fit in the row.
+		 **/
+		public String getToolTipText()
+		{
+			if (this.textX() + this.textMetrics().stringWidth(this.text) <= this.getWidth())
+				return null;
+			return (this.prefix == null) ? this.text : this.prefix + this.text;
+		}	// End of method getToolTipText
+
+		protected void paintComponent(Graphics g)
+		{
+			if (this.selected)
+			{
+				g.setColor(this.selectionColor);
+				g.fillRect(0, 0, this.getWidth(), this.getHeight());
+			}	// End of if
+
+			// Draw text the way the look and feel's own components do
+			Map<?, ?> hints = (Map<?, ?>) Toolkit.getDefaultToolkit().getDesktopProperty("awt.font.desktophints");
+			if (hints != null)
+				((Graphics2D) g).addRenderingHints(hints);
+
+			FontMetrics fm = this.textMetrics();
+			int baseline = (this.getHeight() - fm.getHeight()) / 2 + fm.getAscent();
+			if (this.prefix != null)
+			{
+				g.setFont(this.fonts[this.kind]);
+				g.setColor(this.colors[this.kind]);
+				g.drawString(this.prefix, 0, baseline);
+			}	// End of if
+			g.setFont(fm.getFont());
+			g.setColor((this.kind == MessageRenderer.INFO) ? this.colors[this.kind] : this.bodyColor);
+			g.drawString(this.text, this.textX(), baseline);
+		}	// End of method paintComponent
+
+		/**
+		 * Returns where the text of the row starts.
+		 **/
+		private int textX()
+		{
+			if (this.prefix != null)
+				return this.metrics[this.kind].stringWidth(this.prefix);
+			if (this.kind == MessageRenderer.INFO && this.centered[this.kind])
+				return Math.max(0, (this.getWidth() - this.metrics[this.kind].stringWidth(this.text)) / 2);
+			return 0;
+		}	// End of method textX
+
+		/**
+		 * Returns the metrics of the font the text of the row is drawn in.
+		 **/
+		private FontMetrics textMetrics()
+		{
+			return (this.kind == MessageRenderer.INFO) ? this.metrics[this.kind] : this.bodyMetrics;
+		}	// End of method textMetrics
+
+		/**
+		 * Makes the fonts of each style from the list's font.
+		 **/
+		private void deriveFonts(Font base)
+		{
+			this.listFont = base;
+			for (int kind = 0; kind < this.styles.length; kind++)
+			{
+				this.fonts[kind] = derive(base, this.styles[kind]);
+				this.metrics[kind] = this.getFontMetrics(this.fonts[kind]);
+			}	// End of for
+			this.bodyMetrics = this.getFontMetrics(derive(base, this.styBody));
+		}	// End of method deriveFonts
+
+		private static Font derive(Font base, AttributeSet style)
+		{
+			int fontStyle = (StyleConstants.isBold(style) ? Font.BOLD : 0) | (StyleConstants.isItalic(style) ? Font.ITALIC : 0);
+			return base.deriveFont(fontStyle);
+		}	// End of method derive
+	}	// End of class MessageCell
+}	// End of class MessageListView
\ No newline at end of file
@@ -0,0 +1,315 @@
+// MessageRenderer.java
+// Batches chat lines into the IMWindow's chat areas.
+// Devon Bautista
+
+import javax.swing.*;
+import javax.swing.text.*;
+import java.awt.event.*;
+import java.text.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * Collects chat lines from any thread and applies them to a
+ * StyledDocument, or to the MessageList of a MessageListView, in one
+ * batch per frame tick on the EDT. Old lines are trimmed once there
+ * are more than the scrollback limit, so the chat area no longer grows
+ * forever. A list keeps a million lines by default, a document 5000.
+ *
+ * The renderer is also an MBean reporting the backlog of lines waiting
+ * for the EDT and how long lines wait before they are shown.
+ **/
+public class MessageRenderer implements ActionListener, MessageRendererMBean
+{
+	// Line kinds
+	public static final int INCOMING = 0;
+	public static final int OUTGOING = 1;
+	public static final int INFO = 2;
+
+	// Constants
+	public static final String SCROLLBACK_PROPERTY = "simpleim.scrollback";
+	private static final int DEFAULT_SCROLLBACK = 5000;
+	private static final int FRAME_MILLIS = 16;
+
+	// Attributes
+	private final StyledDocument doc;
+	private final MessageList list;
+	private final AttributeSet[] prefixStyles;
+	private final AttributeSet styBody;
+	private final Queue<Line> pending = new ConcurrentLinkedQueue<Line>();
+	private final AtomicInteger pendingCount = new AtomicInteger(0);
+	private final AtomicInteger peakBacklog = new AtomicInteger(0);
+	private final LatencyHistogram renderDelay = new LatencyHistogram();
+	private final AtomicBoolean scheduled = new AtomicBoolean(false);
+	private final javax.swing.Timer timer;
+	private final SimpleDateFormat fmt = new SimpleDateFormat("HH:mm:ss");
+	private volatile int scrollbackLimit;
+	private long cachedSecond = Long.MIN_VALUE;
+	private final String[] cachedPrefixes = new String[2];
+	private volatile long linesRendered = 0;
+	private volatile long lastBatchNanos = 0;
+
+	/**
+	 * Creates a renderer for a document.
+	 * @param doc The document of the chat area.
+	 * @param styIncoming Style of incoming message prefixes.
+	 * @param styOutgoing Style of outgoing message prefixes.
+	 * @param styInfo Style of information messages.
+	 * @param styBody Style of message text.
+	 **/
+	public MessageRenderer(StyledDocument doc, AttributeSet styIncoming, AttributeSet styOutgoing,
+		AttributeSet styInfo, AttributeSet styBody)
+	{
+		this(doc, null, new AttributeSet[] {styIncoming, styOutgoing, styInfo}, styBody, DEFAULT_SCROLLBACK);
+	}	// End of constructor
+
+	/**
+	 * Creates a renderer for a list of messages. The MessageListView
+	 * showing the list draws it in its own styles.
+	 * @param list The lines of the chat area.
+	 **/
+	public MessageRenderer(MessageList list)
+	{
+		this(null, list, null, null, MessageList.DEFAULT_SCROLLBACK);
+	}	// End of constructor
+
+	private MessageRenderer(StyledDocument doc, MessageList list, AttributeSet[] prefixStyles, AttributeSet styBody,
+		int defaultScrollback)
+	{
+		this.doc = doc;
+		this.list = list;
+		this.prefixStyles = prefixStyles;
+		this.styBody = styBody;
+		this.scrollbackLimit = Integer.getInteger(SCROLLBACK_PROPERTY, defaultScrollback);
+		this.timer = new javax.swing.Timer(FRAME_MILLIS, this);
+		this.timer.setRepeats(false);
+	}	// End of constructor
+
+	/**
+	 * Queues a line for the next frame. May be called from any thread.
+	 * @param kind INCOMING, OUTGOING or INFO.
+	 * @param msg The text of the line.
+	 **/
+	public void append(int kind, String msg)
+	{
+		this.append(kind, msg, System.currentTimeMillis());
+	}	// End of method append
+
+	/**
+	 * Queues a line with a given timestamp. May be called from any thread.
+	 * @param kind INCOMING, OUTGOING or INFO.
+	 * @param msg The text of the line.
+	 * @param time The time to show for the line, in epoch milliseconds.
+	 **/
+	public void append(int kind, String msg, long time)
+	{
+		this.append(kind, msg, time, null);
+	}	// End of method append
+
+	/**
+	 * Queues a line and a task to run on the EDT once it is in the
+	 * chat area. May be called from any thread.
+	 * @param kind INCOMING, OUTGOING or INFO.
+	 * @param msg The text of the line.
+	 * @param time The time to show for the line, in epoch milliseconds.
+	 * @param rendered Run once the line is shown or skipped, or null.
+	 **/
+	public void append(int kind, String msg, long time, Runnable rendered)
+	{
+		this.pending.add(new Line(kind, msg, time, rendered));
+		int backlog = this.pendingCount.incrementAndGet();
+		int peak;
+		while (backlog > (peak = this.peakBacklog.get()) && !this.peakBacklog.compareAndSet(peak, backlog))
+			;	// Lost a race with another thread; retry
+		if (this.scheduled.compareAndSet(false, true))
+			this.timer.restart();
+	}	// End of method append
+
+	/**
+	 * Sets how many lines the chat area keeps before trimming the oldest.
+	 * @param limit The maximum number of lines, at least 1.
+	 **/
+	public void setScrollbackLimit(int limit)
+	{
+		this.scrollbackLimit = Math.max(1, limit);
+	}	// End of method setScrollbackLimit
+
+	/**
+	 * Returns how many lines the chat area keeps.
+	 * @return The scrollback limit.
+	 **/
+	public int getScrollbackLimit()
+	{
+		return this.scrollbackLimit;
+	}	// End of method getScrollbackLimit
+
+	/**
+	 * Returns how many lines are waiting to be rendered.
+	 * @return The number of queued lines.
+	 **/
+	public int getBacklog()
+	{
+		return this.pendingCount.get();
+	}	// End of method getBacklog
+
+	/**
+	 * Returns the most lines that have waited to be rendered at once.
+	 * @return The peak backlog.
+	 **/
+	public int getPeakBacklog()
+	{
+		return this.peakBacklog.get();
+	}	// End of method getPeakBacklog
+
+	/**
+	 * Returns the number of lines added to the chat area.
+	 * @return The line count.
+	 **/
+	public long getLinesRendered()
+	{
+		return this.linesRendered;
+	}	// End of method getLinesRendered
+
+	/**
+	 * Returns how long the last batch held the EDT.
+	 * @return Milliseconds.
+	 **/
+	public double getLastBatchMillis()
+	{
+		return this.lastBatchNanos / 1e6;
+	}	// End of method getLastBatchMillis
+
+	/**
+	 * Returns how long 99% of lines waited between being queued and
+	 * being shown.
+	 * @return Milliseconds.
+	 **/
+	public double getRenderDelayP99Millis()
+	{
+		return this.renderDelay.getValueAtPercentile(99) / 1e6;
+	}	// End of method getRenderDelayP99Millis
+
+	/**
+	 * Renders every queued line. Called by the frame timer on the EDT.
+	 **/
+	public void actionPerformed(ActionEvent event)
+	{
+		long start = System.nanoTime();
+		this.scheduled.set(false);
+		int limit = this.scrollbackLimit;
+
+		// Lines beyond the scrollback limit would be trimmed at once; skip them
+		int excess = this.pendingCount.get() - limit;
+		Line line;
+		while (excess-- > 0 && (line = this.pending.poll()) != null)
+		{
+			this.pendingCount.decrementAndGet();
+			if (line.rendered != null)
+				line.rendered.run();
+		}	// End of while
+
+		try
+		{
+			while ((line = this.pending.poll()) != null)
+			{
+				this.pendingCount.decrementAndGet();
+				this.insert(line);
+				this.renderDelay.record(start - line.queuedTime);
+				this.linesRendered++;
+				if (line.rendered != null)
+					line.rendered.run();
+			}	// End of while
+			this.trim(limit);
+		}	// End of try
+		catch (BadLocationException e)
+		{
+			e.printStackTrace();
+		}	// End of catch
+		this.lastBatchNanos = System.nanoTime() - start;
+	}	// End of method actionPerformed
+
+	/**
+	 * Inserts one line at the end of the document or list.
+	 **/
+	private void insert(Line line) throws BadLocationException
+	{
+		if (this.list != null)
+		{
+			this.list.add(line.kind, (line.kind == INFO) ? null : this.prefix(line.kind, line.time), line.msg.trim());
+			return;
+		}	// End of if
+
+		AttributeSet style = this.prefixStyles[line.kind];
+		String body = line.msg.trim() + "\n";
+
+		if (line.kind == INFO)
+		{
+			this.doc.setParagraphAttributes(this.doc.getLength(), body.length(), style, true);
+			this.doc.insertString(this.doc.getLength(), body, style);
+		}	// End of if
+		else
+		{
+			String prefix = this.prefix(line.kind, line.time);
+			this.doc.setParagraphAttributes(this.doc.getLength(), prefix.length() + body.length(), style, true);
+			this.doc.insertString(this.doc.getLength(), prefix, style);
+			this.doc.insertString(this.doc.getLength(), body, this.styBody);
+		}	// End of else
+	}	// End of method insert
+
+	/**
+	 * Removes the oldest paragraphs until at most limit lines remain. A
+	 * list is told of the batch at the same time.
+	 **/
+	private void trim(int limit) throws BadLocationException
+	{
+		if (this.list != null)
+		{
+			this.list.publish(limit);
+			return;
+		}	// End of if
+
+		Element root = this.doc.getDefaultRootElement();
+		// The last paragraph is the empty one after the final newline
+		int lines = root.getElementCount() - 1;
+		if (lines > limit)
+			this.doc.remove(0, root.getElement(lines - limit).getStartOffset());
+	}	// End of method trim
+
+	/**
+	 * Returns the "[HH:mm:ss]<< " or "[HH:mm:ss]>> " prefix of a message,
+	 * building both once a second and reusing them within it.
+	 **/
+	private String prefix(int kind, long time)
+	{
+		long second = time / 1000;
+		if (second != this.cachedSecond)
+		{
+			String timestamp = this.fmt.format(new Date(time));
+			this.cachedSecond = second;
+			this.cachedPrefixes[INCOMING] = "[" + timestamp + "]<< ";
+			this.cachedPrefixes[OUTGOING] = "[" + timestamp + "]>> ";
+		}	// End of if
+		return this.cachedPrefixes[kind];
+	}	// End of method prefix
+
+	/**
+	 * A line waiting to be rendered.
+	 **/
+	private static class Line
+	{
+		final int kind;
+		final String msg;
+		final long time;
+		final Runnable rendered;
+		final long queuedTime = System.nanoTime();
+
+		Line(int kind, String msg, long time, Runnable rendered)
+		{
+			this.kind = kind;
+			this.msg = msg;
+			this.time = time;
+			this.rendered = rendered;
+		}	// End of constructor
+	}	// End of class Line
+}	// End of class MessageRenderer
\ No newline at end of file
@@ -0,0 +1,18 @@
+// MessageRendererMBean.java
+// The JMX management interface of MessageRenderer.
+// Devon Bautista
+
+/**
+ * Shows how far the chat window's rendering on the Swing event thread
+ * is keeping up with incoming lines.
+ **/
+public interface MessageRendererMBean
+{
+	public int getBacklog();
+	public int getPeakBacklog();
+	public long getLinesRendered();
+	public double getLastBatchMillis();
+	public double getRenderDelayP99Millis();
+	public int getScrollbackLimit();
+	public void setScrollbackLimit(int limit);
+}	// End of interface MessageRendererMBean
\ No newline at end of file
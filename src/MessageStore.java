@@ -0,0 +1,687 @@
+// MessageStore.java
+// Keeps messages for clients that are not connected.
+// Devon Bautista
+
+import java.io.*;
+import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.function.*;
+
+/**
+ * Holds a durable queue of chat messages for every configured client
+ * that has identified itself to the server, so messages sent while a
+ * client is away reach it when it next connects. Only names listed in
+ * the store's users get a queue, and at most maxMailboxes of them. Each recipient has a directory
+ * named after the hex of its UTF-8 name, holding a SegmentedLog of
+ * small segments and a cursor file with the sequence number of the
+ * first message not yet delivered. Each log record is laid out as:
+ *
+ *   long  time   epoch milliseconds
+ *   byte[] text  UTF-8
+ *
+ * Messages are delivered in STORED frames of up to BATCH_SIZE bytes,
+ * and the cursor only moves once a frame has been written, so a client
+ * that drops off part way through gets the rest next time. A queue is
+ * limited in size and age: once its segments pass maxBytes the oldest
+ * segment is deleted, and messages older than maxAgeMillis are skipped.
+ * Once all the queues together reach maxTotalBytes, new messages are
+ * dropped until some are delivered or expire. A queue that has been
+ * delivered in full has its segments deleted. Every SWEEP_MILLIS the
+ * store expires old messages in queues nobody is reading, and closes
+ * the log of a queue that has been idle for IDLE_MILLIS, so an idle
+ * recipient holds no mapped segments or open files.
+ * The store holds a lock on its directory while open, so two servers
+ * can never append to the same queues.
+ **/
+public class MessageStore implements Closeable
+{
+	// Constants
+	public static final String DIRECTORY_PROPERTY = "simpleim.storeDir";
+	public static final String MAX_BYTES_PROPERTY = "simpleim.storeMaxBytes";
+	public static final String MAX_AGE_PROPERTY = "simpleim.storeMaxAgeMillis";
+	public static final String USERS_PROPERTY = "simpleim.storeUsers";
+	public static final String MAX_MAILBOXES_PROPERTY = "simpleim.storeMaxMailboxes";
+	public static final String MAX_TOTAL_BYTES_PROPERTY = "simpleim.storeMaxTotalBytes";
+	public static final long DEFAULT_MAX_BYTES = 16 * 1024 * 1024;
+	public static final long DEFAULT_MAX_AGE_MILLIS = 7L * 24 * 60 * 60 * 1000;
+	public static final int DEFAULT_MAX_MAILBOXES = 1000;
+	public static final long DEFAULT_MAX_TOTAL_BYTES = 1024L * 1024 * 1024;
+	public static final long SWEEP_MILLIS = 60 * 1000;
+	public static final long IDLE_MILLIS = 5 * 60 * 1000;
+	public static final int BATCH_SIZE = 64 * 1024;
+	private static final int SEGMENT_SIZE = 1024 * 1024;
+	private static final int INDEX_ENTRIES = 16 * 1024;
+	private static final String CURSOR_FILE = "cursor";
+	private static final int RECORD_HEADER_SIZE = 8;
+
+	// One daemon thread sweeps every open store
+	private static final ScheduledExecutorService SWEEPER = Executors.newSingleThreadScheduledExecutor(
+		new ThreadFactory()
+		{
+			public Thread newThread(Runnable task)
+			{
+				Thread thread = new Thread(task, "MessageStore-sweeper");
+				thread.setDaemon(true);
+				return thread;
+			}	// End of method newThread
+		});
+
+	// Attributes
+	private final File directory;
+	private final Set<String> users;
+	private final int maxMailboxes;
+	private final long maxBytes;
+	private final long maxTotalBytes;
+	private final long maxAgeMillis;
+	private final Map<String, Mailbox> mailboxes = new ConcurrentHashMap<String, Mailbox>();
+	private final AtomicLong totalBytes = new AtomicLong();
+	private final FileLock lock;
+	private final ScheduledFuture<?> sweepTask;
+
+	/**
+	 * Opens the store in a directory, creating it if needed. The queues
+	 * of configured users already in the directory are loaded; those
+	 * of anyone else are left on disk untouched.
+	 * @param directory The directory holding one directory per recipient.
+	 * @param users The names that may have a queue.
+	 * @param maxMailboxes The most queues the store keeps.
+	 * @param maxBytes The most disk space one recipient's queue may use.
+	 * @param maxTotalBytes The most disk space all the queues may use.
+	 * @param maxAgeMillis How long a message is kept for.
+	 * @throws IOException if the directory cannot be created, or another
+	 * store has it open.
+	 **/
+	public MessageStore(File directory, Set<String> users, int maxMailboxes, long maxBytes, long maxTotalBytes,
+		long maxAgeMillis) throws IOException
+	{
+		this.directory = directory;
+		this.users = new HashSet<String>(users);
+		this.maxMailboxes = maxMailboxes;
+		this.maxBytes = maxBytes;
+		this.maxTotalBytes = maxTotalBytes;
+		this.maxAgeMillis = maxAgeMillis;
+		if (!directory.isDirectory() && !directory.mkdirs())
+			throw new IOException("Unable to create " + directory);
+		this.lock = SegmentedLog.lockDirectory(directory);
+		if (this.lock == null)
+			throw new IOException(directory + " is in use by another server");
+
+		for (File dir : directory.listFiles())
+		{
+			String name = decodeName(dir.getName());
+			if (dir.isDirectory() && name != null && this.users.contains(name)
+				&& this.mailboxes.size() < maxMailboxes)
+				this.mailboxes.put(name, new Mailbox(name, dir));
+		}	// End of for
+
+		this.sweepTask = SWEEPER.scheduleWithFixedDelay(new Runnable()
+		{
+			public void run()
+			{
+				MessageStore.this.sweep();
+			}	// End of method run
+		}, SWEEP_MILLIS, SWEEP_MILLIS, TimeUnit.MILLISECONDS);
+	}	// End of constructor
+
+	/**
+	 * Opens the store named by the simpleim.storeDir,
+	 * simpleim.storeUsers, simpleim.storeMaxMailboxes,
+	 * simpleim.storeMaxBytes, simpleim.storeMaxTotalBytes and
+	 * simpleim.storeMaxAgeMillis system properties. The store is off
+	 * unless simpleim.storeDir and simpleim.storeUsers, a comma-separated
+	 * list of the names to keep messages for, are both set. A cluster
+	 * node keeps its queues in a node-ID directory under it, so nodes
+	 * sharing a host or a JVM never share a queue.
+	 * @param nodeId The server's cluster node ID, or 0 if it is not in a
+	 * cluster.
+	 * @return The store, or null if none is configured.
+	 * @throws IOException if the directory cannot be created, or another
+	 * server has it open.
+	 **/
+	public static MessageStore fromProperties(int nodeId) throws IOException
+	{
+		String dir = System.getProperty(DIRECTORY_PROPERTY);
+		if (dir == null || dir.trim().isEmpty())
+			return null;
+		Set<String> users = new HashSet<String>();
+		for (String name : System.getProperty(USERS_PROPERTY, "").split(","))
+			if (FrameCodec.isValidUserName(name.trim()))
+				users.add(name.trim());
+		if (users.isEmpty())
+			return null;
+		File directory = new File(dir.trim());
+		if (nodeId != 0)
+			directory = new File(directory, "node-" + nodeId);
+		return new MessageStore(directory, users, Integer.getInteger(MAX_MAILBOXES_PROPERTY, DEFAULT_MAX_MAILBOXES),
+			Long.getLong(MAX_BYTES_PROPERTY, DEFAULT_MAX_BYTES),
+			Long.getLong(MAX_TOTAL_BYTES_PROPERTY, DEFAULT_MAX_TOTAL_BYTES),
+			Long.getLong(MAX_AGE_PROPERTY, DEFAULT_MAX_AGE_MILLIS));
+	}	// End of method fromProperties
+
+	/**
+	 * Returns whether any client has ever identified itself.
+	 * @return True if messages can be stored for someone.
+	 **/
+	public boolean hasRecipients()
+	{
+		return !this.mailboxes.isEmpty();
+	}	// End of method hasRecipients
+
+	/**
+	 * Returns whether a client has ever identified itself.
+	 * @param name The client's name.
+	 * @return True if messages can be stored for it.
+	 **/
+	public boolean isRecipient(String name)
+	{
+		return this.mailboxes.containsKey(name);
+	}	// End of method isRecipient
+
+	/**
+	 * Stores a message for every recipient that is not connected.
+	 * @param time When the message was sent, in epoch milliseconds.
+	 * @param text The message.
+	 * @return The number of recipients it was stored for.
+	 * @throws IOException if a queue cannot be written.
+	 **/
+	public int storeForOffline(long time, String text) throws IOException
+	{
+		return this.storeForOffline(time, text, Collections.<String>emptySet());
+	}	// End of method storeForOffline
+
+	/**
+	 * Stores a message for every recipient that is not connected here
+	 * or anywhere else.
+	 * @param time When the message was sent, in epoch milliseconds.
+	 * @param text The message.
+	 * @param elsewhere The recipients connected to other servers.
+	 * @return The number of recipients it was stored for.
+	 * @throws IOException if a queue cannot be written.
+	 **/
+	public int storeForOffline(long time, String text, Set<String> elsewhere) throws IOException
+	{
+		int stored = 0;
+		for (Mailbox mailbox : this.mailboxes.values())
+			if (!elsewhere.contains(mailbox.name) && mailbox.storeIfOffline(time, text))
+				stored++;
+		return stored;
+	}	// End of method storeForOffline
+
+	/**
+	 * Stores a message for one recipient if it is not connected.
+	 * @param name The recipient's name.
+	 * @param time When the message was sent, in epoch milliseconds.
+	 * @param text The message.
+	 * @return True if it was stored; false if the recipient is connected
+	 * or unknown.
+	 * @throws IOException if the queue cannot be written.
+	 **/
+	public boolean storeIfOffline(String name, long time, String text) throws IOException
+	{
+		Mailbox mailbox = this.mailboxes.get(name);
+		return mailbox != null && mailbox.storeIfOffline(time, text);
+	}	// End of method storeIfOffline
+
+	/**
+	 * Marks a recipient as connected, creating its queue the first time
+	 * it is seen, and starts delivering its stored messages. Each STORED
+	 * frame is handed to the sink, and the next is built once it has
+	 * been written. Nothing is kept for a name that is not one of the
+	 * store's users, or once the store has maxMailboxes queues.
+	 * @param name The recipient's name.
+	 * @param sink Queues a STORED payload on the recipient's session and
+	 * returns its completion.
+	 * @return True if the recipient has a queue; false if none is kept
+	 * for it.
+	 * @throws IOException if the queue cannot be opened.
+	 **/
+	public boolean attach(String name, Function<byte[], CompletableFuture<Void>> sink) throws IOException
+	{
+		Mailbox mailbox;
+		synchronized (this.mailboxes)
+		{
+			mailbox = this.mailboxes.get(name);
+			if (mailbox == null)
+			{
+				if (!this.users.contains(name) || this.mailboxes.size() >= this.maxMailboxes)
+					return false;
+				File dir = new File(this.directory, encodeName(name));
+				if (!dir.isDirectory() && !dir.mkdirs())
+					throw new IOException("Unable to create " + dir);
+				mailbox = new Mailbox(name, dir);
+				this.mailboxes.put(name, mailbox);
+			}	// End of if
+		}	// End of synchronized
+		mailbox.attach(sink);
+		return true;
+	}	// End of method attach
+
+	/**
+	 * Marks one session of a recipient as gone.
+	 * @param name The recipient's name.
+	 **/
+	public void detach(String name)
+	{
+		Mailbox mailbox = this.mailboxes.get(name);
+		if (mailbox != null)
+			mailbox.detach();
+	}	// End of method detach
+
+	/**
+	 * Describes every queue that holds messages.
+	 * @return One line per recipient, or a line saying nothing is queued.
+	 **/
+	public String describe()
+	{
+		StringBuilder sb = new StringBuilder();
+		for (Mailbox mailbox : new TreeMap<String, Mailbox>(this.mailboxes).values())
+		{
+			String line = mailbox.describe();
+			if (line == null)
+				continue;
+			if (sb.length() > 0)
+				sb.append('\n');
+			sb.append(line);
+		}	// End of for
+		return (sb.length() == 0) ? "No messages are waiting for offline clients." : sb.toString();
+	}	// End of method describe
+
+	/**
+	 * Expires old messages in the queues nobody is reading, and closes
+	 * the logs of queues that have been idle for IDLE_MILLIS.
+	 **/
+	private void sweep()
+	{
+		long now = System.currentTimeMillis();
+		for (Mailbox mailbox : this.mailboxes.values())
+			mailbox.sweep(now);
+	}	// End of method sweep
+
+	/**
+	 * Forces every queue to disk, closes it and unlocks the directory.
+	 **/
+	public void close()
+	{
+		this.sweepTask.cancel(false);
+		for (Mailbox mailbox : this.mailboxes.values())
+			mailbox.close();
+		try
+		{
+			this.lock.channel().close();	// Releases the lock
+		}	// End of try
+		catch (IOException e)
+		{
+			// The lock goes with the process anyway
+		}	// End of catch
+	}	// End of method close
+
+	/**
+	 * Splits the payload of a STORED frame into its messages.
+	 * @param payload The STORED payload.
+	 * @return The messages, oldest first, as INCOMING records.
+	 * @throws ProtocolException if the payload is truncated.
+	 **/
+	public static List<HistoryRecord> readBatch(byte[] payload) throws ProtocolException
+	{
+		List<HistoryRecord> records = new ArrayList<HistoryRecord>();
+		ByteBuffer buf = ByteBuffer.wrap(payload);
+		while (buf.hasRemaining())
+		{
+			if (buf.remaining() < 12)
+				throw new ProtocolException("Truncated STORED frame");
+			long time = buf.getLong();
+			int length = buf.getInt();
+			if (length < 0 || length > buf.remaining())
+				throw new ProtocolException("Truncated STORED frame");
+			records.add(new HistoryRecord(records.size(), MessageRenderer.INCOMING, time,
+				new String(payload, buf.position(), length, StandardCharsets.UTF_8)));
+			buf.position(buf.position() + length);
+		}	// End of while
+		return records;
+	}	// End of method readBatch
+
+	private static String encodeName(String name)
+	{
+		StringBuilder sb = new StringBuilder();
+		for (byte b : name.getBytes(StandardCharsets.UTF_8))
+			sb.append(String.format("%02x", b & 0xFF));
+		return sb.toString();
+	}	// End of method encodeName
+
+	private static String decodeName(String hex)
+	{
+		if (hex.isEmpty() || hex.length() % 2 != 0)
+			return null;
+		byte[] bytes = new byte[hex.length() / 2];
+		try
+		{
+			for (int i = 0; i < bytes.length; i++)
+				bytes[i] = (byte) Integer.parseInt(hex.substring(2 * i, 2 * i + 2), 16);
+		}	// End of try
+		catch (NumberFormatException e)
+		{
+			return null;	// Not a recipient directory
+		}	// End of catch
+		return new String(bytes, StandardCharsets.UTF_8);
+	}	// End of method decodeName
+
+	/**
+	 * The queue of one recipient. Its log is opened when a message is
+	 * first stored, closed when the queue goes idle, and deleted once
+	 * every message has been delivered. Its share of the store's disk
+	 * space is tracked in size.
+	 **/
+	private class Mailbox
+	{
+		final String name;
+		final File dir;
+		final File cursorFile;
+		SegmentedLog log = null;
+		long cursor = 0;
+		int sessions = 0;
+		boolean delivering = false;
+		long expired = 0;
+		long trimmed = 0;
+		long size = 0;
+		long lastUsed = System.currentTimeMillis();
+		long oldest = 0;	// Time of the first pending message when the log was closed
+
+		Mailbox(String name, File dir) throws IOException
+		{
+			this.name = name;
+			this.dir = dir;
+			this.cursorFile = new File(dir, CURSOR_FILE);
+			if (this.cursorFile.isFile())
+				this.cursor = ByteBuffer.wrap(Files.readAllBytes(this.cursorFile.toPath())).getLong();
+			this.track();
+		}	// End of constructor
+
+		synchronized boolean storeIfOffline(long time, String text) throws IOException
+		{
+			if (this.sessions > 0)
+				return false;
+			if (MessageStore.this.totalBytes.get() >= MessageStore.this.maxTotalBytes)
+			{
+				this.trimmed++;		// The store is full
+				return false;
+			}	// End of if
+			this.lastUsed = System.currentTimeMillis();
+			byte[] body = text.getBytes(StandardCharsets.UTF_8);
+			ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER_SIZE + body.length);
+			record.putLong(time);
+			record.put(body);
+			this.open().append(record.array());
+			long before = this.cursor;
+
+			// Make room by dropping the oldest segment
+			while (this.log.getSizeOnDisk() > MessageStore.this.maxBytes)
+			{
+				long first = this.log.deleteOldest();
+				if (first <= this.cursor)
+					break;		// Only the active segment is left
+				this.trimmed += first - this.cursor;
+				this.cursor = first;
+			}	// End of while
+			this.expire(time);
+			if (this.cursor != before)
+				this.saveCursor();
+			this.track();
+			return true;
+		}	// End of method storeIfOffline
+
+		synchronized void attach(Function<byte[], CompletableFuture<Void>> sink) throws IOException
+		{
+			this.sessions++;
+			this.lastUsed = System.currentTimeMillis();
+			if (this.delivering || !this.hasPending())
+				return;
+			this.expire(System.currentTimeMillis());
+			this.delivering = true;
+			this.deliver(sink);
+		}	// End of method attach
+
+		synchronized void detach()
+		{
+			this.sessions = Math.max(0, this.sessions - 1);
+		}	// End of method detach
+
+		/**
+		 * Sends the next batch, or finishes and deletes the log.
+		 **/
+		private synchronized void deliver(final Function<byte[], CompletableFuture<Void>> sink)
+		{
+			if (!this.hasPending())
+			{
+				this.delivering = false;
+				this.clear();
+				return;
+			}	// End of if
+
+			// Gather messages up to BATCH_SIZE bytes, always at least one
+			ByteArrayOutputStream batch = new ByteArrayOutputStream();
+			DataOutputStream out = new DataOutputStream(batch);
+			long next = this.log.getNextSequence();
+			long end = this.cursor;
+			try
+			{
+				while (end < next && (end == this.cursor || batch.size() < BATCH_SIZE))
+				{
+					byte[] record = this.log.read(end);
+					if (record.length + 4 + batch.size() > BATCH_SIZE && end > this.cursor)
+						break;
+					ByteBuffer buf = ByteBuffer.wrap(record);
+					out.writeLong(buf.getLong());
+					out.writeInt(record.length - RECORD_HEADER_SIZE);
+					out.write(record, RECORD_HEADER_SIZE, record.length - RECORD_HEADER_SIZE);
+					end++;
+				}	// End of while
+			}	// End of try
+			catch (IOException e)
+			{
+				// A ByteArrayOutputStream does not throw
+			}	// End of catch
+
+			final long delivered = end;
+			sink.apply(batch.toByteArray()).whenComplete(new BiConsumer<Void, Throwable>()
+			{
+				public void accept(Void result, Throwable failure)
+				{
+					Mailbox.this.delivered(delivered, failure, sink);
+				}	// End of method accept
+			});
+		}	// End of method deliver
+
+		private synchronized void delivered(long end, Throwable failure, Function<byte[], CompletableFuture<Void>> sink)
+		{
+			if (failure != null || this.log == null)
+			{
+				// The rest is delivered when the recipient reconnects
+				this.delivering = false;
+				return;
+			}	// End of if
+			this.cursor = Math.max(this.cursor, end);
+			try
+			{
+				this.saveCursor();
+			}	// End of try
+			catch (IOException e)
+			{
+				// Delivered again next time; better twice than never
+			}	// End of catch
+			this.log.deleteBefore(this.cursor);
+			this.track();
+			this.lastUsed = System.currentTimeMillis();
+			this.deliver(sink);
+		}	// End of method delivered
+
+		/**
+		 * Expires old messages and closes or deletes the log of a queue
+		 * nobody is reading. A closed queue is only reopened once its
+		 * oldest message may have expired.
+		 **/
+		synchronized void sweep(long now)
+		{
+			if (this.sessions > 0 || this.delivering)
+				return;
+			if (this.log == null && now - this.oldest < MessageStore.this.maxAgeMillis)
+				return;
+			long before = this.cursor;
+			if (this.hasPending())
+				this.expire(now);
+			if (!this.hasPending())
+				this.clear();
+			else if (now - this.lastUsed >= IDLE_MILLIS)
+			{
+				byte[] first = this.log.read(this.cursor);
+				this.oldest = (first == null) ? 0 : ByteBuffer.wrap(first).getLong();
+				this.log.close();
+				this.log = null;
+			}	// End of else if
+			if (this.cursor != before)
+			{
+				try
+				{
+					this.saveCursor();
+				}	// End of try
+				catch (IOException e)
+				{
+					// Expired again after a restart
+				}	// End of catch
+			}	// End of if
+			this.track();
+		}	// End of method sweep
+
+		/**
+		 * Skips queued messages older than the age limit.
+		 **/
+		private void expire(long now)
+		{
+			long next = this.log.getNextSequence();
+			long start = this.cursor;
+			while (this.cursor < next)
+			{
+				byte[] record = this.log.read(this.cursor);
+				if (record != null && ByteBuffer.wrap(record).getLong() >= now - MessageStore.this.maxAgeMillis)
+					break;
+				this.cursor++;
+			}	// End of while
+			this.expired += this.cursor - start;
+			this.log.deleteBefore(this.cursor);
+		}	// End of method expire
+
+		private boolean hasPending()
+		{
+			if (this.log == null && this.dir.list(new FilenameFilter()
+			{
+				public boolean accept(File dir, String name)
+				{
+					return name.endsWith(".log");
+				}	// End of method accept
+			}).length > 0)
+			{
+				try
+				{
+					this.open();
+				}	// End of try
+				catch (IOException e)
+				{
+					return false;
+				}	// End of catch
+			}	// End of if
+			return this.log != null && this.cursor < this.log.getNextSequence();
+		}	// End of method hasPending
+
+		private SegmentedLog open() throws IOException
+		{
+			if (this.log == null)
+			{
+				this.log = new SegmentedLog(this.dir, SEGMENT_SIZE, INDEX_ENTRIES, SegmentedLog.DEFAULT_FLUSH_MILLIS,
+					this.cursor);		// A cleared queue carries on numbering after what was delivered
+				if (this.cursor < this.log.getFirstSequence())
+					this.cursor = this.log.getFirstSequence();
+			}	// End of if
+			return this.log;
+		}	// End of method open
+
+		/**
+		 * Deletes the segments of a fully delivered queue. The cursor is
+		 * kept, so sequence numbers only ever grow: a segment file that
+		 * could not be deleted is found again on the next open, but all
+		 * its messages are behind the cursor and are not sent twice.
+		 **/
+		private void clear()
+		{
+			if (this.log != null)
+			{
+				try
+				{
+					this.log.delete();
+				}	// End of try
+				catch (IOException e)
+				{
+					// The files left behind all precede the cursor
+				}	// End of catch
+				this.log = null;
+			}	// End of if
+			this.oldest = Long.MAX_VALUE;	// Nothing to expire until the next message
+			try
+			{
+				this.saveCursor();
+			}	// End of try
+			catch (IOException e)
+			{
+				// Saved after every delivered batch already
+			}	// End of catch
+			this.track();
+		}	// End of method clear
+
+		/**
+		 * Brings the store's total up to date with this queue's size.
+		 **/
+		private void track()
+		{
+			long now = 0;
+			if (this.log != null)
+				now = this.log.getSizeOnDisk();
+			else
+			{
+				File[] files = this.dir.listFiles();
+				for (File file : (files == null) ? new File[0] : files)
+					if (!file.getName().startsWith(CURSOR_FILE))
+						now += file.length();
+			}	// End of else
+			MessageStore.this.totalBytes.addAndGet(now - this.size);
+			this.size = now;
+		}	// End of method track
+
+		private void saveCursor() throws IOException
+		{
+			File tmp = new File(this.dir, CURSOR_FILE + ".tmp");
+			Files.write(tmp.toPath(), ByteBuffer.allocate(8).putLong(this.cursor).array());
+			Files.move(tmp.toPath(), this.cursorFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+		}	// End of method saveCursor
+
+		synchronized String describe()
+		{
+			if (!this.hasPending() && this.expired == 0 && this.trimmed == 0)
+				return null;
+			long pending = (this.log == null) ? 0 : this.log.getNextSequence() - this.cursor;
+			return String.format("%s: %d messages waiting (%.1f KB on disk), %d expired, %d dropped for space",
+				this.name, pending, (this.log == null) ? 0 : this.log.getSizeOnDisk() / 1024.0,
+				this.expired, this.trimmed);
+		}	// End of method describe
+
+		synchronized void close()
+		{
+			if (this.log != null)
+				this.log.close();
+		}	// End of method close
+	}	// End of class Mailbox
+}	// End of class MessageStore
\ No newline at end of file
@@ -0,0 +1,216 @@
+// Metrics.java
+// Publishes SimpleIM's MBeans and dumps them for Prometheus.
+// Devon Bautista
+
+import java.io.*;
+import java.lang.management.*;
+import java.nio.charset.*;
+import java.nio.file.*;
+import java.util.*;
+import javax.management.*;
+
+/**
+ * Registers SimpleIM's MBeans under the "simpleim" JMX domain, where
+ * jconsole or any JMX client can read them, and optionally writes every
+ * numeric attribute of those MBeans to a file in the Prometheus text
+ * format every few seconds, for node_exporter's textfile collector. An
+ * attribute Foo of the MBean simpleim:type=Bar,port=1 is written as
+ * simpleim_bar_foo{port="1"}.
+ *
+ * The dump is switched on by setting the simpleim.metricsFile system
+ * property to the file to write.
+ **/
+public class Metrics
+{
+	// Constants
+	public static final String DOMAIN = "simpleim";
+	public static final String FILE_PROPERTY = "simpleim.metricsFile";
+	public static final String INTERVAL_PROPERTY = "simpleim.metricsIntervalMillis";
+	private static final long DEFAULT_INTERVAL_MILLIS = 10000;
+
+	// Attributes
+	private static Thread dumper = null;
+
+	/**
+	 * Registers an MBean with the platform MBean server. Failing to
+	 * register never stops the caller; the error is printed instead.
+	 * @param properties The key properties of its name, e.g. "type=Server,port=7788".
+	 * @param mbean The MBean.
+	 * @return Its name, or null if it could not be registered.
+	 **/
+	public static ObjectName register(String properties, Object mbean)
+	{
+		try
+		{
+			ObjectName name = new ObjectName(DOMAIN + ":" + properties);
+			ManagementFactory.getPlatformMBeanServer().registerMBean(mbean, name);
+			startDump();
+			return name;
+		}	// End of try
+		catch (JMException e)
+		{
+			e.printStackTrace();
+			return null;
+		}	// End of catch
+	}	// End of method register
+
+	/**
+	 * Removes an MBean registered by register().
+	 * @param name The name returned by register(), or null.
+	 **/
+	public static void unregister(ObjectName name)
+	{
+		if (name == null)
+			return;
+		try
+		{
+			ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+		}	// End of try
+		catch (JMException e)
+		{
+			// Already unregistered
+		}	// End of catch
+	}	// End of method unregister
+
+	/**
+	 * Writes every numeric attribute of every SimpleIM MBean in the
+	 * Prometheus text format.
+	 * @param out Where to write.
+	 * @throws IOException if out cannot be written.
+	 **/
+	public static void writePrometheus(Writer out) throws IOException
+	{
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		Map<String, List<String>> samples = new TreeMap<String, List<String>>();
+		try
+		{
+			for (ObjectName name : server.queryNames(new ObjectName(DOMAIN + ":*"), null))
+			{
+				String prefix = DOMAIN + "_" + snakeCase(name.getKeyProperty("type"));
+				String labels = labels(name);
+				for (MBeanAttributeInfo attribute : server.getMBeanInfo(name).getAttributes())
+				{
+					if (!attribute.isReadable())
+						continue;
+					Object value;
+					try
+					{
+						value = server.getAttribute(name, attribute.getName());
+					}	// End of try
+					catch (JMException e)
+					{
+						continue;	// Unregistered while dumping
+					}	// End of catch
+					if (!(value instanceof Number))
+						continue;
+
+					String metric = prefix + "_" + snakeCase(attribute.getName());
+					List<String> lines = samples.get(metric);
+					if (lines == null)
+					{
+						lines = new ArrayList<String>();
+						samples.put(metric, lines);
+					}	// End of if
+					lines.add(metric + labels + " " + value);
+				}	// End of for
+			}	// End of for
+		}	// End of try
+		catch (JMException e)
+		{
+			throw new IOException("Unable to read MBeans", e);
+		}	// End of catch
+
+		for (Map.Entry<String, List<String>> entry : samples.entrySet())
+		{
+			out.write("# TYPE " + entry.getKey() + " gauge\n");
+			for (String line : entry.getValue())
+				out.write(line + "\n");
+		}	// End of for
+	}	// End of method writePrometheus
+
+	/**
+	 * Starts the thread that writes the metrics file, if the
+	 * simpleim.metricsFile property is set and it is not running yet.
+	 **/
+	public static synchronized void startDump()
+	{
+		final String file = System.getProperty(FILE_PROPERTY);
+		if (file == null || dumper != null)
+			return;
+		final long interval = Long.getLong(INTERVAL_PROPERTY, DEFAULT_INTERVAL_MILLIS);
+
+		dumper = new Thread(new Runnable()
+		{
+			public void run()
+			{
+				while (true)
+				{
+					try
+					{
+						Thread.sleep(interval);
+						dump(new File(file));
+					}	// End of try
+					catch (InterruptedException e)
+					{
+						return;
+					}	// End of catch
+					catch (IOException e)
+					{
+						e.printStackTrace();
+					}	// End of catch
+				}	// End of while
+			}	// End of method run
+		}, "SimpleIM-metrics");
+		dumper.setDaemon(true);
+		dumper.start();
+	}	// End of method startDump
+
+	/**
+	 * Writes the metrics to a file, replacing it in one step so a
+	 * collector never reads it half written.
+	 * @param file The file to write.
+	 * @throws IOException if the file cannot be written.
+	 **/
+	public static void dump(File file) throws IOException
+	{
+		File tmp = new File(file.getPath() + ".tmp");
+		try (Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tmp), StandardCharsets.UTF_8)))
+		{
+			writePrometheus(out);
+		}	// End of try
+		Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}	// End of method dump
+
+	/**
+	 * Turns the key properties of a name other than type into labels.
+	 **/
+	private static String labels(ObjectName name)
+	{
+		StringBuilder sb = new StringBuilder();
+		for (Map.Entry<String, String> property : new TreeMap<String, String>(name.getKeyPropertyList()).entrySet())
+		{
+			if (property.getKey().equals("type"))
+				continue;
+			sb.append((sb.length() == 0) ? "{" : ",");
+			sb.append(property.getKey()).append("=\"")
+				.append(property.getValue().replace("\\", "\\\\").replace("\"", "\\\"")).append('"');
+		}	// End of for
+		return (sb.length() == 0) ? "" : sb.append('}').toString();
+	}	// End of method labels
+
+	/**
+	 * Turns "FramesInPerSecond" into "frames_in_per_second".
+	 **/
+	private static String snakeCase(String name)
+	{
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < name.length(); i++)
+		{
+			char c = name.charAt(i);
+			if (Character.isUpperCase(c) && i > 0 && !Character.isUpperCase(name.charAt(i - 1)))
+				sb.append('_');
+			sb.append(Character.isLetterOrDigit(c) ? Character.toLowerCase(c) : '_');
+		}	// End of for
+		return sb.toString();
+	}	// End of method snakeCase
+}	// End of class Metrics
\ No newline at end of file
@@ -0,0 +1,273 @@
+// OutboundBudget.java
+// Limits how much may be queued for one slow connection.
+// Devon Bautista
+
+import java.util.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * Counts the frames and bytes queued for one connection against a
+ * limit on each, and records how often the limit was hit and what was
+ * dropped because of it. When a chat message would go over a limit the
+ * connection's Policy decides what gives: the oldest queued messages,
+ * the new message, or the connection itself. Frames other than chat
+ * messages (handshakes, heartbeats, file transfer frames) are counted
+ * but never dropped.
+ *
+ * Counters may be updated from any thread. Two threads queuing at once
+ * may both see room for one more frame, so a queue can overshoot a
+ * limit by a frame per sending thread. Under DROP_OLDEST the owner
+ * trims its queue when it next writes, so the queue may stay over the
+ * limit until the writing thread catches up.
+ **/
+public class OutboundBudget
+{
+	// Constants
+	public static final String MAX_BYTES_PROPERTY = "simpleim.outboundMaxBytes";
+	public static final String MAX_MESSAGES_PROPERTY = "simpleim.outboundMaxMessages";
+	public static final String POLICY_PROPERTY = "simpleim.slowConsumerPolicy";
+	public static final long DEFAULT_MAX_BYTES = 4 * 1024 * 1024;
+	public static final int DEFAULT_MAX_MESSAGES = 10000;
+
+	/**
+	 * What to do when a chat message would go over the limit.
+	 **/
+	public enum Policy
+	{
+		DROP_OLDEST,	// Drop queued messages, oldest first, to make room
+		DROP_NEWEST,	// Drop the message being queued
+		DISCONNECT		// Close the connection
+	}	// End of enum Policy
+
+	// Attributes
+	private final long maxBytes;
+	private final int maxMessages;
+	private final Policy policy;
+	private final AtomicLong queuedBytes = new AtomicLong(0);
+	private final AtomicInteger queuedMessages = new AtomicInteger(0);
+	private final AtomicLong peakBytes = new AtomicLong(0);
+	private final AtomicLong peakMessages = new AtomicLong(0);
+	private final AtomicLong droppedBytes = new AtomicLong(0);
+	private final AtomicLong droppedMessages = new AtomicLong(0);
+	private final AtomicLong overflows = new AtomicLong(0);
+
+	/**
+	 * Creates a budget.
+	 * @param maxBytes The most encoded bytes that may be queued.
+	 * @param maxMessages The most frames that may be queued.
+	 * @param policy What to do when a chat message does not fit.
+	 **/
+	public OutboundBudget(long maxBytes, int maxMessages, Policy policy)
+	{
+		this.maxBytes = maxBytes;
+		this.maxMessages = maxMessages;
+		this.policy = policy;
+	}	// End of constructor
+
+	/**
+	 * Creates a budget from the simpleim.outboundMaxBytes,
+	 * simpleim.outboundMaxMessages and simpleim.slowConsumerPolicy
+	 * system properties. The policy is named in lower case with hyphens,
+	 * e.g. "drop-oldest"; the default is to disconnect. Read once when a
+	 * reactor starts; each connection gets a copy from forConnection().
+	 * @return A budget holding the configured limits.
+	 * @throws IllegalArgumentException if a property is not valid.
+	 **/
+	public static OutboundBudget fromProperties()
+	{
+		long maxBytes = Long.getLong(MAX_BYTES_PROPERTY, DEFAULT_MAX_BYTES);
+		int maxMessages = Integer.getInteger(MAX_MESSAGES_PROPERTY, DEFAULT_MAX_MESSAGES);
+		if (maxBytes <= 0 || maxMessages <= 0)
+			throw new IllegalArgumentException(MAX_BYTES_PROPERTY + " and " + MAX_MESSAGES_PROPERTY
+				+ " must be positive");
+
+		String policy = System.getProperty(POLICY_PROPERTY, "disconnect");
+		try
+		{
+			return new OutboundBudget(maxBytes, maxMessages,
+				Policy.valueOf(policy.trim().toUpperCase(Locale.ROOT).replace('-', '_')));
+		}	// End of try
+		catch (IllegalArgumentException e)
+		{
+			throw new IllegalArgumentException("Unknown " + POLICY_PROPERTY + " \"" + policy
+				+ "\"; use drop-oldest, drop-newest or disconnect");
+		}	// End of catch
+	}	// End of method fromProperties
+
+	/**
+	 * Creates a budget with the same limits and policy and nothing
+	 * counted yet, for a new connection.
+	 * @return A new budget for one connection.
+	 **/
+	public OutboundBudget forConnection()
+	{
+		return new OutboundBudget(this.maxBytes, this.maxMessages, this.policy);
+	}	// End of method forConnection
+
+	/**
+	 * Returns whether one more frame fits within both limits.
+	 * @param write The frame about to be queued.
+	 * @return True if queuing it keeps the connection within its limits.
+	 **/
+	public boolean fits(PendingWrite write)
+	{
+		return this.queuedMessages.get() < this.maxMessages
+			&& this.queuedBytes.get() + write.getSize() <= this.maxBytes;
+	}	// End of method fits
+
+	/**
+	 * Returns whether the queue is over either limit.
+	 * @return True if frames must be dropped to get back within the limits.
+	 **/
+	public boolean isOver()
+	{
+		return this.queuedMessages.get() > this.maxMessages || this.queuedBytes.get() > this.maxBytes;
+	}	// End of method isOver
+
+	/**
+	 * Counts a frame that has been queued.
+	 * @param write The frame.
+	 **/
+	public void added(PendingWrite write)
+	{
+		long bytes = this.queuedBytes.addAndGet(write.getSize());
+		int messages = this.queuedMessages.incrementAndGet();
+		raise(this.peakBytes, bytes);
+		raise(this.peakMessages, messages);
+	}	// End of method added
+
+	/**
+	 * Uncounts a frame that has left the queue, written or not.
+	 * @param write The frame.
+	 **/
+	public void removed(PendingWrite write)
+	{
+		this.queuedBytes.addAndGet(-write.getSize());
+		this.queuedMessages.decrementAndGet();
+	}	// End of method removed
+
+	/**
+	 * Records a chat message that was dropped instead of sent. Call
+	 * removed() as well if it had been queued.
+	 * @param write The frame.
+	 **/
+	public void dropped(PendingWrite write)
+	{
+		this.droppedBytes.addAndGet(write.getSize());
+		this.droppedMessages.incrementAndGet();
+	}	// End of method dropped
+
+	/**
+	 * Records that a chat message did not fit.
+	 * @return True if it was the first one, so the connection has just
+	 * become throttled.
+	 **/
+	public boolean overflowed()
+	{
+		return this.overflows.incrementAndGet() == 1;
+	}	// End of method overflowed
+
+	/**
+	 * Returns what happens when a chat message does not fit.
+	 * @return The policy.
+	 **/
+	public Policy getPolicy()
+	{
+		return this.policy;
+	}	// End of method getPolicy
+
+	/**
+	 * Returns the encoded bytes currently queued.
+	 * @return The byte count.
+	 **/
+	public long getQueuedBytes()
+	{
+		return this.queuedBytes.get();
+	}	// End of method getQueuedBytes
+
+	/**
+	 * Returns the number of frames currently queued.
+	 * @return The frame count.
+	 **/
+	public int getQueuedMessages()
+	{
+		return this.queuedMessages.get();
+	}	// End of method getQueuedMessages
+
+	/**
+	 * Returns the most bytes that have been queued at once.
+	 * @return The byte count.
+	 **/
+	public long getPeakBytes()
+	{
+		return this.peakBytes.get();
+	}	// End of method getPeakBytes
+
+	/**
+	 * Returns the most frames that have been queued at once.
+	 * @return The frame count.
+	 **/
+	public int getPeakMessages()
+	{
+		return (int) this.peakMessages.get();
+	}	// End of method getPeakMessages
+
+	/**
+	 * Returns the bytes of chat messages dropped.
+	 * @return The byte count.
+	 **/
+	public long getDroppedBytes()
+	{
+		return this.droppedBytes.get();
+	}	// End of method getDroppedBytes
+
+	/**
+	 * Returns the number of chat messages dropped.
+	 * @return The message count.
+	 **/
+	public long getDroppedMessages()
+	{
+		return this.droppedMessages.get();
+	}	// End of method getDroppedMessages
+
+	/**
+	 * Returns how many times a chat message did not fit.
+	 * @return The overflow count.
+	 **/
+	public long getOverflows()
+	{
+		return this.overflows.get();
+	}	// End of method getOverflows
+
+	/**
+	 * Returns whether the connection has ever hit its limits.
+	 * @return True if it has been throttled.
+	 **/
+	public boolean isThrottled()
+	{
+		return this.overflows.get() > 0;
+	}	// End of method isThrottled
+
+	/**
+	 * Raises a peak to a new value if it is higher.
+	 **/
+	private static void raise(AtomicLong peak, long value)
+	{
+		long current;
+		while (value > (current = peak.get()) && !peak.compareAndSet(current, value))
+			;	// Lost a race with another thread; retry
+	}	// End of method raise
+
+	/**
+	 * Describes the queue and what was dropped from it.
+	 * @return A line for the chat window.
+	 **/
+	public String describe()
+	{
+		return String.format("%.1f KB in %d frames queued (peak %.1f KB, %d frames), limit hit %d times, "
+			+ "%d messages (%.1f KB) dropped, policy %s",
+			this.queuedBytes.get() / 1024.0, this.queuedMessages.get(), this.peakBytes.get() / 1024.0,
+			this.peakMessages.get(), this.overflows.get(), this.droppedMessages.get(),
+			this.droppedBytes.get() / 1024.0, this.policy.name().toLowerCase(Locale.ROOT).replace('_', '-'));
+	}	// End of method describe
+}	// End of class OutboundBudget
\ No newline at end of file
@@ -0,0 +1,155 @@
+// OutboundQueue.java
+// Writes a blocking session's outgoing frames on a dedicated thread.
+// Devon Bautista
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Dedicated writer for a blocking connection. Callers queue frames
+ * and return at once; the writer thread drains everything pending
+ * into one buffered write and flushes once per batch.
+ **/
+public class OutboundQueue implements Runnable
+{
+	// Constants
+	private static final int MAX_BATCH = 256;
+	private static final PendingWrite SHUTDOWN = new PendingWrite(ByteBuffer.allocate(0));
+
+	// Attributes
+	private final DataOutputStream output;
+	private final WritableByteChannel channel;
+	private final FrameCompressor compressor;
+	private final BlockingQueue<PendingWrite> queue = new LinkedBlockingQueue<PendingWrite>();
+	private volatile boolean closed = false;
+
+	/**
+	 * Creates a queue that writes to the given stream.
+	 * @param output The buffered stream of the connection.
+	 **/
+	public OutboundQueue(DataOutputStream output)
+	{
+		this(output, null);
+	}	// End of constructor
+
+	/**
+	 * Creates a queue that compresses large frames as it writes them.
+	 * @param output The stream to write frames to.
+	 * @param compressor The connection's compressor, or null.
+	 **/
+	public OutboundQueue(DataOutputStream output, FrameCompressor compressor)
+	{
+		this.output = output;
+		this.channel = Channels.newChannel(output);
+		this.compressor = compressor;
+	}	// End of constructor
+
+	/**
+	 * Queues a frame for sending.
+	 * @param type The frame type.
+	 * @param payload The payload bytes.
+	 * @return A future completed once the frame has been flushed.
+	 **/
+	public CompletableFuture<Void> send(byte type, byte[] payload)
+	{
+		PendingWrite write = new PendingWrite(FrameCodec.encode(type, payload));
+		this.enqueue(write);
+		return write.getCompletion();
+	}	// End of method send
+
+	/**
+	 * Queues an encoded frame, such as a FileChunk, for sending.
+	 * @param write The frame to send.
+	 **/
+	public void enqueue(PendingWrite write)
+	{
+		if (this.closed)
+			write.fail(new ClosedChannelException());
+		else
+		{
+			write.markQueued();
+			this.queue.add(write);
+			if (this.closed && this.queue.remove(write))	// Writer stopped while adding
+				write.fail(new ClosedChannelException());
+		}	// End of else
+	}	// End of method enqueue
+
+	/**
+	 * Stops the writer after the frames already queued are written.
+	 **/
+	public void close()
+	{
+		this.closed = true;
+		this.queue.add(SHUTDOWN);
+	}	// End of method close
+
+	public void run()
+	{
+		List<PendingWrite> batch = new ArrayList<PendingWrite>(MAX_BATCH);
+		boolean running = true;
+
+		try
+		{
+			while (running)
+			{
+				// Wait for one frame, then take whatever else is pending
+				batch.add(this.queue.take());
+				this.queue.drainTo(batch, MAX_BATCH - 1);
+
+				for (PendingWrite write : batch)
+				{
+					if (write == SHUTDOWN)
+					{
+						running = false;
+						continue;
+					}	// End of if
+					if (write instanceof FileChunk)
+					{
+						if (!((FileChunk) write).writeTo(this.channel))
+							throw new IOException("Unable to write file chunk");
+						continue;
+					}	// End of if
+					write.prepare(this.compressor);
+					ByteBuffer buf = write.getBuffer();
+					this.output.write(buf.array(), buf.position(), buf.remaining());
+				}	// End of for
+				this.output.flush();
+
+				long written = System.nanoTime();
+				for (PendingWrite write : batch)
+				{
+					write.markWritten(written);
+					write.complete();
+				}	// End of for
+				batch.clear();
+			}	// End of while
+		}	// End of try
+		catch (IOException e)
+		{
+			this.fail(batch, e);
+		}	// End of catch
+		catch (InterruptedException e)
+		{
+			this.fail(batch, new InterruptedIOException());
+		}	// End of catch
+		finally
+		{
+			this.closed = true;
+			this.fail(batch, new ClosedChannelException());
+		}	// End of finally
+	}	// End of method run
+
+	/**
+	 * Fails every frame in the batch and still in the queue.
+	 **/
+	private void fail(List<PendingWrite> batch, IOException cause)
+	{
+		this.queue.drainTo(batch);
+		for (PendingWrite write : batch)
+			write.fail(cause);
+		batch.clear();
+	}	// End of method fail
+}	// End of class OutboundQueue
\ No newline at end of file
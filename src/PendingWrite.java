@@ -0,0 +1,162 @@
+// PendingWrite.java
+// An encoded frame waiting in an outbound queue.
+// Devon Bautista
+
+import java.nio.*;
+import java.util.concurrent.*;
+
+/**
+ * Pairs an encoded frame with the handle that completes once the
+ * frame has been handed to the socket.
+ **/
+public class PendingWrite
+{
+	// Attributes
+	private ByteBuffer buffer;
+	private final CompletableFuture<Void> completion;
+	private final byte type;
+	private final int size;
+	private boolean prepared = false;
+	private long queuedTime = 0;
+	private volatile long writtenTime = 0;
+
+	/**
+	 * Creates a pending write.
+	 * @param buffer The encoded frame, ready to be written.
+	 **/
+	public PendingWrite(ByteBuffer buffer)
+	{
+		this(buffer, new CompletableFuture<Void>());
+	}	// End of constructor
+
+	/**
+	 * Creates a pending write that reports to an existing handle.
+	 * @param buffer The encoded frame, ready to be written.
+	 * @param completion The handle returned by getCompletion().
+	 **/
+	protected PendingWrite(ByteBuffer buffer, CompletableFuture<Void> completion)
+	{
+		this.buffer = buffer;
+		this.completion = completion;
+		this.size = buffer.remaining();
+		this.type = (this.size >= FrameCodec.HEADER_SIZE) ? buffer.get(buffer.position() + 4) : 0;
+	}	// End of constructor
+
+	/**
+	 * Returns the encoded frame.
+	 * @return The buffer still to be written.
+	 **/
+	public ByteBuffer getBuffer()
+	{
+		return this.buffer;
+	}	// End of method getBuffer
+
+	/**
+	 * Records the time the frame was queued, for send latency.
+	 **/
+	public void markQueued()
+	{
+		this.queuedTime = System.nanoTime();
+	}	// End of method markQueued
+
+	/**
+	 * Returns when the frame was queued.
+	 * @return The System.nanoTime() of markQueued(), or 0 if not marked.
+	 **/
+	public long getQueuedTime()
+	{
+		return this.queuedTime;
+	}	// End of method getQueuedTime
+
+	/**
+	 * Records the time the frame was written in full, for delivery tracing.
+	 * @param time The System.nanoTime() of the write.
+	 **/
+	public void markWritten(long time)
+	{
+		this.writtenTime = time;
+	}	// End of method markWritten
+
+	/**
+	 * Returns when the frame was written in full.
+	 * @return The time passed to markWritten(), or 0 if not written yet.
+	 **/
+	public long getWrittenTime()
+	{
+		return this.writtenTime;
+	}	// End of method getWrittenTime
+
+	/**
+	 * Returns the size of the frame as it was queued, before compression.
+	 * @return The encoded size in bytes.
+	 **/
+	public int getSize()
+	{
+		return this.size;
+	}	// End of method getSize
+
+	/**
+	 * Returns whether the frame may be dropped for a slow connection.
+	 * Only chat messages may; dropping any other frame would break the
+	 * protocol. STREAM_DATA is bounded by its stream's window instead,
+	 * since a dropped one would never return its credit.
+	 * @return True for MESSAGE and ROOM_MESSAGE frames.
+	 **/
+	public boolean isDroppable()
+	{
+		return this.type == FrameCodec.TYPE_MESSAGE || this.type == FrameCodec.TYPE_ROOM_MESSAGE;
+	}	// End of method isDroppable
+
+	/**
+	 * Compresses the frame if the connection negotiated compression.
+	 * Only the first call has any effect, so a frame that has started
+	 * going out is never replaced. Called on the writing thread.
+	 * @param compressor The connection's compressor, or null.
+	 **/
+	public void prepare(FrameCompressor compressor)
+	{
+		if (!this.prepared)
+		{
+			this.prepared = true;
+			if (compressor != null)
+				this.buffer = this.compress(compressor);
+		}	// End of if
+	}	// End of method prepare
+
+	/**
+	 * Returns the frame as it should be sent by a compressing connection.
+	 * @param compressor The connection's compressor.
+	 * @return The compressed frame, or the original one.
+	 **/
+	protected ByteBuffer compress(FrameCompressor compressor)
+	{
+		return compressor.compress(this.buffer);
+	}	// End of method compress
+
+	/**
+	 * Marks the frame as written in full.
+	 **/
+	public void complete()
+	{
+		this.completion.complete(null);
+	}	// End of method complete
+
+	/**
+	 * Marks the frame as never to be written.
+	 * @param cause Why the frame could not be written.
+	 **/
+	public void fail(Throwable cause)
+	{
+		this.completion.completeExceptionally(cause);
+	}	// End of method fail
+
+	/**
+	 * Returns the completion handle for this write.
+	 * @return A future completed when the frame is written, or
+	 * completed exceptionally if the connection fails first.
+	 **/
+	public CompletableFuture<Void> getCompletion()
+	{
+		return this.completion;
+	}	// End of method getCompletion
+}	// End of class PendingWrite
\ No newline at end of file
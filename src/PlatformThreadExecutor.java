@@ -0,0 +1,23 @@
+// PlatformThreadExecutor.java
+// Runs each session on its own platform thread.
+// Devon Bautista
+
+/**
+ * Starts one non-daemon platform thread per session. This is how
+ * sessions have always been run.
+ **/
+public class PlatformThreadExecutor implements SessionExecutor
+{
+	public Thread start(Runnable task, String name)
+	{
+		Thread thread = new Thread(task, name);
+		thread.setDaemon(false);
+		thread.start();
+		return thread;
+	}	// End of method start
+
+	public boolean isVirtual()
+	{
+		return false;
+	}	// End of method isVirtual
+}	// End of class PlatformThreadExecutor
\ No newline at end of file
@@ -0,0 +1,320 @@
+// RateLimiter.java
+// Limits how fast each client, and each client address, may send.
+// Devon Bautista
+
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.*;
+
+/**
+ * Holds the inbound rate limits of an IMReactor: messages and bytes per
+ * second for each connection, and again for all the connections from
+ * one address together. Each limit is a TokenBucket holding burstMillis
+ * of its rate; a limit of 0 is no limit. The Policy decides what
+ * happens to a client over its limit: under PAUSE the reactor stops
+ * reading its connection until the buckets have refilled, so TCP pushes
+ * back on the sender; under REJECT its frames are read and refused, and
+ * it is told so with an ERROR frame.
+ *
+ * Only frames that carry work for the server count as messages;
+ * heartbeats, ACKs and stream credit are never refused, and nor are
+ * file transfers, which cannot be refused halfway. Their bytes still
+ * count, and a connection whose bytes go over the limit is paused
+ * whatever the policy.
+ **/
+public class RateLimiter
+{
+	// Constants
+	public static final String MESSAGES_PROPERTY = "simpleim.rateMessagesPerSecond";
+	public static final String BYTES_PROPERTY = "simpleim.rateBytesPerSecond";
+	public static final String ADDRESS_MESSAGES_PROPERTY = "simpleim.addressRateMessagesPerSecond";
+	public static final String ADDRESS_BYTES_PROPERTY = "simpleim.addressRateBytesPerSecond";
+	public static final String BURST_PROPERTY = "simpleim.rateBurstMillis";
+	public static final String POLICY_PROPERTY = "simpleim.rateLimitPolicy";
+	public static final long DEFAULT_BURST_MILLIS = 1000;
+
+	/**
+	 * What to do with a client over its limit.
+	 **/
+	public enum Policy
+	{
+		PAUSE,		// Stop reading until the client is back within its limits
+		REJECT		// Refuse its frames and send ERROR
+	}	// End of enum Policy
+
+	// Attributes
+	private final long messagesPerSecond;
+	private final long bytesPerSecond;
+	private final long addressMessagesPerSecond;
+	private final long addressBytesPerSecond;
+	private final long burstMillis;
+	private final Policy policy;
+	private final Map<InetAddress, Address> addresses = new ConcurrentHashMap<InetAddress, Address>();
+
+	/**
+	 * Creates the limits.
+	 * @param messagesPerSecond Messages each connection may send per second, or 0.
+	 * @param bytesPerSecond Bytes each connection may send per second, or 0.
+	 * @param addressMessagesPerSecond Messages each address may send per second, or 0.
+	 * @param addressBytesPerSecond Bytes each address may send per second, or 0.
+	 * @param burstMillis How many milliseconds of its rate each limit allows at once.
+	 * @param policy What to do with a client over its limit.
+	 **/
+	public RateLimiter(long messagesPerSecond, long bytesPerSecond, long addressMessagesPerSecond,
+		long addressBytesPerSecond, long burstMillis, Policy policy)
+	{
+		this.messagesPerSecond = messagesPerSecond;
+		this.bytesPerSecond = bytesPerSecond;
+		this.addressMessagesPerSecond = addressMessagesPerSecond;
+		this.addressBytesPerSecond = addressBytesPerSecond;
+		this.burstMillis = burstMillis;
+		this.policy = policy;
+	}	// End of constructor
+
+	/**
+	 * Creates the limits from the simpleim.rateMessagesPerSecond,
+	 * simpleim.rateBytesPerSecond, simpleim.addressRateMessagesPerSecond,
+	 * simpleim.addressRateBytesPerSecond, simpleim.rateBurstMillis and
+	 * simpleim.rateLimitPolicy system properties. Every limit defaults
+	 * to none. The policy is "pause" or "reject"; the default is to pause.
+	 * @return The limits.
+	 **/
+	public static RateLimiter fromProperties()
+	{
+		String policy = System.getProperty(POLICY_PROPERTY, "pause");
+		return new RateLimiter(Long.getLong(MESSAGES_PROPERTY, 0), Long.getLong(BYTES_PROPERTY, 0),
+			Long.getLong(ADDRESS_MESSAGES_PROPERTY, 0), Long.getLong(ADDRESS_BYTES_PROPERTY, 0),
+			Long.getLong(BURST_PROPERTY, DEFAULT_BURST_MILLIS),
+			Policy.valueOf(policy.trim().toUpperCase(Locale.ROOT)));
+	}	// End of method fromProperties
+
+	/**
+	 * Returns whether any limit is set.
+	 * @return True if some client could be held back.
+	 **/
+	public boolean isEnabled()
+	{
+		return this.messagesPerSecond > 0 || this.bytesPerSecond > 0
+			|| this.addressMessagesPerSecond > 0 || this.addressBytesPerSecond > 0;
+	}	// End of method isEnabled
+
+	public Policy getPolicy()
+	{
+		return this.policy;
+	}	// End of method getPolicy
+
+	/**
+	 * Returns whether a frame type counts as a message and may be refused.
+	 * @param type The frame type.
+	 * @return False for heartbeats, ACKs, stream credit, handshakes,
+	 * CLOSE and file data.
+	 **/
+	public static boolean isLimited(byte type)
+	{
+		return type != FrameCodec.TYPE_PING && type != FrameCodec.TYPE_PONG && type != FrameCodec.TYPE_ACK
+			&& type != FrameCodec.TYPE_STREAM_WINDOW && type != FrameCodec.TYPE_HELLO
+			&& type != FrameCodec.TYPE_RESUME && type != FrameCodec.TYPE_CLOSE && type != FrameCodec.TYPE_FILE_DATA;
+	}	// End of method isLimited
+
+	/**
+	 * Starts metering a connection, sharing the buckets of its address
+	 * with any other connections from it.
+	 * @param address The client's address.
+	 * @return The connection's meter; close it when the connection closes.
+	 **/
+	public Meter open(InetAddress address)
+	{
+		Address shared = this.addresses.compute(address, new BiFunction<InetAddress, Address, Address>()
+		{
+			public Address apply(InetAddress key, Address shared)
+			{
+				if (shared == null)
+					shared = new Address(RateLimiter.this.bucket(RateLimiter.this.addressMessagesPerSecond),
+						RateLimiter.this.bucket(RateLimiter.this.addressBytesPerSecond));
+				shared.connections++;
+				return shared;
+			}	// End of method apply
+		});
+		return new Meter(address, shared);
+	}	// End of method open
+
+	/**
+	 * Returns the number of addresses with open connections.
+	 * @return The address count.
+	 **/
+	public int getAddresses()
+	{
+		return this.addresses.size();
+	}	// End of method getAddresses
+
+	private TokenBucket bucket(long ratePerSecond)
+	{
+		return (ratePerSecond > 0) ? new TokenBucket(ratePerSecond, this.burstMillis) : null;
+	}	// End of method bucket
+
+	/**
+	 * The buckets shared by the connections from one address.
+	 **/
+	private static class Address
+	{
+		private final TokenBucket messages;
+		private final TokenBucket bytes;
+		private int connections = 0;	// Changed only inside compute()
+
+		Address(TokenBucket messages, TokenBucket bytes)
+		{
+			this.messages = messages;
+			this.bytes = bytes;
+		}	// End of constructor
+	}	// End of class Address
+
+	/**
+	 * The buckets of one connection. Frames are admitted on the reactor
+	 * thread that owns the connection.
+	 **/
+	public class Meter
+	{
+		private final InetAddress address;
+		private final Address shared;
+		private final TokenBucket messages;
+		private final TokenBucket bytes;
+		private volatile long rejected = 0;
+		private volatile long pauses = 0;
+		private boolean closed = false;
+
+		Meter(InetAddress address, Address shared)
+		{
+			this.address = address;
+			this.shared = shared;
+			this.messages = RateLimiter.this.bucket(RateLimiter.this.messagesPerSecond);
+			this.bytes = RateLimiter.this.bucket(RateLimiter.this.bytesPerSecond);
+		}	// End of constructor
+
+		/**
+		 * Counts a frame against the limits. Under PAUSE every frame is
+		 * admitted and may leave the connection owing tokens; under
+		 * REJECT a message is admitted only if every bucket holds enough.
+		 * @param type The frame type.
+		 * @param size The frame's size on the wire.
+		 * @return True if the frame should be handled, false if refused.
+		 **/
+		public boolean admit(byte type, long size)
+		{
+			if (RateLimiter.this.policy == Policy.PAUSE || !isLimited(type))
+			{
+				this.charge(size);
+				if (isLimited(type))
+				{
+					acquire(this.messages, 1);
+					acquire(this.shared.messages, 1);
+				}	// End of if
+				return true;
+			}	// End of if
+
+			if (tryAcquire(this.messages, 1))
+			{
+				if (tryAcquire(this.shared.messages, 1))
+				{
+					if (tryAcquire(this.bytes, size))
+					{
+						if (tryAcquire(this.shared.bytes, size))
+							return true;
+						refund(this.bytes, size);
+					}	// End of if
+					refund(this.shared.messages, 1);
+				}	// End of if
+				refund(this.messages, 1);
+			}	// End of if
+			this.rejected++;
+			return false;
+		}	// End of method admit
+
+		/**
+		 * Counts bytes that cannot be refused, such as file data.
+		 * @param size The number of bytes.
+		 **/
+		public void charge(long size)
+		{
+			acquire(this.bytes, size);
+			acquire(this.shared.bytes, size);
+		}	// End of method charge
+
+		/**
+		 * Returns how long reading should pause for the connection and
+		 * its address to be back within their limits.
+		 * @return The nanoseconds to wait, or 0 if reading may go on.
+		 **/
+		public long getDelay()
+		{
+			return Math.max(Math.max(delay(this.messages), delay(this.bytes)),
+				Math.max(delay(this.shared.messages), delay(this.shared.bytes)));
+		}	// End of method getDelay
+
+		/**
+		 * Counts a pause in reading.
+		 **/
+		public void paused()
+		{
+			this.pauses++;
+		}	// End of method paused
+
+		/**
+		 * Returns the number of frames refused.
+		 * @return The rejected count.
+		 **/
+		public long getRejected()
+		{
+			return this.rejected;
+		}	// End of method getRejected
+
+		/**
+		 * Returns the number of times reading was paused.
+		 * @return The pause count.
+		 **/
+		public long getPauses()
+		{
+			return this.pauses;
+		}	// End of method getPauses
+
+		/**
+		 * Stops metering the connection, forgetting its address once no
+		 * connection from it is left. Only the first call has an effect.
+		 **/
+		public synchronized void close()
+		{
+			if (this.closed)
+				return;
+			this.closed = true;
+			RateLimiter.this.addresses.computeIfPresent(this.address, new BiFunction<InetAddress, Address, Address>()
+			{
+				public Address apply(InetAddress key, Address shared)
+				{
+					return (--shared.connections == 0) ? null : shared;
+				}	// End of method apply
+			});
+		}	// End of method close
+	}	// End of class Meter
+
+	private static void acquire(TokenBucket bucket, long count)
+	{
+		if (bucket != null)
+			bucket.acquire(count);
+	}	// End of method acquire
+
+	private static boolean tryAcquire(TokenBucket bucket, long count)
+	{
+		return bucket == null || bucket.tryAcquire(count);
+	}	// End of method tryAcquire
+
+	private static void refund(TokenBucket bucket, long count)
+	{
+		if (bucket != null)
+			bucket.refund(count);
+	}	// End of method refund
+
+	private static long delay(TokenBucket bucket)
+	{
+		return (bucket == null) ? 0 : bucket.getDelay();
+	}	// End of method delay
+}	// End of class RateLimiter
\ No newline at end of file
@@ -0,0 +1,18 @@
+// ReactorHandler.java
+// An interface for receiving events from IMReactor.
+// Devon Bautista
+
+/**
+ * Receives session events from an IMReactor. A session is opened
+ * once its protocol handshake completes. Methods are called on
+ * the reactor thread that owns the session, so implementations
+ * should return quickly. The frame given to frameReceived() is a view
+ * of the session's read buffer and is reused for the next frame, so a
+ * handler that keeps it past the call must keep Frame.copy() instead.
+ **/
+public interface ReactorHandler
+{
+	public void sessionOpened(ChannelSession session);
+	public void frameReceived(ChannelSession session, Frame frame);
+	public void sessionClosed(ChannelSession session);
+}	// End of interface ReactorHandler
\ No newline at end of file
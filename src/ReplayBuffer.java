@@ -0,0 +1,161 @@
+// ReplayBuffer.java
+// The recent chat frames of a session, kept to send again after a reconnect.
+// Devon Bautista
+
+import java.nio.charset.*;
+import java.util.*;
+
+/**
+ * A bounded ring of the traced chat frames most recently sent on a
+ * session, keyed by their sequence numbers. When a connection drops
+ * and the session is resumed, the other side names the last sequence
+ * number it received and everything after it is sent again. Entries
+ * are kept in the order they were queued, and that order, not the
+ * numbers themselves, decides what comes after, since frames encoded
+ * on different threads may be queued slightly out of sequence.
+ *
+ * Frames are kept as their text rather than their bytes so that a
+ * frame on a stream can be sent again on whatever stream the
+ * conversation has on the new connection.
+ **/
+public class ReplayBuffer
+{
+	// Constants
+	public static final String CAPACITY_PROPERTY = "simpleim.replayCapacity";
+	private static final int DEFAULT_CAPACITY = 256;
+
+	// Attributes
+	private final Entry[] entries;
+	private int next = 0;
+	private int size = 0;
+
+	/**
+	 * Creates a buffer of the size in simpleim.replayCapacity.
+	 **/
+	public ReplayBuffer()
+	{
+		this(Integer.getInteger(CAPACITY_PROPERTY, DEFAULT_CAPACITY));
+	}	// End of constructor
+
+	/**
+	 * Creates a buffer.
+	 * @param capacity The number of frames kept.
+	 **/
+	public ReplayBuffer(int capacity)
+	{
+		this.entries = new Entry[Math.max(1, capacity)];
+	}	// End of constructor
+
+	/**
+	 * Keeps a frame, forgetting the oldest if the buffer is full.
+	 * @param sequence The frame's sequence number.
+	 * @param type MESSAGE, ROOM_MESSAGE or STREAM_DATA.
+	 * @param conversation The room of a STREAM_DATA frame, or null.
+	 * @param text The frame's text.
+	 **/
+	public synchronized void add(long sequence, byte type, String conversation, String text)
+	{
+		this.entries[this.next] = new Entry(sequence, type, conversation, text);
+		this.next = (this.next + 1) % this.entries.length;
+		this.size = Math.min(this.size + 1, this.entries.length);
+	}	// End of method add
+
+	/**
+	 * Returns the frames kept after the one with a sequence number. If
+	 * that frame has been forgotten, or the number is 0, every frame
+	 * with a higher number is returned.
+	 * @param sequence The last sequence number the other side received.
+	 * @return The frames to send again, oldest first.
+	 **/
+	public synchronized List<Entry> after(long sequence)
+	{
+		List<Entry> kept = new ArrayList<Entry>(this.size);
+		int found = -1;
+		for (int i = 0; i < this.size; i++)
+		{
+			Entry entry = this.entries[(this.next - this.size + i + this.entries.length) % this.entries.length];
+			kept.add(entry);
+			if (entry.sequence == sequence)
+				found = i;
+		}	// End of for
+		if (found >= 0)
+			return new ArrayList<Entry>(kept.subList(found + 1, kept.size()));
+
+		List<Entry> missed = new ArrayList<Entry>();
+		for (Entry entry : kept)
+			if (entry.sequence > sequence)
+				missed.add(entry);
+		return missed;
+	}	// End of method after
+
+	/**
+	 * Forgets every frame.
+	 **/
+	public synchronized void clear()
+	{
+		Arrays.fill(this.entries, null);
+		this.next = 0;
+		this.size = 0;
+	}	// End of method clear
+
+	/**
+	 * Returns the number of frames kept.
+	 * @return The count.
+	 **/
+	public synchronized int size()
+	{
+		return this.size;
+	}	// End of method size
+
+	/**
+	 * One kept frame.
+	 **/
+	public static class Entry
+	{
+		private final long sequence;
+		private final byte type;
+		private final String conversation;
+		private final String text;
+
+		Entry(long sequence, byte type, String conversation, String text)
+		{
+			this.sequence = sequence;
+			this.type = type;
+			this.conversation = conversation;
+			this.text = text;
+		}	// End of constructor
+
+		public long getSequence()
+		{
+			return this.sequence;
+		}	// End of method getSequence
+
+		public byte getType()
+		{
+			return this.type;
+		}	// End of method getType
+
+		public String getConversation()
+		{
+			return this.conversation;
+		}	// End of method getConversation
+
+		public String getText()
+		{
+			return this.text;
+		}	// End of method getText
+
+		/**
+		 * Encodes the frame again with its original sequence number.
+		 * @param streamId The conversation's stream ID on the new
+		 * connection; ignored unless the frame is STREAM_DATA.
+		 * @return The frame, ready to queue.
+		 **/
+		public PendingWrite encode(int streamId)
+		{
+			byte[] payload = (this.type == FrameCodec.TYPE_STREAM_DATA) ? FrameCodec.streamPayload(streamId, this.text)
+				: this.text.getBytes(StandardCharsets.UTF_8);
+			return new PendingWrite(FrameCodec.encode(this.type, FrameCodec.tracedPayload(this.sequence, payload)));
+		}	// End of method encode
+	}	// End of class Entry
+}	// End of class ReplayBuffer
\ No newline at end of file
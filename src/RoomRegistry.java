@@ -0,0 +1,172 @@
+// RoomRegistry.java
+// Tracks which sessions are members of which chat rooms.
+// Devon Bautista
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.function.*;
+
+/**
+ * Maps room names to their member sessions, and each session to the
+ * rooms it has joined. Both maps are ConcurrentHashMaps: a join or
+ * leave locks only the hash bin of its room, so joins and leaves of
+ * different rooms run in parallel, and member sets are concurrent so
+ * routing a room message reads them without locking. Creating and
+ * removing a room happen inside the same per-bin compute as the member
+ * change, so a join can never land in a room that is being removed.
+ *
+ * Each room also has a stream ID, unique among the rooms that exist,
+ * which clients that multiplex conversations use to tell its messages
+ * apart. It is assigned and freed in the same compute as the room.
+ **/
+public class RoomRegistry
+{
+	// Attributes
+	private final ConcurrentHashMap<String, Set<ChannelSession>> rooms = new ConcurrentHashMap<String, Set<ChannelSession>>();
+	private final ConcurrentHashMap<ChannelSession, Set<String>> memberships = new ConcurrentHashMap<ChannelSession, Set<String>>();
+	private final ConcurrentHashMap<String, Integer> streamIds = new ConcurrentHashMap<String, Integer>();
+	private final AtomicInteger nextStreamId = new AtomicInteger(1);
+
+	/**
+	 * Adds a session to a room, creating the room if needed.
+	 * @param room The room name.
+	 * @param session The joining session.
+	 * @return The room's stream ID.
+	 **/
+	public int join(String room, final ChannelSession session)
+	{
+		this.rooms.compute(room, new BiFunction<String, Set<ChannelSession>, Set<ChannelSession>>()
+		{
+			public Set<ChannelSession> apply(String name, Set<ChannelSession> members)
+			{
+				if (members == null)
+				{
+					members = ConcurrentHashMap.newKeySet();
+					RoomRegistry.this.streamIds.put(name, RoomRegistry.this.nextStreamId.getAndIncrement());
+				}	// End of if
+				members.add(session);
+				return members;
+			}	// End of method apply
+		});
+
+		Set<String> joined = this.memberships.get(session);
+		if (joined == null)
+		{
+			Set<String> created = ConcurrentHashMap.newKeySet();
+			joined = this.memberships.putIfAbsent(session, created);
+			if (joined == null)
+				joined = created;
+		}	// End of if
+		joined.add(room);
+		return this.getStreamId(room);
+	}	// End of method join
+
+	/**
+	 * Removes a session from a room, removing the room once it is empty.
+	 * @param room The room name.
+	 * @param session The leaving session.
+	 **/
+	public void leave(String room, ChannelSession session)
+	{
+		this.removeMember(room, session);
+		Set<String> joined = this.memberships.get(session);
+		if (joined != null)
+			joined.remove(room);
+	}	// End of method leave
+
+	/**
+	 * Removes a session from every room it joined. Only the session's
+	 * own rooms are touched.
+	 * @param session The closed session.
+	 * @return The rooms the session had joined.
+	 **/
+	public Set<String> leaveAll(ChannelSession session)
+	{
+		Set<String> joined = this.memberships.remove(session);
+		if (joined == null)
+			return Collections.<String>emptySet();
+		for (String room : joined)
+			this.removeMember(room, session);
+		return joined;
+	}	// End of method leaveAll
+
+	/**
+	 * Returns the members of a room.
+	 * @param room The room name.
+	 * @return A live view of the members; empty if there is no such room.
+	 **/
+	public Set<ChannelSession> getMembers(String room)
+	{
+		Set<ChannelSession> members = this.rooms.get(room);
+		return (members == null) ? Collections.<ChannelSession>emptySet() : Collections.unmodifiableSet(members);
+	}	// End of method getMembers
+
+	/**
+	 * Returns the stream ID of a room.
+	 * @param room The room name.
+	 * @return The ID, or 0 if there is no such room.
+	 **/
+	public int getStreamId(String room)
+	{
+		Integer id = this.streamIds.get(room);
+		return (id == null) ? 0 : id;
+	}	// End of method getStreamId
+
+	/**
+	 * Returns whether a session is a member of a room.
+	 * @param room The room name.
+	 * @param session The session.
+	 * @return True if the session has joined the room.
+	 **/
+	public boolean isMember(String room, ChannelSession session)
+	{
+		Set<ChannelSession> members = this.rooms.get(room);
+		return members != null && members.contains(session);
+	}	// End of method isMember
+
+	/**
+	 * Returns the number of rooms.
+	 * @return The room count.
+	 **/
+	public int getRoomCount()
+	{
+		return this.rooms.size();
+	}	// End of method getRoomCount
+
+	/**
+	 * Describes every room, one "name<TAB>members" line each, as sent
+	 * in a LIST frame.
+	 * @return The room list.
+	 **/
+	public String list()
+	{
+		StringBuilder sb = new StringBuilder();
+		for (Map.Entry<String, Set<ChannelSession>> entry : this.rooms.entrySet())
+		{
+			if (sb.length() > 0)
+				sb.append('\n');
+			sb.append(entry.getKey()).append('\t').append(entry.getValue().size());
+		}	// End of for
+		return sb.toString();
+	}	// End of method list
+
+	/**
+	 * Removes a session from a room's member set, and the room from
+	 * the registry if it is left empty.
+	 **/
+	private void removeMember(String room, final ChannelSession session)
+	{
+		this.rooms.computeIfPresent(room, new BiFunction<String, Set<ChannelSession>, Set<ChannelSession>>()
+		{
+			public Set<ChannelSession> apply(String name, Set<ChannelSession> members)
+			{
+				members.remove(session);
+				if (!members.isEmpty())
+					return members;
+				RoomRegistry.this.streamIds.remove(name);
+				return null;
+			}	// End of method apply
+		});
+	}	// End of method removeMember
+}	// End of class RoomRegistry
\ No newline at end of file
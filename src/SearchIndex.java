@@ -0,0 +1,290 @@
+// SearchIndex.java
+// An incremental inverted index over chat history.
+// Devon Bautista
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * Maps each term to the sequence numbers of the messages containing
+ * it. Sequence numbers only grow, so each posting list is stored as
+ * variable-length deltas in a byte array: a few bytes per occurrence
+ * instead of an object per occurrence. Messages are added one at a
+ * time as they are logged; the index is never rebuilt.
+ **/
+public class SearchIndex
+{
+	// Constants
+	private static final int SNAPSHOT_MAGIC = 0x53494458;	// "SIDX"
+	private static final int SNAPSHOT_VERSION = 1;
+	private static final int MIN_TERM_LENGTH = 2;
+
+	// Attributes
+	private final Map<String, PostingList> terms = new HashMap<String, PostingList>();
+	private long nextSequence = 0;
+
+	/**
+	 * Indexes a message. Messages must be added in sequence order.
+	 * @param sequence The message's sequence number.
+	 * @param text The message text.
+	 **/
+	public synchronized void add(long sequence, String text)
+	{
+		if (sequence < this.nextSequence)
+			return;		// Already indexed
+		for (String term : tokenize(text))
+		{
+			PostingList postings = this.terms.get(term);
+			if (postings == null)
+			{
+				postings = new PostingList();
+				this.terms.put(term, postings);
+			}	// End of if
+			postings.add(sequence);
+		}	// End of for
+		this.nextSequence = sequence + 1;
+	}	// End of method add
+
+	/**
+	 * Finds the most recent messages containing every term of a query.
+	 * @param query The words to search for.
+	 * @param limit The maximum number of results.
+	 * @return Matching sequence numbers, newest first.
+	 **/
+	public synchronized long[] search(String query, int limit)
+	{
+		Set<String> queryTerms = tokenize(query);
+		if (queryTerms.isEmpty())
+			return new long[0];
+
+		// Intersect starting from the rarest term
+		List<PostingList> lists = new ArrayList<PostingList>();
+		for (String term : queryTerms)
+		{
+			PostingList postings = this.terms.get(term);
+			if (postings == null)
+				return new long[0];
+			lists.add(postings);
+		}	// End of for
+		Collections.sort(lists, new Comparator<PostingList>()
+		{
+			public int compare(PostingList a, PostingList b)
+			{
+				return Integer.compare(a.count, b.count);
+			}	// End of method compare
+		});
+
+		long[] matches = lists.get(0).decode();
+		int matchCount = matches.length;
+		for (int i = 1; i < lists.size() && matchCount > 0; i++)
+			matchCount = lists.get(i).retainAll(matches, matchCount);
+
+		int resultCount = Math.min(limit, matchCount);
+		long[] results = new long[resultCount];
+		for (int i = 0; i < resultCount; i++)
+			results[i] = matches[matchCount - 1 - i];
+		return results;
+	}	// End of method search
+
+	/**
+	 * Returns the sequence number the next indexed message must have.
+	 * @return One past the newest indexed sequence number.
+	 **/
+	public synchronized long getNextSequence()
+	{
+		return this.nextSequence;
+	}	// End of method getNextSequence
+
+	/**
+	 * Returns the number of distinct terms.
+	 * @return The term count.
+	 **/
+	public synchronized int getTermCount()
+	{
+		return this.terms.size();
+	}	// End of method getTermCount
+
+	/**
+	 * Writes the index to a file, replacing it atomically.
+	 * @param file The snapshot file.
+	 * @throws IOException if the file cannot be written.
+	 **/
+	public synchronized void save(File file) throws IOException
+	{
+		File temp = new File(file.getPath() + ".tmp");
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+		try
+		{
+			out.writeInt(SNAPSHOT_MAGIC);
+			out.writeInt(SNAPSHOT_VERSION);
+			out.writeLong(this.nextSequence);
+			out.writeInt(this.terms.size());
+			for (Map.Entry<String, PostingList> entry : this.terms.entrySet())
+			{
+				PostingList postings = entry.getValue();
+				out.writeUTF(entry.getKey());
+				out.writeInt(postings.count);
+				out.writeLong(postings.last);
+				out.writeInt(postings.size);
+				out.write(postings.data, 0, postings.size);
+			}	// End of for
+		}	// End of try
+		finally
+		{
+			out.close();
+		}	// End of finally
+
+		if (!temp.renameTo(file))
+		{
+			// Windows will not rename over an existing file
+			file.delete();
+			if (!temp.renameTo(file))
+				throw new IOException("Unable to replace " + file);
+		}	// End of if
+	}	// End of method save
+
+	/**
+	 * Reads an index written by save().
+	 * @param file The snapshot file.
+	 * @return The index, or an empty index if the file is missing or unreadable.
+	 **/
+	public static SearchIndex load(File file)
+	{
+		SearchIndex index = new SearchIndex();
+		if (!file.isFile())
+			return index;
+
+		try
+		{
+			DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+			try
+			{
+				if (in.readInt() != SNAPSHOT_MAGIC || in.readInt() != SNAPSHOT_VERSION)
+					return new SearchIndex();
+				index.nextSequence = in.readLong();
+				int termCount = in.readInt();
+				for (int i = 0; i < termCount; i++)
+				{
+					String term = in.readUTF();
+					PostingList postings = new PostingList();
+					postings.count = in.readInt();
+					postings.last = in.readLong();
+					postings.size = in.readInt();
+					postings.data = new byte[Math.max(8, postings.size)];
+					in.readFully(postings.data, 0, postings.size);
+					index.terms.put(term, postings);
+				}	// End of for
+			}	// End of try
+			finally
+			{
+				in.close();
+			}	// End of finally
+		}	// End of try
+		catch (IOException e)
+		{
+			// A damaged snapshot is rebuilt from the history
+			return new SearchIndex();
+		}	// End of catch
+		return index;
+	}	// End of method load
+
+	/**
+	 * Splits text into lowercase words of letters and digits.
+	 **/
+	private static Set<String> tokenize(String text)
+	{
+		Set<String> tokens = new LinkedHashSet<String>();
+		int start = -1;
+		for (int i = 0; i <= text.length(); i++)
+		{
+			boolean wordChar = i < text.length() && Character.isLetterOrDigit(text.charAt(i));
+			if (wordChar && start < 0)
+				start = i;
+			else if (!wordChar && start >= 0)
+			{
+				if (i - start >= MIN_TERM_LENGTH)
+					tokens.add(text.substring(start, i).toLowerCase());
+				start = -1;
+			}	// End of else if
+		}	// End of for
+		return tokens;
+	}	// End of method tokenize
+
+	/**
+	 * Increasing sequence numbers stored as varint-encoded deltas.
+	 **/
+	private static class PostingList
+	{
+		byte[] data = new byte[8];
+		int size = 0;
+		int count = 0;
+		long last = -1;
+
+		void add(long sequence)
+		{
+			long delta = sequence - this.last;
+			if (this.size + 10 > this.data.length)
+				this.data = Arrays.copyOf(this.data, this.data.length * 2);
+			while ((delta & ~0x7FL) != 0)
+			{
+				this.data[this.size++] = (byte) ((delta & 0x7F) | 0x80);
+				delta >>>= 7;
+			}	// End of while
+			this.data[this.size++] = (byte) delta;
+			this.last = sequence;
+			this.count++;
+		}	// End of method add
+
+		long[] decode()
+		{
+			long[] values = new long[this.count];
+			long value = -1;
+			int pos = 0;
+			for (int i = 0; i < this.count; i++)
+			{
+				long delta = 0;
+				int shift = 0;
+				byte b;
+				do
+				{
+					b = this.data[pos++];
+					delta |= (long) (b & 0x7F) << shift;
+					shift += 7;
+				} while (b < 0);
+				value += delta;
+				values[i] = value;
+			}	// End of for
+			return values;
+		}	// End of method decode
+
+		/**
+		 * Keeps only the first count candidates that are also in this
+		 * list, compacting them to the front.
+		 * @return The number of candidates kept.
+		 **/
+		int retainAll(long[] candidates, int count)
+		{
+			int kept = 0, next = 0, pos = 0;
+			long value = -1;
+			for (int i = 0; i < this.count && next < count; i++)
+			{
+				long delta = 0;
+				int shift = 0;
+				byte b;
+				do
+				{
+					b = this.data[pos++];
+					delta |= (long) (b & 0x7F) << shift;
+					shift += 7;
+				} while (b < 0);
+				value += delta;
+
+				while (next < count && candidates[next] < value)
+					next++;
+				if (next < count && candidates[next] == value)
+					candidates[kept++] = candidates[next++];
+			}	// End of for
+			return kept;
+		}	// End of method retainAll
+	}	// End of class PostingList
+}	// End of class SearchIndex
\ No newline at end of file
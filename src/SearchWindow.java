@@ -0,0 +1,69 @@
+// SearchWindow.java
+// GUI listing chat history search results.
+// Devon Bautista
+
+import javax.swing.*;
+import java.awt.*;
+import java.text.*;
+import java.util.*;
+import java.util.List;
+
+/**
+ * Represents an instance of the search results window.
+ * Results are listed newest first.
+ **/
+public class SearchWindow extends JFrame
+{
+	// Global widgets
+	JLabel lblSummary;
+	DefaultListModel<String> results;
+	JList<String> lstResults;
+
+	// Constants
+	private int FRAME_HEIGHT = 500;
+	private int FRAME_WIDTH = 350;
+	private SimpleDateFormat fmt = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+
+	/**
+	 * Sets up JFrame and constructs widgets.
+	 * @param parent The IMWindow this window is bound to.
+	 **/
+	public SearchWindow(IMWindow parent)
+	{
+		// Window specifics
+		this.setTitle("Search History");
+		this.setDefaultCloseOperation(DISPOSE_ON_CLOSE);
+		this.setSize(FRAME_HEIGHT, FRAME_WIDTH);
+		this.setLocationRelativeTo(parent);
+
+		// Create widgets
+		this.lblSummary = new JLabel(" ");												// Create summary label
+		this.lblSummary.setBorder(BorderFactory.createEmptyBorder(5, 10, 5, 10));		// Add padding around label
+		this.results = new DefaultListModel<String>();									// Create result list model
+		this.lstResults = new JList<String>(this.results);								// Create result list
+		this.add(this.lblSummary, BorderLayout.NORTH);									// Add summary to top
+		this.add(new JScrollPane(this.lstResults), BorderLayout.CENTER);				// Add result list to body
+
+		this.setVisible(true);
+	}	// End of constructor
+
+	/**
+	 * Replaces the listed results.
+	 * @param query The search query.
+	 * @param records The matching messages, newest first.
+	 * @param nanos How long the search took.
+	 **/
+	public void showResults(String query, List<HistoryRecord> records, long nanos)
+	{
+		this.results.clear();
+		for (HistoryRecord record : records)
+		{
+			String direction = (record.getKind() == MessageRenderer.INCOMING) ? "<< " : ">> ";
+			this.results.addElement("[" + this.fmt.format(new Date(record.getTime())) + "]"
+				+ direction + record.getText().trim());
+		}	// End of for
+		this.lblSummary.setText(String.format("%d matches for \"%s\" in %.1f ms",
+			records.size(), query, nanos / 1e6));
+		this.toFront();
+	}	// End of method showResults
+}	// End of class SearchWindow
\ No newline at end of file
@@ -0,0 +1,505 @@
+// SegmentedLog.java
+// An append-only record log stored in memory-mapped segment files.
+// Devon Bautista
+
+import java.io.*;
+import java.lang.invoke.*;
+import java.lang.reflect.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Append-only log of byte records, split across fixed-size segment
+ * files written through MappedByteBuffers. Every record gets a
+ * sequence number. Each segment has a small index file holding the
+ * end offset of every record, so any record can be found without
+ * reading the log from the start.
+ *
+ * Segments are named after the sequence number of their first record:
+ *
+ *   00000000000000000000.log   [int length][bytes] per record
+ *   00000000000000000000.idx   [int end offset] per record
+ *
+ * Appends only copy into the mapped buffers; dirty segments are
+ * forced to disk by a background task every flush interval. A closed
+ * segment is unmapped at once rather than when its buffers are garbage
+ * collected, so its file can be deleted or grown straight away, even
+ * on Windows, which refuses both while a file is mapped.
+ **/
+public class SegmentedLog implements Closeable
+{
+	// Constants
+	public static final int DEFAULT_SEGMENT_SIZE = 16 * 1024 * 1024;
+	public static final int DEFAULT_INDEX_ENTRIES = 256 * 1024;
+	public static final long DEFAULT_FLUSH_MILLIS = 1000;
+	private static final String LOG_SUFFIX = ".log";
+	private static final String INDEX_SUFFIX = ".idx";
+	private static final String LOCK_FILE = "lock";
+
+	// One daemon thread forces every open log
+	private static final ScheduledExecutorService FLUSHER = Executors.newSingleThreadScheduledExecutor(
+		new ThreadFactory()
+		{
+			public Thread newThread(Runnable task)
+			{
+				Thread thread = new Thread(task, "SegmentedLog-flusher");
+				thread.setDaemon(true);
+				return thread;
+			}	// End of method newThread
+		});
+
+	// Unsafe.invokeCleaner(ByteBuffer), to unmap a segment without waiting for the GC, if available
+	private static final MethodHandle UNMAP;
+
+	static
+	{
+		MethodHandle unmap = null;
+		try
+		{
+			Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+			Field field = unsafeClass.getDeclaredField("theUnsafe");
+			field.setAccessible(true);
+			unmap = MethodHandles.lookup().findVirtual(unsafeClass, "invokeCleaner",
+				MethodType.methodType(void.class, ByteBuffer.class)).bindTo(field.get(null));
+		}	// End of try
+		catch (ReflectiveOperationException | RuntimeException e)
+		{
+			// Mappings are released by the GC instead
+			unmap = null;
+		}	// End of catch
+		UNMAP = unmap;
+	}	// End of static initializer
+
+	// Attributes
+	private final File directory;
+	private final int segmentSize;
+	private final int indexEntries;
+	private final List<Segment> segments = new ArrayList<Segment>();
+	private final ScheduledFuture<?> flushTask;
+	private Segment active;
+	private boolean dirty = false;
+	private boolean closed = false;
+
+	/**
+	 * Opens a log with default sizes, creating the directory if needed.
+	 * @param directory The directory holding the segment files.
+	 * @throws IOException if the segments cannot be opened.
+	 **/
+	public SegmentedLog(File directory) throws IOException
+	{
+		this(directory, DEFAULT_SEGMENT_SIZE, DEFAULT_INDEX_ENTRIES, DEFAULT_FLUSH_MILLIS);
+	}	// End of constructor
+
+	/**
+	 * Opens a log, recovering any records written after the last index
+	 * update. A new log numbers its records from 0.
+	 * @param directory The directory holding the segment files.
+	 * @param segmentSize Size in bytes of new segment log files.
+	 * @param indexEntries Maximum number of records per segment.
+	 * @param flushMillis How often dirty segments are forced to disk.
+	 * @throws IOException if the segments cannot be opened.
+	 **/
+	public SegmentedLog(File directory, int segmentSize, int indexEntries, long flushMillis) throws IOException
+	{
+		this(directory, segmentSize, indexEntries, flushMillis, 0);
+	}	// End of constructor
+
+	/**
+	 * Opens a log, recovering any records written after the last index
+	 * update.
+	 * @param directory The directory holding the segment files.
+	 * @param segmentSize Size in bytes of new segment log files.
+	 * @param indexEntries Maximum number of records per segment.
+	 * @param flushMillis How often dirty segments are forced to disk.
+	 * @param firstSequence The lowest sequence number the next record
+	 * may get, so a log that was deleted can carry on numbering where it
+	 * stopped even if some of its old segments were left behind.
+	 * @throws IOException if the segments cannot be opened.
+	 **/
+	public SegmentedLog(File directory, int segmentSize, int indexEntries, long flushMillis, long firstSequence)
+		throws IOException
+	{
+		this.directory = directory;
+		this.segmentSize = segmentSize;
+		this.indexEntries = indexEntries;
+
+		if (!directory.isDirectory() && !directory.mkdirs())
+			throw new IOException("Unable to create " + directory);
+
+		File[] files = directory.listFiles();
+		List<Long> bases = new ArrayList<Long>();
+		for (File file : files)
+		{
+			String name = file.getName();
+			if (name.endsWith(LOG_SUFFIX))
+			{
+				try
+				{
+					bases.add(Long.parseLong(name.substring(0, name.length() - LOG_SUFFIX.length())));
+				}	// End of try
+				catch (NumberFormatException e)
+				{
+					// Not a segment file
+				}	// End of catch
+			}	// End of if
+		}	// End of for
+		Collections.sort(bases);
+
+		for (long base : bases)
+			this.segments.add(new Segment(base, 0));
+		Segment last = this.segments.isEmpty() ? null : this.segments.get(this.segments.size() - 1);
+		if (last == null || last.base + last.count < firstSequence)
+			this.segments.add(new Segment(firstSequence, segmentSize));	// Never number below firstSequence
+		this.active = this.segments.get(this.segments.size() - 1);
+
+		this.flushTask = FLUSHER.scheduleWithFixedDelay(new Runnable()
+		{
+			public void run()
+			{
+				SegmentedLog.this.force();
+			}	// End of method run
+		}, flushMillis, flushMillis, TimeUnit.MILLISECONDS);
+	}	// End of constructor
+
+	/**
+	 * Takes an exclusive lock on a directory of logs, through a lock
+	 * file in it. A log keeps its write position in memory, so only the
+	 * holder of the lock may append to the logs under the directory.
+	 * Closing the lock's channel releases it.
+	 * @param directory The directory, which must exist.
+	 * @return The lock, or null if another process or another owner in
+	 * this process holds it.
+	 * @throws IOException if the lock file cannot be opened.
+	 **/
+	public static FileLock lockDirectory(File directory) throws IOException
+	{
+		FileChannel channel = FileChannel.open(new File(directory, LOCK_FILE).toPath(),
+			StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+		try
+		{
+			FileLock lock = channel.tryLock();
+			if (lock != null)
+				return lock;
+		}	// End of try
+		catch (OverlappingFileLockException e)
+		{
+			// Held by another owner in this process
+		}	// End of catch
+		channel.close();
+		return null;
+	}	// End of method lockDirectory
+
+	/**
+	 * Appends a record.
+	 * @param data The record bytes.
+	 * @return The sequence number of the record.
+	 * @throws IOException if a new segment cannot be created.
+	 **/
+	public synchronized long append(byte[] data) throws IOException
+	{
+		if (this.closed)
+			throw new ClosedChannelException();
+		if (!this.active.fits(data.length))
+		{
+			// Roll over to a new segment sized for at least this record
+			int size = Math.max(this.segmentSize, 4 + data.length);
+			this.segments.remove(this.active);
+			if (this.active.count == 0)
+				this.active.close();	// Empty segment is unmapped, then its file is grown in place
+			else
+			{
+				this.active.force();
+				this.segments.add(this.active);
+			}	// End of else
+			this.active = new Segment(this.active.base + this.active.count, size);
+			this.segments.add(this.active);
+		}	// End of if
+
+		this.dirty = true;
+		return this.active.append(data);
+	}	// End of method append
+
+	/**
+	 * Reads a record.
+	 * @param sequence The record's sequence number.
+	 * @return The record bytes, or null if no such record is held.
+	 **/
+	public synchronized byte[] read(long sequence)
+	{
+		if (this.closed)
+			return null;		// Its segments are unmapped
+		Segment segment = this.find(sequence);
+		return (segment == null) ? null : segment.read((int) (sequence - segment.base));
+	}	// End of method read
+
+	/**
+	 * Returns the sequence number of the oldest record held.
+	 * @return The first sequence number.
+	 **/
+	public synchronized long getFirstSequence()
+	{
+		return this.segments.get(0).base;
+	}	// End of method getFirstSequence
+
+	/**
+	 * Returns the sequence number the next record will get.
+	 * @return One past the newest sequence number.
+	 **/
+	public synchronized long getNextSequence()
+	{
+		return this.active.base + this.active.count;
+	}	// End of method getNextSequence
+
+	/**
+	 * Deletes whole segments whose records all precede a sequence number.
+	 * The active segment is never deleted.
+	 * @param sequence The oldest sequence number to keep.
+	 **/
+	public synchronized void deleteBefore(long sequence)
+	{
+		while (this.segments.size() > 1)
+		{
+			Segment oldest = this.segments.get(0);
+			if (oldest.base + oldest.count > sequence)
+				break;
+			this.segments.remove(0);
+			oldest.delete();
+		}	// End of while
+	}	// End of method deleteBefore
+
+	/**
+	 * Deletes the oldest segment, unless it is the active one.
+	 * @return The sequence number of the oldest record still held.
+	 **/
+	public synchronized long deleteOldest()
+	{
+		if (this.segments.size() > 1)
+			this.segments.remove(0).delete();
+		return this.segments.get(0).base;
+	}	// End of method deleteOldest
+
+	/**
+	 * Returns the total size of the segment files on disk.
+	 * @return The size in bytes.
+	 **/
+	public synchronized long getSizeOnDisk()
+	{
+		long size = 0;
+		for (Segment segment : this.segments)
+			size += segment.log.capacity() + segment.index.capacity();
+		return size;
+	}	// End of method getSizeOnDisk
+
+	/**
+	 * Forces appended records to disk, if any were appended since the
+	 * last call.
+	 **/
+	public synchronized void force()
+	{
+		if (this.dirty && !this.closed)
+		{
+			this.active.force();
+			this.dirty = false;
+		}	// End of if
+	}	// End of method force
+
+	/**
+	 * Forces outstanding records to disk and closes every segment.
+	 **/
+	public synchronized void close()
+	{
+		if (this.closed)
+			return;
+		this.force();
+		this.closed = true;
+		this.flushTask.cancel(false);
+		for (Segment segment : this.segments)
+			segment.close();
+	}	// End of method close
+
+	/**
+	 * Closes the log and deletes every segment file. The directory is
+	 * left in place.
+	 * @throws IOException if a segment file could not be deleted.
+	 **/
+	public synchronized void delete() throws IOException
+	{
+		this.closed = true;
+		this.flushTask.cancel(false);
+		List<File> left = new ArrayList<File>();
+		for (Segment segment : this.segments)
+			if (!segment.delete())
+				left.add(segment.logFile);
+		this.segments.clear();
+		if (!left.isEmpty())
+			throw new IOException("Unable to delete " + left);
+	}	// End of method delete
+
+	/**
+	 * Finds the segment holding a sequence number.
+	 **/
+	private Segment find(long sequence)
+	{
+		int low = 0, high = this.segments.size() - 1;
+		while (low <= high)
+		{
+			int mid = (low + high) >>> 1;
+			Segment segment = this.segments.get(mid);
+			if (sequence < segment.base)
+				high = mid - 1;
+			else if (sequence >= segment.base + segment.count)
+				low = mid + 1;
+			else
+				return segment;
+		}	// End of while
+		return null;
+	}	// End of method find
+
+	/**
+	 * One log file and its index, both memory-mapped.
+	 **/
+	private class Segment
+	{
+		final long base;
+		final File logFile;
+		final File indexFile;
+		final FileChannel logChannel;
+		final FileChannel indexChannel;
+		final MappedByteBuffer log;
+		final MappedByteBuffer index;
+		int count = 0;
+		int writePosition = 0;
+		boolean closed = false;
+
+		/**
+		 * Opens or creates a segment.
+		 * @param base Sequence number of the segment's first record.
+		 * @param size Size of a new log file; 0 to use the existing size.
+		 **/
+		Segment(long base, int size) throws IOException
+		{
+			this.base = base;
+			String name = String.format("%020d", base);
+			this.logFile = new File(SegmentedLog.this.directory, name + LOG_SUFFIX);
+			this.indexFile = new File(SegmentedLog.this.directory, name + INDEX_SUFFIX);
+			this.logChannel = new RandomAccessFile(this.logFile, "rw").getChannel();
+			this.indexChannel = new RandomAccessFile(this.indexFile, "rw").getChannel();
+
+			long logSize = (size > 0) ? size : this.logChannel.size();
+			this.log = this.logChannel.map(FileChannel.MapMode.READ_WRITE, 0, logSize);
+			this.index = this.indexChannel.map(FileChannel.MapMode.READ_WRITE, 0,
+				4L * SegmentedLog.this.indexEntries);
+			this.recover();
+		}	// End of constructor
+
+		/**
+		 * Finds the last indexed record, then indexes any complete
+		 * records written after it.
+		 **/
+		private void recover()
+		{
+			// Index entries are increasing end offsets followed by zeros
+			int low = 0, high = this.index.capacity() / 4;
+			while (low < high)
+			{
+				int mid = (low + high) >>> 1;
+				if (this.index.getInt(mid * 4) != 0)
+					low = mid + 1;
+				else
+					high = mid;
+			}	// End of while
+			this.count = low;
+			this.writePosition = (this.count == 0) ? 0 : this.index.getInt((this.count - 1) * 4);
+
+			while (this.count < this.index.capacity() / 4 && this.writePosition + 4 <= this.log.capacity())
+			{
+				int length = this.log.getInt(this.writePosition);
+				if (length <= 0 || this.writePosition + 4 + length > this.log.capacity())
+					break;
+				this.writePosition += 4 + length;
+				this.index.putInt(this.count++ * 4, this.writePosition);
+			}	// End of while
+		}	// End of method recover
+
+		boolean fits(int length)
+		{
+			return this.count < this.index.capacity() / 4
+				&& this.writePosition + 4 + length <= this.log.capacity();
+		}	// End of method fits
+
+		long append(byte[] data)
+		{
+			// Write the body before the length so a torn record reads as absent
+			ByteBuffer view = this.log.duplicate();
+			view.position(this.writePosition + 4);
+			view.put(data);
+			this.log.putInt(this.writePosition, data.length);
+			this.writePosition += 4 + data.length;
+			this.index.putInt(this.count * 4, this.writePosition);
+			return this.base + this.count++;
+		}	// End of method append
+
+		byte[] read(int offset)
+		{
+			int start = (offset == 0) ? 0 : this.index.getInt((offset - 1) * 4);
+			int length = this.log.getInt(start);
+			byte[] data = new byte[length];
+			ByteBuffer view = this.log.duplicate();
+			view.position(start + 4);
+			view.get(data);
+			return data;
+		}	// End of method read
+
+		void force()
+		{
+			this.log.force();
+			this.index.force();
+		}	// End of method force
+
+		/**
+		 * Closes the files and unmaps their buffers. The segment must
+		 * not be read or written again.
+		 **/
+		void close()
+		{
+			if (this.closed)
+				return;
+			this.closed = true;
+			try
+			{
+				this.logChannel.close();
+				this.indexChannel.close();
+			}	// End of try
+			catch (IOException e)
+			{
+				// Nothing more to release
+			}	// End of catch
+			if (UNMAP != null)
+			{
+				try
+				{
+					UNMAP.invokeExact((ByteBuffer) this.log);
+					UNMAP.invokeExact((ByteBuffer) this.index);
+				}	// End of try
+				catch (Throwable t)
+				{
+					// Left for the GC to unmap
+				}	// End of catch
+			}	// End of if
+		}	// End of method close
+
+		/**
+		 * Closes the segment and deletes its files.
+		 * @return False if either file is still there.
+		 **/
+		boolean delete()
+		{
+			this.close();
+			boolean deleted = this.logFile.delete() || !this.logFile.exists();
+			return (this.indexFile.delete() || !this.indexFile.exists()) && deleted;
+		}	// End of method delete
+	}	// End of class Segment
+}	// End of class SegmentedLog
\ No newline at end of file
@@ -0,0 +1,339 @@
+// ServerMetrics.java
+// Counts the traffic and latency of an IMReactor.
+// Devon Bautista
+
+import java.util.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * Collects the metrics of one IMReactor and publishes them as a JMX
+ * MBean. Reactor threads update the counters on every read and write,
+ * so each is a LongAdder or LatencyHistogram: an update is an
+ * uncontended add, and the cost of summing falls on whoever reads the
+ * value. Per-second rates are worked out once per SAMPLE_MILLIS on the
+ * reactor's timer wheel. Queue depths are read from the open sessions
+ * when asked for, so they cost nothing until then. Drops, refusals and
+ * throttled connections are counted here as they happen rather than
+ * read from the sessions, so they never go back down when the
+ * connections that caused them close.
+ **/
+public class ServerMetrics implements ServerMetricsMBean
+{
+	// Constants
+	private static final long SAMPLE_MILLIS = 1000;
+	private static final double NANOS_PER_MICRO = 1000.0;
+
+	// Attributes
+	private final Set<ChannelSession> sessions;
+	private final LongAdder accepts = new LongAdder();
+	private final LongAdder framesIn = new LongAdder();
+	private final LongAdder framesOut = new LongAdder();
+	private final LongAdder bytesIn = new LongAdder();
+	private final LongAdder bytesOut = new LongAdder();
+	private final LongAdder droppedMessages = new LongAdder();
+	private final LongAdder rejectedFrames = new LongAdder();
+	private final LongAdder throttledConnections = new LongAdder();
+	private final LatencyHistogram receiveLatency = new LatencyHistogram();
+	private final LatencyHistogram sendLatency = new LatencyHistogram();
+	private final long[] lastSample = new long[5];
+	private long lastSampleTime = System.nanoTime();
+	private volatile double acceptRate, framesInRate, framesOutRate, bytesInRate, bytesOutRate;
+
+	/**
+	 * Creates the metrics of a reactor.
+	 * @param sessions A live view of the reactor's open sessions.
+	 **/
+	public ServerMetrics(Set<ChannelSession> sessions)
+	{
+		this.sessions = sessions;
+	}	// End of constructor
+
+	/**
+	 * Starts working out rates once per second. Stops when the wheel does.
+	 * @param timers The reactor's timer wheel.
+	 **/
+	public void start(final TimerWheel timers)
+	{
+		timers.schedule(new Runnable()
+		{
+			public void run()
+			{
+				ServerMetrics.this.sample();
+				timers.schedule(this, SAMPLE_MILLIS);
+			}	// End of method run
+		}, SAMPLE_MILLIS);
+	}	// End of method start
+
+	/**
+	 * Counts an accepted connection.
+	 **/
+	public void accepted()
+	{
+		this.accepts.increment();
+	}	// End of method accepted
+
+	/**
+	 * Counts bytes read from a socket.
+	 * @param count The number of bytes.
+	 **/
+	public void received(long count)
+	{
+		this.bytesIn.add(count);
+	}	// End of method received
+
+	/**
+	 * Counts a frame that has been handled and records how long it took
+	 * from leaving the socket.
+	 * @param readTime The System.nanoTime() at which its bytes were read.
+	 **/
+	public void frameReceived(long readTime)
+	{
+		this.framesIn.increment();
+		this.receiveLatency.record(System.nanoTime() - readTime);
+	}	// End of method frameReceived
+
+	/**
+	 * Counts bytes written to a socket.
+	 * @param count The number of bytes.
+	 **/
+	public void sent(long count)
+	{
+		this.bytesOut.add(count);
+	}	// End of method sent
+
+	/**
+	 * Counts a frame that has been written in full and records how long
+	 * it waited from being queued.
+	 * @param write The frame.
+	 **/
+	public void frameSent(PendingWrite write)
+	{
+		this.framesOut.increment();
+		this.sendLatency.record(System.nanoTime() - write.getQueuedTime());
+	}	// End of method frameSent
+
+	/**
+	 * Counts a chat message dropped by a slow consumer policy.
+	 **/
+	public void messageDropped()
+	{
+		this.droppedMessages.increment();
+	}	// End of method messageDropped
+
+	/**
+	 * Counts a frame refused for going over the rate limits.
+	 **/
+	public void frameRejected()
+	{
+		this.rejectedFrames.increment();
+	}	// End of method frameRejected
+
+	/**
+	 * Counts a connection that has hit its outbound limits for the
+	 * first time.
+	 **/
+	public void connectionThrottled()
+	{
+		this.throttledConnections.increment();
+	}	// End of method connectionThrottled
+
+	public int getActiveConnections()
+	{
+		return this.sessions.size();
+	}	// End of method getActiveConnections
+
+	public long getAcceptedConnections()
+	{
+		return this.accepts.sum();
+	}	// End of method getAcceptedConnections
+
+	public double getAcceptsPerSecond()
+	{
+		return this.acceptRate;
+	}	// End of method getAcceptsPerSecond
+
+	public long getFramesIn()
+	{
+		return this.framesIn.sum();
+	}	// End of method getFramesIn
+
+	public long getFramesOut()
+	{
+		return this.framesOut.sum();
+	}	// End of method getFramesOut
+
+	public long getBytesIn()
+	{
+		return this.bytesIn.sum();
+	}	// End of method getBytesIn
+
+	public long getBytesOut()
+	{
+		return this.bytesOut.sum();
+	}	// End of method getBytesOut
+
+	public double getFramesInPerSecond()
+	{
+		return this.framesInRate;
+	}	// End of method getFramesInPerSecond
+
+	public double getFramesOutPerSecond()
+	{
+		return this.framesOutRate;
+	}	// End of method getFramesOutPerSecond
+
+	public double getBytesInPerSecond()
+	{
+		return this.bytesInRate;
+	}	// End of method getBytesInPerSecond
+
+	public double getBytesOutPerSecond()
+	{
+		return this.bytesOutRate;
+	}	// End of method getBytesOutPerSecond
+
+	public long getQueuedFrames()
+	{
+		long total = 0;
+		for (ChannelSession session : this.sessions)
+			total += session.getOutboundBudget().getQueuedMessages();
+		return total;
+	}	// End of method getQueuedFrames
+
+	public long getQueuedBytes()
+	{
+		long total = 0;
+		for (ChannelSession session : this.sessions)
+			total += session.getOutboundBudget().getQueuedBytes();
+		return total;
+	}	// End of method getQueuedBytes
+
+	public long getMaxQueuedBytes()
+	{
+		long max = 0;
+		for (ChannelSession session : this.sessions)
+			max = Math.max(max, session.getOutboundBudget().getQueuedBytes());
+		return max;
+	}	// End of method getMaxQueuedBytes
+
+	public long getThrottledConnections()
+	{
+		return this.throttledConnections.sum();
+	}	// End of method getThrottledConnections
+
+	public long getDroppedMessages()
+	{
+		return this.droppedMessages.sum();
+	}	// End of method getDroppedMessages
+
+	public int getPausedConnections()
+	{
+		int count = 0;
+		for (ChannelSession session : this.sessions)
+			if (session.isReadsPaused())
+				count++;
+		return count;
+	}	// End of method getPausedConnections
+
+	public long getRejectedFrames()
+	{
+		return this.rejectedFrames.sum();
+	}	// End of method getRejectedFrames
+
+	public double getReceiveLatencyMeanMicros()
+	{
+		return this.receiveLatency.getMean() / NANOS_PER_MICRO;
+	}	// End of method getReceiveLatencyMeanMicros
+
+	public double getReceiveLatencyP50Micros()
+	{
+		return this.receiveLatency.getValueAtPercentile(50) / NANOS_PER_MICRO;
+	}	// End of method getReceiveLatencyP50Micros
+
+	public double getReceiveLatencyP99Micros()
+	{
+		return this.receiveLatency.getValueAtPercentile(99) / NANOS_PER_MICRO;
+	}	// End of method getReceiveLatencyP99Micros
+
+	public double getReceiveLatencyP999Micros()
+	{
+		return this.receiveLatency.getValueAtPercentile(99.9) / NANOS_PER_MICRO;
+	}	// End of method getReceiveLatencyP999Micros
+
+	public double getReceiveLatencyMaxMicros()
+	{
+		return this.receiveLatency.getMax() / NANOS_PER_MICRO;
+	}	// End of method getReceiveLatencyMaxMicros
+
+	public double getSendLatencyMeanMicros()
+	{
+		return this.sendLatency.getMean() / NANOS_PER_MICRO;
+	}	// End of method getSendLatencyMeanMicros
+
+	public double getSendLatencyP50Micros()
+	{
+		return this.sendLatency.getValueAtPercentile(50) / NANOS_PER_MICRO;
+	}	// End of method getSendLatencyP50Micros
+
+	public double getSendLatencyP99Micros()
+	{
+		return this.sendLatency.getValueAtPercentile(99) / NANOS_PER_MICRO;
+	}	// End of method getSendLatencyP99Micros
+
+	public double getSendLatencyP999Micros()
+	{
+		return this.sendLatency.getValueAtPercentile(99.9) / NANOS_PER_MICRO;
+	}	// End of method getSendLatencyP999Micros
+
+	public double getSendLatencyMaxMicros()
+	{
+		return this.sendLatency.getMax() / NANOS_PER_MICRO;
+	}	// End of method getSendLatencyMaxMicros
+
+	public void resetLatencies()
+	{
+		this.receiveLatency.reset();
+		this.sendLatency.reset();
+	}	// End of method resetLatencies
+
+	/**
+	 * Returns the histogram of time from reading a frame to handling it.
+	 * @return The receive latency histogram.
+	 **/
+	public LatencyHistogram getReceiveLatency()
+	{
+		return this.receiveLatency;
+	}	// End of method getReceiveLatency
+
+	/**
+	 * Returns the histogram of time from queuing a frame to writing it.
+	 * @return The send latency histogram.
+	 **/
+	public LatencyHistogram getSendLatency()
+	{
+		return this.sendLatency;
+	}	// End of method getSendLatency
+
+	/**
+	 * Works out the per-second rates since the last sample. Called on
+	 * the timer wheel thread.
+	 **/
+	private void sample()
+	{
+		long now = System.nanoTime();
+		double seconds = (now - this.lastSampleTime) / 1e9;
+		this.lastSampleTime = now;
+		this.acceptRate = this.rate(0, this.accepts.sum(), seconds);
+		this.framesInRate = this.rate(1, this.framesIn.sum(), seconds);
+		this.framesOutRate = this.rate(2, this.framesOut.sum(), seconds);
+		this.bytesInRate = this.rate(3, this.bytesIn.sum(), seconds);
+		this.bytesOutRate = this.rate(4, this.bytesOut.sum(), seconds);
+	}	// End of method sample
+
+	private double rate(int slot, long total, double seconds)
+	{
+		long delta = total - this.lastSample[slot];
+		this.lastSample[slot] = total;
+		return (seconds <= 0) ? 0 : delta / seconds;
+	}	// End of method rate
+}	// End of class ServerMetrics
\ No newline at end of file
@@ -0,0 +1,42 @@
+// ServerMetricsMBean.java
+// The JMX management interface of ServerMetrics.
+// Devon Bautista
+
+/**
+ * Attributes of a running IMReactor as seen through JMX. Counters run
+ * from when the reactor was bound; rates are per second over the last
+ * sampling interval; latencies are in microseconds since the last
+ * resetLatencies().
+ **/
+public interface ServerMetricsMBean
+{
+	public int getActiveConnections();
+	public long getAcceptedConnections();
+	public double getAcceptsPerSecond();
+	public long getFramesIn();
+	public long getFramesOut();
+	public long getBytesIn();
+	public long getBytesOut();
+	public double getFramesInPerSecond();
+	public double getFramesOutPerSecond();
+	public double getBytesInPerSecond();
+	public double getBytesOutPerSecond();
+	public long getQueuedFrames();
+	public long getQueuedBytes();
+	public long getMaxQueuedBytes();
+	public long getThrottledConnections();
+	public long getDroppedMessages();
+	public int getPausedConnections();
+	public long getRejectedFrames();
+	public double getReceiveLatencyMeanMicros();
+	public double getReceiveLatencyP50Micros();
+	public double getReceiveLatencyP99Micros();
+	public double getReceiveLatencyP999Micros();
+	public double getReceiveLatencyMaxMicros();
+	public double getSendLatencyMeanMicros();
+	public double getSendLatencyP50Micros();
+	public double getSendLatencyP99Micros();
+	public double getSendLatencyP999Micros();
+	public double getSendLatencyMaxMicros();
+	public void resetLatencies();
+}	// End of interface ServerMetricsMBean
\ No newline at end of file
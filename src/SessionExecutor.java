@@ -0,0 +1,30 @@
+// SessionExecutor.java
+// An interface for starting the threads that run connection sessions.
+// Devon Bautista
+
+/**
+ * Starts the thread that runs a session's blocking loop. IMServer and
+ * IMClient use this instead of creating threads directly, so the
+ * execution mode can be chosen without changing the session code.
+ **/
+public interface SessionExecutor
+{
+	// Name of the system property selecting the default mode
+	public static final String MODE_PROPERTY = "simpleim.executionMode";
+
+	public Thread start(Runnable task, String name);
+	public boolean isVirtual();
+
+	/**
+	 * Returns the executor selected by the simpleim.executionMode system
+	 * property: "virtual" for virtual threads, anything else for
+	 * platform threads.
+	 * @return The default SessionExecutor.
+	 **/
+	public static SessionExecutor getDefault()
+	{
+		if ("virtual".equalsIgnoreCase(System.getProperty(MODE_PROPERTY)))
+			return new VirtualThreadExecutor();
+		return new PlatformThreadExecutor();
+	}	// End of method getDefault
+}	// End of interface SessionExecutor
\ No newline at end of file
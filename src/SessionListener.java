@@ -0,0 +1,77 @@
+// SessionListener.java
+// An interface for receiving events from IMServer and IMClient.
+// Devon Bautista
+
+/**
+ * Receives status changes and messages from an IMConnectable session.
+ * IMWindow implements this to display a chat; headless tools such as
+ * LoadGenerator implement it to drive sessions without Swing. Methods
+ * may be called from any thread.
+ **/
+public interface SessionListener
+{
+	public void printIncomingMessage(String msg);
+
+	/**
+	 * Prints an incoming message, then runs rendered once it has been
+	 * shown so the sender can be told how long delivery took. Listeners
+	 * that do not render anything may keep this default.
+	 * @param msg The message.
+	 * @param rendered Sends the message's ACK. Run it exactly once.
+	 **/
+	public default void printIncomingMessage(String msg, Runnable rendered)
+	{
+		this.printIncomingMessage(msg);
+		rendered.run();
+	}	// End of method printIncomingMessage
+
+	public void printOutgoingMessage(String msg);
+
+	/**
+	 * Called when the server opens a conversation, such as a joined
+	 * room, on a connection that multiplexes them. Listeners that show
+	 * every conversation in one place may keep this default.
+	 * @param conversation The conversation's name.
+	 **/
+	public default void conversationOpened(String conversation)
+	{
+		this.printInformationMessage("Joined #" + conversation + ".");
+	}	// End of method conversationOpened
+
+	/**
+	 * Called when a conversation has been left.
+	 * @param conversation The conversation's name.
+	 **/
+	public default void conversationClosed(String conversation)
+	{
+		this.printInformationMessage("Left #" + conversation + ".");
+	}	// End of method conversationClosed
+
+	/**
+	 * Prints a message received in a conversation, then runs rendered
+	 * once it has been shown. By default it is printed with the rest.
+	 * @param conversation The conversation's name.
+	 * @param msg The message.
+	 * @param rendered Sends the message's ACK and returns its credit. Run it exactly once.
+	 **/
+	public default void printConversationMessage(String conversation, String msg, Runnable rendered)
+	{
+		this.printIncomingMessage("[#" + conversation + "] " + msg, rendered);
+	}	// End of method printConversationMessage
+
+	/**
+	 * Prints a message sent in a conversation. By default it is printed
+	 * with the rest.
+	 * @param conversation The conversation's name.
+	 * @param msg The message.
+	 **/
+	public default void printOutgoingMessage(String conversation, String msg)
+	{
+		this.printOutgoingMessage("[#" + conversation + "] " + msg);
+	}	// End of method printOutgoingMessage
+
+	public void printInformationMessage(String msg);
+	public void setConnected(boolean connected);
+	public void ableToSend(boolean canSend);
+	public void setSession(IMConnectable session);
+}	// End of interface SessionListener
\ No newline at end of file
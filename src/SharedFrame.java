@@ -0,0 +1,154 @@
+// SharedFrame.java
+// A frame encoded once and written to many sessions.
+// Devon Bautista
+
+import java.nio.*;
+import java.nio.charset.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * Holds one encoded frame in a read-only direct buffer shared by every
+ * recipient of a broadcast. Each recipient queues its own duplicate of
+ * the buffer, so positions are independent but the bytes are neither
+ * re-encoded nor copied: a direct buffer also skips the copy the JDK
+ * makes of heap buffers on every channel write.
+ *
+ * The frame is reference counted. The broadcaster holds one reference
+ * and each queued write holds another; when the last is released the
+ * completion handle finishes and a small buffer returns to the pool
+ * for the next broadcast.
+ **/
+public class SharedFrame
+{
+	// Constants
+	private static final int POOLED_CAPACITY = 4096;
+	private static final int MAX_POOLED = 256;
+	private static final Queue<ByteBuffer> POOL = new ConcurrentLinkedQueue<ByteBuffer>();
+	private static final AtomicInteger POOL_SIZE = new AtomicInteger(0);
+
+	// Attributes
+	private final ByteBuffer storage;
+	private final ByteBuffer frame;
+	private final AtomicInteger references = new AtomicInteger(1);
+	private final CompletableFuture<Void> completion = new CompletableFuture<Void>();
+	private volatile Throwable failure = null;
+	private final ByteBuffer[] compressedFrames = new ByteBuffer[2];	// Without and with the dictionary
+
+	/**
+	 * Encodes a text frame.
+	 * @param type The frame type.
+	 * @param text The text payload.
+	 **/
+	public SharedFrame(byte type, String text)
+	{
+		this(type, text.getBytes(StandardCharsets.UTF_8));
+	}	// End of constructor
+
+	/**
+	 * Encodes a frame.
+	 * @param type The frame type.
+	 * @param payload The payload bytes.
+	 **/
+	public SharedFrame(byte type, byte[] payload)
+	{
+		int size = FrameCodec.HEADER_SIZE + payload.length;
+		ByteBuffer buf = (size <= POOLED_CAPACITY) ? POOL.poll() : null;
+		if (buf != null)
+			POOL_SIZE.decrementAndGet();
+		else
+			buf = ByteBuffer.allocateDirect(Math.max(size, POOLED_CAPACITY));
+
+		buf.clear();
+		buf.putInt(1 + payload.length);
+		buf.put(type);
+		buf.put(payload);
+		buf.flip();
+		this.storage = buf;
+		this.frame = buf.asReadOnlyBuffer();
+	}	// End of constructor
+
+	/**
+	 * Creates a write of this frame for one recipient, taking a reference.
+	 * @return A pending write over a private view of the shared bytes.
+	 **/
+	public PendingWrite newWrite()
+	{
+		this.references.incrementAndGet();
+		return new Recipient(this.frame.duplicate());
+	}	// End of method newWrite
+
+	/**
+	 * Drops the broadcaster's reference. Call once every recipient's
+	 * write has been queued.
+	 **/
+	public void release()
+	{
+		if (this.references.decrementAndGet() == 0)
+		{
+			if (this.failure == null)
+				this.completion.complete(null);
+			else
+				this.completion.completeExceptionally(this.failure);
+			if (this.storage.capacity() == POOLED_CAPACITY && POOL_SIZE.incrementAndGet() <= MAX_POOLED)
+				POOL.add(this.storage);
+			else if (this.storage.capacity() == POOLED_CAPACITY)
+				POOL_SIZE.decrementAndGet();
+		}	// End of if
+	}	// End of method release
+
+	/**
+	 * Returns the frame as sent to compressing recipients, compressing
+	 * it for the first of them. Compression depends on the connection
+	 * only through whether it negotiated the preset dictionary, so the
+	 * frame is compressed at most twice, once for each kind of recipient.
+	 * @param compressor The recipient connection's compressor.
+	 * @return A private view of the compressed frame, or of the original.
+	 **/
+	private synchronized ByteBuffer getCompressed(FrameCompressor compressor)
+	{
+		int slot = compressor.usesDictionary() ? 1 : 0;
+		if (this.compressedFrames[slot] == null)
+			this.compressedFrames[slot] = compressor.compress(this.frame.duplicate()).asReadOnlyBuffer();
+		return this.compressedFrames[slot].duplicate();
+	}	// End of method getCompressed
+
+	/**
+	 * Returns the completion handle for the broadcast.
+	 * @return A future completed once every recipient has written the
+	 * frame, or completed exceptionally if any recipient failed.
+	 **/
+	public CompletableFuture<Void> getCompletion()
+	{
+		return this.completion;
+	}	// End of method getCompletion
+
+	/**
+	 * One recipient's write, releasing its reference when done.
+	 **/
+	private class Recipient extends PendingWrite
+	{
+		Recipient(ByteBuffer view)
+		{
+			super(view, SharedFrame.this.completion);
+		}	// End of constructor
+
+		protected ByteBuffer compress(FrameCompressor compressor)
+		{
+			return SharedFrame.this.getCompressed(compressor);
+		}	// End of method compress
+
+		public void complete()
+		{
+			SharedFrame.this.release();
+		}	// End of method complete
+
+		public void fail(Throwable cause)
+		{
+			if (SharedFrame.this.failure == null)
+				SharedFrame.this.failure = cause;
+			SharedFrame.this.release();
+		}	// End of method fail
+	}	// End of class Recipient
+}	// End of class SharedFrame
\ No newline at end of file
@@ -0,0 +1,258 @@
+// StreamTable.java
+// The conversations multiplexed over one connection.
+// Devon Bautista
+
+import java.io.*;
+import java.net.*;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.*;
+
+/**
+ * Holds the open streams of one connection at STREAM_PROTOCOL_VERSION
+ * or later, and their flow control. Both ends keep a table. Each stream
+ * may send STREAM_INITIAL_WINDOW messages before the peer returns
+ * credit; messages sent without credit are parked on the stream, in
+ * order, rather than queued on the connection, so a conversation whose
+ * reader has fallen behind holds up only itself. Once more than
+ * MAX_PARKED messages are parked the oldest is dropped.
+ *
+ * A receiver returns credit once it has dealt with half a window of
+ * messages: the client once they are on screen, the server once they
+ * have been relayed to the rest of the room. A peer that sends more
+ * than its window is breaking the protocol.
+ **/
+public class StreamTable implements Closeable
+{
+	// Constants
+	public static final int MAX_PARKED = 1024;
+
+	// Attributes
+	private final Map<Integer, Stream> streams = new ConcurrentHashMap<Integer, Stream>();
+	private final Consumer<PendingWrite> writer;
+
+	/**
+	 * Creates the table of a connection.
+	 * @param writer Queues a frame on the connection.
+	 **/
+	public StreamTable(Consumer<PendingWrite> writer)
+	{
+		this.writer = writer;
+	}	// End of constructor
+
+	/**
+	 * Opens a stream, or returns it if it is already open.
+	 * @param id The stream ID.
+	 * @param name The conversation the stream carries.
+	 * @return The stream.
+	 **/
+	public Stream open(final int id, final String name)
+	{
+		return this.streams.computeIfAbsent(id, new Function<Integer, Stream>()
+		{
+			public Stream apply(Integer key)
+			{
+				return new Stream(id, name);
+			}	// End of method apply
+		});
+	}	// End of method open
+
+	/**
+	 * Returns an open stream.
+	 * @param id The stream ID.
+	 * @return The stream, or null if it is not open.
+	 **/
+	public Stream get(int id)
+	{
+		return this.streams.get(id);
+	}	// End of method get
+
+	/**
+	 * Finds the open stream of a conversation.
+	 * @param name The conversation.
+	 * @return The stream, or null if none carries it.
+	 **/
+	public Stream find(String name)
+	{
+		for (Stream stream : this.streams.values())
+			if (stream.name.equals(name))
+				return stream;
+		return null;
+	}	// End of method find
+
+	/**
+	 * Closes a stream, failing the messages parked on it.
+	 * @param id The stream ID.
+	 * @return The stream, or null if it was not open.
+	 **/
+	public Stream close(int id)
+	{
+		Stream stream = this.streams.remove(id);
+		if (stream != null)
+			stream.close();
+		return stream;
+	}	// End of method close
+
+	/**
+	 * Closes every stream. Called once the connection has closed.
+	 **/
+	public void close()
+	{
+		for (Integer id : this.streams.keySet())
+			this.close(id);
+	}	// End of method close
+
+	/**
+	 * Returns the open streams.
+	 * @return A live, unmodifiable view of the streams.
+	 **/
+	public Collection<Stream> getStreams()
+	{
+		return Collections.unmodifiableCollection(this.streams.values());
+	}	// End of method getStreams
+
+	/**
+	 * Adds the credit in a STREAM_WINDOW frame to its stream and sends
+	 * what was parked waiting for it. Credit for a stream that has since
+	 * been closed is ignored.
+	 * @param window The STREAM_WINDOW frame.
+	 * @throws ProtocolException if the payload is truncated or the credit negative.
+	 **/
+	public void granted(Frame window) throws ProtocolException
+	{
+		if (window.getLength() < FrameCodec.STREAM_WINDOW_SIZE)
+			throw new ProtocolException("Truncated STREAM_WINDOW");
+		int id = window.getInt(0);
+		int credit = window.getInt(4);
+		if (credit < 0)
+			throw new ProtocolException("Negative STREAM_WINDOW");
+		Stream stream = this.streams.get(id);
+		if (stream != null)
+			stream.grant(credit);
+	}	// End of method granted
+
+	/**
+	 * One conversation on the connection.
+	 **/
+	public class Stream
+	{
+		private final int id;
+		private final String name;
+		private final Deque<PendingWrite> parked = new ArrayDeque<PendingWrite>();
+		private int credit = FrameCodec.STREAM_INITIAL_WINDOW;
+		private int window = FrameCodec.STREAM_INITIAL_WINDOW;
+		private int consumed = 0;
+		private long dropped = 0;
+		private boolean closed = false;
+
+		Stream(int id, String name)
+		{
+			this.id = id;
+			this.name = name;
+		}	// End of constructor
+
+		public int getId()
+		{
+			return this.id;
+		}	// End of method getId
+
+		public String getName()
+		{
+			return this.name;
+		}	// End of method getName
+
+		/**
+		 * Sends a STREAM_DATA frame if the stream has credit, or parks it
+		 * until it does.
+		 * @param write The encoded frame.
+		 **/
+		public synchronized void send(PendingWrite write)
+		{
+			if (this.closed)
+			{
+				write.fail(new ClosedChannelException());
+				return;
+			}	// End of if
+			if (this.parked.isEmpty() && this.credit > 0)
+			{
+				this.credit--;
+				StreamTable.this.writer.accept(write);
+				return;
+			}	// End of if
+			if (this.parked.size() == MAX_PARKED)
+			{
+				this.dropped++;
+				this.parked.poll().fail(new IOException("Stream window exhausted"));
+			}	// End of if
+			this.parked.add(write);
+		}	// End of method send
+
+		/**
+		 * Counts a STREAM_DATA frame received on the stream.
+		 * @throws ProtocolException if the peer has used up its window.
+		 **/
+		public synchronized void received() throws ProtocolException
+		{
+			if (--this.window < 0)
+				throw new ProtocolException("Stream " + this.id + " overran its window");
+		}	// End of method received
+
+		/**
+		 * Records that a received message has been dealt with, returning
+		 * credit to the peer once half a window has been. May be called
+		 * from any thread.
+		 **/
+		public void consumed()
+		{
+			int grant;
+			synchronized (this)
+			{
+				this.consumed++;
+				if (this.closed || this.consumed < FrameCodec.STREAM_INITIAL_WINDOW / 2)
+					return;
+				grant = this.consumed;
+				this.consumed = 0;
+				this.window += grant;
+			}	// End of synchronized
+			StreamTable.this.writer.accept(new PendingWrite(FrameCodec.encode(FrameCodec.TYPE_STREAM_WINDOW,
+				FrameCodec.windowPayload(this.id, grant))));
+		}	// End of method consumed
+
+		/**
+		 * Returns the number of messages parked waiting for credit.
+		 * @return The parked count.
+		 **/
+		public synchronized int getParked()
+		{
+			return this.parked.size();
+		}	// End of method getParked
+
+		/**
+		 * Returns the number of parked messages dropped to stay within MAX_PARKED.
+		 * @return The dropped count.
+		 **/
+		public synchronized long getDropped()
+		{
+			return this.dropped;
+		}	// End of method getDropped
+
+		private synchronized void grant(int count)
+		{
+			this.credit += count;
+			while (this.credit > 0 && !this.parked.isEmpty())
+			{
+				this.credit--;
+				StreamTable.this.writer.accept(this.parked.poll());
+			}	// End of while
+		}	// End of method grant
+
+		private synchronized void close()
+		{
+			this.closed = true;
+			PendingWrite write;
+			while ((write = this.parked.poll()) != null)
+				write.fail(new ClosedChannelException());
+		}	// End of method close
+	}	// End of class Stream
+}	// End of class StreamTable
\ No newline at end of file
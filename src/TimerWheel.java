@@ -0,0 +1,220 @@
+// TimerWheel.java
+// A hashed timer wheel for many coarse-grained timeouts.
+// Devon Bautista
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Runs tasks after a delay, rounded up to the next tick. Timeouts are
+ * hashed into a ring of buckets by their deadline tick; one thread
+ * advances around the ring once per tick and runs the due timeouts of
+ * a single bucket. Scheduling and cancelling are O(1) and a tick only
+ * visits one bucket, so the cost per timeout stays flat no matter how
+ * many are pending, unlike a heap-based scheduler whose operations
+ * grow with the log of the queue size.
+ *
+ * Tasks run on the wheel thread and must not block.
+ **/
+public class TimerWheel
+{
+	// Attributes
+	private final long tickNanos;
+	private final Bucket[] wheel;
+	private final int mask;
+	private final Queue<Timeout> additions = new ConcurrentLinkedQueue<Timeout>();
+	private final long startTime = System.nanoTime();
+	private final Thread thread;
+	private volatile boolean running = true;
+	private long tick = 0;
+
+	/**
+	 * Creates and starts a timer wheel.
+	 * @param name The name of the wheel thread.
+	 * @param tickMillis The resolution of the wheel.
+	 * @param wheelSize The number of buckets, rounded up to a power of two.
+	 **/
+	public TimerWheel(String name, long tickMillis, int wheelSize)
+	{
+		this.tickNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, tickMillis));
+		int size = Integer.highestOneBit(Math.max(1, wheelSize - 1)) << 1;
+		this.wheel = new Bucket[size];
+		for (int i = 0; i < size; i++)
+			this.wheel[i] = new Bucket();
+		this.mask = size - 1;
+
+		this.thread = new Thread(new Runnable()
+		{
+			public void run()
+			{
+				TimerWheel.this.runLoop();
+			}	// End of method run
+		}, name);
+		this.thread.setDaemon(true);
+		this.thread.start();
+	}	// End of constructor
+
+	/**
+	 * Schedules a task. May be called from any thread.
+	 * @param task The task to run on the wheel thread.
+	 * @param delayMillis The minimum delay before it runs.
+	 * @return A handle that can cancel the task.
+	 **/
+	public Timeout schedule(Runnable task, long delayMillis)
+	{
+		long deadline = System.nanoTime() - this.startTime + TimeUnit.MILLISECONDS.toNanos(Math.max(0, delayMillis));
+		Timeout timeout = new Timeout(task, deadline);
+		this.additions.add(timeout);
+		return timeout;
+	}	// End of method schedule
+
+	/**
+	 * Stops the wheel thread. Pending tasks never run.
+	 **/
+	public void stop()
+	{
+		this.running = false;
+		this.thread.interrupt();
+	}	// End of method stop
+
+	/**
+	 * Advances one tick at a time until stopped.
+	 **/
+	private void runLoop()
+	{
+		while (this.running)
+		{
+			// Sleep until the end of the current tick
+			long tickEnd = this.tickNanos * (this.tick + 1);
+			long sleepNanos = tickEnd - (System.nanoTime() - this.startTime);
+			if (sleepNanos > 0)
+			{
+				try
+				{
+					Thread.sleep(sleepNanos / 1000000, (int) (sleepNanos % 1000000));
+				}	// End of try
+				catch (InterruptedException e)
+				{
+					continue;	// Stopped; loop condition ends the thread
+				}	// End of catch
+			}	// End of if
+
+			this.transferAdditions();
+			this.wheel[(int) (this.tick & this.mask)].expire(this.tick);
+			this.tick++;
+		}	// End of while
+	}	// End of method runLoop
+
+	/**
+	 * Moves newly scheduled timeouts into their buckets.
+	 **/
+	private void transferAdditions()
+	{
+		Timeout timeout;
+		while ((timeout = this.additions.poll()) != null)
+		{
+			if (timeout.cancelled)
+				continue;
+			// Never schedule into a tick that has already passed
+			long due = Math.max(this.tick, (timeout.deadline + this.tickNanos - 1) / this.tickNanos);
+			timeout.dueTick = due;
+			this.wheel[(int) (due & this.mask)].add(timeout);
+		}	// End of while
+	}	// End of method transferAdditions
+
+	/**
+	 * A scheduled task. Cancelling only marks it; the wheel drops it the
+	 * next time its bucket comes round.
+	 **/
+	public static class Timeout
+	{
+		private final Runnable task;
+		private final long deadline;
+		private long dueTick;
+		private volatile boolean cancelled = false;
+		private Timeout next, prev;
+
+		Timeout(Runnable task, long deadline)
+		{
+			this.task = task;
+			this.deadline = deadline;
+		}	// End of constructor
+
+		/**
+		 * Stops the task from running, if it has not run yet.
+		 **/
+		public void cancel()
+		{
+			this.cancelled = true;
+		}	// End of method cancel
+
+		/**
+		 * Returns whether the task was cancelled.
+		 * @return True if cancel() was called.
+		 **/
+		public boolean isCancelled()
+		{
+			return this.cancelled;
+		}	// End of method isCancelled
+	}	// End of class Timeout
+
+	/**
+	 * A doubly linked list of the timeouts hashed to one slot.
+	 **/
+	private static class Bucket
+	{
+		private Timeout head, tail;
+
+		void add(Timeout timeout)
+		{
+			timeout.prev = this.tail;
+			timeout.next = null;
+			if (this.tail == null)
+				this.head = timeout;
+			else
+				this.tail.next = timeout;
+			this.tail = timeout;
+		}	// End of method add
+
+		void remove(Timeout timeout)
+		{
+			if (timeout.prev == null)
+				this.head = timeout.next;
+			else
+				timeout.prev.next = timeout.next;
+			if (timeout.next == null)
+				this.tail = timeout.prev;
+			else
+				timeout.next.prev = timeout.prev;
+			timeout.next = timeout.prev = null;
+		}	// End of method remove
+
+		/**
+		 * Runs every timeout due by a tick and drops cancelled ones;
+		 * timeouts for a later round of the wheel stay in place.
+		 **/
+		void expire(long tick)
+		{
+			Timeout timeout = this.head;
+			while (timeout != null)
+			{
+				Timeout next = timeout.next;
+				if (timeout.cancelled)
+					this.remove(timeout);
+				else if (timeout.dueTick <= tick)
+				{
+					this.remove(timeout);
+					try
+					{
+						timeout.task.run();
+					}	// End of try
+					catch (RuntimeException e)
+					{
+						e.printStackTrace();
+					}	// End of catch
+				}	// End of else if
+				timeout = next;
+			}	// End of while
+		}	// End of method expire
+	}	// End of class Bucket
+}	// End of class TimerWheel
\ No newline at end of file
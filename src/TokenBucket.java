@@ -0,0 +1,119 @@
+// TokenBucket.java
+// A lock-free limit on how fast something may happen.
+// Devon Bautista
+
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * A token bucket that refills at a fixed rate up to a burst. Rather
+ * than a count of tokens and the time it was last topped up, which
+ * would have to change together, it keeps the one moment at which the
+ * bucket will next be full: taking tokens pushes that moment later by
+ * the time they take to refill, and the bucket holds too few tokens
+ * when the moment is further off than the burst. Every update is a
+ * compare-and-set on a single AtomicLong, so any number of threads may
+ * share a bucket without locking.
+ *
+ * acquire() always takes its tokens, and may leave the bucket owing
+ * some; it returns how long the caller should wait before taking more.
+ * tryAcquire() takes them only if they are there.
+ **/
+public class TokenBucket
+{
+	// Constants
+	private static final long NANOS_PER_SECOND = TimeUnit.SECONDS.toNanos(1);
+
+	// Attributes
+	private final long ratePerSecond;
+	private final long burstNanos;
+	private final AtomicLong fullAt = new AtomicLong(System.nanoTime());
+
+	/**
+	 * Creates a full bucket.
+	 * @param ratePerSecond The tokens added each second.
+	 * @param burstMillis How many milliseconds of tokens the bucket holds.
+	 **/
+	public TokenBucket(long ratePerSecond, long burstMillis)
+	{
+		this.ratePerSecond = Math.max(1, ratePerSecond);
+		this.burstNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, burstMillis));
+	}	// End of constructor
+
+	/**
+	 * Takes tokens whether or not the bucket holds them.
+	 * @param count The number of tokens.
+	 * @return The nanoseconds until the bucket is back within its burst,
+	 * or 0 if it already is.
+	 **/
+	public long acquire(long count)
+	{
+		long cost = this.cost(count);
+		while (true)
+		{
+			long now = System.nanoTime();
+			long fullAt = this.fullAt.get();
+			long next = later(fullAt, now) + cost;
+			if (this.fullAt.compareAndSet(fullAt, next))
+				return Math.max(0, next - now - this.burstNanos);
+		}	// End of while
+	}	// End of method acquire
+
+	/**
+	 * Takes tokens if the bucket holds them. A full bucket always gives
+	 * them, so a request larger than the burst is not refused forever.
+	 * @param count The number of tokens.
+	 * @return True if they were taken.
+	 **/
+	public boolean tryAcquire(long count)
+	{
+		long cost = this.cost(count);
+		while (true)
+		{
+			long now = System.nanoTime();
+			long fullAt = this.fullAt.get();
+			long next = later(fullAt, now) + cost;
+			if (next - now > this.burstNanos && fullAt - now > 0)
+				return false;
+			if (this.fullAt.compareAndSet(fullAt, next))
+				return true;
+		}	// End of while
+	}	// End of method tryAcquire
+
+	/**
+	 * Puts back tokens taken by a request that was refused elsewhere.
+	 * @param count The number of tokens.
+	 **/
+	public void refund(long count)
+	{
+		this.fullAt.addAndGet(-this.cost(count));
+	}	// End of method refund
+
+	/**
+	 * Returns how long until the bucket is back within its burst.
+	 * @return The nanoseconds to wait, or 0 if none.
+	 **/
+	public long getDelay()
+	{
+		return Math.max(0, this.fullAt.get() - System.nanoTime() - this.burstNanos);
+	}	// End of method getDelay
+
+	/**
+	 * Returns the rate the bucket refills at.
+	 * @return The tokens per second.
+	 **/
+	public long getRate()
+	{
+		return this.ratePerSecond;
+	}	// End of method getRate
+
+	private long cost(long count)
+	{
+		return count * NANOS_PER_SECOND / this.ratePerSecond;
+	}	// End of method cost
+
+	private static long later(long a, long b)
+	{
+		return (a - b > 0) ? a : b;		// nanoTime values may wrap
+	}	// End of method later
+}	// End of class TokenBucket
\ No newline at end of file
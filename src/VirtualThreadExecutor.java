@@ -0,0 +1,75 @@
+// VirtualThreadExecutor.java
+// Runs each session on a virtual thread when the JVM supports them.
+// Devon Bautista
+
+import java.lang.invoke.*;
+
+/**
+ * Starts each session on a virtual thread, so a blocked read costs a
+ * small heap object instead of a platform thread and its stack. The
+ * virtual thread API is looked up at runtime so SimpleIM still builds
+ * and runs on JVMs without it; there, platform threads are used. JDK 19
+ * and 20 have the API but refuse to use it without --enable-preview,
+ * so it is tried once before being relied on.
+ **/
+public class VirtualThreadExecutor implements SessionExecutor
+{
+	// Thread.ofVirtual().name(String).start(Runnable), if available
+	private static final MethodHandle OF_VIRTUAL;
+	private static final MethodHandle NAME;
+	private static final MethodHandle START;
+
+	static
+	{
+		MethodHandle ofVirtual = null, name = null, start = null;
+		try
+		{
+			MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+			Class<?> builder = Class.forName("java.lang.Thread$Builder$OfVirtual");
+			ofVirtual = lookup.findStatic(Thread.class, "ofVirtual", MethodType.methodType(builder));
+			name = lookup.findVirtual(builder, "name", MethodType.methodType(builder, String.class));
+			start = lookup.findVirtual(builder, "start", MethodType.methodType(Thread.class, Runnable.class));
+			ofVirtual.invoke();		// Throws if virtual threads are a preview feature not enabled
+		}	// End of try
+		catch (ReflectiveOperationException e)
+		{
+			// Virtual threads unavailable on this JVM
+			ofVirtual = null;
+		}	// End of catch
+		catch (Throwable t)
+		{
+			// UnsupportedOperationException on JDK 19 and 20 without --enable-preview
+			ofVirtual = null;
+		}	// End of catch
+		OF_VIRTUAL = ofVirtual;
+		NAME = name;
+		START = start;
+	}	// End of static initializer
+
+	private final PlatformThreadExecutor fallback = new PlatformThreadExecutor();
+
+	public Thread start(Runnable task, String name)
+	{
+		if (OF_VIRTUAL == null)
+			return this.fallback.start(task, name);
+
+		try
+		{
+			Object builder = NAME.invoke(OF_VIRTUAL.invoke(), name);
+			return (Thread) START.invoke(builder, task);
+		}	// End of try
+		catch (Throwable t)
+		{
+			throw new IllegalStateException("Unable to start virtual thread", t);
+		}	// End of catch
+	}	// End of method start
+
+	/**
+	 * Returns whether sessions really run on virtual threads.
+	 * @return False if this JVM has no virtual threads.
+	 **/
+	public boolean isVirtual()
+	{
+		return OF_VIRTUAL != null;
+	}	// End of method isVirtual
+}	// End of class VirtualThreadExecutor
\ No newline at end of file